@@ -0,0 +1,20 @@
+package pwnee.bench;
+
+import java.awt.Graphics2D;
+
+import pwnee.sprites.Sprite;
+
+/** A sprite that is never drawn, with a velocity for the moving scenes. */
+public class BenchSprite extends Sprite {
+  
+  /** The sprite's velocity in pixels per frame. */
+  public double dx, dy;
+  
+  public BenchSprite(double x, double y, double w, double h) {
+    super(x, y);
+    width = w;
+    height = h;
+  }
+  
+  public void draw(Graphics2D g) {}
+}
@@ -0,0 +1,116 @@
+package pwnee.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pwnee.collisions.Broadphase;
+import pwnee.collisions.DynamicAABBTree;
+import pwnee.collisions.QuadTree;
+import pwnee.collisions.SpatialHashGrid;
+import pwnee.collisions.SweepAndPrune;
+
+/** 
+ * Measures a frame of many-to-many collision detection with each broadphase. 
+ * In the moving scenes, every sprite moves and is updated each frame. 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BroadphaseBenchmark {
+  
+  @Param({"100", "1000", "10000", "100000"})
+  public int n;
+  
+  @Param({Scenes.UNIFORM, Scenes.CLUSTERED, Scenes.MOVING})
+  public String distribution;
+  
+  @Param({"quadtree", "grid", "sap", "bvh"})
+  public String broadphase;
+  
+  private BenchSprite[] sprites;
+  
+  private double size;
+  
+  private Broadphase bp;
+  
+  private PairCounter counter = new PairCounter();
+  
+  private ConcurrentPairCounter parallelCounter = new ConcurrentPairCounter();
+  
+  @Setup(Level.Trial)
+  public void setup() {
+    sprites = Scenes.create(distribution, n, 42);
+    size = Scenes.worldSize(n);
+    bp = createBroadphase(broadphase, size);
+    for(BenchSprite s : sprites)
+      bp.insert(s);
+  }
+  
+  /** Creates a broadphase by name. */
+  static Broadphase createBroadphase(String name, double size) {
+    if("quadtree".equals(name)) {
+      QuadTree tree = new QuadTree(0, 0, size, size, 10);
+      tree.setCapacity(8);
+      return tree;
+    }
+    if("grid".equals(name))
+      return new SpatialHashGrid(32);
+    if("sap".equals(name))
+      return new SweepAndPrune();
+    if("bvh".equals(name))
+      return new DynamicAABBTree();
+    throw new IllegalArgumentException("Unknown broadphase: " + name);
+  }
+  
+  /** Moves the sprites if the scene is moving, and updates the broadphase. */
+  private void advance() {
+    if(Scenes.MOVING.equals(distribution)) {
+      Scenes.step(sprites, size);
+      for(BenchSprite s : sprites)
+        bp.update(s);
+    }
+  }
+  
+  /** Finds every potentially colliding pair once. */
+  @Benchmark
+  public int allPairs() {
+    advance();
+    counter.count = 0;
+    bp.forEachPotentialPair(counter);
+    return counter.count;
+  }
+  
+  /** Finds every potentially colliding pair once, on all processors. */
+  @Benchmark
+  public long allPairsParallel() {
+    advance();
+    parallelCounter.reset();
+    bp.forEachPotentialPair(parallelCounter, true);
+    return parallelCounter.sum();
+  }
+  
+  /** Queries for every sprite, the way the quadTree example finds collisions. */
+  @Benchmark
+  public int queryEachSprite() {
+    advance();
+    counter.count = 0;
+    for(BenchSprite s : sprites)
+      bp.query(s, counter);
+    return counter.count;
+  }
+}
@@ -0,0 +1,16 @@
+package pwnee.bench;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import pwnee.collisions.SpritePairVisitor;
+import pwnee.sprites.Sprite;
+
+/** Counts the pairs it visits from any number of threads without contending on a single counter. */
+public class ConcurrentPairCounter extends LongAdder implements SpritePairVisitor {
+  
+  private static final long serialVersionUID = 1L;
+  
+  public void visit(Sprite a, Sprite b) {
+    increment();
+  }
+}
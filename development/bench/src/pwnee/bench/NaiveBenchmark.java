@@ -0,0 +1,64 @@
+package pwnee.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pwnee.geom.Collisions;
+
+/** 
+ * Measures the naive O(n^2) loop from the quadTree example, which tests 
+ * every sprite against every other sprite. It stops at 10000 sprites, since 
+ * 100000 sprites would take billions of tests per frame. 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NaiveBenchmark {
+  
+  @Param({"100", "1000", "10000"})
+  public int n;
+  
+  @Param({Scenes.UNIFORM, Scenes.CLUSTERED, Scenes.MOVING})
+  public String distribution;
+  
+  private BenchSprite[] sprites;
+  
+  private double size;
+  
+  @Setup(Level.Trial)
+  public void setup() {
+    sprites = Scenes.create(distribution, n, 42);
+    size = Scenes.worldSize(n);
+  }
+  
+  /** Tests every pair of sprites. */
+  @Benchmark
+  public int allPairs() {
+    if(Scenes.MOVING.equals(distribution))
+      Scenes.step(sprites, size);
+    
+    int count = 0;
+    for(int i = 0; i < sprites.length; i++) {
+      for(int j = i + 1; j < sprites.length; j++) {
+        if(Collisions.rect2rectFast(sprites[i], sprites[j]))
+          count++;
+      }
+    }
+    return count;
+  }
+}
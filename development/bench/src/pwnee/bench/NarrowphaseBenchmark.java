@@ -0,0 +1,167 @@
+package pwnee.bench;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pwnee.collisions.PairList;
+import pwnee.geom.Collisions;
+import pwnee.geom.Contact;
+import pwnee.geom.Polygon2D;
+
+/** 
+ * Measures the exact collision tests on a fixed set of nearby pairs, about 
+ * half of which collide. The scores are tests per second. 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NarrowphaseBenchmark {
+  
+  /** The number of pairs tested per invocation. */
+  private static final int PAIRS = 1024;
+  
+  private BenchSprite[] as = new BenchSprite[PAIRS];
+  private BenchSprite[] bs = new BenchSprite[PAIRS];
+  
+  private Rectangle2D[] aRects = new Rectangle2D[PAIRS];
+  private Rectangle2D[] bRects = new Rectangle2D[PAIRS];
+  
+  private Polygon2D[] aPolys = new Polygon2D[PAIRS];
+  private Polygon2D[] bPolys = new Polygon2D[PAIRS];
+  
+  private Contact contact = new Contact();
+  
+  /** The sprites' bounding circles packed for the batch tests, with the A circles before the B circles. */
+  private double[] xs = new double[PAIRS*2];
+  private double[] ys = new double[PAIRS*2];
+  private double[] rs = new double[PAIRS*2];
+  private PairList pairList = new PairList(PAIRS);
+  private long[] hits = new long[PAIRS/64];
+  
+  @Setup(Level.Trial)
+  public void setup() {
+    Random rand = new Random(42);
+    for(int i = 0; i < PAIRS; i++) {
+      as[i] = new BenchSprite(0, 0, 8 + rand.nextInt(25), 8 + rand.nextInt(25));
+      bs[i] = new BenchSprite(rand.nextDouble()*64 - 32, rand.nextDouble()*64 - 32, 8 + rand.nextInt(25), 8 + rand.nextInt(25));
+      as[i].setAngle(rand.nextDouble()*360);
+      bs[i].setAngle(rand.nextDouble()*360);
+      
+      aRects[i] = as[i].getCollisionBox();
+      bRects[i] = bs[i].getCollisionBox();
+      aPolys[i] = as[i].getCollisionPoly();
+      bPolys[i] = bs[i].getCollisionPoly();
+      
+      xs[i] = as[i].x;
+      ys[i] = as[i].y;
+      rs[i] = aRects[i].getWidth()/2;
+      xs[PAIRS + i] = bs[i].x;
+      ys[PAIRS + i] = bs[i].y;
+      rs[PAIRS + i] = bRects[i].getWidth()/2;
+      pairList.add(i, PAIRS + i);
+    }
+  }
+  
+  /** Tests unrotated bounding boxes, getting them from the sprites. */
+  @Benchmark
+  @OperationsPerInvocation(PAIRS)
+  public int rect2rectFastSprites() {
+    int count = 0;
+    for(int i = 0; i < PAIRS; i++) {
+      if(Collisions.rect2rectFast(as[i], bs[i]))
+        count++;
+    }
+    return count;
+  }
+  
+  /** Tests unrotated bounding boxes that were computed beforehand. */
+  @Benchmark
+  @OperationsPerInvocation(PAIRS)
+  public int rect2rectFastRects() {
+    int count = 0;
+    for(int i = 0; i < PAIRS; i++) {
+      if(Collisions.rect2rectFast(aRects[i], bRects[i]))
+        count++;
+    }
+    return count;
+  }
+  
+  /** Tests the sprites' bounding circles. */
+  @Benchmark
+  @OperationsPerInvocation(PAIRS)
+  public int circle2circleSprites() {
+    int count = 0;
+    for(int i = 0; i < PAIRS; i++) {
+      if(Collisions.circle2circle(as[i], bs[i]))
+        count++;
+    }
+    return count;
+  }
+  
+  /** Tests the sprites' bounding circles packed into arrays, as a batch of candidate pairs. */
+  @Benchmark
+  @OperationsPerInvocation(PAIRS)
+  public int circle2circleBatch() {
+    return Collisions.circle2circle(xs, ys, rs, pairList, hits);
+  }
+  
+  /** Tests one circle against all the B circles packed into arrays. */
+  @Benchmark
+  @OperationsPerInvocation(PAIRS)
+  public int circle2circleOneToMany() {
+    return Collisions.circle2circle(xs[0], ys[0], rs[0], xs, ys, rs, PAIRS, PAIRS*2, hits);
+  }
+  
+  /** Tests the sprites' rotated collision polygons that were computed beforehand. */
+  @Benchmark
+  @OperationsPerInvocation(PAIRS)
+  public int polygonIntersects() {
+    int count = 0;
+    for(int i = 0; i < PAIRS; i++) {
+      if(aPolys[i].intersects(bPolys[i]))
+        count++;
+    }
+    return count;
+  }
+  
+  /** Tests the sprites' rotated collision polygons with the SAT narrowphase, computing their contacts. */
+  @Benchmark
+  @OperationsPerInvocation(PAIRS)
+  public int polygonCollide() {
+    int count = 0;
+    for(int i = 0; i < PAIRS; i++) {
+      if(aPolys[i].collide(bPolys[i], contact))
+        count++;
+    }
+    return count;
+  }
+  
+  /** Tests the sprites' rotated collision polygons, computing them from the sprites. */
+  @Benchmark
+  @OperationsPerInvocation(PAIRS)
+  public int polygonIntersectsSprites() {
+    int count = 0;
+    for(int i = 0; i < PAIRS; i++) {
+      if(as[i].getCollisionPoly().intersects(bs[i].getCollisionPoly()))
+        count++;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,20 @@
+package pwnee.bench;
+
+import pwnee.collisions.SpritePairVisitor;
+import pwnee.collisions.SpriteVisitor;
+import pwnee.sprites.Sprite;
+
+/** Counts the sprites and pairs it visits, so that the benchmarks have a result that can't be optimized away. */
+public class PairCounter implements SpritePairVisitor, SpriteVisitor {
+  
+  public int count = 0;
+  
+  public void visit(Sprite a, Sprite b) {
+    count++;
+  }
+  
+  public boolean visit(Sprite s) {
+    count++;
+    return true;
+  }
+}
@@ -0,0 +1,84 @@
+package pwnee.bench;
+
+import java.util.Random;
+
+/** 
+ * Generates reproducible scenes of sprites for the benchmarks. The world 
+ * grows with the number of sprites, so that every scene has about the same 
+ * density. 
+ */
+public class Scenes {
+  
+  /** Sprites spread evenly over the world. */
+  public static final String UNIFORM = "uniform";
+  
+  /** Sprites packed into a few dense clusters, with most of the world empty. */
+  public static final String CLUSTERED = "clustered";
+  
+  /** Sprites spread evenly over the world that move every frame. */
+  public static final String MOVING = "moving";
+  
+  /** The number of clusters in clustered scenes. */
+  private static final int CLUSTERS = 16;
+  
+  private Scenes() {}
+  
+  /** Returns the width and height of the world for a number of sprites. */
+  public static double worldSize(int n) {
+    return Math.ceil(Math.sqrt(n)*48);
+  }
+  
+  /** Creates the sprites for a scene. */
+  public static BenchSprite[] create(String distribution, int n, long seed) {
+    Random rand = new Random(seed);
+    double size = worldSize(n);
+    
+    double[] clusterXs = new double[CLUSTERS];
+    double[] clusterYs = new double[CLUSTERS];
+    for(int i = 0; i < CLUSTERS; i++) {
+      clusterXs[i] = size*(0.1 + 0.8*rand.nextDouble());
+      clusterYs[i] = size*(0.1 + 0.8*rand.nextDouble());
+    }
+    double spread = size/40;
+    
+    BenchSprite[] sprites = new BenchSprite[n];
+    for(int i = 0; i < n; i++) {
+      double w = 8 + rand.nextInt(25);
+      double h = 8 + rand.nextInt(25);
+      double x, y;
+      if(CLUSTERED.equals(distribution)) {
+        int c = rand.nextInt(CLUSTERS);
+        x = clamp(clusterXs[c] + rand.nextGaussian()*spread, 0, size - w);
+        y = clamp(clusterYs[c] + rand.nextGaussian()*spread, 0, size - h);
+      }
+      else {
+        x = rand.nextDouble()*(size - w);
+        y = rand.nextDouble()*(size - h);
+      }
+      
+      BenchSprite s = new BenchSprite(x, y, w, h);
+      if(MOVING.equals(distribution)) {
+        s.dx = rand.nextDouble()*4 - 2;
+        s.dy = rand.nextDouble()*4 - 2;
+      }
+      sprites[i] = s;
+    }
+    return sprites;
+  }
+  
+  /** Moves the sprites by their velocities, bouncing them off the edges of the world. */
+  public static void step(BenchSprite[] sprites, double size) {
+    for(BenchSprite s : sprites) {
+      s.x += s.dx;
+      s.y += s.dy;
+      if(s.x < 0 || s.x + s.getWidth() > size)
+        s.dx = -s.dx;
+      if(s.y < 0 || s.y + s.getHeight() > size)
+        s.dy = -s.dy;
+    }
+  }
+  
+  private static double clamp(double v, double min, double max) {
+    return Math.max(min, Math.min(max, v));
+  }
+}
@@ -0,0 +1,164 @@
+package pwnee.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pwnee.geom.algs.BentleyOttmannLineSweepAlgorithm;
+
+/**
+ * Measures finding every pair of touching segments with the Bentley-Ottmann
+ * sweep and with the brute force loop testing every pair. The segments are
+ * short, so the number of touching pairs grows linearly with the number of
+ * segments. The random segments go in any direction, while the grid
+ * segments are horizontal and vertical segments on integer coordinates,
+ * which share endpoints and overlap a lot. The brute force loop stops at
+ * 10000 segments, since 1000000 segments would take half a trillion tests.
+ * The scores are runs per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentSweepBenchmark {
+  
+  public static final String RANDOM = "random";
+  
+  public static final String GRID = "grid";
+  
+  
+  /** The segments for the sweep, up to a million of them. */
+  @State(Scope.Thread)
+  public static class Segments {
+  
+    @Param({"100", "1000", "10000", "100000", "1000000"})
+    public int n;
+  
+    @Param({RANDOM, GRID})
+    public String layout;
+  
+    double[] x1s, y1s, x2s, y2s;
+  
+    BentleyOttmannLineSweepAlgorithm sweep = new BentleyOttmannLineSweepAlgorithm();
+  
+    @Setup(Level.Trial)
+    public void setup() {
+      x1s = new double[n];
+      y1s = new double[n];
+      x2s = new double[n];
+      y2s = new double[n];
+      create(layout, n, 42, x1s, y1s, x2s, y2s);
+    }
+  }
+  
+  /** The segments for the brute force loop. */
+  @State(Scope.Thread)
+  public static class FewSegments {
+  
+    @Param({"100", "1000", "10000"})
+    public int n;
+  
+    @Param({RANDOM, GRID})
+    public String layout;
+  
+    double[] x1s, y1s, x2s, y2s;
+  
+    @Setup(Level.Trial)
+    public void setup() {
+      x1s = new double[n];
+      y1s = new double[n];
+      x2s = new double[n];
+      y2s = new double[n];
+      create(layout, n, 42, x1s, y1s, x2s, y2s);
+    }
+  }
+  
+  
+  /** Fills the arrays with n segments laid out by name. */
+  static void create(String layout, int n, long seed, double[] x1s, double[] y1s, double[] x2s, double[] y2s) {
+    Random rand = new Random(seed);
+    if(RANDOM.equals(layout)) {
+      double size = Math.sqrt(n)*10;
+      for(int i = 0; i < n; i++) {
+        double angle = rand.nextDouble()*Math.PI*2;
+        x1s[i] = rand.nextDouble()*size;
+        y1s[i] = rand.nextDouble()*size;
+        x2s[i] = x1s[i] + Math.cos(angle)*10;
+        y2s[i] = y1s[i] + Math.sin(angle)*10;
+      }
+    }
+    else if(GRID.equals(layout)) {
+      int size = (int) Math.sqrt(n)*2 + 1;
+      for(int i = 0; i < n; i++) {
+        x1s[i] = rand.nextInt(size);
+        y1s[i] = rand.nextInt(size);
+        int length = 1 + rand.nextInt(3);
+        if(rand.nextBoolean()) {
+          x2s[i] = x1s[i] + length;
+          y2s[i] = y1s[i];
+        }
+        else {
+          x2s[i] = x1s[i];
+          y2s[i] = y1s[i] + length;
+        }
+      }
+    }
+    else {
+      throw new IllegalArgumentException("Unknown layout: " + layout);
+    }
+  }
+  
+  
+  /** Finds the touching pairs with the sweep. */
+  @Benchmark
+  public int sweep(Segments s) {
+    return s.sweep.run(s.x1s, s.y1s, s.x2s, s.y2s, s.n);
+  }
+  
+  /** Finds the touching pairs by testing every pair. */
+  @Benchmark
+  public int bruteForce(FewSegments s) {
+    double[] x1s = s.x1s;
+    double[] y1s = s.y1s;
+    double[] x2s = s.x2s;
+    double[] y2s = s.y2s;
+    int count = 0;
+    for(int i = 0; i < s.n; i++) {
+      for(int j = i + 1; j < s.n; j++) {
+        if(touch(x1s[i], y1s[i], x2s[i], y2s[i], x1s[j], y1s[j], x2s[j], y2s[j]))
+          count++;
+      }
+    }
+    return count;
+  }
+  
+  /** Returns true iff the segment from a to b touches the segment from c to d. */
+  private static boolean touch(double ax, double ay, double bx, double by, double cx, double cy, double dx, double dy) {
+    if(Math.max(ax, bx) < Math.min(cx, dx) || Math.max(cx, dx) < Math.min(ax, bx) ||
+        Math.max(ay, by) < Math.min(cy, dy) || Math.max(cy, dy) < Math.min(ay, by))
+      return false;
+  
+    double o1 = (bx - ax)*(cy - ay) - (by - ay)*(cx - ax);
+    double o2 = (bx - ax)*(dy - ay) - (by - ay)*(dx - ax);
+    double o3 = (dx - cx)*(ay - cy) - (dy - cy)*(ax - cx);
+    double o4 = (dx - cx)*(by - cy) - (dy - cy)*(bx - cx);
+  
+    // Collinear segments touch if their bounding boxes do.
+    if(o1 == 0 && o2 == 0)
+      return true;
+    return !((o1 > 0 && o2 > 0) || (o1 < 0 && o2 < 0) || (o3 > 0 && o4 > 0) || (o3 < 0 && o4 < 0));
+  }
+}
@@ -45,6 +45,12 @@ public class GameTimer extends Timer {
     /** Used to update fpsCounter */
     private long startTime = System.currentTimeMillis();
     
+    /** A smoothed measure of the actual time in milliseconds between frames. This is updated every frame, unlike fpsCounter. */
+    public double frameMillis = 0.0;
+    
+    /** Used to update frameMillis */
+    private long lastFrameNanos = 0;
+    
     /** Creates the game timer and assigns it an initial delay and a listener which will handle the timer's events. */
     public GameTimer(int delay, ActionListener listener) {
         super(delay, listener);
@@ -52,8 +58,18 @@ public class GameTimer extends Timer {
     
     
     
-    /** Updates fpsCounter. This should be called only once per frame in your application. */
+    /** Updates fpsCounter and frameMillis. This should be called only once per frame in your application. */
     public void updateFrameRateCounter() {
+        long nanos = System.nanoTime();
+        if(lastFrameNanos != 0) {
+            double millis = (nanos - lastFrameNanos)/1000000.0;
+            if(frameMillis == 0.0)
+                frameMillis = millis;
+            else
+                frameMillis += (millis - frameMillis)*0.1;
+        }
+        lastFrameNanos = nanos;
+        
         ticks++;
         long currentTime = System.currentTimeMillis();
         
@@ -0,0 +1,188 @@
+package pwnee.collisions;
+
+import java.util.Collection;
+import java.util.List;
+
+import pwnee.sprites.Sprite;
+
+/** 
+ * A spatial structure for finding the sprites that might be colliding 
+ * before doing exact collision detection on them. The bounding boxes used are 
+ * the ones the sprites had when they were last inserted or updated.
+ *
+ * Games should keep their broadphase in a variable of this type, so that 
+ * switching between the implementations only changes the line creating it.
+ *
+ * Each sprite in a broadphase has a category bitmask saying what kind of 
+ * sprite it is, and a mask saying which categories it collides with. Two 
+ * sprites are only a potential pair if each one's category is in the other's
+ * mask, so games can keep bullets from testing against other bullets, or 
+ * static geometry from testing against itself. The filters are checked while 
+ * the structure is walked, before any bounding boxes are compared. Sprites 
+ * inserted without a filter get DEFAULT_CATEGORY and DEFAULT_MASK, which 
+ * collide with everything.
+ *
+ * The visitors given to queries and forEachPotentialPair may query the 
+ * structure again, but they must not insert, update, or remove sprites, 
+ * change their filters, or clear the structure while it is being walked. 
+ * To change the structure because of what a walk finds, collect the sprites 
+ * with the query overloads that take a collection, or collect the pairs into 
+ * a SpritePairList, and make the changes once the walk is done.
+ */
+public interface Broadphase {
+  
+  /** The category of sprites inserted without a filter. */
+  public static final int DEFAULT_CATEGORY = 1;
+  
+  /** The mask of sprites inserted without a filter. It collides with every category. */
+  public static final int DEFAULT_MASK = ~0;
+  
+  
+  /** 
+   * Inserts a sprite. If the sprite is already in the structure, it is 
+   * updated instead. 
+   * @return  true iff the sprite is in the structure afterwards.
+   */
+  public boolean insert(Sprite s);
+  
+  /** 
+   * Inserts a sprite with a category and the mask of categories it collides 
+   * with. If the sprite is already in the structure, its filter is changed 
+   * and it is updated instead. 
+   * @return  true iff the sprite is in the structure afterwards.
+   */
+  public boolean insert(Sprite s, int category, int mask);
+  
+  /** 
+   * Updates the bounding box of a sprite after it has moved or resized. 
+   * Sprites that aren't in the structure yet are inserted, and sprites that 
+   * have been destroyed are removed.
+   * @return  true iff the sprite is in the structure afterwards.
+   */
+  public boolean update(Sprite s);
+  
+  /** 
+   * Removes a sprite. 
+   * @return  true iff the sprite was in the structure.
+   */
+  public boolean remove(Sprite s);
+  
+  /** Removes all sprites. */
+  public void clear();
+  
+  /** Returns the number of sprites in the structure. */
+  public int size();
+  
+  /** Returns true iff a sprite is currently in the structure. */
+  public boolean containsSprite(Sprite s);
+  
+  /** 
+   * Changes the category of a sprite and the mask of categories it collides with.
+   * @return  true iff the sprite is in the structure.
+   */
+  public boolean setFilter(Sprite s, int category, int mask);
+  
+  /** Returns the category of a sprite, or 0 if it isn't in the structure. */
+  public int getCategory(Sprite s);
+  
+  /** Returns the mask of categories a sprite collides with, or 0 if it isn't in the structure. */
+  public int getMask(Sprite s);
+  
+  /** 
+   * Returns a new list of the sprites whose bounding boxes overlap a 
+   * sprite's bounding box, including itself if it is in the structure. If 
+   * the sprite is in the structure, only the sprites its filter collides 
+   * with are returned, and it only includes itself if it collides with its 
+   * own category.
+   */
+  public List<Sprite> query(Sprite s);
+  
+  /** Adds the sprites whose bounding boxes overlap a sprite's bounding box to out. */
+  public void query(Sprite s, Collection<? super Sprite> out);
+  
+  /** 
+   * Visits the sprites whose bounding boxes overlap a sprite's bounding box. 
+   * The visitor must not change the structure.
+   */
+  public void query(Sprite s, SpriteVisitor visitor);
+  
+  /** Adds the sprites whose bounding boxes overlap a rectangular area to out. */
+  public void query(double x, double y, double w, double h, Collection<? super Sprite> out);
+  
+  /** Visits the sprites whose bounding boxes overlap a rectangular area. */
+  public void query(double x, double y, double w, double h, SpriteVisitor visitor);
+  
+  /** 
+   * Visits the sprites whose bounding boxes overlap a rectangular area and 
+   * whose categories are in a mask. 
+   */
+  public void query(double x, double y, double w, double h, int mask, SpriteVisitor visitor);
+  
+  /** Adds the sprites whose bounding boxes contain a point to out. */
+  public void queryPoint(double x, double y, Collection<? super Sprite> out);
+  
+  /** Visits the sprites whose bounding boxes contain a point. */
+  public void queryPoint(double x, double y, SpriteVisitor visitor);
+  
+  /** Adds the sprites whose bounding boxes overlap a circle to out. */
+  public void queryCircle(double cx, double cy, double r, Collection<? super Sprite> out);
+  
+  /** Visits the sprites whose bounding boxes overlap a circle. */
+  public void queryCircle(double cx, double cy, double r, SpriteVisitor visitor);
+  
+  /** 
+   * Casts a ray from (x0, y0) to (x1, y1) and finds the first sprite whose 
+   * bounding box it hits. The hit's fraction is how far along the segment 
+   * the hit is. Only the parts of the structure along the ray are searched, 
+   * nearest first, and nothing is allocated.
+   * @param hit   Set to the closest hit, or reset if nothing was hit.
+   * @return  true iff a sprite was hit.
+   */
+  public boolean raycast(double x0, double y0, double x1, double y1, RaycastHit hit);
+  
+  /** 
+   * Casts a ray from (ox, oy) in the direction (dirX, dirY), up to a finite 
+   * distance of maxDist, and finds the first sprite whose bounding box it 
+   * hits. The hit's fraction times maxDist is the distance to the hit.
+   * @param hit   Set to the closest hit, or reset if nothing was hit.
+   * @return  true iff a sprite was hit.
+   */
+  public boolean raycast(double ox, double oy, double dirX, double dirY, double maxDist, RaycastHit hit);
+  
+  /** 
+   * Casts a ray like raycast(ox, oy, dirX, dirY, maxDist, hit), only hitting 
+   * the sprites whose categories are in a mask.
+   */
+  public boolean raycast(double ox, double oy, double dirX, double dirY, double maxDist, int mask, RaycastHit hit);
+  
+  /** 
+   * Returns true iff no sprite whose category is in a mask has a bounding 
+   * box touching the segment from (x0, y0) to (x1, y1). This stops at the 
+   * first blocking sprite found, so it is cheaper than a raycast.
+   */
+  public boolean lineOfSight(double x0, double y0, double x1, double y1, int mask);
+  
+  /** 
+   * Returns true iff no other sprite blocks the segment between the centers 
+   * of two sprites' bounding boxes. The two sprites themselves are ignored. 
+   * If a is in the structure, only the sprites it collides with block it.
+   */
+  public boolean lineOfSight(Sprite a, Sprite b);
+  
+  /** 
+   * Visits every pair of sprites whose bounding boxes overlap and whose 
+   * filters collide with each other, exactly once each. The visitor must 
+   * not change the structure, so a SpritePairList can collect the pairs for 
+   * games that remove sprites when they collide.
+   */
+  public void forEachPotentialPair(SpritePairVisitor visitor);
+  
+  /** 
+   * Visits every pair of sprites whose bounding boxes overlap and whose 
+   * filters collide with each other, exactly once each. 
+   * @param parallel  If true, the work may be split across the shared 
+   *                  WorkerPool, and the visitor must be safe to call from 
+   *                  multiple threads at once.
+   */
+  public void forEachPotentialPair(SpritePairVisitor visitor, boolean parallel);
+}
@@ -0,0 +1,20 @@
+package pwnee.collisions;
+
+import pwnee.sprites.Sprite;
+
+/** 
+ * A callback for the collision events sent by a CollisionTracker. The two 
+ * sprites of a pair are always passed in the same order, from the frame 
+ * their collision begins until the frame it ends.
+ */
+public interface CollisionListener {
+  
+  /** Called in the first frame that two sprites collide. */
+  public void collisionBegin(Sprite a, Sprite b);
+  
+  /** Called in each later frame that two sprites are still colliding. */
+  public void collisionStay(Sprite a, Sprite b);
+  
+  /** Called in the first frame that two sprites stop colliding, or when either of them is destroyed. */
+  public void collisionEnd(Sprite a, Sprite b);
+}
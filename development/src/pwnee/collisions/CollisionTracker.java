@@ -0,0 +1,214 @@
+package pwnee.collisions;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import pwnee.sprites.Sprite;
+import pwnee.util.LongHashSet;
+
+/**
+ * Tracks which pairs of sprites are colliding from frame to frame, and
+ * tells a CollisionListener when each collision begins, stays, and ends.
+ * Sprites don't need to keep flags to tell whether a collision is new.
+ *
+ * Each frame, call beginFrame, then report each colliding pair, then call
+ * endFrame. The pairs can be the confirmed results of a narrowphase test,
+ * or update(Broadphase) can report every pair of sprites whose bounding
+ * boxes overlap in a broadphase. Begin and stay events are sent as the
+ * pairs are reported, and end events are sent by endFrame. update collects
+ * the broadphase's pairs before reporting them, so the listener may remove
+ * or move sprites in the broadphase.
+ *
+ * Each sprite is given an id the first time it is reported, and pairs are
+ * stored as two ids packed into a long in a LongHashSet, holding this
+ * frame's pairs and the last frame's pairs. Once every sprite has an id,
+ * tracking pairs and sending events doesn't allocate any objects. A
+ * sprite's id is freed in the first frame it isn't in any pair. Pairs with
+ * destroyed sprites aren't tracked, so destroying a sprite ends its
+ * collisions.
+ *
+ * The tracker isn't safe to report pairs to from multiple threads at once.
+ */
+public class CollisionTracker implements SpritePairVisitor {
+
+  /** The sprite for each id. */
+  private Sprite[] sprites = new Sprite[16];
+
+  /** The last frame each id was in a pair. */
+  private int[] lastSeen = new int[16];
+
+  /** Maps each tracked sprite to its id. */
+  private IdentityHashMap<Sprite, Integer> ids = new IdentityHashMap<Sprite, Integer>();
+
+  /** The number of ids that have been used. */
+  private int idCount = 0;
+
+  /** The ids that can be reused. */
+  private int[] freeIds = new int[16];
+  private int freeCount = 0;
+
+  /** The pairs reported this frame, packed with LongHashSet.pairKey. */
+  private LongHashSet current = new LongHashSet();
+
+  /** The pairs reported last frame. */
+  private LongHashSet previous = new LongHashSet();
+
+  /** The number of the current frame. */
+  private int frame = 0;
+
+  private CollisionListener listener;
+
+  /** The pairs found by the broadphase in update. */
+  private SpritePairList found = new SpritePairList();
+
+
+  /** Creates a tracker that sends its events to a listener, which may be null. */
+  public CollisionTracker(CollisionListener listener) {
+    this.listener = listener;
+  }
+
+  /** Sets the listener for collision events. It may be null. */
+  public void setListener(CollisionListener listener) {
+    this.listener = listener;
+  }
+
+  /** Returns the listener for collision events. */
+  public CollisionListener getListener() {
+    return listener;
+  }
+
+
+  //////// Frames
+
+  /** Starts a new frame of collisions. */
+  public void beginFrame() {
+    LongHashSet t = previous;
+    previous = current;
+    current = t;
+    current.clear();
+    frame++;
+  }
+
+  /**
+   * Reports that two sprites are colliding this frame, sending a begin
+   * event if they weren't colliding last frame or a stay event if they
+   * were. Reporting the same pair again in a frame does nothing.
+   */
+  public void report(Sprite a, Sprite b) {
+    if(a == b || a.isDestroyed() || b.isDestroyed())
+      return;
+
+    long key = LongHashSet.pairKey(idOf(a), idOf(b));
+    if(!current.add(key) || listener == null)
+      return;
+
+    Sprite first = sprites[LongHashSet.pairFirst(key)];
+    Sprite second = sprites[LongHashSet.pairSecond(key)];
+    if(previous.contains(key))
+      listener.collisionStay(first, second);
+    else
+      listener.collisionBegin(first, second);
+  }
+
+  /**
+   * Reports a pair found by a broadphase. This is the same as report. The
+   * listener must not change the broadphase while it is visiting pairs, so
+   * update(Broadphase) should be used instead if it does.
+   */
+  public void visit(Sprite a, Sprite b) {
+    report(a, b);
+  }
+
+  /**
+   * Ends the frame, sending an end event for each pair that was colliding
+   * last frame but wasn't reported this frame.
+   */
+  public void endFrame() {
+    int capacity = previous.capacity();
+    for(int i = 0; i < capacity; i++) {
+      if(!previous.isUsed(i))
+        continue;
+      long key = previous.get(i);
+      if(!current.contains(key) && listener != null)
+        listener.collisionEnd(sprites[LongHashSet.pairFirst(key)], sprites[LongHashSet.pairSecond(key)]);
+    }
+
+    // The sprites that weren't in any pair this frame no longer need their ids.
+    for(int id = 0; id < idCount; id++) {
+      if(sprites[id] != null && lastSeen[id] != frame)
+        freeId(id);
+    }
+  }
+
+  /**
+   * Runs a frame with every pair of sprites whose bounding boxes overlap 
+   * in a broadphase. The pairs are all found before any are reported.
+   */
+  public void update(Broadphase broadphase) {
+    found.collect(broadphase);
+    beginFrame();
+    for(int k = 0; k < found.size(); k++)
+      report(found.getFirst(k), found.getSecond(k));
+    found.clear();
+    endFrame();
+  }
+
+  /** Ends every collision being tracked, sending their end events, and forgets every sprite. */
+  public void clear() {
+    beginFrame();
+    endFrame();
+    previous.clear();
+  }
+
+
+  //////// Queries
+
+  /** Returns true iff two sprites have been reported colliding in the latest frame. */
+  public boolean isColliding(Sprite a, Sprite b) {
+    Integer ia = ids.get(a);
+    Integer ib = ids.get(b);
+    if(ia == null || ib == null || a == b)
+      return false;
+    return current.contains(LongHashSet.pairKey(ia, ib));
+  }
+
+  /** Returns the number of pairs reported colliding in the latest frame. */
+  public int getPairCount() {
+    return current.size();
+  }
+
+
+  //////// Ids
+
+  /** Returns a sprite's id, giving it one if it doesn't have one yet, and marks it as seen this frame. */
+  private int idOf(Sprite s) {
+    Integer found = ids.get(s);
+    int id;
+    if(found != null)
+      id = found;
+    else {
+      if(freeCount > 0)
+        id = freeIds[--freeCount];
+      else {
+        id = idCount++;
+        if(id == sprites.length) {
+          sprites = Arrays.copyOf(sprites, id*2);
+          lastSeen = Arrays.copyOf(lastSeen, id*2);
+        }
+      }
+      sprites[id] = s;
+      ids.put(s, id);
+    }
+    lastSeen[id] = frame;
+    return id;
+  }
+
+  /** Forgets the sprite with an id, so the id can be reused. */
+  private void freeId(int id) {
+    ids.remove(sprites[id]);
+    sprites[id] = null;
+    if(freeCount == freeIds.length)
+      freeIds = Arrays.copyOf(freeIds, freeCount*2);
+    freeIds[freeCount++] = id;
+  }
+}
@@ -0,0 +1,354 @@
+package pwnee.collisions;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayDeque;
+
+import pwnee.geom.Polygon2D;
+import pwnee.sprites.Sprite;
+
+/**
+ * Provides static methods for continuous collision detection. Instead of
+ * testing whether shapes overlap after they have moved, these find the time
+ * of impact at which a moving shape first touches another shape during its
+ * movement. This keeps fast sprites, like a ball or a bullet, from
+ * tunneling through thin sprites that they would skip past between frames.
+ *
+ * These tests cost more than overlap tests, so only sprites that move far
+ * relative to their size each frame need them. isFastMover tells which
+ * sprites those are, and sweep(Broadphase, ...) only tests a fast mover
+ * against the sprites near its path, so the rest of the scene doesn't pay
+ * anything for it.
+ *
+ * A typical response to a hit is to move the sprite to (hit.x, hit.y) and
+ * reflect its velocity about the hit's normal.
+ */
+public class ContinuousCollisions {
+
+  private ContinuousCollisions() {}
+
+
+  //////// Swept shapes
+
+  /**
+   * Sweeps box A by (dx, dy) against the static box B. A's position in the
+   * hit is the position of its top-left corner at the time of impact.
+   * @return  true iff A hits B during the movement.
+   */
+  public static boolean sweepAABB(double ax, double ay, double aw, double ah, double dx, double dy, double bx, double by, double bw, double bh, SweepHit out) {
+    out.reset();
+
+    // Sweeping A against B is the same as casting A's corner against B grown by A's size.
+    rayBox(null, ax, ay, dx, dy, bx - aw, by - ah, bx + bw, by + bh, out);
+    return out.isHit;
+  }
+
+  /**
+   * Sweeps circle A by (dx, dy) against the static circle B.
+   * A's position in the hit is its center at the time of impact.
+   * @return  true iff A hits B during the movement.
+   */
+  public static boolean sweepCircle(double ax, double ay, double ar, double dx, double dy, double bx, double by, double br, SweepHit out) {
+    out.reset();
+    rayCircle(null, ax, ay, dx, dy, bx, by, ar + br, out);
+    return out.isHit;
+  }
+
+  /**
+   * Sweeps a circle by (dx, dy) against a static box. The circle's position
+   * in the hit is its center at the time of impact.
+   * @return  true iff the circle hits the box during the movement.
+   */
+  public static boolean sweepCircleAABB(double cx, double cy, double r, double dx, double dy, double bx, double by, double bw, double bh, SweepHit out) {
+    out.reset();
+
+    // The box grown by the radius has rounded corners, so cast the center against
+    // the box grown along each axis and against a circle at each corner.
+    double bx1 = bx + bw;
+    double by1 = by + bh;
+    rayBox(null, cx, cy, dx, dy, bx - r, by, bx1 + r, by1, out);
+    rayBox(null, cx, cy, dx, dy, bx, by - r, bx1, by1 + r, out);
+    rayCircle(null, cx, cy, dx, dy, bx, by, r, out);
+    rayCircle(null, cx, cy, dx, dy, bx1, by, r, out);
+    rayCircle(null, cx, cy, dx, dy, bx, by1, r, out);
+    rayCircle(null, cx, cy, dx, dy, bx1, by1, r, out);
+    return out.isHit;
+  }
+
+  /**
+   * Finds where the segment from (x0, y0) to (x1, y1) first enters a convex
+   * polygon. The hit's position is the point of entry, and its normal is the
+   * normal of the edge that was entered.
+   * @return  true iff the segment enters or starts inside the polygon.
+   */
+  public static boolean segmentPolygon(double x0, double y0, double x1, double y1, Polygon2D poly, SweepHit out) {
+    out.reset();
+    double dx = x1 - x0;
+    double dy = y1 - y0;
+
+    // Clip the segment against the inner side of each edge.
+    double tEnter = 0;
+    double tExit = 1;
+    int enterEdge = -1;
+    int numPoints = poly.size();
+    for(int i = 0; i < numPoints; i++) {
+      double nx = poly.getNormalX(i);
+      double ny = poly.getNormalY(i);
+      double num = nx*(x0 - poly.getX(i)) + ny*(y0 - poly.getY(i));
+      double den = nx*dx + ny*dy;
+
+      if(den == 0) {
+        // Parallel to the edge, so the segment is either always outside it or never.
+        if(num > 0)
+          return false;
+      }
+      else {
+        double t = -num/den;
+        if(den < 0) {
+          if(t > tEnter) {
+            tEnter = t;
+            enterEdge = i;
+          }
+        }
+        else if(t < tExit)
+          tExit = t;
+        if(tEnter > tExit)
+          return false;
+      }
+    }
+
+    if(enterEdge < 0)
+      out.set(null, 0, x0, y0, 0, 0);
+    else
+      out.set(null, tEnter, x0 + dx*tEnter, y0 + dy*tEnter, poly.getNormalX(enterEdge), poly.getNormalY(enterEdge));
+    return true;
+  }
+
+
+  //////// Sprites
+
+  /**
+   * Returns true iff a sprite moving by (dx, dy) this frame moves more than
+   * half its size along either axis. Such sprites can tunnel through sprites
+   * as thin as themselves, so they should use continuous collision detection.
+   */
+  public static boolean isFastMover(Sprite s, double dx, double dy) {
+    Rectangle2D box = s.getCollisionBox();
+    return Math.abs(dx) > box.getWidth()/2 || Math.abs(dy) > box.getHeight()/2;
+  }
+
+  /**
+   * Sweeps the bounding box of a sprite by (dx, dy) against the bounding box
+   * of another sprite. The mover's position in the hit is where its x and y
+   * would be at the time of impact.
+   * @return  true iff the mover hits the target during the movement.
+   */
+  public static boolean sweep(Sprite mover, double dx, double dy, Sprite target, SweepHit out) {
+    out.reset();
+    if(mover.isDestroyed() || target.isDestroyed())
+      return false;
+
+    Rectangle2D a = mover.getCollisionBox();
+    Rectangle2D b = target.getCollisionBox();
+    rayBox(target, a.getX(), a.getY(), dx, dy, b.getX() - a.getWidth(), b.getY() - a.getHeight(), b.getX() + b.getWidth(), b.getY() + b.getHeight(), out);
+    if(out.isHit) {
+      out.x = mover.x + dx*out.toi;
+      out.y = mover.y + dy*out.toi;
+    }
+    return out.isHit;
+  }
+
+  /**
+   * Sweeps the bounding box of a sprite by (dx, dy) against the sprites in a
+   * broadphase, and finds the first one it hits. Only the sprites whose
+   * bounding boxes overlap the area swept by the mover are tested. The mover
+   * itself is ignored if it is in the broadphase, and then only the sprites 
+   * its filter lets it collide with are tested.
+   * @return  true iff the mover hits a sprite during the movement.
+   */
+  public static boolean sweep(Broadphase broadphase, Sprite mover, double dx, double dy, SweepHit out) {
+    out.reset();
+    if(mover.isDestroyed())
+      return false;
+
+    Rectangle2D a = mover.getCollisionBox();
+    double x0 = a.getX() + Math.min(0, dx);
+    double y0 = a.getY() + Math.min(0, dy);
+    double w = a.getWidth() + Math.abs(dx);
+    double h = a.getHeight() + Math.abs(dy);
+
+    // A mover that isn't in the broadphase has no filter, so it is tested against everything.
+    int category = broadphase.getCategory(mover);
+    int mask = (category == 0 ? Broadphase.DEFAULT_MASK : broadphase.getMask(mover));
+
+    SweepVisitor visitor = obtainSweeper();
+    visitor.start(broadphase, mover, category, a, dx, dy, out);
+    try {
+      broadphase.query(x0, y0, w, h, mask, visitor);
+    }
+    finally {
+      recycleSweeper(visitor);
+    }
+
+    if(out.isHit) {
+      out.x = mover.x + dx*out.toi;
+      out.y = mover.y + dy*out.toi;
+    }
+    return out.isHit;
+  }
+
+  /** The most unused visitors kept for reuse. More are only needed while sweeps are nested or run on several threads. */
+  private static final int MAX_SWEEPERS = 16;
+
+  /** The unused visitors, so that sweeping against a broadphase doesn't allocate one each time. */
+  private static final ArrayDeque<SweepVisitor> sweepers = new ArrayDeque<SweepVisitor>();
+
+  /** Takes an unused visitor from the pool, or creates one if there are none. */
+  private static synchronized SweepVisitor obtainSweeper() {
+    SweepVisitor visitor = sweepers.poll();
+    return (visitor == null) ? new SweepVisitor() : visitor;
+  }
+
+  /** Returns a visitor to the pool once its sweep is done. */
+  private static synchronized void recycleSweeper(SweepVisitor visitor) {
+    visitor.finish();
+    if(sweepers.size() < MAX_SWEEPERS)
+      sweepers.push(visitor);
+  }
+
+  /** Sweeps a mover against each sprite found by a broadphase query, keeping the earliest hit. */
+  private static class SweepVisitor implements SpriteVisitor {
+    private Broadphase broadphase;
+    private Sprite mover;
+    private int category;
+    private double ax, ay, aw, ah, dx, dy;
+    private SweepHit out;
+
+    /** Sets up the visitor for sweeping a mover. */
+    void start(Broadphase broadphase, Sprite mover, int category, Rectangle2D a, double dx, double dy, SweepHit out) {
+      this.broadphase = broadphase;
+      this.mover = mover;
+      this.category = category;
+      this.ax = a.getX();
+      this.ay = a.getY();
+      this.aw = a.getWidth();
+      this.ah = a.getHeight();
+      this.dx = dx;
+      this.dy = dy;
+      this.out = out;
+    }
+
+    /** Lets go of the sprites and broadphase of the last sweep. */
+    void finish() {
+      broadphase = null;
+      mover = null;
+      out = null;
+    }
+
+    public boolean visit(Sprite s) {
+      if(s == mover || s.isDestroyed())
+        return true;
+
+      // The query only checked that s is in the mover's mask. The mover must also be in s's mask.
+      if(category != 0 && (broadphase.getMask(s) & category) == 0)
+        return true;
+
+      Rectangle2D b = s.getCollisionBox();
+      rayBox(s, ax, ay, dx, dy, b.getX() - aw, b.getY() - ah, b.getX() + b.getWidth(), b.getY() + b.getHeight(), out);
+
+      // Nothing can be hit earlier than an overlap at the start.
+      return !(out.isHit && out.toi == 0);
+    }
+  }
+
+
+  //////// Rays
+
+  /**
+   * Casts the ray from (px, py) along (dx, dy) against a box, and records
+   * the hit in out if it is earlier than out's current hit. A ray that
+   * starts inside the box hits it at time 0, unless it starts on the box's
+   * border and moves away from it.
+   */
+  private static void rayBox(Sprite sprite, double px, double py, double dx, double dy, double x0, double y0, double x1, double y1, SweepHit out) {
+    double tEnter = Double.NEGATIVE_INFINITY;
+    double tExit = Double.POSITIVE_INFINITY;
+    boolean enterX = false;
+
+    if(dx == 0) {
+      if(px < x0 || px > x1)
+        return;
+    }
+    else {
+      double t0 = (x0 - px)/dx;
+      double t1 = (x1 - px)/dx;
+      tEnter = Math.min(t0, t1);
+      tExit = Math.max(t0, t1);
+      enterX = true;
+    }
+
+    if(dy == 0) {
+      if(py < y0 || py > y1)
+        return;
+    }
+    else {
+      double t0 = (y0 - py)/dy;
+      double t1 = (y1 - py)/dy;
+      double enter = Math.min(t0, t1);
+      if(enter > tEnter) {
+        tEnter = enter;
+        enterX = false;
+      }
+      tExit = Math.min(tExit, Math.max(t0, t1));
+    }
+
+    if(tEnter > tExit || tExit <= 0 || tEnter > 1)
+      return;
+    if(out.isHit && Math.max(0, tEnter) >= out.toi)
+      return;
+
+    if(tEnter < 0)
+      out.set(sprite, 0, px, py, 0, 0);
+    else if(enterX)
+      out.set(sprite, tEnter, px + dx*tEnter, py + dy*tEnter, (dx > 0) ? -1 : 1, 0);
+    else
+      out.set(sprite, tEnter, px + dx*tEnter, py + dy*tEnter, 0, (dy > 0) ? -1 : 1);
+  }
+
+  /**
+   * Casts the ray from (px, py) along (dx, dy) against a circle, and records
+   * the hit in out if it is earlier than out's current hit.
+   */
+  private static void rayCircle(Sprite sprite, double px, double py, double dx, double dy, double cx, double cy, double r, SweepHit out) {
+    if(r <= 0)
+      return;
+
+    double mx = px - cx;
+    double my = py - cy;
+    double b = mx*dx + my*dy;
+    double c = mx*mx + my*my - r*r;
+
+    if(c < 0) {
+      // Starting inside the circle.
+      if(!out.isHit || out.toi > 0)
+        out.set(sprite, 0, px, py, 0, 0);
+      return;
+    }
+
+    // Starting outside or on the circle and moving away from it.
+    double a = dx*dx + dy*dy;
+    if(b >= 0 || a == 0)
+      return;
+
+    double disc = b*b - a*c;
+    if(disc < 0)
+      return;
+    double t = (-b - Math.sqrt(disc))/a;
+    if(t > 1 || (out.isHit && t >= out.toi))
+      return;
+    t = Math.max(0, t);
+
+    double hx = px + dx*t;
+    double hy = py + dy*t;
+    out.set(sprite, t, hx, hy, (hx - cx)/r, (hy - cy)/r);
+  }
+}
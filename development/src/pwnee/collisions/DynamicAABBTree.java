@@ -0,0 +1,1003 @@
+package pwnee.collisions;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import pwnee.sprites.Sprite;
+import pwnee.util.WorkerPool;
+
+/**
+ * A dynamic bounding volume hierarchy. Each sprite is a leaf of a binary
+ * tree, and each internal node's box encloses the boxes of its children.
+ * Unlike a QuadTree, it has no world bounds, and long thin sprites are
+ * stored as deep in the tree as any others.
+ *
+ * The leaves store fattened boxes that are larger than the sprites' bounding
+ * boxes by a margin, so a sprite that moves a little stays within its fat
+ * box and doesn't need to be reinserted. New leaves are placed where they
+ * enlarge the perimeters of the nodes above them the least, and the tree is
+ * kept balanced with rotations as it changes.
+ *
+ * Each internal node also keeps the union of its children's categories and
+ * masks, so queries and pair enumeration skip subtrees whose sprites can't
+ * collide with what is being looked for.
+ *
+ * The nodes are stored in flat arrays. Queries are filtered with the sprites'
+ * actual bounding boxes, so they give the same results as the other
+ * broadphases. They use a shared traversal stack, so a tree shouldn't be
+ * queried from multiple threads at once, except through
+ * forEachPotentialPair's parallel mode. A visitor may query the tree
+ * again, since each traversal uses the part of the stack above the
+ * traversals it was started from.
+ */
+public class DynamicAABBTree implements Broadphase {
+
+  /** The index used for no node. */
+  private static final int NULL = -1;
+
+  /** The default margin that leaf boxes are fattened by. */
+  public static final double DEFAULT_FAT_MARGIN = 4;
+
+  /** The root node of the tree. */
+  private int root = NULL;
+
+  /** The fat boxes of the nodes, stored as minX, minY, maxX, maxY for each node. */
+  private double[] fatBoxes;
+
+  /** The actual bounding boxes of the leaves' sprites, stored like fatBoxes. */
+  private double[] boxes;
+
+  /** The parent of each node. For free nodes, this is the next free node instead. */
+  private int[] parents;
+
+  /** The first child of each node, or NULL for leaves. */
+  private int[] children1;
+
+  /** The second child of each node, or NULL for leaves. */
+  private int[] children2;
+
+  /** The height of each node. Leaves have height 0 and free nodes have height -1. */
+  private int[] heights;
+
+  /** The sprite of each leaf. */
+  private Sprite[] leafSprites;
+
+  /** The category of each leaf's sprite, or the union of the categories below each internal node. */
+  private int[] categories;
+
+  /** The collision mask of each leaf's sprite, or the union of the masks below each internal node. */
+  private int[] masks;
+
+  /** The number of node slots that have been used. */
+  private int nodeCapacity;
+
+  /** The first free node. */
+  private int freeList = NULL;
+
+  /** Maps each sprite in the tree to its leaf. */
+  private IdentityHashMap<Sprite, Integer> leaves = new IdentityHashMap<Sprite, Integer>();
+
+  /** The margin that leaf boxes are fattened by. */
+  private double fatMargin = DEFAULT_FAT_MARGIN;
+
+  /** The traversal stack shared by queries. */
+  private int[] stack = new int[64];
+
+  /**
+   * The number of stack entries used by the traversals in progress. It is
+   * raised while a visitor runs, so that queries made by the visitor start
+   * above the entries of the traversal that called it.
+   */
+  private int stackTop = 0;
+
+
+  /** Creates an empty tree. */
+  public DynamicAABBTree() {
+    allocate(16);
+  }
+
+  /** Grows the node arrays, adding the new nodes to the free list. */
+  private void allocate(int capacity) {
+    int old = nodeCapacity;
+    fatBoxes = copyOf(fatBoxes, capacity*4);
+    boxes = copyOf(boxes, capacity*4);
+    parents = copyOf(parents, capacity);
+    children1 = copyOf(children1, capacity);
+    children2 = copyOf(children2, capacity);
+    heights = copyOf(heights, capacity);
+    categories = copyOf(categories, capacity);
+    masks = copyOf(masks, capacity);
+
+    Sprite[] newSprites = new Sprite[capacity];
+    if(leafSprites != null)
+      System.arraycopy(leafSprites, 0, newSprites, 0, old);
+    leafSprites = newSprites;
+
+    for(int i = capacity - 1; i >= old; i--) {
+      parents[i] = freeList;
+      heights[i] = -1;
+      freeList = i;
+    }
+    nodeCapacity = capacity;
+  }
+
+  private static int[] copyOf(int[] array, int length) {
+    int[] result = new int[length];
+    if(array != null)
+      System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+    return result;
+  }
+
+  private static double[] copyOf(double[] array, int length) {
+    double[] result = new double[length];
+    if(array != null)
+      System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+    return result;
+  }
+
+  /** Takes a node from the free list. */
+  private int allocateNode() {
+    if(freeList == NULL)
+      allocate(nodeCapacity*2);
+    int node = freeList;
+    freeList = parents[node];
+    parents[node] = NULL;
+    children1[node] = NULL;
+    children2[node] = NULL;
+    heights[node] = 0;
+    return node;
+  }
+
+  /** Returns a node to the free list. */
+  private void freeNode(int node) {
+    parents[node] = freeList;
+    heights[node] = -1;
+    leafSprites[node] = null;
+    freeList = node;
+  }
+
+  /** Returns the margin that leaf boxes are fattened by. */
+  public double getFatMargin() {
+    return fatMargin;
+  }
+
+  /**
+   * Sets the margin that leaf boxes are fattened by. Larger margins mean
+   * moving sprites are reinserted less often, but the tree is looser. This
+   * takes effect as sprites are reinserted.
+   */
+  public void setFatMargin(double margin) {
+    this.fatMargin = margin;
+  }
+
+  /** Returns the number of sprites in the tree. */
+  public int size() {
+    return leaves.size();
+  }
+
+  /** Returns true iff a sprite is currently in the tree. */
+  public boolean containsSprite(Sprite s) {
+    return leaves.containsKey(s);
+  }
+
+  /** Returns the height of the tree. An empty tree has height -1 and a tree with one sprite has height 0. */
+  public int getHeight() {
+    if(root == NULL)
+      return -1;
+    return heights[root];
+  }
+
+
+  //////// Insertion/removal
+
+  /**
+   * Inserts a sprite into the tree with the default category and mask. If
+   * the sprite is already in the tree, it is updated instead and keeps its
+   * filter.
+   */
+  public boolean insert(Sprite s) {
+    if(leaves.containsKey(s))
+      return update(s);
+    return _insertNew(s, DEFAULT_CATEGORY, DEFAULT_MASK);
+  }
+
+  /**
+   * Inserts a sprite into the tree with a category and the mask of
+   * categories it collides with. If the sprite is already in the tree, its
+   * filter is changed and it is updated instead.
+   */
+  public boolean insert(Sprite s, int category, int mask) {
+    if(leaves.containsKey(s)) {
+      setFilter(s, category, mask);
+      return update(s);
+    }
+    return _insertNew(s, category, mask);
+  }
+
+  /** Inserts a sprite that isn't in the tree yet. */
+  private boolean _insertNew(Sprite s, int category, int mask) {
+    checkCategory(category);
+
+    // Do not insert sprites that are marked as destroyed.
+    if(s.isDestroyed())
+      return false;
+
+    int leaf = allocateNode();
+    leafSprites[leaf] = s;
+    categories[leaf] = category;
+    masks[leaf] = mask;
+    setBoxes(leaf, s.getCollisionBox());
+    insertLeaf(leaf);
+    leaves.put(s, leaf);
+    return true;
+  }
+
+  /**
+   * Updates the bounding box of a sprite after it has moved or resized. The
+   * sprite is only reinserted if its bounding box has left its fat box.
+   * Sprites that aren't in the tree yet are inserted. Sprites that have been
+   * destroyed are removed.
+   * @return  true iff the sprite is in the tree afterwards.
+   */
+  public boolean update(Sprite s) {
+    Integer index = leaves.get(s);
+    if(index == null)
+      return insert(s);
+
+    if(s.isDestroyed()) {
+      remove(s);
+      return false;
+    }
+
+    int leaf = index;
+    Rectangle2D bbox = s.getCollisionBox();
+    double x0 = bbox.getX();
+    double y0 = bbox.getY();
+    double x1 = x0 + bbox.getWidth();
+    double y1 = y0 + bbox.getHeight();
+
+    int b = leaf*4;
+    boxes[b] = x0;
+    boxes[b+1] = y0;
+    boxes[b+2] = x1;
+    boxes[b+3] = y1;
+    if(x0 >= fatBoxes[b] && y0 >= fatBoxes[b+1] && x1 <= fatBoxes[b+2] && y1 <= fatBoxes[b+3])
+      return true;
+
+    removeLeaf(leaf);
+    setBoxes(leaf, bbox);
+    insertLeaf(leaf);
+    return true;
+  }
+
+  /**
+   * Removes a sprite from the tree.
+   * @return  true iff the sprite was in the tree.
+   */
+  public boolean remove(Sprite s) {
+    Integer leaf = leaves.remove(s);
+    if(leaf == null)
+      return false;
+
+    removeLeaf(leaf);
+    freeNode(leaf);
+    return true;
+  }
+
+  /** Removes all sprites from the tree. */
+  public void clear() {
+    leaves.clear();
+    root = NULL;
+    freeList = NULL;
+    for(int i = nodeCapacity - 1; i >= 0; i--) {
+      leafSprites[i] = null;
+      parents[i] = freeList;
+      heights[i] = -1;
+      freeList = i;
+    }
+  }
+
+  /** Stores a leaf's bounding box and its fattened box. */
+  private void setBoxes(int leaf, Rectangle2D bbox) {
+    int b = leaf*4;
+    boxes[b] = bbox.getX();
+    boxes[b+1] = bbox.getY();
+    boxes[b+2] = bbox.getX() + bbox.getWidth();
+    boxes[b+3] = bbox.getY() + bbox.getHeight();
+    fatBoxes[b] = boxes[b] - fatMargin;
+    fatBoxes[b+1] = boxes[b+1] - fatMargin;
+    fatBoxes[b+2] = boxes[b+2] + fatMargin;
+    fatBoxes[b+3] = boxes[b+3] + fatMargin;
+  }
+
+  /** Returns the perimeter of the union of two nodes' fat boxes. */
+  private double unionPerimeter(int a, int b) {
+    int i = a*4;
+    int j = b*4;
+    double w = Math.max(fatBoxes[i+2], fatBoxes[j+2]) - Math.min(fatBoxes[i], fatBoxes[j]);
+    double h = Math.max(fatBoxes[i+3], fatBoxes[j+3]) - Math.min(fatBoxes[i+1], fatBoxes[j+1]);
+    return 2*(w + h);
+  }
+
+  /** Returns the perimeter of a node's fat box. */
+  private double perimeter(int node) {
+    int i = node*4;
+    return 2*(fatBoxes[i+2] - fatBoxes[i] + fatBoxes[i+3] - fatBoxes[i+1]);
+  }
+
+  /** Sets a node's fat box and filters to the unions of two other nodes' fat boxes and filters. */
+  private void setUnion(int node, int a, int b) {
+    int n = node*4;
+    int i = a*4;
+    int j = b*4;
+    fatBoxes[n] = Math.min(fatBoxes[i], fatBoxes[j]);
+    fatBoxes[n+1] = Math.min(fatBoxes[i+1], fatBoxes[j+1]);
+    fatBoxes[n+2] = Math.max(fatBoxes[i+2], fatBoxes[j+2]);
+    fatBoxes[n+3] = Math.max(fatBoxes[i+3], fatBoxes[j+3]);
+    categories[node] = categories[a] | categories[b];
+    masks[node] = masks[a] | masks[b];
+  }
+
+  /** Returns the cost of descending into a child to insert a leaf, not counting the inherited cost. */
+  private double descendCost(int child, int leaf) {
+    if(heights[child] == 0)
+      return unionPerimeter(leaf, child);
+    return unionPerimeter(leaf, child) - perimeter(child);
+  }
+
+  /**
+   * Inserts a leaf next to the sibling that makes the perimeters of the
+   * nodes above it grow the least, then rebalances its ancestors.
+   */
+  private void insertLeaf(int leaf) {
+    if(root == NULL) {
+      root = leaf;
+      parents[leaf] = NULL;
+      return;
+    }
+
+    // Find the best sibling for the leaf.
+    int index = root;
+    while(heights[index] > 0) {
+      int child1 = children1[index];
+      int child2 = children2[index];
+
+      double area = perimeter(index);
+      double combinedArea = unionPerimeter(index, leaf);
+
+      // The cost of making a new parent for this node and the leaf.
+      double cost = 2*combinedArea;
+
+      // The minimum cost of pushing the leaf further down the tree.
+      double inheritanceCost = 2*(combinedArea - area);
+      double cost1 = descendCost(child1, leaf) + inheritanceCost;
+      double cost2 = descendCost(child2, leaf) + inheritanceCost;
+
+      if(cost < cost1 && cost < cost2)
+        break;
+      index = (cost1 < cost2) ? child1 : child2;
+    }
+    int sibling = index;
+
+    // Make a new parent for the leaf and its sibling.
+    int oldParent = parents[sibling];
+    int newParent = allocateNode();
+    parents[newParent] = oldParent;
+    setUnion(newParent, leaf, sibling);
+    heights[newParent] = heights[sibling] + 1;
+    children1[newParent] = sibling;
+    children2[newParent] = leaf;
+    parents[sibling] = newParent;
+    parents[leaf] = newParent;
+
+    if(oldParent == NULL)
+      root = newParent;
+    else if(children1[oldParent] == sibling)
+      children1[oldParent] = newParent;
+    else
+      children2[oldParent] = newParent;
+
+    refit(parents[leaf]);
+  }
+
+  /** Removes a leaf from the tree without freeing it, then rebalances its former ancestors. */
+  private void removeLeaf(int leaf) {
+    if(leaf == root) {
+      root = NULL;
+      return;
+    }
+
+    int parent = parents[leaf];
+    int grandParent = parents[parent];
+    int sibling = (children1[parent] == leaf) ? children2[parent] : children1[parent];
+
+    if(grandParent == NULL) {
+      root = sibling;
+      parents[sibling] = NULL;
+      freeNode(parent);
+      return;
+    }
+
+    // The sibling takes the parent's place.
+    if(children1[grandParent] == parent)
+      children1[grandParent] = sibling;
+    else
+      children2[grandParent] = sibling;
+    parents[sibling] = grandParent;
+    freeNode(parent);
+
+    refit(grandParent);
+  }
+
+  /** Rebalances a node and its ancestors, and recomputes their boxes and heights. */
+  private void refit(int index) {
+    while(index != NULL) {
+      index = balance(index);
+
+      int child1 = children1[index];
+      int child2 = children2[index];
+      heights[index] = 1 + Math.max(heights[child1], heights[child2]);
+      setUnion(index, child1, child2);
+
+      index = parents[index];
+    }
+  }
+
+  /**
+   * Rotates a node's taller child up if its children's heights differ by
+   * more than 1.
+   * @return  the node that takes the given node's place.
+   */
+  private int balance(int a) {
+    if(heights[a] < 2)
+      return a;
+
+    int b = children1[a];
+    int c = children2[a];
+    int balance = heights[c] - heights[b];
+
+    if(balance > 1)
+      return rotateUp(a, c, b, false);
+    if(balance < -1)
+      return rotateUp(a, b, c, true);
+    return a;
+  }
+
+  /**
+   * Rotates the taller child of a node up into the node's place. The
+   * node keeps its shorter child and takes the taller child's shorter child.
+   * @param a         The unbalanced node.
+   * @param up        The taller child of a, which takes a's place.
+   * @param other     The shorter child of a.
+   * @param upIsFirst Whether up is the first child of a.
+   * @return  up.
+   */
+  private int rotateUp(int a, int up, int other, boolean upIsFirst) {
+    int f = children1[up];
+    int g = children2[up];
+
+    // up takes a's place, with a as its first child.
+    children1[up] = a;
+    parents[up] = parents[a];
+    parents[a] = up;
+
+    int upParent = parents[up];
+    if(upParent == NULL)
+      root = up;
+    else if(children1[upParent] == a)
+      children1[upParent] = up;
+    else
+      children2[upParent] = up;
+
+    // up keeps its taller child, and a takes its shorter one in up's old place.
+    int keep = (heights[f] > heights[g]) ? f : g;
+    int give = (keep == f) ? g : f;
+    children2[up] = keep;
+    if(upIsFirst)
+      children1[a] = give;
+    else
+      children2[a] = give;
+    parents[give] = a;
+
+    setUnion(a, other, give);
+    heights[a] = 1 + Math.max(heights[other], heights[give]);
+    setUnion(up, a, keep);
+    heights[up] = 1 + Math.max(heights[a], heights[keep]);
+    return up;
+  }
+
+
+  //////// Filters
+
+  /**
+   * Changes the category of a sprite and the mask of categories it collides with.
+   * @return  true iff the sprite is in the tree.
+   */
+  public boolean setFilter(Sprite s, int category, int mask) {
+    checkCategory(category);
+    Integer leaf = leaves.get(s);
+    if(leaf == null)
+      return false;
+
+    categories[leaf] = category;
+    masks[leaf] = mask;
+    for(int node = parents[leaf]; node != NULL; node = parents[node]) {
+      categories[node] = categories[children1[node]] | categories[children2[node]];
+      masks[node] = masks[children1[node]] | masks[children2[node]];
+    }
+    return true;
+  }
+
+  /** Returns the category of a sprite, or 0 if it isn't in the tree. */
+  public int getCategory(Sprite s) {
+    Integer leaf = leaves.get(s);
+    return (leaf == null) ? 0 : categories[leaf];
+  }
+
+  /** Returns the mask of categories a sprite collides with, or 0 if it isn't in the tree. */
+  public int getMask(Sprite s) {
+    Integer leaf = leaves.get(s);
+    return (leaf == null) ? 0 : masks[leaf];
+  }
+
+  /** Sprites must belong to at least one category, or nothing could ever collide with them. */
+  private static void checkCategory(int category) {
+    if(category == 0)
+      throw new IllegalArgumentException("A sprite's category must have at least one bit set.");
+  }
+
+  /**
+   * Returns true iff sprites with the given categories and masks can't be
+   * found by a query for the categories in mask by a sprite of the given
+   * category. A category of 0 doesn't check the masks.
+   */
+  private static boolean rejectsFilter(int categories, int masks, int mask, int category) {
+    return (categories & mask) == 0 || (category != 0 && (masks & category) == 0);
+  }
+
+
+  //////// Queries
+
+  /**
+   * Queries for a sprite inside the tree and returns a new list of the
+   * sprites whose bounding boxes overlap its bounding box, including itself
+   * if it is in the tree.
+   */
+  public List<Sprite> query(Sprite s) {
+    List<Sprite> result = new ArrayList<Sprite>();
+    query(s, result);
+    return result;
+  }
+
+  /**
+   * Queries for a sprite inside the tree and adds the sprites whose
+   * bounding boxes overlap its bounding box to out.
+   */
+  public void query(Sprite s, Collection<? super Sprite> out) {
+    _querySprite(s, out, null);
+  }
+
+  /**
+   * Queries for a sprite inside the tree and visits the sprites whose
+   * bounding boxes overlap its bounding box.
+   */
+  public void query(Sprite s, SpriteVisitor visitor) {
+    _querySprite(s, null, visitor);
+  }
+
+  /** Adds the sprites whose bounding boxes overlap a rectangular area to out. */
+  public void query(double x, double y, double w, double h, Collection<? super Sprite> out) {
+    _queryRect(x, y, x + w, y + h, 0, 0, -1, ~0, 0, out, null);
+  }
+
+  /** Visits the sprites whose bounding boxes overlap a rectangular area. */
+  public void query(double x, double y, double w, double h, SpriteVisitor visitor) {
+    _queryRect(x, y, x + w, y + h, 0, 0, -1, ~0, 0, null, visitor);
+  }
+
+  /**
+   * Visits the sprites whose bounding boxes overlap a rectangular area and
+   * whose categories are in a mask. Subtrees without any of those
+   * categories are skipped.
+   */
+  public void query(double x, double y, double w, double h, int mask, SpriteVisitor visitor) {
+    _queryRect(x, y, x + w, y + h, 0, 0, -1, mask, 0, null, visitor);
+  }
+
+  /** Adds the sprites whose bounding boxes contain a point to out. */
+  public void queryPoint(double x, double y, Collection<? super Sprite> out) {
+    _queryRect(x, y, x, y, 0, 0, -1, ~0, 0, out, null);
+  }
+
+  /** Visits the sprites whose bounding boxes contain a point. */
+  public void queryPoint(double x, double y, SpriteVisitor visitor) {
+    _queryRect(x, y, x, y, 0, 0, -1, ~0, 0, null, visitor);
+  }
+
+  /** Adds the sprites whose bounding boxes overlap a circle to out. */
+  public void queryCircle(double cx, double cy, double r, Collection<? super Sprite> out) {
+    _queryRect(cx - r, cy - r, cx + r, cy + r, cx, cy, r, ~0, 0, out, null);
+  }
+
+  /** Visits the sprites whose bounding boxes overlap a circle. */
+  public void queryCircle(double cx, double cy, double r, SpriteVisitor visitor) {
+    _queryRect(cx - r, cy - r, cx + r, cy + r, cx, cy, r, ~0, 0, null, visitor);
+  }
+
+  /**
+   * Queries with a sprite's bounding box, unless the sprite is destroyed.
+   * If the sprite is in the tree, only the sprites its filter collides with are found.
+   */
+  private void _querySprite(Sprite s, Collection<? super Sprite> out, SpriteVisitor visitor) {
+    // Do not query sprites that are marked as destroyed.
+    if(s.isDestroyed())
+      return;
+
+    int mask = ~0;
+    int category = 0;
+    Integer leaf = leaves.get(s);
+    if(leaf != null) {
+      mask = masks[leaf];
+      category = categories[leaf];
+    }
+
+    Rectangle2D bbox = s.getCollisionBox();
+    double x0 = bbox.getX();
+    double y0 = bbox.getY();
+    _queryRect(x0, y0, x0 + bbox.getWidth(), y0 + bbox.getHeight(), 0, 0, -1, mask, category, out, visitor);
+  }
+
+  /**
+   * Finds the sprites overlapping a rectangle, and also a circle if r isn't
+   * negative. Only the sprites whose categories are in mask are found, and
+   * if category isn't 0, only those whose masks include it.
+   */
+  private void _queryRect(double x0, double y0, double x1, double y1, double cx, double cy, double r, int mask, int category, Collection<? super Sprite> out, SpriteVisitor visitor) {
+    if(root == NULL)
+      return;
+    double rSq = r*r;
+
+    int base = stackTop;
+    int top = base;
+    growStack(top + 1);
+    stack[top++] = root;
+    try {
+      while(top > base) {
+        int node = stack[--top];
+        int b = node*4;
+        if(rejectsFilter(categories[node], masks[node], mask, category))
+          continue;
+        if(x0 > fatBoxes[b+2] || y0 > fatBoxes[b+3] || x1 < fatBoxes[b] || y1 < fatBoxes[b+1])
+          continue;
+
+        if(heights[node] == 0) {
+          if(x0 > boxes[b+2] || y0 > boxes[b+3] || x1 < boxes[b] || y1 < boxes[b+1])
+            continue;
+          if(r >= 0 && boxDistSq(boxes[b], boxes[b+1], boxes[b+2], boxes[b+3], cx, cy) > rSq)
+            continue;
+
+          // Keep this traversal's entries while the visitor runs, in case it queries the tree.
+          stackTop = top;
+          boolean keepGoing = emit(leafSprites[node], out, visitor);
+          stackTop = base;
+          if(!keepGoing)
+            return;
+        }
+        else {
+          growStack(top + 2);
+          stack[top++] = children1[node];
+          stack[top++] = children2[node];
+        }
+      }
+    }
+    finally {
+      stackTop = base;
+    }
+  }
+
+  /** Grows the traversal stack to hold at least size entries, keeping the ones in it. */
+  private void growStack(int size) {
+    if(size > stack.length) {
+      int[] newStack = new int[Math.max(size, stack.length*2)];
+      System.arraycopy(stack, 0, newStack, 0, stack.length);
+      stack = newStack;
+    }
+  }
+
+  /** Passes a found sprite to either the output collection or the visitor. */
+  private static boolean emit(Sprite s, Collection<? super Sprite> out, SpriteVisitor visitor) {
+    if(visitor != null)
+      return visitor.visit(s);
+    out.add(s);
+    return true;
+  }
+
+  /** Returns the squared distance from a point to the nearest point of a box. */
+  private static double boxDistSq(double x0, double y0, double x1, double y1, double px, double py) {
+    double dx = 0;
+    if(px < x0)
+      dx = x0 - px;
+    else if(px > x1)
+      dx = px - x1;
+
+    double dy = 0;
+    if(py < y0)
+      dy = y0 - py;
+    else if(py > y1)
+      dy = py - y1;
+
+    return dx*dx + dy*dy;
+  }
+
+
+  //////// Raycasting
+
+  /**
+   * Casts a ray from (x0, y0) to (x1, y1) and finds the first sprite whose
+   * bounding box it hits. Subtrees that the ray misses or that are farther
+   * away than the closest hit found so far are skipped.
+   * @param hit   Set to the closest hit, or reset if nothing was hit.
+   * @return  true iff a sprite was hit.
+   */
+  public boolean raycast(double x0, double y0, double x1, double y1, RaycastHit hit) {
+    return _raycast(x0, y0, x1 - x0, y1 - y0, ~0, null, null, false, hit);
+  }
+
+  /**
+   * Casts a ray from (ox, oy) in the direction (dirX, dirY), up to a finite
+   * distance of maxDist, and finds the first sprite whose bounding box it
+   * hits. The hit's fraction times maxDist is the distance to the hit.
+   * @param hit   Set to the closest hit, or reset if nothing was hit.
+   * @return  true iff a sprite was hit.
+   */
+  public boolean raycast(double ox, double oy, double dirX, double dirY, double maxDist, RaycastHit hit) {
+    return raycast(ox, oy, dirX, dirY, maxDist, ~0, hit);
+  }
+
+  /**
+   * Casts a ray like raycast(ox, oy, dirX, dirY, maxDist, hit), only hitting
+   * the sprites whose categories are in a mask.
+   */
+  public boolean raycast(double ox, double oy, double dirX, double dirY, double maxDist, int mask, RaycastHit hit) {
+    double len = Math.sqrt(dirX*dirX + dirY*dirY);
+    if(len == 0) {
+      hit.reset();
+      return false;
+    }
+    double scale = maxDist/len;
+    return _raycast(ox, oy, dirX*scale, dirY*scale, mask, null, null, false, hit);
+  }
+
+  /**
+   * Returns true iff no sprite whose category is in a mask has a bounding
+   * box touching the segment from (x0, y0) to (x1, y1). This stops at the
+   * first blocking sprite found instead of looking for the closest one.
+   */
+  public boolean lineOfSight(double x0, double y0, double x1, double y1, int mask) {
+    return !_raycast(x0, y0, x1 - x0, y1 - y0, mask, null, null, true, null);
+  }
+
+  /**
+   * Returns true iff no other sprite blocks the segment between the centers
+   * of two sprites' bounding boxes. The two sprites themselves are ignored.
+   * If a is in the tree, only the sprites it collides with block it.
+   */
+  public boolean lineOfSight(Sprite a, Sprite b) {
+    Rectangle2D boxA = a.getCollisionBox();
+    Rectangle2D boxB = b.getCollisionBox();
+    double x0 = boxA.getCenterX();
+    double y0 = boxA.getCenterY();
+    int mask = containsSprite(a) ? getMask(a) : ~0;
+    return !_raycast(x0, y0, boxB.getCenterX() - x0, boxB.getCenterY() - y0, mask, a, b, true, null);
+  }
+
+  /**
+   * Casts a ray from (x0, y0) along (dx, dy), skipping subtrees that it
+   * misses or that are farther away than the closest hit found so far. The
+   * nearer child of each node is searched first.
+   * @param mask      The categories of the sprites that can be hit.
+   * @param ignore1   A sprite that can't be hit, or null.
+   * @param ignore2   Another sprite that can't be hit, or null.
+   * @param anyHit    If true, this stops at the first hit found instead of the closest one.
+   * @param hit       Set to the hit found, if it isn't null.
+   * @return  true iff a sprite was hit.
+   */
+  private boolean _raycast(double x0, double y0, double dx, double dy, int mask, Sprite ignore1, Sprite ignore2, boolean anyHit, RaycastHit hit) {
+    if(hit != null)
+      hit.reset();
+    if(root == NULL)
+      return false;
+
+    boolean found = false;
+    double maxFraction = 1;
+
+    // Start above the entries of any traversal whose visitor is casting this ray.
+    int base = stackTop;
+    int top = base;
+    growStack(top + 1);
+    stack[top++] = root;
+    while(top > base) {
+      int node = stack[--top];
+      if((categories[node] & mask) == 0)
+        continue;
+      if(RaycastHit.boxFraction(fatBoxes, node*4, x0, y0, dx, dy, maxFraction) < 0)
+        continue;
+
+      if(heights[node] == 0) {
+        Sprite s = leafSprites[node];
+        if(s == ignore1 || s == ignore2)
+          continue;
+        double t = RaycastHit.boxFraction(boxes, node*4, x0, y0, dx, dy, maxFraction);
+        if(t < 0 || (found && t >= maxFraction))
+          continue;
+
+        found = true;
+        maxFraction = t;
+        if(hit != null)
+          hit.setBoxHit(s, boxes, node*4, t, x0, y0, dx, dy);
+        if(anyHit)
+          return true;
+      }
+      else {
+        growStack(top + 2);
+
+        // Push the farther child first, so that the nearer one is searched first.
+        int child1 = children1[node];
+        int child2 = children2[node];
+        double t1 = RaycastHit.boxFraction(fatBoxes, child1*4, x0, y0, dx, dy, maxFraction);
+        double t2 = RaycastHit.boxFraction(fatBoxes, child2*4, x0, y0, dx, dy, maxFraction);
+        if(t1 >= 0 && t2 >= 0) {
+          stack[top++] = (t1 <= t2) ? child2 : child1;
+          stack[top++] = (t1 <= t2) ? child1 : child2;
+        }
+        else if(t1 >= 0)
+          stack[top++] = child1;
+        else if(t2 >= 0)
+          stack[top++] = child2;
+      }
+    }
+    return found;
+  }
+
+
+  //////// Broadphase pairs
+
+  /**
+   * Visits every pair of sprites in the tree whose bounding boxes overlap
+   * and whose filters collide with each other, exactly once each. Each leaf
+   * is queried against the tree with its filter, and a pair is only visited
+   * from the leaf with the smaller index.
+   */
+  public void forEachPotentialPair(SpritePairVisitor visitor) {
+    forEachPotentialPair(visitor, false);
+  }
+
+  /**
+   * Visits every pair of sprites in the tree whose bounding boxes overlap,
+   * exactly once each.
+   * @param visitor   The callback for the pairs. If parallel is true, this
+   *                  must be safe to call from multiple threads at once.
+   * @param parallel  If true, ranges of leaves are queried in parallel on the
+   *                  shared WorkerPool.
+   */
+  public void forEachPotentialPair(SpritePairVisitor visitor, boolean parallel) {
+    if(root == NULL)
+      return;
+    if(parallel && leaves.size() >= PARALLEL_PAIRS_THRESHOLD)
+      WorkerPool.get().invoke(new PairTask(this, 0, nodeCapacity, visitor));
+    else
+      _pairsForLeaves(0, nodeCapacity, null, visitor);
+  }
+
+  /** Below this many sprites, parallel pair enumeration isn't worth its overhead. */
+  private static final int PARALLEL_PAIRS_THRESHOLD = 256;
+
+  /** Ranges of at most this many nodes aren't split any further for parallel pair enumeration. */
+  private static final int PARALLEL_PAIRS_MIN_NODES = 256;
+
+  /**
+   * Visits the pairs of the leaves in node slots n0 through n1-1 with any
+   * leaves in higher slots.
+   * @param stack   The traversal stack to use, or null to use the tree's
+   *                shared stack, which lets the visitor query the tree.
+   * @return  the traversal stack, which may have grown.
+   */
+  private int[] _pairsForLeaves(int n0, int n1, int[] stack, SpritePairVisitor visitor) {
+    boolean shared = (stack == null);
+    int base = 0;
+    if(shared) {
+      base = stackTop;
+      growStack(base + 1);
+      stack = this.stack;
+    }
+
+    try {
+      for(int leaf = n0; leaf < n1; leaf++) {
+        if(heights[leaf] != 0)
+          continue;
+        int a = leaf*4;
+        double x0 = boxes[a];
+        double y0 = boxes[a+1];
+        double x1 = boxes[a+2];
+        double y1 = boxes[a+3];
+        int category = categories[leaf];
+        int mask = masks[leaf];
+
+        int top = base;
+        stack[top++] = root;
+        while(top > base) {
+          int node = stack[--top];
+          int b = node*4;
+          if((categories[node] & mask) == 0 || (masks[node] & category) == 0)
+            continue;
+          if(x0 > fatBoxes[b+2] || y0 > fatBoxes[b+3] || x1 < fatBoxes[b] || y1 < fatBoxes[b+1])
+            continue;
+
+          if(heights[node] == 0) {
+            if(node <= leaf)
+              continue;
+            if(x0 > boxes[b+2] || y0 > boxes[b+3] || x1 < boxes[b] || y1 < boxes[b+1])
+              continue;
+            if(shared) {
+
+              // Keep this traversal's entries while the visitor runs, in case it queries the tree.
+              stackTop = top;
+              visitor.visit(leafSprites[leaf], leafSprites[node]);
+              stackTop = base;
+              stack = this.stack;
+            }
+            else
+              visitor.visit(leafSprites[leaf], leafSprites[node]);
+          }
+          else {
+            if(top + 2 > stack.length) {
+              int[] newStack = new int[stack.length*2];
+              System.arraycopy(stack, 0, newStack, 0, top);
+              stack = newStack;
+              if(shared)
+                this.stack = newStack;
+            }
+            stack[top++] = children1[node];
+            stack[top++] = children2[node];
+          }
+        }
+      }
+    }
+    finally {
+      if(shared)
+        stackTop = base;
+    }
+    return stack;
+  }
+
+  /** A task for enumerating the pairs of a range of leaves in parallel. */
+  private static class PairTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private DynamicAABBTree tree;
+    private int n0;
+    private int n1;
+    private SpritePairVisitor visitor;
+
+    PairTask(DynamicAABBTree tree, int n0, int n1, SpritePairVisitor visitor) {
+      this.tree = tree;
+      this.n0 = n0;
+      this.n1 = n1;
+      this.visitor = visitor;
+    }
+
+    protected void compute() {
+      // The tree is only read, so each task just needs its own traversal stack.
+      if(n1 - n0 <= PARALLEL_PAIRS_MIN_NODES) {
+        tree._pairsForLeaves(n0, n1, new int[Math.max(64, tree.heights[tree.root]*2 + 2)], visitor);
+        return;
+      }
+      int mid = (n0 + n1) >>> 1;
+      invokeAll(new PairTask(tree, n0, mid, visitor), new PairTask(tree, mid, n1, visitor));
+    }
+  }
+}
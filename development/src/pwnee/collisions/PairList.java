@@ -0,0 +1,97 @@
+package pwnee.collisions;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import pwnee.sprites.Sprite;
+
+/**
+ * A growable list of pairs of int indices, stored in two primitive arrays.
+ * It holds the candidate pairs for the batch collision tests in Collisions,
+ * where the indices refer to entries of packed arrays of shape data. Adding
+ * pairs doesn't allocate any objects once the list has grown to its
+ * working size, and clearing it keeps its capacity for the next frame.
+ */
+public class PairList {
+
+  private static final int INIT_CAPACITY = 64;
+
+  private int[] firsts;
+  private int[] seconds;
+  private int size = 0;
+
+
+  /** Creates an empty list. */
+  public PairList() {
+    this(INIT_CAPACITY);
+  }
+
+  /** Creates an empty list that can hold the given number of pairs before it needs to grow. */
+  public PairList(int capacity) {
+    capacity = Math.max(1, capacity);
+    firsts = new int[capacity];
+    seconds = new int[capacity];
+  }
+
+  /** Returns the number of pairs in the list. */
+  public int size() {
+    return size;
+  }
+
+  /** Removes all pairs from the list, keeping its capacity. */
+  public void clear() {
+    size = 0;
+  }
+
+  /** Adds a pair of indices to the end of the list. */
+  public void add(int first, int second) {
+    if(size == firsts.length) {
+      firsts = Arrays.copyOf(firsts, size*2);
+      seconds = Arrays.copyOf(seconds, size*2);
+    }
+    firsts[size] = first;
+    seconds[size] = second;
+    size++;
+  }
+
+  /** Returns the first index of the kth pair. */
+  public int getFirst(int k) {
+    return firsts[k];
+  }
+
+  /** Returns the second index of the kth pair. */
+  public int getSecond(int k) {
+    return seconds[k];
+  }
+
+  /**
+   * Returns the array of the pairs' first indices. Only its first size()
+   * entries are pairs, and it is replaced when the list grows, so it
+   * shouldn't be kept after adding pairs.
+   */
+  public int[] firsts() {
+    return firsts;
+  }
+
+  /** Returns the array of the pairs' second indices, like firsts(). */
+  public int[] seconds() {
+    return seconds;
+  }
+
+  /**
+   * Clears the list and fills it with the pairs of sprites found by a
+   * broadphase's forEachPotentialPair, as their indices in a batch of
+   * shape data. Pairs with a sprite that isn't in indices are skipped.
+   */
+  public void collect(Broadphase broadphase, final Map<Sprite, Integer> indices) {
+    clear();
+    broadphase.forEachPotentialPair(new SpritePairVisitor() {
+      public void visit(Sprite a, Sprite b) {
+        Integer ia = indices.get(a);
+        Integer ib = indices.get(b);
+        if(ia != null && ib != null)
+          add(ia, ib);
+      }
+    });
+  }
+}
@@ -0,0 +1,584 @@
+package pwnee.collisions;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import pwnee.geom.Polygon2D;
+
+/**
+ * A static bounding volume hierarchy over the edges of a level's polygons,
+ * such as its walls and floors. It is built once for a level and answers
+ * point-in-solid, segment, and box queries by visiting only the edges near
+ * what is being looked for, instead of testing every polygon.
+ *
+ * The polygons may be concave, and a point is inside one by the even-odd
+ * rule. A point is in the solid if it is inside any of the polygons, so
+ * the polygons may overlap.
+ *
+ * The hierarchy is stored in flat arrays of primitives, with the edges in
+ * the order of the leaves that hold them. It is Serializable, so it can be
+ * saved along with a level, for example with ObjectFileIO, and loaded
+ * without being built again. Queries share scratch arrays, so a hierarchy
+ * shouldn't be queried from multiple threads at once.
+ */
+public class PolygonBVH implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** The most edges stored in a leaf. */
+  private static final int LEAF_SIZE = 4;
+
+  /** The deepest a hierarchy can be, which is far more than a median split needs. */
+  private static final int MAX_DEPTH = 64;
+
+  /** The vertices of all the polygons, one polygon after another. */
+  private double[] xs;
+  private double[] ys;
+
+  /** The index of each polygon's first vertex, followed by the total number of vertices. */
+  private int[] polyStarts;
+
+  /** The bounding box of each polygon, stored as minX, minY, maxX, maxY. */
+  private double[] polyBoxes;
+
+  /** The edges in leaf order, stored as x0, y0, x1, y1. */
+  private double[] edges;
+
+  /** The polygon of each edge. */
+  private int[] edgePolys;
+
+  /** The index of each edge within its polygon. */
+  private int[] edgeIds;
+
+  /** The bounding box of each node, stored as minX, minY, maxX, maxY. */
+  private double[] nodeBoxes;
+
+  /**
+   * The first edge of each leaf, or the second child of each internal node.
+   * An internal node's first child always follows it.
+   */
+  private int[] nodeFirsts;
+
+  /** The number of edges in each leaf, or 0 for internal nodes. */
+  private int[] nodeCounts;
+
+  private int nodeCount = 0;
+
+  /** The polygons, made again from the vertices when they are needed after loading. */
+  private transient Polygon2D[] polygons;
+
+  /** The traversal stack shared by queries. */
+  private transient int[] stack;
+
+  /** The number of edges crossed in each polygon by the current point query, mod 2. */
+  private transient byte[] parities;
+
+  /** The polygons touched by the current query. */
+  private transient int[] touched;
+  private transient int touchedCount;
+
+  /** The last query that touched each polygon, to count each polygon once. */
+  private transient int[] marks;
+  private transient int markStamp;
+
+
+  /**
+   * Builds a hierarchy over some polygons, which are referred to by their
+   * indices in the list.
+   */
+  public PolygonBVH(List<Polygon2D> polys) {
+    int polyCount = polys.size();
+    polygons = polys.toArray(new Polygon2D[polyCount]);
+    polyStarts = new int[polyCount + 1];
+    polyBoxes = new double[polyCount*4];
+    for(int p = 0; p < polyCount; p++) {
+      if(polygons[p].size() < 3)
+        throw new IllegalArgumentException("Each polygon must have at least 3 vertices.");
+      polyStarts[p + 1] = polyStarts[p] + polygons[p].size();
+    }
+
+    int vertexCount = polyStarts[polyCount];
+    xs = new double[vertexCount];
+    ys = new double[vertexCount];
+    int[] vertexPolys = new int[vertexCount];
+    for(int p = 0; p < polyCount; p++) {
+      Polygon2D poly = polygons[p];
+      int b = p*4;
+      polyBoxes[b] = Double.POSITIVE_INFINITY;
+      polyBoxes[b+1] = Double.POSITIVE_INFINITY;
+      polyBoxes[b+2] = Double.NEGATIVE_INFINITY;
+      polyBoxes[b+3] = Double.NEGATIVE_INFINITY;
+      for(int i = 0; i < poly.size(); i++) {
+        int v = polyStarts[p] + i;
+        xs[v] = poly.getX(i);
+        ys[v] = poly.getY(i);
+        vertexPolys[v] = p;
+        polyBoxes[b] = Math.min(polyBoxes[b], xs[v]);
+        polyBoxes[b+1] = Math.min(polyBoxes[b+1], ys[v]);
+        polyBoxes[b+2] = Math.max(polyBoxes[b+2], xs[v]);
+        polyBoxes[b+3] = Math.max(polyBoxes[b+3], ys[v]);
+      }
+    }
+
+    // Each vertex starts the edge to the next vertex of its polygon.
+    int edgeCount = vertexCount;
+    int[] order = new int[edgeCount];
+    double[] centerXs = new double[edgeCount];
+    double[] centerYs = new double[edgeCount];
+    for(int v = 0; v < edgeCount; v++) {
+      int w = nextVertex(v, vertexPolys[v]);
+      order[v] = v;
+      centerXs[v] = (xs[v] + xs[w])/2;
+      centerYs[v] = (ys[v] + ys[w])/2;
+    }
+
+    int maxNodes = Math.max(1, 2*edgeCount);
+    nodeBoxes = new double[maxNodes*4];
+    nodeFirsts = new int[maxNodes];
+    nodeCounts = new int[maxNodes];
+    if(edgeCount > 0)
+      build(order, centerXs, centerYs, vertexPolys, 0, edgeCount);
+    nodeBoxes = Arrays.copyOf(nodeBoxes, nodeCount*4);
+    nodeFirsts = Arrays.copyOf(nodeFirsts, nodeCount);
+    nodeCounts = Arrays.copyOf(nodeCounts, nodeCount);
+
+    edges = new double[edgeCount*4];
+    edgePolys = new int[edgeCount];
+    edgeIds = new int[edgeCount];
+    for(int e = 0; e < edgeCount; e++) {
+      int v = order[e];
+      int p = vertexPolys[v];
+      int w = nextVertex(v, p);
+      edges[e*4] = xs[v];
+      edges[e*4+1] = ys[v];
+      edges[e*4+2] = xs[w];
+      edges[e*4+3] = ys[w];
+      edgePolys[e] = p;
+      edgeIds[e] = v - polyStarts[p];
+    }
+  }
+
+  /** Returns the vertex after v in its polygon p. */
+  private int nextVertex(int v, int p) {
+    return (v + 1 == polyStarts[p + 1]) ? polyStarts[p] : v + 1;
+  }
+
+  /** Builds the node for the edges from..to-1 of order and returns its index. */
+  private int build(int[] order, double[] centerXs, double[] centerYs, int[] vertexPolys, int from, int to) {
+    int node = nodeCount++;
+    int b = node*4;
+    nodeBoxes[b] = Double.POSITIVE_INFINITY;
+    nodeBoxes[b+1] = Double.POSITIVE_INFINITY;
+    nodeBoxes[b+2] = Double.NEGATIVE_INFINITY;
+    nodeBoxes[b+3] = Double.NEGATIVE_INFINITY;
+    double minCX = Double.POSITIVE_INFINITY;
+    double minCY = Double.POSITIVE_INFINITY;
+    double maxCX = Double.NEGATIVE_INFINITY;
+    double maxCY = Double.NEGATIVE_INFINITY;
+    for(int i = from; i < to; i++) {
+      int v = order[i];
+      int w = nextVertex(v, vertexPolys[v]);
+      nodeBoxes[b] = Math.min(nodeBoxes[b], Math.min(xs[v], xs[w]));
+      nodeBoxes[b+1] = Math.min(nodeBoxes[b+1], Math.min(ys[v], ys[w]));
+      nodeBoxes[b+2] = Math.max(nodeBoxes[b+2], Math.max(xs[v], xs[w]));
+      nodeBoxes[b+3] = Math.max(nodeBoxes[b+3], Math.max(ys[v], ys[w]));
+      minCX = Math.min(minCX, centerXs[v]);
+      minCY = Math.min(minCY, centerYs[v]);
+      maxCX = Math.max(maxCX, centerXs[v]);
+      maxCY = Math.max(maxCY, centerYs[v]);
+    }
+
+    // Edges whose centers can't be split apart stay in one leaf.
+    if(to - from <= LEAF_SIZE || (maxCX == minCX && maxCY == minCY)) {
+      nodeFirsts[node] = from;
+      nodeCounts[node] = to - from;
+      return node;
+    }
+
+    // Split the edges at the median of their centers along the longer axis.
+    double[] keys = (maxCX - minCX >= maxCY - minCY) ? centerXs : centerYs;
+    int mid = (from + to) >>> 1;
+    select(order, keys, from, to - 1, mid);
+    build(order, centerXs, centerYs, vertexPolys, from, mid);
+    nodeFirsts[node] = build(order, centerXs, centerYs, vertexPolys, mid, to);
+    nodeCounts[node] = 0;
+    return node;
+  }
+
+  /** Partially sorts order[lo..hi] by keys, so that order[k] is in its sorted place. */
+  private static void select(int[] order, double[] keys, int lo, int hi, int k) {
+    while(lo < hi) {
+      double pivot = keys[order[(lo + hi) >>> 1]];
+      int i = lo;
+      int j = hi;
+      while(i <= j) {
+        while(keys[order[i]] < pivot)
+          i++;
+        while(keys[order[j]] > pivot)
+          j--;
+        if(i <= j) {
+          int t = order[i];
+          order[i] = order[j];
+          order[j] = t;
+          i++;
+          j--;
+        }
+      }
+      if(k <= j)
+        hi = j;
+      else if(k >= i)
+        lo = i;
+      else
+        return;
+    }
+  }
+
+
+  //////// Properties
+
+  /** Returns the number of polygons. */
+  public int getPolygonCount() {
+    return polyStarts.length - 1;
+  }
+
+  /** Returns the total number of edges of the polygons. */
+  public int getEdgeCount() {
+    return edgePolys.length;
+  }
+
+  /** Returns a polygon by its index. */
+  public Polygon2D getPolygon(int p) {
+    if(polygons == null)
+      polygons = new Polygon2D[getPolygonCount()];
+    if(polygons[p] == null) {
+      int from = polyStarts[p];
+      int to = polyStarts[p + 1];
+      polygons[p] = new Polygon2D(Arrays.copyOfRange(xs, from, to), Arrays.copyOfRange(ys, from, to));
+    }
+    return polygons[p];
+  }
+
+
+  //////// Point queries
+
+  /** Returns true iff a point is inside any of the polygons. Points exactly on an edge may count either way. */
+  public boolean contains(double px, double py) {
+    return findContaining(px, py) > 0;
+  }
+
+  /** Returns the index of a polygon that contains a point, or -1 if no polygon contains it. */
+  public int polygonAt(double px, double py) {
+    return (findContaining(px, py) > 0) ? touched[0] : -1;
+  }
+
+  /**
+   * Finds the polygons containing a point by counting the edges each
+   * polygon crosses on a ray from the point towards the nearest side of
+   * the root's box, so the ray passes as few edges as possible. Leaves the
+   * indices of the polygons containing the point at the start of touched
+   * and returns how many there are.
+   */
+  private int findContaining(double px, double py) {
+    initScratch();
+    touchedCount = 0;
+    markStamp++;
+    if(nodeCount == 0 || px < nodeBoxes[0] || py < nodeBoxes[1] || px > nodeBoxes[2] || py > nodeBoxes[3])
+      return 0;
+
+    // The ray runs along axis a, 0 for x or 1 for y, at a fixed position on the other axis o.
+    double toMinX = px - nodeBoxes[0];
+    double toMinY = py - nodeBoxes[1];
+    double toMaxX = nodeBoxes[2] - px;
+    double toMaxY = nodeBoxes[3] - py;
+    int a = (Math.min(toMinX, toMaxX) <= Math.min(toMinY, toMaxY)) ? 0 : 1;
+    int o = 1 - a;
+    boolean positive = (a == 0) ? (toMaxX <= toMinX) : (toMaxY <= toMinY);
+    double pa = (a == 0) ? px : py;
+    double po = (a == 0) ? py : px;
+
+    int top = 0;
+    stack[top++] = 0;
+    while(top > 0) {
+      int node = stack[--top];
+      int b = node*4;
+      if(nodeBoxes[b+o] > po || nodeBoxes[b+2+o] < po)
+        continue;
+      if(positive ? (nodeBoxes[b+2+a] < pa) : (nodeBoxes[b+a] > pa))
+        continue;
+
+      int count = nodeCounts[node];
+      if(count == 0) {
+        stack[top++] = nodeFirsts[node];
+        stack[top++] = node + 1;
+        continue;
+      }
+
+      int first = nodeFirsts[node];
+      for(int e = first; e < first + count; e++) {
+        int k = e*4;
+        double o0 = edges[k+o];
+        double o1 = edges[k+2+o];
+        if((o0 > po) == (o1 > po))
+          continue;
+        double a0 = edges[k+a];
+        double a1 = edges[k+2+a];
+        double crossing = a0 + (po - o0)*(a1 - a0)/(o1 - o0);
+        if(positive ? (pa < crossing) : (pa > crossing)) {
+          int p = edgePolys[e];
+          if(marks[p] != markStamp) {
+            marks[p] = markStamp;
+            touched[touchedCount++] = p;
+          }
+          parities[p] ^= 1;
+        }
+      }
+    }
+
+    // Keep the polygons crossed an odd number of times, and clear the parities for the next query.
+    int inside = 0;
+    for(int i = 0; i < touchedCount; i++) {
+      int p = touched[i];
+      if(parities[p] != 0)
+        touched[inside++] = p;
+      parities[p] = 0;
+    }
+    touchedCount = inside;
+    return inside;
+  }
+
+
+  //////// Segment queries
+
+  /**
+   * Finds where the segment from (x0, y0) to (x1, y1) first hits a
+   * polygon. If the segment starts inside a polygon, it hits that polygon
+   * at fraction 0, with no edge and a normal of (0, 0).
+   * @return  true iff the segment hit a polygon.
+   */
+  public boolean raycast(double x0, double y0, double x1, double y1, PolygonHit hit) {
+    hit.reset();
+    int inside = polygonAt(x0, y0);
+    if(inside >= 0) {
+      hit.set(inside, -1, 0, x0, y0, 0, 0);
+      return true;
+    }
+    if(nodeCount == 0)
+      return false;
+
+    double dx = x1 - x0;
+    double dy = y1 - y0;
+    double best = 1;
+    int bestEdge = -1;
+
+    int top = 0;
+    stack[top++] = 0;
+    while(top > 0) {
+      int node = stack[--top];
+      if(RaycastHit.boxFraction(nodeBoxes, node*4, x0, y0, dx, dy, best) < 0)
+        continue;
+
+      int count = nodeCounts[node];
+      if(count == 0) {
+        // Visit the nearer child first, so that its hits can prune the farther one.
+        int child1 = node + 1;
+        int child2 = nodeFirsts[node];
+        double t1 = RaycastHit.boxFraction(nodeBoxes, child1*4, x0, y0, dx, dy, best);
+        double t2 = RaycastHit.boxFraction(nodeBoxes, child2*4, x0, y0, dx, dy, best);
+        if(t1 >= 0 && t2 >= 0) {
+          stack[top++] = (t1 <= t2) ? child2 : child1;
+          stack[top++] = (t1 <= t2) ? child1 : child2;
+        }
+        else if(t1 >= 0)
+          stack[top++] = child1;
+        else if(t2 >= 0)
+          stack[top++] = child2;
+        continue;
+      }
+
+      int first = nodeFirsts[node];
+      for(int e = first; e < first + count; e++) {
+        double t = edgeFraction(e, x0, y0, dx, dy);
+        if(t >= 0 && (t < best || (bestEdge < 0 && t <= best))) {
+          best = t;
+          bestEdge = e;
+        }
+      }
+    }
+
+    if(bestEdge < 0)
+      return false;
+
+    int k = bestEdge*4;
+    double ex = edges[k+2] - edges[k];
+    double ey = edges[k+3] - edges[k+1];
+    double len = Math.sqrt(ex*ex + ey*ey);
+    double nx = ey/len;
+    double ny = -ex/len;
+    if(nx*dx + ny*dy > 0) {
+      nx = -nx;
+      ny = -ny;
+    }
+    hit.set(edgePolys[bestEdge], edgeIds[bestEdge], best, x0 + dx*best, y0 + dy*best, nx, ny);
+    return true;
+  }
+
+  /** Returns true iff the segment from (x0, y0) to (x1, y1) doesn't touch any polygon. */
+  public boolean lineOfSight(double x0, double y0, double x1, double y1) {
+    if(contains(x0, y0))
+      return false;
+    if(nodeCount == 0)
+      return true;
+
+    double dx = x1 - x0;
+    double dy = y1 - y0;
+    int top = 0;
+    stack[top++] = 0;
+    while(top > 0) {
+      int node = stack[--top];
+      if(RaycastHit.boxFraction(nodeBoxes, node*4, x0, y0, dx, dy, 1) < 0)
+        continue;
+
+      int count = nodeCounts[node];
+      if(count == 0) {
+        stack[top++] = nodeFirsts[node];
+        stack[top++] = node + 1;
+        continue;
+      }
+
+      int first = nodeFirsts[node];
+      for(int e = first; e < first + count; e++) {
+        if(edgeFraction(e, x0, y0, dx, dy) >= 0)
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the fraction along the segment from (x0, y0) along (dx, dy) at
+   * which it crosses edge e, or -1 if it doesn't. Segments parallel to the
+   * edge never cross it.
+   */
+  private double edgeFraction(int e, double x0, double y0, double dx, double dy) {
+    int k = e*4;
+    double ax = edges[k];
+    double ay = edges[k+1];
+    double ex = edges[k+2] - ax;
+    double ey = edges[k+3] - ay;
+    double denom = dx*ey - dy*ex;
+    if(denom == 0)
+      return -1;
+    double t = ((ax - x0)*ey - (ay - y0)*ex)/denom;
+    double u = ((ax - x0)*dy - (ay - y0)*dx)/denom;
+    if(t < 0 || t > 1 || u < 0 || u > 1)
+      return -1;
+    return t;
+  }
+
+
+  //////// Box queries
+
+  /** Returns true iff a rectangular area touches any of the polygons. */
+  public boolean overlaps(double x, double y, double w, double h) {
+    if(visitEdges(x, y, x + w, y + h, true))
+      return true;
+
+    // A box that doesn't touch any edge is either inside a polygon or outside all of them.
+    return contains(x, y);
+  }
+
+  /** Adds the polygons that touch a rectangular area to a collection. */
+  public void query(double x, double y, double w, double h, Collection<? super Polygon2D> out) {
+    visitEdges(x, y, x + w, y + h, false);
+    int count = touchedCount;
+    for(int i = 0; i < count; i++)
+      out.add(getPolygon(touched[i]));
+
+    // The polygons that contain the box without touching it contain its corner.
+    int inside = findContaining(x, y);
+    for(int i = 0; i < inside; i++) {
+      int p = touched[i];
+      if(!touchesBox(p, x, y, x + w, y + h))
+        out.add(getPolygon(p));
+    }
+  }
+
+  /**
+   * Visits the edges touching the box from (minX, minY) to (maxX, maxY),
+   * leaving the indices of their polygons in touched. If stopEarly is
+   * true, stops at the first such edge.
+   * @return  true iff an edge touches the box.
+   */
+  private boolean visitEdges(double minX, double minY, double maxX, double maxY, boolean stopEarly) {
+    initScratch();
+    touchedCount = 0;
+    markStamp++;
+    if(nodeCount == 0)
+      return false;
+
+    boolean found = false;
+    int top = 0;
+    stack[top++] = 0;
+    while(top > 0) {
+      int node = stack[--top];
+      int b = node*4;
+      if(nodeBoxes[b] > maxX || nodeBoxes[b+2] < minX || nodeBoxes[b+1] > maxY || nodeBoxes[b+3] < minY)
+        continue;
+
+      int count = nodeCounts[node];
+      if(count == 0) {
+        stack[top++] = nodeFirsts[node];
+        stack[top++] = node + 1;
+        continue;
+      }
+
+      int first = nodeFirsts[node];
+      for(int e = first; e < first + count; e++) {
+        int p = edgePolys[e];
+        if(marks[p] == markStamp)
+          continue;
+        int k = e*4;
+        double ax = edges[k];
+        double ay = edges[k+1];
+        if(RaycastHit.boxFraction(minX, minY, maxX, maxY, ax, ay, edges[k+2] - ax, edges[k+3] - ay, 1) < 0)
+          continue;
+        if(stopEarly)
+          return true;
+        found = true;
+        marks[p] = markStamp;
+        touched[touchedCount++] = p;
+      }
+    }
+    return found;
+  }
+
+  /** Returns true iff one of polygon p's edges touches the box from (minX, minY) to (maxX, maxY). */
+  private boolean touchesBox(int p, double minX, double minY, double maxX, double maxY) {
+    int b = p*4;
+    if(polyBoxes[b] > maxX || polyBoxes[b+2] < minX || polyBoxes[b+1] > maxY || polyBoxes[b+3] < minY)
+      return false;
+    for(int v = polyStarts[p]; v < polyStarts[p + 1]; v++) {
+      int w = nextVertex(v, p);
+      if(RaycastHit.boxFraction(minX, minY, maxX, maxY, xs[v], ys[v], xs[w] - xs[v], ys[w] - ys[v], 1) >= 0)
+        return true;
+    }
+    return false;
+  }
+
+
+  //////// Scratch
+
+  /** Creates the scratch arrays, which aren't saved with the hierarchy. */
+  private void initScratch() {
+    if(stack != null)
+      return;
+    int polyCount = getPolygonCount();
+    stack = new int[MAX_DEPTH*2];
+    parities = new byte[polyCount];
+    touched = new int[polyCount];
+    marks = new int[polyCount];
+    markStamp = 1;
+  }
+}
@@ -0,0 +1,58 @@
+package pwnee.collisions;
+
+/**
+ * The result of a segment query through a PolygonBVH. A single PolygonHit
+ * can be reused for every query, so casting segments doesn't allocate any
+ * objects.
+ */
+public class PolygonHit {
+
+  /** The index of the polygon that was hit, or -1 if nothing was hit. */
+  public int polygon = -1;
+
+  /** The index of the polygon's edge that was hit, from its vertex edge to vertex edge+1. */
+  public int edge = -1;
+
+  /** How far along the segment the hit is, from 0 at its start to 1 at its end. */
+  public double fraction = 1;
+
+  /** The x position of the hit. */
+  public double x;
+
+  /** The y position of the hit. */
+  public double y;
+
+  /** The x component of the unit normal of the edge that was hit, facing the segment's start. */
+  public double normalX;
+
+  /** The y component of the unit normal of the edge that was hit. */
+  public double normalY;
+
+
+  /** Sets this to hit nothing. */
+  public void reset() {
+    polygon = -1;
+    edge = -1;
+    fraction = 1;
+    x = 0;
+    y = 0;
+    normalX = 0;
+    normalY = 0;
+  }
+
+  /** Sets all the properties of the hit. */
+  public void set(int polygon, int edge, double fraction, double x, double y, double normalX, double normalY) {
+    this.polygon = polygon;
+    this.edge = edge;
+    this.fraction = fraction;
+    this.x = x;
+    this.y = y;
+    this.normalX = normalX;
+    this.normalY = normalY;
+  }
+
+  /** Returns true iff the segment hit a polygon. */
+  public boolean isHit() {
+    return polygon >= 0;
+  }
+}
@@ -1,10 +1,17 @@
 package pwnee.collisions;
 
 import java.awt.geom.Rectangle2D;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import pwnee.sprites.Sprite;
+import pwnee.util.DoubleHeap;
+import pwnee.util.WorkerPool;
 
 /** 
  * Quadtrees are recursive data structures used for efficient collision 
@@ -12,16 +19,43 @@ import pwnee.sprites.Sprite;
  * world into 4 recursive quadrants. Sprites are then assigned to a subquadrant
  * based on their size and position. 
  *
- * When a sprite is queried in the quadtree, it returns a list of sprites that
- * reside in the same quadtree quadrant path. If another sprite is in this list,
- * then it is possible (but not certain) that it is colliding with the queried
- * sprite, and collision detection can then be used to confirm this.
+ * When a sprite is queried in the quadtree, it returns a list of sprites in
+ * the quadrants it overlaps whose bounding boxes overlap its own. If another 
+ * sprite is in this list, then it is possible (but not certain) that it is 
+ * colliding with the queried sprite, and collision detection can then be used 
+ * to confirm this. The bounding boxes are the ones the sprites had when they 
+ * were last inserted or updated.
+ *
+ * Queries can also be done for rectangles, points, and circles. The overloads
+ * that take an output collection or a SpriteVisitor don't allocate any 
+ * objects while they walk the quadtree.
+ *
+ * For many-to-many collision detection, forEachPotentialPair walks the 
+ * quadtree once and reports each pair of sprites with overlapping bounding 
+ * boxes exactly once, instead of querying for every sprite.
+ *
+ * nearest and nearestBatch find the sprites nearest to points, searching 
+ * the quadrants nearest first and skipping those that are too far away.
+ *
+ * Each quadrant keeps the union of the categories and masks of the sprites 
+ * in it and in its subquadrants, so queries and pair enumeration skip whole 
+ * subtrees whose sprites can't collide with what is being looked for.
  *
  * They are most useful for performing many-to-many collision detections. It
  * effectively reduces the many-to-many collision problem's time from O(n^2) to
  * O(n*log4_n).
+ *
+ * A quadtree can be kept between frames instead of being rebuilt. Call 
+ * update(Sprite) after a sprite moves and remove(Sprite) when it goes away. 
+ * A moved sprite is only relocated if it crosses the bounds of its quadrant. 
+ * Each quadrant holds up to its capacity of sprites before it splits, and 
+ * it merges its subquadrants back into itself when they hold no more than
+ * its capacity. Emptied quadrants are recycled through a pool rather than 
+ * being garbage collected. A sprite that moves out of the quadtree's area 
+ * is taken out of it, but keeps its category and mask for when an update 
+ * brings it back in, until it is removed.
  */
-public class QuadTree {
+public class QuadTree implements Broadphase {
   /** The x position of this quadrant's left border. */
   public double minX;
   
@@ -49,6 +83,30 @@ public class QuadTree {
   /** The list of Sprites contained by this quadrant. */
   public ArrayList<Sprite> sprites = new ArrayList<Sprite>();
   
+  /** 
+   * The bounding boxes of the Sprites contained by this quadrant, stored as 
+   * minX, minY, maxX, maxY for each index of sprites. 
+   */
+  private double[] boxes = new double[16];
+  
+  /** The categories of the Sprites contained by this quadrant, for each index of sprites. */
+  private int[] categories = new int[4];
+  
+  /** The collision masks of the Sprites contained by this quadrant, for each index of sprites. */
+  private int[] masks = new int[4];
+  
+  /** The union of the categories of the Sprites contained by this quadrant. */
+  private int ownCategories = 0;
+  
+  /** The union of the masks of the Sprites contained by this quadrant. */
+  private int ownMasks = 0;
+  
+  /** The union of the categories of the Sprites contained by this quadrant and all its subquadrants. */
+  private int subCategories = 0;
+  
+  /** The union of the masks of the Sprites contained by this quadrant and all its subquadrants. */
+  private int subMasks = 0;
+  
   /** 
    * The 4 subquadrants contained by this quadrant. They are in the following 
    * order: northwest, northeast, southwest, southeast.
@@ -60,8 +118,65 @@ public class QuadTree {
   public double[] qMaxXs = new double[4];
   public double[] qMaxYs = new double[4];
   
+  /** The quadrant containing this quadrant. This is null for the topmost quadtree. */
+  public QuadTree parent = null;
+  
+  /** The index of this quadrant in its parent's quadrants. */
+  private int quadIndex = -1;
+  
+  /** The topmost quadtree in the structure. */
+  private QuadTree root;
+  
+  /** The number of sprites contained by this quadrant and all its subquadrants. */
+  private int count = 0;
+  
+  /** Whether sprites are pushed down into this quadrant's subquadrants. */
+  private boolean isSplit = false;
+  
+  /** 
+   * The number of sprites a quadrant holds before it splits. 
+   * This is only used in the topmost quadtree. 
+   */
+  private int capacity = 0;
+  
+  /** Maps each sprite in the structure to the quadrant holding it. This is only used in the topmost quadtree. */
+  private IdentityHashMap<Sprite, QuadTree> locations;
+  
+  /** 
+   * Maps each sprite that left the quadtree's area to its category and mask, 
+   * so it gets them back when it returns. This is only used in the topmost quadtree. 
+   */
+  private IdentityHashMap<Sprite, int[]> outside;
+  
+  /** Recycled quadrants. This is only used in the topmost quadtree. */
+  private ArrayDeque<QuadTree> pool;
+  
+  /** The scratch heaps for nearest neighbor queries. This is only used in the topmost quadtree. */
+  private NearestSearch search;
+  
+  
   /** Constructor for a quadrant. */
   public QuadTree(double minX, double minY, double maxX, double maxY, int d, int md) {
+    this.root = this;
+    this.locations = new IdentityHashMap<>();
+    this.outside = new IdentityHashMap<>();
+    this.pool = new ArrayDeque<>();
+    setBounds(minX, minY, maxX, maxY, d, md);
+  }
+  
+  /** Constructor for the top quadtree in a structure. */
+  public QuadTree(double minX, double minY, double maxX, double maxY, int md) {
+    this(minX,minY,maxX,maxY,0,md);
+  }
+  
+  /** Constructor for a pooled subquadrant. */
+  private QuadTree(QuadTree root) {
+    this.root = root;
+  }
+  
+  
+  /** Sets the area of this quadrant and computes the areas of its subquadrants. */
+  private void setBounds(double minX, double minY, double maxX, double maxY, int d, int md) {
     this.minX = minX;
     this.minY = minY;
     this.maxX = maxX;
@@ -94,81 +209,1170 @@ public class QuadTree {
     qMaxYs[3] = maxY;
   }
   
-  /** Constructor for the top quadtree in a structure. */
-  public QuadTree(double minX, double minY, double maxX, double maxY, int md) {
-    this(minX,minY,maxX,maxY,0,md);
+  
+  //////// Capacity
+  
+  /** 
+   * Sets the number of sprites a quadrant can hold before it splits into 
+   * subquadrants. With the default capacity of 0, every sprite is pushed down 
+   * into the smallest subquadrant that completely contains it. 
+   */
+  public void setCapacity(int capacity) {
+    root.capacity = Math.max(0, capacity);
+  }
+  
+  /** Returns the number of sprites a quadrant can hold before it splits. */
+  public int getCapacity() {
+    return root.capacity;
   }
   
+  /** Returns the number of sprites contained by this quadrant and all its subquadrants. */
+  public int size() {
+    return count;
+  }
+  
+  /** Returns true iff a sprite is currently in the quadtree's structure. */
+  public boolean containsSprite(Sprite s) {
+    return root.locations.containsKey(s);
+  }
   
-  /** Inserts a sprite into the quadtree. */
+  
+  //////// Insertion/removal
+  
+  /** 
+   * Inserts a sprite into the quadtree with the default category and mask. 
+   * If the sprite is already in the quadtree or has left its area, it is 
+   * updated instead and keeps its filter.
+   */
   public boolean insert(Sprite s) {
+    if(root.locations.containsKey(s) || root.outside.containsKey(s))
+      return update(s);
+    return _insertNew(s, DEFAULT_CATEGORY, DEFAULT_MASK);
+  }
+  
+  /** 
+   * Inserts a sprite into the quadtree with a category and the mask of 
+   * categories it collides with. If the sprite is already in the quadtree or 
+   * has left its area, its filter is changed and it is updated instead.
+   */
+  public boolean insert(Sprite s, int category, int mask) {
+    if(root.locations.containsKey(s) || root.outside.containsKey(s)) {
+      setFilter(s, category, mask);
+      return update(s);
+    }
+    return _insertNew(s, category, mask);
+  }
+  
+  /** Inserts a sprite that isn't in the quadtree yet. */
+  private boolean _insertNew(Sprite s, int category, int mask) {
+    checkCategory(category);
+    
     // Do not insert sprites that are marked as destroyed.
     if(s.isDestroyed())
       return false;
     
     // Do not insert sprites that are completely outside of the quadtree's area.
     Rectangle2D bbox = s.getCollisionBox();
-    if(!this.intersects(bbox))
+    if(!root.intersects(bbox))
       return false;
     
     // recursively insert the sprite into the smallest possible subquadrant.
-    _insertRec(s, bbox);
+    double x0 = bbox.getX();
+    double y0 = bbox.getY();
+    root._insertRec(s, x0, y0, x0 + bbox.getWidth(), y0 + bbox.getHeight(), category, mask);
     
     return true;
   }
   
-  /** Recursively inserts the sprite into the smallest subquadrant that it completely fits it.*/
-  private void _insertRec(Sprite s, Rectangle2D bbox) {
-    if(depth < maxDepth) {
+  /** 
+   * Recursively inserts the sprite into the smallest subquadrant that it completely fits it, 
+   * unless a quadrant along the way hasn't reached its capacity yet.
+   */
+  private void _insertRec(Sprite s, double x0, double y0, double x1, double y1, int category, int mask) {
+    count++;
+    
+    if(isSplit && depth < maxDepth) {
       // determine whether to insert this sprite into a subquadrant.
+      int i = quadIndexContaining(x0, y0, x1, y1);
+      if(i >= 0) {
+        if(quadrants[i] == null) 
+          quadrants[i] = root.obtain(this, i);
+        quadrants[i]._insertRec(s, x0, y0, x1, y1, category, mask);
+        return;
+      }
+    }
+    
+    addEntry(s, x0, y0, x1, y1, category, mask);
+    
+    if(!isSplit && depth < maxDepth && sprites.size() > root.capacity)
+      split();
+  }
+  
+  
+  /** 
+   * Updates the position of a sprite in the quadtree after it has moved or 
+   * resized. The sprite is only relocated if it no longer fits in its 
+   * quadrant or if it now fits in one of its quadrant's subquadrants. 
+   * Sprites that aren't in the quadtree yet are inserted with the default 
+   * filter. Sprites that have been destroyed are removed. Sprites that left 
+   * the quadtree's area are taken out of it, and are put back with the 
+   * category and mask they had once they return to it.
+   * @return  true iff the sprite is in the quadtree afterwards.
+   */
+  public boolean update(Sprite s) {
+    QuadTree node = root.locations.get(s);
+    if(node == null) {
+      int[] filter = root.outside.get(s);
+      if(filter == null)
+        return insert(s);
+      if(s.isDestroyed()) {
+        root.outside.remove(s);
+        return false;
+      }
+      if(!_insertNew(s, filter[0], filter[1]))
+        return false;
+      root.outside.remove(s);
+      return true;
+    }
+    
+    if(s.isDestroyed()) {
+      remove(s);
+      return false;
+    }
+    
+    Rectangle2D bbox = s.getCollisionBox();
+    if(!root.intersects(bbox)) {
+      int j = node.indexOfSprite(s);
+      int[] filter = {node.categories[j], node.masks[j]};
+      remove(s);
+      root.outside.put(s, filter);
+      return false;
+    }
+    double x0 = bbox.getX();
+    double y0 = bbox.getY();
+    double x1 = x0 + bbox.getWidth();
+    double y1 = y0 + bbox.getHeight();
+    
+    // Leave the sprite where it is if it would be inserted into the same quadrant.
+    boolean fitsNode = node.holds(x0, y0, x1, y1);
+    boolean fitsChild = (node.isSplit && node.depth < maxDepth && node.quadIndexContaining(x0, y0, x1, y1) >= 0);
+    if(fitsNode && !fitsChild) {
+      node.setEntryBox(node.indexOfSprite(s), x0, y0, x1, y1);
+      return true;
+    }
+    
+    // Find the smallest ancestor that still contains the sprite.
+    QuadTree target = node;
+    while(!target.holds(x0, y0, x1, y1))
+      target = target.parent;
+    
+    // Take the sprite out of its quadrant, reinsert it from the ancestor, then clean up the quadrants it left.
+    int j = node.indexOfSprite(s);
+    int category = node.categories[j];
+    int mask = node.masks[j];
+    node.removeEntry(j);
+    for(QuadTree q = node; q != target.parent; q = q.parent)
+      q.count--;
+    target._insertRec(s, x0, y0, x1, y1, category, mask);
+    
+    for(QuadTree q = node; q != target.parent; q = q.parent) {
+      q.compact();
+      q.refreshFilters();
+    }
+    
+    return true;
+  }
+  
+  
+  /** 
+   * Removes a sprite from the quadtree. Quadrants left with no more than 
+   * the capacity of sprites in them are merged. A sprite that left the 
+   * quadtree's area forgets its filter.
+   * @return  true iff the sprite was in the quadtree.
+   */
+  public boolean remove(Sprite s) {
+    QuadTree node = root.locations.remove(s);
+    if(node == null) {
+      root.outside.remove(s);
+      return false;
+    }
+    
+    node.removeEntry(node.indexOfSprite(s));
+    for(QuadTree q = node; q != null; q = q.parent)
+      q.count--;
+    for(QuadTree q = node; q != null; q = q.parent) {
+      q.compact();
+      q.refreshFilters();
+    }
+    
+    return true;
+  }
+  
+  
+  /** 
+   * Removes all sprites from the quadtree, recycling all of its subquadrants. 
+   * Clearing the topmost quadtree also forgets the sprites that left its area.
+   */
+  public void clear() {
+    if(this == root)
+      outside.clear();
+    for(int i = 0; i < 4; i++) {
+      if(quadrants[i] != null) {
+        root.recycle(quadrants[i]);
+        quadrants[i] = null;
+      }
+    }
+    for(Sprite s : sprites)
+      root.locations.remove(s);
+    sprites.clear();
+    
+    // Fix the counts of this quadrant's ancestors if it isn't the topmost quadtree.
+    for(QuadTree q = parent; q != null; q = q.parent)
+      q.count -= count;
+    count = 0;
+    isSplit = false;
+    
+    for(QuadTree q = this; q != null; q = q.parent)
+      q.refreshFilters();
+  }
+  
+  
+  /** 
+   * Adds a sprite, its bounding box, and its filter to this quadrant's lists 
+   * and records it as the sprite's location. 
+   */
+  private void addEntry(Sprite s, double x0, double y0, double x1, double y1, int category, int mask) {
+    int j = sprites.size();
+    if(j*4 == boxes.length) {
+      double[] newBoxes = new double[boxes.length*2];
+      System.arraycopy(boxes, 0, newBoxes, 0, boxes.length);
+      boxes = newBoxes;
+      
+      int[] newCategories = new int[j*2];
+      System.arraycopy(categories, 0, newCategories, 0, j);
+      categories = newCategories;
+      
+      int[] newMasks = new int[j*2];
+      System.arraycopy(masks, 0, newMasks, 0, j);
+      masks = newMasks;
+    }
+    sprites.add(s);
+    setEntryBox(j, x0, y0, x1, y1);
+    categories[j] = category;
+    masks[j] = mask;
+    root.locations.put(s, this);
+    
+    // The unions only grow when a sprite is added, so this quadrant and its ancestors can just include it.
+    ownCategories |= category;
+    ownMasks |= mask;
+    for(QuadTree q = this; q != null; q = q.parent) {
+      q.subCategories |= category;
+      q.subMasks |= mask;
+    }
+  }
+  
+  /** Sets the stored bounding box of the sprite at index j of this quadrant's list. */
+  private void setEntryBox(int j, double x0, double y0, double x1, double y1) {
+    int b = j*4;
+    boxes[b] = x0;
+    boxes[b+1] = y0;
+    boxes[b+2] = x1;
+    boxes[b+3] = y1;
+  }
+  
+  /** 
+   * Removes the sprite at index j from this quadrant's list. The order of 
+   * the list doesn't matter, so the last sprite takes its place. 
+   */
+  private void removeEntry(int j) {
+    int last = sprites.size() - 1;
+    sprites.set(j, sprites.get(last));
+    sprites.remove(last);
+    System.arraycopy(boxes, last*4, boxes, j*4, 4);
+    categories[j] = categories[last];
+    masks[j] = masks[last];
+  }
+  
+  /** 
+   * Recomputes the filter unions of this quadrant from its sprites and its 
+   * subquadrants' unions. This is needed after sprites are removed, since 
+   * the unions can't just subtract them.
+   */
+  private void refreshFilters() {
+    int cats = 0;
+    int msks = 0;
+    int size = sprites.size();
+    for(int j = 0; j < size; j++) {
+      cats |= categories[j];
+      msks |= masks[j];
+    }
+    ownCategories = cats;
+    ownMasks = msks;
+    
+    for(int i = 0; i < 4; i++) {
+      if(quadrants[i] != null) {
+        cats |= quadrants[i].subCategories;
+        msks |= quadrants[i].subMasks;
+      }
+    }
+    subCategories = cats;
+    subMasks = msks;
+  }
+  
+  /** Returns the index of a sprite in this quadrant's list, or -1 if it isn't in this quadrant. */
+  private int indexOfSprite(Sprite s) {
+    for(int j = sprites.size() - 1; j >= 0; j--) {
+      if(sprites.get(j) == s)
+        return j;
+    }
+    return -1;
+  }
+  
+  
+  /** Pushes every sprite in this quadrant that fits into a subquadrant down into it. */
+  private void split() {
+    isSplit = true;
+    
+    for(int j = sprites.size() - 1; j >= 0; j--) {
+      int b = j*4;
+      double x0 = boxes[b];
+      double y0 = boxes[b+1];
+      double x1 = boxes[b+2];
+      double y1 = boxes[b+3];
+      int i = quadIndexContaining(x0, y0, x1, y1);
+      if(i < 0)
+        continue;
+      
+      // This quadrant's count already includes the sprite.
+      Sprite s = sprites.get(j);
+      int category = categories[j];
+      int mask = masks[j];
+      removeEntry(j);
+      
+      if(quadrants[i] == null) 
+        quadrants[i] = root.obtain(this, i);
+      quadrants[i]._insertRec(s, x0, y0, x1, y1, category, mask);
+    }
+    refreshFilters();
+  }
+  
+  
+  /** 
+   * Recycles any empty subquadrants, and merges all subquadrants back into 
+   * this quadrant if they hold no more than the capacity of sprites.
+   */
+  private void compact() {
+    if(!isSplit)
+      return;
+    
+    if(count <= root.capacity) {
       for(int i = 0; i < 4; i++) {
-        if(quadContains(bbox,i)) {
-          if(quadrants[i] == null) 
-            quadrants[i] = new QuadTree(qMinXs[i], qMinYs[i], qMaxXs[i], qMaxYs[i], depth+1, maxDepth);
-          quadrants[i]._insertRec(s, bbox);
-          return;
+        if(quadrants[i] != null) {
+          quadrants[i].collectInto(this);
+          root.recycle(quadrants[i]);
+          quadrants[i] = null;
         }
       }
+      isSplit = false;
+      return;
     }
     
-    sprites.add(s);
+    for(int i = 0; i < 4; i++) {
+      if(quadrants[i] != null && quadrants[i].count == 0) {
+        root.recycle(quadrants[i]);
+        quadrants[i] = null;
+      }
+    }
+  }
+  
+  /** Moves all the sprites of this quadrant and its subquadrants into another quadrant. */
+  private void collectInto(QuadTree dest) {
+    for(int j = 0; j < sprites.size(); j++) {
+      int b = j*4;
+      dest.addEntry(sprites.get(j), boxes[b], boxes[b+1], boxes[b+2], boxes[b+3], categories[j], masks[j]);
+    }
+    sprites.clear();
+    
+    for(int i = 0; i < 4; i++) {
+      if(quadrants[i] != null)
+        quadrants[i].collectInto(dest);
+    }
   }
   
   
+  //////// Filters
+  
   /** 
-   * Queries for a sprite inside the quadtree and returns the accumulated sprite  
-   * list of the every subquadrant that can completely contain it. 
+   * Changes the category of a sprite and the mask of categories it collides with.
+   * The filter of a sprite that left the quadtree's area is changed too.
+   * @return  true iff the sprite is in the quadtree.
+   */
+  public boolean setFilter(Sprite s, int category, int mask) {
+    checkCategory(category);
+    QuadTree node = root.locations.get(s);
+    if(node == null) {
+      int[] filter = root.outside.get(s);
+      if(filter != null) {
+        filter[0] = category;
+        filter[1] = mask;
+      }
+      return false;
+    }
+    
+    int j = node.indexOfSprite(s);
+    node.categories[j] = category;
+    node.masks[j] = mask;
+    for(QuadTree q = node; q != null; q = q.parent)
+      q.refreshFilters();
+    return true;
+  }
+  
+  /** Returns the category of a sprite, or 0 if it is neither in the quadtree nor kept after leaving its area. */
+  public int getCategory(Sprite s) {
+    QuadTree node = root.locations.get(s);
+    if(node == null) {
+      int[] filter = root.outside.get(s);
+      return (filter == null ? 0 : filter[0]);
+    }
+    return node.categories[node.indexOfSprite(s)];
+  }
+  
+  /** Returns the mask of categories a sprite collides with, or 0 if it is neither in the quadtree nor kept after leaving its area. */
+  public int getMask(Sprite s) {
+    QuadTree node = root.locations.get(s);
+    if(node == null) {
+      int[] filter = root.outside.get(s);
+      return (filter == null ? 0 : filter[1]);
+    }
+    return node.masks[node.indexOfSprite(s)];
+  }
+  
+  /** Sprites must belong to at least one category, or nothing could ever collide with them. */
+  private static void checkCategory(int category) {
+    if(category == 0)
+      throw new IllegalArgumentException("A sprite's category must have at least one bit set.");
+  }
+  
+  
+  //////// Quadrant pool
+  
+  /** Gets a recycled or new subquadrant for quadrant i of a parent quadrant. */
+  private QuadTree obtain(QuadTree parent, int i) {
+    QuadTree q = pool.poll();
+    if(q == null)
+      q = new QuadTree(this);
+    
+    q.setBounds(parent.qMinXs[i], parent.qMinYs[i], parent.qMaxXs[i], parent.qMaxYs[i], parent.depth+1, parent.maxDepth);
+    q.parent = parent;
+    q.quadIndex = i;
+    return q;
+  }
+  
+  /** Returns a quadrant and all its subquadrants to the pool. */
+  private void recycle(QuadTree q) {
+    for(int i = 0; i < 4; i++) {
+      if(q.quadrants[i] != null) {
+        recycle(q.quadrants[i]);
+        q.quadrants[i] = null;
+      }
+    }
+    for(Sprite s : q.sprites) {
+      if(locations.get(s) == q)
+        locations.remove(s);
+    }
+    q.sprites.clear();
+    q.parent = null;
+    q.count = 0;
+    q.isSplit = false;
+    q.ownCategories = 0;
+    q.ownMasks = 0;
+    q.subCategories = 0;
+    q.subMasks = 0;
+    pool.push(q);
+  }
+  
+  
+  //////// Queries
+  
+  /** 
+   * Queries for a sprite inside the quadtree and returns a new list of the 
+   * sprites whose bounding boxes overlap its bounding box, including itself 
+   * if it is in the quadtree.
    */
   public List<Sprite> query(Sprite s) {
+    List<Sprite> result = new ArrayList<Sprite>();
+    query(s, result);
+    return result;
+  }
+  
+  /** 
+   * Queries for a sprite inside the quadtree and adds the sprites whose 
+   * bounding boxes overlap its bounding box to out. 
+   */
+  public void query(Sprite s, Collection<? super Sprite> out) {
+    _querySprite(s, out, null);
+  }
+  
+  /** 
+   * Queries for a sprite inside the quadtree and visits the sprites whose 
+   * bounding boxes overlap its bounding box. 
+   */
+  public void query(Sprite s, SpriteVisitor visitor) {
+    _querySprite(s, null, visitor);
+  }
+  
+  /** 
+   * Adds the sprites whose bounding boxes overlap a rectangular area to out. 
+   * This doesn't allocate any objects.
+   */
+  public void query(double x, double y, double w, double h, Collection<? super Sprite> out) {
+    root._queryRect(x, y, x + w, y + h, ~0, 0, out, null);
+  }
+  
+  /** 
+   * Visits the sprites whose bounding boxes overlap a rectangular area. 
+   * This doesn't allocate any objects.
+   */
+  public void query(double x, double y, double w, double h, SpriteVisitor visitor) {
+    root._queryRect(x, y, x + w, y + h, ~0, 0, null, visitor);
+  }
+  
+  /** 
+   * Visits the sprites whose bounding boxes overlap a rectangular area and 
+   * whose categories are in a mask. Quadrants without any of those 
+   * categories are skipped. This doesn't allocate any objects.
+   */
+  public void query(double x, double y, double w, double h, int mask, SpriteVisitor visitor) {
+    root._queryRect(x, y, x + w, y + h, mask, 0, null, visitor);
+  }
+  
+  /** 
+   * Adds the sprites whose bounding boxes contain a point to out. 
+   * This doesn't allocate any objects.
+   */
+  public void queryPoint(double x, double y, Collection<? super Sprite> out) {
+    root._queryRect(x, y, x, y, ~0, 0, out, null);
+  }
+  
+  /** 
+   * Visits the sprites whose bounding boxes contain a point. 
+   * This doesn't allocate any objects.
+   */
+  public void queryPoint(double x, double y, SpriteVisitor visitor) {
+    root._queryRect(x, y, x, y, ~0, 0, null, visitor);
+  }
+  
+  /** 
+   * Adds the sprites whose bounding boxes overlap a circle to out. 
+   * This doesn't allocate any objects.
+   */
+  public void queryCircle(double cx, double cy, double r, Collection<? super Sprite> out) {
+    root._queryCircle(cx, cy, r, ~0, 0, out, null);
+  }
+  
+  /** 
+   * Visits the sprites whose bounding boxes overlap a circle. 
+   * This doesn't allocate any objects.
+   */
+  public void queryCircle(double cx, double cy, double r, SpriteVisitor visitor) {
+    root._queryCircle(cx, cy, r, ~0, 0, null, visitor);
+  }
+  
+  
+  /** 
+   * Queries with a sprite's bounding box, unless the sprite is destroyed. 
+   * If the sprite is in the quadtree, only the sprites its filter collides with are found.
+   */
+  private void _querySprite(Sprite s, Collection<? super Sprite> out, SpriteVisitor visitor) {
     // Do not query sprites that are marked as destroyed.
     if(s.isDestroyed())
-      return new ArrayList<Sprite>();
+      return;
+    
+    int mask = ~0;
+    int category = 0;
+    QuadTree node = root.locations.get(s);
+    if(node != null) {
+      int j = node.indexOfSprite(s);
+      mask = node.masks[j];
+      category = node.categories[j];
+    }
     
-    // Do not query sprites that are completely outside of the quadtree's area.
     Rectangle2D bbox = s.getCollisionBox();
-    if(!this.intersects(bbox))
-      return new ArrayList<Sprite>();
+    double x0 = bbox.getX();
+    double y0 = bbox.getY();
+    root._queryRect(x0, y0, x0 + bbox.getWidth(), y0 + bbox.getHeight(), mask, category, out, visitor);
+  }
+  
+  /** 
+   * Recursively finds the sprites overlapping a rectangle in this quadrant 
+   * and any subquadrants intersecting it. 
+   * @param mask      The categories of the sprites to find.
+   * @param category  The category that the found sprites' masks must include, 
+   *                  or 0 to not check their masks.
+   * @return  false if the visitor stopped the query.
+   */
+  private boolean _queryRect(double x0, double y0, double x1, double y1, int mask, int category, Collection<? super Sprite> out, SpriteVisitor visitor) {
+    // Skip quadrants that the rectangle is completely outside of. Sprites in the topmost quadtree may stick out of it.
+    if(parent != null && (x0 > maxX || y0 > maxY || x1 < minX || y1 < minY))
+      return true;
+    if(rejectsFilter(subCategories, subMasks, mask, category))
+      return true;
+    
+    int size = sprites.size();
+    for(int j = 0; j < size; j++) {
+      int b = j*4;
+      if(rejectsFilter(categories[j], masks[j], mask, category))
+        continue;
+      if(x0 > boxes[b+2] || y0 > boxes[b+3] || x1 < boxes[b] || y1 < boxes[b+1])
+        continue;
+      if(!emit(sprites.get(j), out, visitor))
+        return false;
+    }
+    
+    for(int i = 0; i < 4; i++) {
+      if(quadrants[i] != null && !quadrants[i]._queryRect(x0, y0, x1, y1, mask, category, out, visitor))
+        return false;
+    }
+    return true;
+  }
+  
+  /** 
+   * Recursively finds the sprites overlapping a circle in this quadrant 
+   * and any subquadrants intersecting it. 
+   * @return  false if the visitor stopped the query.
+   */
+  private boolean _queryCircle(double cx, double cy, double r, int mask, int category, Collection<? super Sprite> out, SpriteVisitor visitor) {
+    double rSq = r*r;
+    
+    // Skip quadrants that the circle is completely outside of. Sprites in the topmost quadtree may stick out of it.
+    if(parent != null && boxDistSq(minX, minY, maxX, maxY, cx, cy) > rSq)
+      return true;
+    if(rejectsFilter(subCategories, subMasks, mask, category))
+      return true;
+    
+    int size = sprites.size();
+    for(int j = 0; j < size; j++) {
+      int b = j*4;
+      if(rejectsFilter(categories[j], masks[j], mask, category))
+        continue;
+      if(boxDistSq(boxes[b], boxes[b+1], boxes[b+2], boxes[b+3], cx, cy) > rSq)
+        continue;
+      if(!emit(sprites.get(j), out, visitor))
+        return false;
+    }
+    
+    for(int i = 0; i < 4; i++) {
+      if(quadrants[i] != null && !quadrants[i]._queryCircle(cx, cy, r, mask, category, out, visitor))
+        return false;
+    }
+    return true;
+  }
+  
+  /** 
+   * Returns true iff sprites with the given categories and masks can't be 
+   * found by a query for the categories in mask by a sprite of the given 
+   * category. A category of 0 doesn't check the masks. 
+   */
+  private static boolean rejectsFilter(int categories, int masks, int mask, int category) {
+    return (categories & mask) == 0 || (category != 0 && (masks & category) == 0);
+  }
+  
+  /** Passes a found sprite to either the output collection or the visitor. */
+  private static boolean emit(Sprite s, Collection<? super Sprite> out, SpriteVisitor visitor) {
+    if(visitor != null)
+      return visitor.visit(s);
+    out.add(s);
+    return true;
+  }
+  
+  /** Returns the squared distance from a point to the nearest point of a box. */
+  private static double boxDistSq(double x0, double y0, double x1, double y1, double px, double py) {
+    double dx = 0;
+    if(px < x0)
+      dx = x0 - px;
+    else if(px > x1)
+      dx = px - x1;
+    
+    double dy = 0;
+    if(py < y0)
+      dy = y0 - py;
+    else if(py > y1)
+      dy = py - y1;
+    
+    return dx*dx + dy*dy;
+  }
+  
+  
+  //////// Raycasting
+  
+  /**
+   * Casts a ray from (x0, y0) to (x1, y1) and finds the first sprite whose
+   * bounding box it hits. The quadrants are visited in the order the ray
+   * passes through them, and quadrants it misses or reaches after the
+   * closest hit found so far are skipped.
+   * @param hit   Set to the closest hit, or reset if nothing was hit.
+   * @return  true iff a sprite was hit.
+   */
+  public boolean raycast(double x0, double y0, double x1, double y1, RaycastHit hit) {
+    return _raycast(x0, y0, x1 - x0, y1 - y0, ~0, null, null, false, hit);
+  }
+  
+  /**
+   * Casts a ray from (ox, oy) in the direction (dirX, dirY), up to a finite
+   * distance of maxDist, and finds the first sprite whose bounding box it
+   * hits. The hit's fraction times maxDist is the distance to the hit.
+   * @param hit   Set to the closest hit, or reset if nothing was hit.
+   * @return  true iff a sprite was hit.
+   */
+  public boolean raycast(double ox, double oy, double dirX, double dirY, double maxDist, RaycastHit hit) {
+    return raycast(ox, oy, dirX, dirY, maxDist, ~0, hit);
+  }
+  
+  /**
+   * Casts a ray like raycast(ox, oy, dirX, dirY, maxDist, hit), only hitting
+   * the sprites whose categories are in a mask.
+   */
+  public boolean raycast(double ox, double oy, double dirX, double dirY, double maxDist, int mask, RaycastHit hit) {
+    double len = Math.sqrt(dirX*dirX + dirY*dirY);
+    if(len == 0) {
+      hit.reset();
+      return false;
+    }
+    double scale = maxDist/len;
+    return _raycast(ox, oy, dirX*scale, dirY*scale, mask, null, null, false, hit);
+  }
+  
+  /**
+   * Returns true iff no sprite whose category is in a mask has a bounding
+   * box touching the segment from (x0, y0) to (x1, y1). This stops at the
+   * first blocking sprite found instead of looking for the closest one.
+   */
+  public boolean lineOfSight(double x0, double y0, double x1, double y1, int mask) {
+    return !_raycast(x0, y0, x1 - x0, y1 - y0, mask, null, null, true, null);
+  }
+  
+  /**
+   * Returns true iff no other sprite blocks the segment between the centers
+   * of two sprites' bounding boxes. The two sprites themselves are ignored.
+   * If a is in the quadtree, only the sprites it collides with block it.
+   */
+  public boolean lineOfSight(Sprite a, Sprite b) {
+    Rectangle2D boxA = a.getCollisionBox();
+    Rectangle2D boxB = b.getCollisionBox();
+    double x0 = boxA.getCenterX();
+    double y0 = boxA.getCenterY();
+    int mask = containsSprite(a) ? getMask(a) : ~0;
+    return !_raycast(x0, y0, boxB.getCenterX() - x0, boxB.getCenterY() - y0, mask, a, b, true, null);
+  }
+  
+  /**
+   * Casts a ray from (x0, y0) along (dx, dy) through the quadtree.
+   * @param mask      The categories of the sprites that can be hit.
+   * @param ignore1   A sprite that can't be hit, or null.
+   * @param ignore2   Another sprite that can't be hit, or null.
+   * @param anyHit    If true, this stops at the first hit found instead of the closest one.
+   * @param hit       Set to the hit found, if it isn't null.
+   * @return  true iff a sprite was hit.
+   */
+  private boolean _raycast(double x0, double y0, double dx, double dy, int mask, Sprite ignore1, Sprite ignore2, boolean anyHit, RaycastHit hit) {
+    if(hit != null)
+      hit.reset();
+    
+    // Flipping the bits of the quadrant indices for the axes that the ray goes backwards along
+    // orders the subquadrants from nearest to farthest.
+    int order = ((dx < 0) ? 1 : 0) | ((dy < 0) ? 2 : 0);
+    return root._raycastRec(x0, y0, dx, dy, order, mask, ignore1, ignore2, anyHit, hit, Double.POSITIVE_INFINITY) <= 1;
+  }
+  
+  /**
+   * Recursively casts a ray against the sprites of this quadrant and its subquadrants.
+   * @param best  The fraction of the closest hit found so far, or infinity if nothing has been hit.
+   * @return  the fraction of the closest hit found, or infinity if nothing has been hit.
+   */
+  private double _raycastRec(double x0, double y0, double dx, double dy, int order, int mask, Sprite ignore1, Sprite ignore2, boolean anyHit, RaycastHit hit, double best) {
+    if((subCategories & mask) == 0)
+      return best;
+    
+    int size = sprites.size();
+    for(int j = 0; j < size; j++) {
+      if((categories[j] & mask) == 0)
+        continue;
+      Sprite s = sprites.get(j);
+      if(s == ignore1 || s == ignore2)
+        continue;
+      double t = RaycastHit.boxFraction(boxes, j*4, x0, y0, dx, dy, Math.min(best, 1));
+      if(t < 0 || t >= best)
+        continue;
+      
+      best = t;
+      if(hit != null)
+        hit.setBoxHit(s, boxes, j*4, t, x0, y0, dx, dy);
+      if(anyHit)
+        return best;
+    }
+    
+    for(int k = 0; k < 4; k++) {
+      QuadTree q = quadrants[k ^ order];
+      if(q == null)
+        continue;
+      
+      // The sprites of a subquadrant are completely inside it, so it can be skipped if the ray reaches it too late.
+      double t = RaycastHit.boxFraction(q.minX, q.minY, q.maxX, q.maxY, x0, y0, dx, dy, Math.min(best, 1));
+      if(t < 0 || t >= best)
+        continue;
+      
+      best = q._raycastRec(x0, y0, dx, dy, order, mask, ignore1, ignore2, anyHit, hit, best);
+      if(anyHit && best <= 1)
+        return best;
+    }
+    return best;
+  }
+  
+  
+  //////// Nearest neighbors
+  
+  /**
+   * Returns the sprite whose bounding box is nearest to a point, or null if 
+   * no bounding box is within maxDist of it. A point inside a bounding box 
+   * is at a distance of 0 from it.
+   */
+  public Sprite nearest(double x, double y, double maxDist) {
+    return nearest(x, y, maxDist, ~0);
+  }
+  
+  /**
+   * Returns the sprite whose category is in a mask and whose bounding box 
+   * is nearest to a point, or null if there is no such sprite within maxDist 
+   * of it. This is good for things like finding the closest enemy in range 
+   * of a turret.
+   */
+  public Sprite nearest(double x, double y, double maxDist, int mask) {
+    NearestSearch s = root.getSearch();
+    s.run(root, x, y, 1, maxDist, mask);
+    Sprite result = s.results.peek();
+    s.clear();
+    return result;
+  }
+  
+  /**
+   * Finds the k sprites whose categories are in a mask and whose bounding 
+   * boxes are nearest to a point, within maxDist of it, where k is the 
+   * length of out. They are stored at the start of out from nearest to 
+   * farthest, and the rest of out is filled with null. With a large enough 
+   * out, this is a radius query whose results are sorted by distance.
+   *
+   * The quadrants are searched best-first, in order of their distance from 
+   * the point, and the search stops once the nearest unsearched quadrant is 
+   * farther away than the kth nearest sprite found so far. This doesn't 
+   * allocate any objects once its scratch heaps have grown, but it isn't 
+   * safe to call from multiple threads at once. Use nearestBatch for that.
+   * @return  the number of sprites found.
+   */
+  public int nearest(double x, double y, double maxDist, int mask, Sprite[] out) {
+    NearestSearch s = root.getSearch();
+    s.run(root, x, y, out.length, maxDist, mask);
+    return s.drain(out, 0, out.length);
+  }
+  
+  /**
+   * Finds the k nearest sprites for each of count points, like 
+   * nearest(x, y, maxDist, mask, out). The results for point i are stored 
+   * in out from index i*k to i*k + k - 1, from nearest to farthest and 
+   * padded with null.
+   * @param parallel  If true, the points are split among tasks on the shared 
+   *                  WorkerPool, each with its own scratch heaps. The 
+   *                  quadtree must not be changed until this returns.
+   */
+  public void nearestBatch(double[] xs, double[] ys, int count, int k, double maxDist, int mask, Sprite[] out, boolean parallel) {
+    if(parallel && count >= PARALLEL_NEAREST_THRESHOLD)
+      WorkerPool.get().invoke(new NearestTask(root, xs, ys, 0, count, k, maxDist, mask, out));
+    else
+      root._nearestBatch(root.getSearch(), xs, ys, 0, count, k, maxDist, mask, out);
+  }
+  
+  /** Below this many points, a task of a parallel batch of nearest neighbor queries isn't split further. */
+  private static final int PARALLEL_NEAREST_THRESHOLD = 64;
+  
+  /** Answers the nearest neighbor queries of a range of points in a batch. */
+  private void _nearestBatch(NearestSearch s, double[] xs, double[] ys, int from, int to, int k, double maxDist, int mask, Sprite[] out) {
+    for(int i = from; i < to; i++) {
+      s.run(this, xs[i], ys[i], k, maxDist, mask);
+      s.drain(out, i*k, k);
+    }
+  }
+  
+  /** Returns the topmost quadtree's scratch heaps for nearest neighbor queries. */
+  private NearestSearch getSearch() {
+    if(search == null)
+      search = new NearestSearch();
+    return search;
+  }
+  
+  /** 
+   * The heaps for a best-first nearest neighbor search. The quadrants to 
+   * search are kept nearest first, and the sprites found are kept farthest 
+   * first, so the kth nearest distance found so far is on top.
+   */
+  private static class NearestSearch {
+    private DoubleHeap<QuadTree> nodes = new DoubleHeap<QuadTree>(false);
+    private DoubleHeap<Sprite> results = new DoubleHeap<Sprite>(true);
+    
+    /** 
+     * Searches for the k nearest sprites to a point, leaving them in results. 
+     * The distances in the heaps are squared. 
+     */
+    void run(QuadTree top, double x, double y, int k, double maxDist, int mask) {
+      clear();
+      if(k <= 0 || maxDist < 0)
+        return;
+      double bound = maxDist*maxDist;
+      
+      // Sprites in the topmost quadtree may stick out of it, so it is always searched.
+      nodes.push(0, top);
+      while(!nodes.isEmpty() && nodes.peekKey() <= bound) {
+        QuadTree q = nodes.pop();
+        if((q.subCategories & mask) == 0)
+          continue;
+        
+        double[] boxes = q.boxes;
+        int size = q.sprites.size();
+        for(int j = 0; j < size; j++) {
+          if((q.categories[j] & mask) == 0)
+            continue;
+          int b = j*4;
+          double d = boxDistSq(boxes[b], boxes[b+1], boxes[b+2], boxes[b+3], x, y);
+          if(d <= bound && results.offerBounded(d, q.sprites.get(j), k) && results.size() == k)
+            bound = results.peekKey();
+        }
+        
+        for(int i = 0; i < 4; i++) {
+          QuadTree sub = q.quadrants[i];
+          if(sub == null || (sub.subCategories & mask) == 0)
+            continue;
+          double d = boxDistSq(sub.minX, sub.minY, sub.maxX, sub.maxY, x, y);
+          if(d <= bound)
+            nodes.push(d, sub);
+        }
+      }
+      nodes.clear();
+    }
     
-    return _queryRec(s, bbox);
+    /** 
+     * Moves the results into out, from nearest to farthest, starting at an 
+     * offset, and fills the rest of the k slots there with null.
+     * @return  the number of sprites found.
+     */
+    int drain(Sprite[] out, int offset, int k) {
+      int n = results.size();
+      for(int i = n - 1; i >= 0; i--)
+        out[offset + i] = results.pop();
+      for(int i = n; i < k; i++)
+        out[offset + i] = null;
+      return n;
+    }
+    
+    /** Empties both heaps, so they don't hold on to any sprites or quadrants. */
+    void clear() {
+      nodes.clear();
+      results.clear();
+    }
   }
   
-  /** Recursively queries for a sprite's collision neighbors in the quadtree. */
-  private List<Sprite> _queryRec(Sprite s, Rectangle2D bbox) {    
-    // query inside any quadrants intersecting bbox.
+  /** A task for answering a range of a batch of nearest neighbor queries in parallel. */
+  private static class NearestTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    private QuadTree top;
+    private double[] xs;
+    private double[] ys;
+    private int from;
+    private int to;
+    private int k;
+    private double maxDist;
+    private int mask;
+    private Sprite[] out;
+    
+    NearestTask(QuadTree top, double[] xs, double[] ys, int from, int to, int k, double maxDist, int mask, Sprite[] out) {
+      this.top = top;
+      this.xs = xs;
+      this.ys = ys;
+      this.from = from;
+      this.to = to;
+      this.k = k;
+      this.maxDist = maxDist;
+      this.mask = mask;
+      this.out = out;
+    }
+    
+    protected void compute() {
+      if(to - from <= PARALLEL_NEAREST_THRESHOLD) {
+        top._nearestBatch(new NearestSearch(), xs, ys, from, to, k, maxDist, mask, out);
+        return;
+      }
+      
+      // Each task writes only its own range of out.
+      int mid = (from + to) >>> 1;
+      ForkJoinTask.invokeAll(
+        new NearestTask(top, xs, ys, from, mid, k, maxDist, mask, out),
+        new NearestTask(top, xs, ys, mid, to, k, maxDist, mask, out));
+    }
+  }
+  
+  
+  //////// Broadphase pairs
+  
+  /** 
+   * Visits every pair of sprites in the quadtree whose bounding boxes 
+   * overlap, exactly once each. This walks the quadtree once, testing the 
+   * sprites of each quadrant against each other and against the sprites of 
+   * the quadrant's ancestors.
+   */
+  public void forEachPotentialPair(SpritePairVisitor visitor) {
+    forEachPotentialPair(visitor, false);
+  }
+  
+  /** 
+   * Visits every pair of sprites in the quadtree whose bounding boxes 
+   * overlap, exactly once each. 
+   * @param visitor   The callback for the pairs. If parallel is true, this 
+   *                  must be safe to call from multiple threads at once.
+   * @param parallel  If true, disjoint subtrees are processed in parallel on 
+   *                  the shared WorkerPool.
+   */
+  public void forEachPotentialPair(SpritePairVisitor visitor, boolean parallel) {
+    QuadTree[] path = new QuadTree[root.maxDepth - root.depth + 1];
+    if(parallel && root.count >= PARALLEL_PAIRS_THRESHOLD)
+      WorkerPool.get().invoke(new PairTask(root, path, 0, 0, 0, visitor));
+    else
+      root._pairsRec(path, 0, 0, 0, visitor);
+  }
+  
+  /** Below this many sprites, parallel pair enumeration isn't worth its overhead. */
+  private static final int PARALLEL_PAIRS_THRESHOLD = 256;
+  
+  /** Subtrees at most this deep are forked as separate tasks for parallel pair enumeration. */
+  private static final int PARALLEL_PAIRS_FORK_DEPTH = 2;
+  
+  /** 
+   * Visits the pairs within this quadrant and between this quadrant and its 
+   * ancestors, then recurses into its subquadrants.
+   * @param path            The ancestors of this quadrant from the top down.
+   * @param pathLen         The number of ancestors in path.
+   * @param pathCategories  The union of the categories of the ancestors' sprites.
+   * @param pathMasks       The union of the masks of the ancestors' sprites.
+   */
+  private void _pairsRec(QuadTree[] path, int pathLen, int pathCategories, int pathMasks, SpritePairVisitor visitor) {
+    _pairsHere(path, pathLen, visitor);
+    
+    path[pathLen] = this;
+    int cats = pathCategories | ownCategories;
+    int msks = pathMasks | ownMasks;
     for(int i = 0; i < 4; i++) {
-      if(quadrants[i] != null && quadIntersects(bbox, i)) {
+      if(quadrants[i] != null && quadrants[i].mayHavePairs(cats, msks))
+        quadrants[i]._pairsRec(path, pathLen + 1, cats, msks, visitor);
+    }
+    path[pathLen] = null;
+  }
+  
+  /** 
+   * Returns false if the filters of the sprites in this subtree rule out any 
+   * pairs among them or with sprites of the given category and mask unions. 
+   */
+  private boolean mayHavePairs(int pathCategories, int pathMasks) {
+    return (subCategories & subMasks) != 0 || ((subCategories & pathMasks) != 0 && (subMasks & pathCategories) != 0);
+  }
+  
+  /** Visits the pairs within this quadrant and between this quadrant and its ancestors. */
+  private void _pairsHere(QuadTree[] path, int pathLen, SpritePairVisitor visitor) {
+    int size = sprites.size();
+    for(int j = 0; j < size; j++) {
+      int b = j*4;
+      double x0 = boxes[b];
+      double y0 = boxes[b+1];
+      double x1 = boxes[b+2];
+      double y1 = boxes[b+3];
+      int category = categories[j];
+      int mask = masks[j];
+      Sprite s = sprites.get(j);
+      
+      // pairs within this quadrant.
+      for(int k = j+1; k < size; k++) {
+        int c = k*4;
+        if((categories[k] & mask) == 0 || (masks[k] & category) == 0)
+          continue;
+        if(x0 > boxes[c+2] || y0 > boxes[c+3] || x1 < boxes[c] || y1 < boxes[c+1])
+          continue;
+        visitor.visit(s, sprites.get(k));
+      }
+      
+      // pairs with the ancestors' sprites.
+      for(int a = 0; a < pathLen; a++) {
+        QuadTree anc = path[a];
+        if((anc.ownCategories & mask) == 0 || (anc.ownMasks & category) == 0)
+          continue;
         
-        List<Sprite> result = quadrants[i]._queryRec(s,bbox);
-        result.addAll(sprites);
-        return result;
+        double[] ancBoxes = anc.boxes;
+        int[] ancCategories = anc.categories;
+        int[] ancMasks = anc.masks;
+        int ancSize = anc.sprites.size();
+        for(int k = 0; k < ancSize; k++) {
+          int c = k*4;
+          if((ancCategories[k] & mask) == 0 || (ancMasks[k] & category) == 0)
+            continue;
+          if(x0 > ancBoxes[c+2] || y0 > ancBoxes[c+3] || x1 < ancBoxes[c] || y1 < ancBoxes[c+1])
+            continue;
+          visitor.visit(anc.sprites.get(k), s);
+        }
       }
     }
+  }
+  
+  /** A task for enumerating the pairs of a subtree in parallel. */
+  private static class PairTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    private QuadTree node;
+    private QuadTree[] path;
+    private int pathLen;
+    private int pathCategories;
+    private int pathMasks;
+    private SpritePairVisitor visitor;
+    
+    PairTask(QuadTree node, QuadTree[] path, int pathLen, int pathCategories, int pathMasks, SpritePairVisitor visitor) {
+      this.node = node;
+      this.path = path;
+      this.pathLen = pathLen;
+      this.pathCategories = pathCategories;
+      this.pathMasks = pathMasks;
+      this.visitor = visitor;
+    }
     
-    // It fit in none of the quadrants, so return this quadtree's sprite list.
-    return (List<Sprite>) sprites.clone();
+    protected void compute() {
+      if(pathLen >= PARALLEL_PAIRS_FORK_DEPTH) {
+        node._pairsRec(path, pathLen, pathCategories, pathMasks, visitor);
+        return;
+      }
+      
+      node._pairsHere(path, pathLen, visitor);
+      
+      // The subquadrants only read the shared ancestors, so each gets its own copy of the path to extend.
+      int cats = pathCategories | node.ownCategories;
+      int msks = pathMasks | node.ownMasks;
+      List<PairTask> tasks = new ArrayList<PairTask>(4);
+      for(int i = 0; i < 4; i++) {
+        QuadTree q = node.quadrants[i];
+        if(q != null && q.count > 0 && q.mayHavePairs(cats, msks)) {
+          QuadTree[] subPath = path.clone();
+          subPath[pathLen] = node;
+          tasks.add(new PairTask(q, subPath, pathLen + 1, cats, msks, visitor));
+        }
+      }
+      ForkJoinTask.invokeAll(tasks);
+    }
   }
   
   
+  //////// Quadrant geometry
   
   /** Returns true iff bbox is intersecting quadrant i. */
   public boolean quadIntersects(Rectangle2D bbox, int i) {
@@ -179,6 +1383,35 @@ public class QuadTree {
     return !(bbox.getX() > maxX || bbox.getY() > maxY || bbox.getX() + bbox.getWidth() < minX || bbox.getY() + bbox.getHeight() < minY);
   }
   
+  /** 
+   * Returns the index of the quadrant a box is placed in, or -1 if it stays 
+   * in this quadrant. Boxes touching the center lines stay in this quadrant, 
+   * so that sprites in sibling quadrants can never overlap each other.
+   */
+  private int quadIndexContaining(double x0, double y0, double x1, double y1) {
+    if(x0 < minX || y0 < minY || x1 > maxX || y1 > maxY)
+      return -1;
+    
+    int i;
+    if(x1 < midX)
+      i = 0;
+    else if(x0 > midX)
+      i = 1;
+    else
+      return -1;
+    
+    if(y0 > midY)
+      i += 2;
+    else if(y1 >= midY)
+      return -1;
+    return i;
+  }
+  
+  /** Returns true iff a box would be placed in this quadrant by its parent. */
+  private boolean holds(double x0, double y0, double x1, double y1) {
+    return (parent == null || parent.quadIndexContaining(x0, y0, x1, y1) == quadIndex);
+  }
+  
   /** Returns true iff bbox is completely contained by quadrant i. */
   public boolean quadContains(Rectangle2D bbox, int i) {
     double minX = qMinXs[i];
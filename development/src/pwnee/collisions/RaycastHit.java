@@ -0,0 +1,138 @@
+package pwnee.collisions;
+
+import pwnee.sprites.Sprite;
+
+/**
+ * The result of a raycast through a broadphase. A single RaycastHit can be
+ * reused for every raycast, so casting rays doesn't allocate any objects.
+ * It also holds the ray-box math shared by the broadphases' raycasts.
+ */
+public class RaycastHit {
+
+  /** The sprite that was hit, or null if nothing was hit. */
+  public Sprite sprite = null;
+
+  /** How far along the ray the hit is, from 0 at its start to 1 at its end. */
+  public double fraction = 1;
+
+  /** The x position of the hit. */
+  public double x;
+
+  /** The y position of the hit. */
+  public double y;
+
+  /**
+   * The x component of the unit normal of the bounding box side that was
+   * hit. The normal is (0, 0) if the ray started inside the bounding box.
+   */
+  public double normalX;
+
+  /** The y component of the unit normal of the bounding box side that was hit. */
+  public double normalY;
+
+
+  /** Sets this to hit nothing. */
+  public void reset() {
+    sprite = null;
+    fraction = 1;
+    x = 0;
+    y = 0;
+    normalX = 0;
+    normalY = 0;
+  }
+
+  /** Sets all the properties of the hit. */
+  public void set(Sprite sprite, double fraction, double x, double y, double normalX, double normalY) {
+    this.sprite = sprite;
+    this.fraction = fraction;
+    this.x = x;
+    this.y = y;
+    this.normalX = normalX;
+    this.normalY = normalY;
+  }
+
+  /** Returns true iff the ray hit a sprite. */
+  public boolean isHit() {
+    return sprite != null;
+  }
+
+
+  /**
+   * Sets this to a hit on a sprite's bounding box, stored as minX, minY,
+   * maxX, maxY at index b of boxes, at fraction t along the ray from
+   * (x0, y0) along (dx, dy). The normal is of the side the ray entered
+   * through, or (0, 0) if the ray started inside the box.
+   */
+  void setBoxHit(Sprite sprite, double[] boxes, int b, double t, double x0, double y0, double dx, double dy) {
+    double nx = 0;
+    double ny = 0;
+    if(t > 0) {
+      double tx = (dx == 0) ? Double.NEGATIVE_INFINITY : (((dx > 0) ? boxes[b] : boxes[b+2]) - x0)/dx;
+      double ty = (dy == 0) ? Double.NEGATIVE_INFINITY : (((dy > 0) ? boxes[b+1] : boxes[b+3]) - y0)/dy;
+      if(tx >= ty)
+        nx = (dx > 0) ? -1 : 1;
+      else
+        ny = (dy > 0) ? -1 : 1;
+    }
+    set(sprite, t, x0 + dx*t, y0 + dy*t, nx, ny);
+  }
+
+  /**
+   * Returns the fraction along the ray from (x0, y0) along (dx, dy) at which
+   * it enters a box stored as minX, minY, maxX, maxY at index b of boxes.
+   * Returns 0 if the ray starts inside the box, or -1 if it misses the box
+   * before maxFraction.
+   */
+  static double boxFraction(double[] boxes, int b, double x0, double y0, double dx, double dy, double maxFraction) {
+    return boxFraction(boxes[b], boxes[b+1], boxes[b+2], boxes[b+3], x0, y0, dx, dy, maxFraction);
+  }
+
+  /**
+   * Returns the fraction along the ray from (x0, y0) along (dx, dy) at which
+   * it enters the box from (minX, minY) to (maxX, maxY). Returns 0 if the ray
+   * starts inside the box, or -1 if it misses the box before maxFraction.
+   */
+  static double boxFraction(double minX, double minY, double maxX, double maxY, double x0, double y0, double dx, double dy, double maxFraction) {
+    double tMin = 0;
+    double tMax = maxFraction;
+
+    if(dx == 0) {
+      if(x0 < minX || x0 > maxX)
+        return -1;
+    }
+    else {
+      double inv = 1.0/dx;
+      double t0 = (minX - x0)*inv;
+      double t1 = (maxX - x0)*inv;
+      if(t0 > t1) {
+        double t = t0;
+        t0 = t1;
+        t1 = t;
+      }
+      tMin = Math.max(tMin, t0);
+      tMax = Math.min(tMax, t1);
+      if(tMin > tMax)
+        return -1;
+    }
+
+    if(dy == 0) {
+      if(y0 < minY || y0 > maxY)
+        return -1;
+    }
+    else {
+      double inv = 1.0/dy;
+      double t0 = (minY - y0)*inv;
+      double t1 = (maxY - y0)*inv;
+      if(t0 > t1) {
+        double t = t0;
+        t0 = t1;
+        t1 = t;
+      }
+      tMin = Math.max(tMin, t0);
+      tMax = Math.min(tMax, t1);
+      if(tMin > tMax)
+        return -1;
+    }
+    return tMin;
+  }
+}
@@ -0,0 +1,823 @@
+package pwnee.collisions;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import pwnee.sprites.Sprite;
+import pwnee.util.WorkerPool;
+
+/**
+ * A broadphase that divides the world into a uniform grid of square cells.
+ * It is faster than a QuadTree for dense scenes full of similarly sized
+ * sprites, but sprites much larger than a cell are stored in every cell they
+ * cover, so the cell size should be about the size of a typical sprite.
+ * The grid is unbounded: cells are hashed into a table of buckets, so
+ * sprites can be anywhere in the world.
+ *
+ * Inserting, updating, and removing sprites only records their bounding
+ * boxes. The buckets are rebuilt from scratch the next time the grid is
+ * queried, with a counting sort into flat int arrays. This takes O(n) time,
+ * so moving every sprite each frame costs no more than moving one of them.
+ *
+ * Each bucket keeps the union of the categories and masks of its entries,
+ * so queries and pair enumeration skip buckets whose sprites can't collide
+ * with what is being looked for.
+ *
+ * Queries don't allocate any objects besides what the output collection
+ * needs, and each sprite is found at most once per query. Rebuilding isn't
+ * thread-safe, so queries shouldn't be made from multiple threads at once
+ * unless rebuild() has been called since the last change.
+ */
+public class SpatialHashGrid implements Broadphase {
+
+  /** The width and height of each cell. */
+  private double cellSize;
+
+  /** The reciprocal of cellSize. */
+  private double invCellSize;
+
+  /** The sprites in the grid. */
+  private ArrayList<Sprite> sprites = new ArrayList<Sprite>();
+
+  /** The bounding boxes of the sprites, stored as minX, minY, maxX, maxY for each index of sprites. */
+  private double[] boxes = new double[64];
+
+  /** The categories of the sprites, for each index of sprites. */
+  private int[] categories = new int[16];
+
+  /** The collision masks of the sprites, for each index of sprites. */
+  private int[] masks = new int[16];
+
+  /** Maps each sprite in the grid to its index in sprites. */
+  private IdentityHashMap<Sprite, Integer> indices = new IdentityHashMap<Sprite, Integer>();
+
+  /** Whether the buckets are out of date with the boxes. */
+  private boolean isDirty = true;
+
+  /** The number of buckets, which is always a power of 2. */
+  private int bucketCount = 0;
+
+  /**
+   * The start of each bucket's entries in the entry arrays. Bucket h's
+   * entries are at indices bucketStart[h] through bucketStart[h+1]-1.
+   */
+  private int[] bucketStart = new int[1];
+
+  /** The next free entry index of each bucket while the buckets are being filled. */
+  private int[] bucketFill = new int[0];
+
+  /** The union of the categories of each bucket's entries. */
+  private int[] bucketCategories = new int[0];
+
+  /** The union of the masks of each bucket's entries. */
+  private int[] bucketMasks = new int[0];
+
+  /** The number of entries in the buckets. */
+  private int entryCount = 0;
+
+  /** The index of the sprite for each entry. */
+  private int[] entrySprite = new int[0];
+
+  /** The column of the cell for each entry, since several cells can hash to the same bucket. */
+  private int[] entryCellX = new int[0];
+
+  /** The row of the cell for each entry. */
+  private int[] entryCellY = new int[0];
+
+
+  /** Creates a grid with square cells of the given size. */
+  public SpatialHashGrid(double cellSize) {
+    setCellSize(cellSize);
+  }
+
+  /** Returns the width and height of the grid's cells. */
+  public double getCellSize() {
+    return cellSize;
+  }
+
+  /** Sets the width and height of the grid's cells. */
+  public void setCellSize(double cellSize) {
+    if(!(cellSize > 0))
+      throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+    this.cellSize = cellSize;
+    this.invCellSize = 1.0/cellSize;
+    isDirty = true;
+  }
+
+  /** Returns the number of sprites in the grid. */
+  public int size() {
+    return sprites.size();
+  }
+
+  /** Returns true iff a sprite is currently in the grid. */
+  public boolean containsSprite(Sprite s) {
+    return indices.containsKey(s);
+  }
+
+
+  //////// Insertion/removal
+
+  /**
+   * Inserts a sprite into the grid with the default category and mask. If
+   * the sprite is already in the grid, it is updated instead and keeps its
+   * filter.
+   */
+  public boolean insert(Sprite s) {
+    if(indices.containsKey(s))
+      return update(s);
+    return _insertNew(s, DEFAULT_CATEGORY, DEFAULT_MASK);
+  }
+
+  /**
+   * Inserts a sprite into the grid with a category and the mask of
+   * categories it collides with. If the sprite is already in the grid, its
+   * filter is changed and it is updated instead.
+   */
+  public boolean insert(Sprite s, int category, int mask) {
+    if(indices.containsKey(s)) {
+      setFilter(s, category, mask);
+      return update(s);
+    }
+    return _insertNew(s, category, mask);
+  }
+
+  /** Inserts a sprite that isn't in the grid yet. */
+  private boolean _insertNew(Sprite s, int category, int mask) {
+    checkCategory(category);
+
+    // Do not insert sprites that are marked as destroyed.
+    if(s.isDestroyed())
+      return false;
+
+    int j = sprites.size();
+    sprites.add(s);
+    indices.put(s, j);
+    if(boxes.length < (j+1)*4) {
+      double[] newBoxes = new double[boxes.length*2];
+      System.arraycopy(boxes, 0, newBoxes, 0, j*4);
+      boxes = newBoxes;
+
+      int[] newCategories = new int[j*2];
+      System.arraycopy(categories, 0, newCategories, 0, j);
+      categories = newCategories;
+
+      int[] newMasks = new int[j*2];
+      System.arraycopy(masks, 0, newMasks, 0, j);
+      masks = newMasks;
+    }
+    categories[j] = category;
+    masks[j] = mask;
+    setBox(j, s.getCollisionBox());
+    return true;
+  }
+
+  /**
+   * Updates the bounding box of a sprite in the grid after it has moved or
+   * resized. Sprites that aren't in the grid yet are inserted. Sprites that
+   * have been destroyed are removed.
+   * @return  true iff the sprite is in the grid afterwards.
+   */
+  public boolean update(Sprite s) {
+    Integer j = indices.get(s);
+    if(j == null)
+      return insert(s);
+
+    if(s.isDestroyed()) {
+      remove(s);
+      return false;
+    }
+
+    setBox(j, s.getCollisionBox());
+    return true;
+  }
+
+  /**
+   * Removes a sprite from the grid.
+   * @return  true iff the sprite was in the grid.
+   */
+  public boolean remove(Sprite s) {
+    Integer index = indices.remove(s);
+    if(index == null)
+      return false;
+
+    // The order of the sprites doesn't matter, so the last sprite takes the removed one's place.
+    int j = index;
+    int last = sprites.size() - 1;
+    Sprite moved = sprites.remove(last);
+    if(j != last) {
+      sprites.set(j, moved);
+      System.arraycopy(boxes, last*4, boxes, j*4, 4);
+      categories[j] = categories[last];
+      masks[j] = masks[last];
+      indices.put(moved, j);
+    }
+    isDirty = true;
+    return true;
+  }
+
+  /** Removes all sprites from the grid. */
+  public void clear() {
+    sprites.clear();
+    indices.clear();
+    isDirty = true;
+  }
+
+  /** Stores the bounding box of the sprite at index j. */
+  private void setBox(int j, Rectangle2D bbox) {
+    int b = j*4;
+    boxes[b] = bbox.getX();
+    boxes[b+1] = bbox.getY();
+    boxes[b+2] = bbox.getX() + bbox.getWidth();
+    boxes[b+3] = bbox.getY() + bbox.getHeight();
+    isDirty = true;
+  }
+
+
+  //////// Filters
+
+  /**
+   * Changes the category of a sprite and the mask of categories it collides with.
+   * @return  true iff the sprite is in the grid.
+   */
+  public boolean setFilter(Sprite s, int category, int mask) {
+    checkCategory(category);
+    Integer j = indices.get(s);
+    if(j == null)
+      return false;
+
+    categories[j] = category;
+    masks[j] = mask;
+    isDirty = true;
+    return true;
+  }
+
+  /** Returns the category of a sprite, or 0 if it isn't in the grid. */
+  public int getCategory(Sprite s) {
+    Integer j = indices.get(s);
+    return (j == null) ? 0 : categories[j];
+  }
+
+  /** Returns the mask of categories a sprite collides with, or 0 if it isn't in the grid. */
+  public int getMask(Sprite s) {
+    Integer j = indices.get(s);
+    return (j == null) ? 0 : masks[j];
+  }
+
+  /** Sprites must belong to at least one category, or nothing could ever collide with them. */
+  private static void checkCategory(int category) {
+    if(category == 0)
+      throw new IllegalArgumentException("A sprite's category must have at least one bit set.");
+  }
+
+  /**
+   * Returns true iff sprites with the given categories and masks can't be
+   * found by a query for the categories in mask by a sprite of the given
+   * category. A category of 0 doesn't check the masks.
+   */
+  private static boolean rejectsFilter(int categories, int masks, int mask, int category) {
+    return (categories & mask) == 0 || (category != 0 && (masks & category) == 0);
+  }
+
+
+  //////// Buckets
+
+  /** Returns the column or row of the cell containing a coordinate. */
+  private int cellOf(double v) {
+    return (int) Math.floor(v*invCellSize);
+  }
+
+  /** Returns the bucket that a cell hashes to. */
+  private int bucketOf(int cx, int cy) {
+    int h = cx*73856093 ^ cy*19349663;
+    h ^= (h >>> 16);
+    return h & (bucketCount - 1);
+  }
+
+  /**
+   * Rebuilds the buckets from the sprites' stored bounding boxes if any
+   * sprites have changed since they were last built. This happens
+   * automatically before a query.
+   */
+  public void rebuild() {
+    if(!isDirty)
+      return;
+
+    int n = sprites.size();
+
+    // Count the entries, so that the bucket table can be sized for them.
+    int total = 0;
+    for(int j = 0; j < n; j++) {
+      int b = j*4;
+      total += (cellOf(boxes[b+2]) - cellOf(boxes[b]) + 1)*(cellOf(boxes[b+3]) - cellOf(boxes[b+1]) + 1);
+    }
+    entryCount = total;
+
+    if(entrySprite.length < total) {
+      int capacity = Math.max(total, entrySprite.length*2);
+      entrySprite = new int[capacity];
+      entryCellX = new int[capacity];
+      entryCellY = new int[capacity];
+    }
+
+    int buckets = 16;
+    while(buckets < total*2)
+      buckets <<= 1;
+    if(buckets != bucketCount) {
+      bucketCount = buckets;
+      bucketStart = new int[buckets + 1];
+      bucketFill = new int[buckets];
+      bucketCategories = new int[buckets];
+      bucketMasks = new int[buckets];
+    }
+    else {
+      for(int h = 0; h <= buckets; h++)
+        bucketStart[h] = 0;
+      for(int h = 0; h < buckets; h++) {
+        bucketCategories[h] = 0;
+        bucketMasks[h] = 0;
+      }
+    }
+
+    // Count the entries in each bucket and gather their filters.
+    for(int j = 0; j < n; j++) {
+      int b = j*4;
+      int cx0 = cellOf(boxes[b]);
+      int cy0 = cellOf(boxes[b+1]);
+      int cx1 = cellOf(boxes[b+2]);
+      int cy1 = cellOf(boxes[b+3]);
+      int category = categories[j];
+      int mask = masks[j];
+      for(int cy = cy0; cy <= cy1; cy++) {
+        for(int cx = cx0; cx <= cx1; cx++) {
+          int h = bucketOf(cx, cy);
+          bucketStart[h + 1]++;
+          bucketCategories[h] |= category;
+          bucketMasks[h] |= mask;
+        }
+      }
+    }
+
+    // Turn the counts into starting indices.
+    for(int h = 0; h < buckets; h++) {
+      bucketStart[h+1] += bucketStart[h];
+      bucketFill[h] = bucketStart[h];
+    }
+
+    // Place the entries into their buckets.
+    for(int j = 0; j < n; j++) {
+      int b = j*4;
+      int cx0 = cellOf(boxes[b]);
+      int cy0 = cellOf(boxes[b+1]);
+      int cx1 = cellOf(boxes[b+2]);
+      int cy1 = cellOf(boxes[b+3]);
+      for(int cy = cy0; cy <= cy1; cy++) {
+        for(int cx = cx0; cx <= cx1; cx++) {
+          int e = bucketFill[bucketOf(cx, cy)]++;
+          entrySprite[e] = j;
+          entryCellX[e] = cx;
+          entryCellY[e] = cy;
+        }
+      }
+    }
+
+    isDirty = false;
+  }
+
+
+  //////// Queries
+
+  /**
+   * Queries for a sprite inside the grid and returns a new list of the
+   * sprites whose bounding boxes overlap its bounding box, including itself
+   * if it is in the grid.
+   */
+  public List<Sprite> query(Sprite s) {
+    List<Sprite> result = new ArrayList<Sprite>();
+    query(s, result);
+    return result;
+  }
+
+  /**
+   * Queries for a sprite inside the grid and adds the sprites whose
+   * bounding boxes overlap its bounding box to out.
+   */
+  public void query(Sprite s, Collection<? super Sprite> out) {
+    _querySprite(s, out, null);
+  }
+
+  /**
+   * Queries for a sprite inside the grid and visits the sprites whose
+   * bounding boxes overlap its bounding box.
+   */
+  public void query(Sprite s, SpriteVisitor visitor) {
+    _querySprite(s, null, visitor);
+  }
+
+  /** Adds the sprites whose bounding boxes overlap a rectangular area to out. */
+  public void query(double x, double y, double w, double h, Collection<? super Sprite> out) {
+    _queryRect(x, y, x + w, y + h, 0, 0, -1, ~0, 0, out, null);
+  }
+
+  /** Visits the sprites whose bounding boxes overlap a rectangular area. */
+  public void query(double x, double y, double w, double h, SpriteVisitor visitor) {
+    _queryRect(x, y, x + w, y + h, 0, 0, -1, ~0, 0, null, visitor);
+  }
+
+  /**
+   * Visits the sprites whose bounding boxes overlap a rectangular area and
+   * whose categories are in a mask. Buckets without any of those categories
+   * are skipped.
+   */
+  public void query(double x, double y, double w, double h, int mask, SpriteVisitor visitor) {
+    _queryRect(x, y, x + w, y + h, 0, 0, -1, mask, 0, null, visitor);
+  }
+
+  /** Adds the sprites whose bounding boxes contain a point to out. */
+  public void queryPoint(double x, double y, Collection<? super Sprite> out) {
+    _queryRect(x, y, x, y, 0, 0, -1, ~0, 0, out, null);
+  }
+
+  /** Visits the sprites whose bounding boxes contain a point. */
+  public void queryPoint(double x, double y, SpriteVisitor visitor) {
+    _queryRect(x, y, x, y, 0, 0, -1, ~0, 0, null, visitor);
+  }
+
+  /** Adds the sprites whose bounding boxes overlap a circle to out. */
+  public void queryCircle(double cx, double cy, double r, Collection<? super Sprite> out) {
+    _queryRect(cx - r, cy - r, cx + r, cy + r, cx, cy, r, ~0, 0, out, null);
+  }
+
+  /** Visits the sprites whose bounding boxes overlap a circle. */
+  public void queryCircle(double cx, double cy, double r, SpriteVisitor visitor) {
+    _queryRect(cx - r, cy - r, cx + r, cy + r, cx, cy, r, ~0, 0, null, visitor);
+  }
+
+  /**
+   * Queries with a sprite's bounding box, unless the sprite is destroyed.
+   * If the sprite is in the grid, only the sprites its filter collides with are found.
+   */
+  private void _querySprite(Sprite s, Collection<? super Sprite> out, SpriteVisitor visitor) {
+    // Do not query sprites that are marked as destroyed.
+    if(s.isDestroyed())
+      return;
+
+    int mask = ~0;
+    int category = 0;
+    Integer j = indices.get(s);
+    if(j != null) {
+      mask = masks[j];
+      category = categories[j];
+    }
+
+    Rectangle2D bbox = s.getCollisionBox();
+    double x0 = bbox.getX();
+    double y0 = bbox.getY();
+    _queryRect(x0, y0, x0 + bbox.getWidth(), y0 + bbox.getHeight(), 0, 0, -1, mask, category, out, visitor);
+  }
+
+  /**
+   * Finds the sprites overlapping a rectangle, and also a circle if r isn't
+   * negative. A sprite covering several of the rectangle's cells is only
+   * found in the cell containing the top-left corner of its overlap with
+   * the rectangle. Only the sprites whose categories are in mask are found,
+   * and if category isn't 0, only those whose masks include it.
+   */
+  private void _queryRect(double x0, double y0, double x1, double y1, double cx, double cy, double r, int mask, int category, Collection<? super Sprite> out, SpriteVisitor visitor) {
+    rebuild();
+    double rSq = r*r;
+
+    // If the rectangle covers more cells than there are sprites, it's faster to test every sprite.
+    int cx0 = cellOf(x0);
+    int cy0 = cellOf(y0);
+    int cx1 = cellOf(x1);
+    int cy1 = cellOf(y1);
+    int n = sprites.size();
+    if(((long) cx1 - cx0 + 1)*((long) cy1 - cy0 + 1) > n) {
+      for(int j = 0; j < n; j++) {
+        int b = j*4;
+        if(rejectsFilter(categories[j], masks[j], mask, category))
+          continue;
+        if(x0 > boxes[b+2] || y0 > boxes[b+3] || x1 < boxes[b] || y1 < boxes[b+1])
+          continue;
+        if(r >= 0 && boxDistSq(boxes[b], boxes[b+1], boxes[b+2], boxes[b+3], cx, cy) > rSq)
+          continue;
+        if(!emit(sprites.get(j), out, visitor))
+          return;
+      }
+      return;
+    }
+
+    for(int y = cy0; y <= cy1; y++) {
+      for(int x = cx0; x <= cx1; x++) {
+        int h = bucketOf(x, y);
+        if(rejectsFilter(bucketCategories[h], bucketMasks[h], mask, category))
+          continue;
+
+        int end = bucketStart[h+1];
+        for(int e = bucketStart[h]; e < end; e++) {
+          if(entryCellX[e] != x || entryCellY[e] != y)
+            continue;
+          int j = entrySprite[e];
+          if(rejectsFilter(categories[j], masks[j], mask, category))
+            continue;
+          int b = j*4;
+          if(x0 > boxes[b+2] || y0 > boxes[b+3] || x1 < boxes[b] || y1 < boxes[b+1])
+            continue;
+          if(cellOf(Math.max(x0, boxes[b])) != x || cellOf(Math.max(y0, boxes[b+1])) != y)
+            continue;
+          if(r >= 0 && boxDistSq(boxes[b], boxes[b+1], boxes[b+2], boxes[b+3], cx, cy) > rSq)
+            continue;
+          if(!emit(sprites.get(entrySprite[e]), out, visitor))
+            return;
+        }
+      }
+    }
+  }
+
+  /** Passes a found sprite to either the output collection or the visitor. */
+  private static boolean emit(Sprite s, Collection<? super Sprite> out, SpriteVisitor visitor) {
+    if(visitor != null)
+      return visitor.visit(s);
+    out.add(s);
+    return true;
+  }
+
+  /** Returns the squared distance from a point to the nearest point of a box. */
+  private static double boxDistSq(double x0, double y0, double x1, double y1, double px, double py) {
+    double dx = 0;
+    if(px < x0)
+      dx = x0 - px;
+    else if(px > x1)
+      dx = px - x1;
+
+    double dy = 0;
+    if(py < y0)
+      dy = y0 - py;
+    else if(py > y1)
+      dy = py - y1;
+
+    return dx*dx + dy*dy;
+  }
+
+
+  //////// Raycasting
+
+  /**
+   * Casts a ray from (x0, y0) to (x1, y1) and finds the first sprite whose
+   * bounding box it hits. The cells along the ray are walked in order, and
+   * the walk stops once the closest hit is before the next cell.
+   * @param hit   Set to the closest hit, or reset if nothing was hit.
+   * @return  true iff a sprite was hit.
+   */
+  public boolean raycast(double x0, double y0, double x1, double y1, RaycastHit hit) {
+    return _raycast(x0, y0, x1 - x0, y1 - y0, ~0, null, null, false, hit);
+  }
+
+  /**
+   * Casts a ray from (ox, oy) in the direction (dirX, dirY), up to a finite
+   * distance of maxDist, and finds the first sprite whose bounding box it
+   * hits. The hit's fraction times maxDist is the distance to the hit.
+   * @param hit   Set to the closest hit, or reset if nothing was hit.
+   * @return  true iff a sprite was hit.
+   */
+  public boolean raycast(double ox, double oy, double dirX, double dirY, double maxDist, RaycastHit hit) {
+    return raycast(ox, oy, dirX, dirY, maxDist, ~0, hit);
+  }
+
+  /**
+   * Casts a ray like raycast(ox, oy, dirX, dirY, maxDist, hit), only hitting
+   * the sprites whose categories are in a mask.
+   */
+  public boolean raycast(double ox, double oy, double dirX, double dirY, double maxDist, int mask, RaycastHit hit) {
+    double len = Math.sqrt(dirX*dirX + dirY*dirY);
+    if(len == 0) {
+      hit.reset();
+      return false;
+    }
+    double scale = maxDist/len;
+    return _raycast(ox, oy, dirX*scale, dirY*scale, mask, null, null, false, hit);
+  }
+
+  /**
+   * Returns true iff no sprite whose category is in a mask has a bounding
+   * box touching the segment from (x0, y0) to (x1, y1). This stops at the
+   * first blocking sprite found instead of looking for the closest one.
+   */
+  public boolean lineOfSight(double x0, double y0, double x1, double y1, int mask) {
+    return !_raycast(x0, y0, x1 - x0, y1 - y0, mask, null, null, true, null);
+  }
+
+  /**
+   * Returns true iff no other sprite blocks the segment between the centers
+   * of two sprites' bounding boxes. The two sprites themselves are ignored.
+   * If a is in the grid, only the sprites it collides with block it.
+   */
+  public boolean lineOfSight(Sprite a, Sprite b) {
+    Rectangle2D boxA = a.getCollisionBox();
+    Rectangle2D boxB = b.getCollisionBox();
+    double x0 = boxA.getCenterX();
+    double y0 = boxA.getCenterY();
+    int mask = containsSprite(a) ? getMask(a) : ~0;
+    return !_raycast(x0, y0, boxB.getCenterX() - x0, boxB.getCenterY() - y0, mask, a, b, true, null);
+  }
+
+  /**
+   * Casts a ray from (x0, y0) along (dx, dy), walking the cells it passes
+   * through with a digital differential analyzer. Long rays crossing more
+   * cells than there are sprites test every sprite instead.
+   * @param mask      The categories of the sprites that can be hit.
+   * @param ignore1   A sprite that can't be hit, or null.
+   * @param ignore2   Another sprite that can't be hit, or null.
+   * @param anyHit    If true, this stops at the first hit found instead of the closest one.
+   * @param hit       Set to the hit found, if it isn't null.
+   * @return  true iff a sprite was hit.
+   */
+  private boolean _raycast(double x0, double y0, double dx, double dy, int mask, Sprite ignore1, Sprite ignore2, boolean anyHit, RaycastHit hit) {
+    rebuild();
+    if(hit != null)
+      hit.reset();
+    double best = Double.POSITIVE_INFINITY;
+
+    int cx = cellOf(x0);
+    int cy = cellOf(y0);
+    int endX = cellOf(x0 + dx);
+    int endY = cellOf(y0 + dy);
+    long cells = Math.abs((long) endX - cx) + Math.abs((long) endY - cy) + 1;
+    int n = sprites.size();
+    if(cells > n) {
+      for(int j = 0; j < n; j++) {
+        if((categories[j] & mask) == 0)
+          continue;
+        Sprite s = sprites.get(j);
+        if(s == ignore1 || s == ignore2)
+          continue;
+        double t = RaycastHit.boxFraction(boxes, j*4, x0, y0, dx, dy, Math.min(best, 1));
+        if(t < 0 || t >= best)
+          continue;
+
+        best = t;
+        if(hit != null)
+          hit.setBoxHit(s, boxes, j*4, t, x0, y0, dx, dy);
+        if(anyHit)
+          return true;
+      }
+      return best <= 1;
+    }
+
+    // The fractions along the ray at which it crosses into the next column and row, and between columns and rows.
+    int stepX = (dx > 0) ? 1 : -1;
+    int stepY = (dy > 0) ? 1 : -1;
+    double nextX = (dx == 0) ? Double.POSITIVE_INFINITY : (((dx > 0) ? cx + 1 : cx)*cellSize - x0)/dx;
+    double nextY = (dy == 0) ? Double.POSITIVE_INFINITY : (((dy > 0) ? cy + 1 : cy)*cellSize - y0)/dy;
+    double deltaX = (dx == 0) ? Double.POSITIVE_INFINITY : cellSize/Math.abs(dx);
+    double deltaY = (dy == 0) ? Double.POSITIVE_INFINITY : cellSize/Math.abs(dy);
+
+    // Rounding can make the walk take one more step than expected, and hits past the end of the ray are rejected anyway.
+    for(long i = 0; i <= cells; i++) {
+      int h = bucketOf(cx, cy);
+      if((bucketCategories[h] & mask) != 0) {
+        int end = bucketStart[h+1];
+        for(int e = bucketStart[h]; e < end; e++) {
+          if(entryCellX[e] != cx || entryCellY[e] != cy)
+            continue;
+          int j = entrySprite[e];
+          if((categories[j] & mask) == 0)
+            continue;
+          Sprite s = sprites.get(j);
+          if(s == ignore1 || s == ignore2)
+            continue;
+          double t = RaycastHit.boxFraction(boxes, j*4, x0, y0, dx, dy, Math.min(best, 1));
+          if(t < 0 || t >= best)
+            continue;
+
+          best = t;
+          if(hit != null)
+            hit.setBoxHit(s, boxes, j*4, t, x0, y0, dx, dy);
+          if(anyHit)
+            return true;
+        }
+      }
+
+      // Any hit in a later cell would be after the ray leaves this one.
+      double exit = Math.min(nextX, nextY);
+      if(best <= exit || exit > 1)
+        break;
+      if(nextX < nextY) {
+        cx += stepX;
+        nextX += deltaX;
+      }
+      else {
+        cy += stepY;
+        nextY += deltaY;
+      }
+    }
+    return best <= 1;
+  }
+
+
+  //////// Broadphase pairs
+
+  /**
+   * Visits every pair of sprites in the grid whose bounding boxes overlap
+   * and whose filters collide with each other, exactly once each. Each pair
+   * is only visited in the cell containing the top-left corner of the
+   * overlap of their bounding boxes.
+   */
+  public void forEachPotentialPair(SpritePairVisitor visitor) {
+    forEachPotentialPair(visitor, false);
+  }
+
+  /**
+   * Visits every pair of sprites in the grid whose bounding boxes overlap,
+   * exactly once each.
+   * @param visitor   The callback for the pairs. If parallel is true, this
+   *                  must be safe to call from multiple threads at once.
+   * @param parallel  If true, ranges of buckets are processed in parallel on
+   *                  the shared WorkerPool.
+   */
+  public void forEachPotentialPair(SpritePairVisitor visitor, boolean parallel) {
+    rebuild();
+    if(parallel && sprites.size() >= PARALLEL_PAIRS_THRESHOLD)
+      WorkerPool.get().invoke(new PairTask(this, 0, bucketCount, visitor));
+    else
+      _pairsInBuckets(0, bucketCount, visitor);
+  }
+
+  /** Below this many sprites, parallel pair enumeration isn't worth its overhead. */
+  private static final int PARALLEL_PAIRS_THRESHOLD = 256;
+
+  /** Ranges of at most this many entries aren't split any further for parallel pair enumeration. */
+  private static final int PARALLEL_PAIRS_MIN_ENTRIES = 512;
+
+  /** Visits the pairs found in buckets h0 through h1-1. */
+  private void _pairsInBuckets(int h0, int h1, SpritePairVisitor visitor) {
+    for(int h = h0; h < h1; h++) {
+      // Skip buckets where no sprite collides with any other.
+      if((bucketCategories[h] & bucketMasks[h]) == 0)
+        continue;
+
+      int start = bucketStart[h];
+      int end = bucketStart[h+1];
+      for(int e = start; e < end; e++) {
+        int cx = entryCellX[e];
+        int cy = entryCellY[e];
+        int j = entrySprite[e];
+        int category = categories[j];
+        int mask = masks[j];
+        int b = j*4;
+        double x0 = boxes[b];
+        double y0 = boxes[b+1];
+        double x1 = boxes[b+2];
+        double y1 = boxes[b+3];
+
+        for(int f = e+1; f < end; f++) {
+          // Skip other cells that hash to the same bucket.
+          if(entryCellX[f] != cx || entryCellY[f] != cy)
+            continue;
+          int k = entrySprite[f];
+          if((categories[k] & mask) == 0 || (masks[k] & category) == 0)
+            continue;
+          int c = k*4;
+          if(x0 > boxes[c+2] || y0 > boxes[c+3] || x1 < boxes[c] || y1 < boxes[c+1])
+            continue;
+
+          // Only visit the pair in the cell where their overlap starts.
+          if(cellOf(Math.max(x0, boxes[c])) != cx || cellOf(Math.max(y0, boxes[c+1])) != cy)
+            continue;
+          visitor.visit(sprites.get(j), sprites.get(k));
+        }
+      }
+    }
+  }
+
+  /** A task for enumerating the pairs of a range of buckets in parallel. */
+  private static class PairTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private SpatialHashGrid grid;
+    private int h0;
+    private int h1;
+    private SpritePairVisitor visitor;
+
+    PairTask(SpatialHashGrid grid, int h0, int h1, SpritePairVisitor visitor) {
+      this.grid = grid;
+      this.h0 = h0;
+      this.h1 = h1;
+      this.visitor = visitor;
+    }
+
+    protected void compute() {
+      // The buckets are only read, so any ranges of them can be processed at once.
+      if(h1 - h0 < 2 || grid.bucketStart[h1] - grid.bucketStart[h0] <= PARALLEL_PAIRS_MIN_ENTRIES) {
+        grid._pairsInBuckets(h0, h1, visitor);
+        return;
+      }
+      int mid = (h0 + h1) >>> 1;
+      invokeAll(new PairTask(grid, h0, mid, visitor), new PairTask(grid, mid, h1, visitor));
+    }
+  }
+}
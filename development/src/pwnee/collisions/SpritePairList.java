@@ -0,0 +1,79 @@
+package pwnee.collisions;
+
+import java.util.Arrays;
+
+import pwnee.sprites.Sprite;
+
+/**
+ * A growable list of pairs of sprites, stored in two arrays. A broadphase
+ * can't be changed while it is visiting pairs, so a game that removes or
+ * moves sprites because of their collisions collects the pairs into this
+ * list first and handles them after the walk is done. Adding pairs doesn't
+ * allocate any objects once the list has grown to its working size, and
+ * clearing it keeps its capacity for the next frame.
+ */
+public class SpritePairList implements SpritePairVisitor {
+
+  private static final int INIT_CAPACITY = 64;
+
+  private Sprite[] firsts;
+  private Sprite[] seconds;
+  private int size = 0;
+
+
+  /** Creates an empty list. */
+  public SpritePairList() {
+    this(INIT_CAPACITY);
+  }
+
+  /** Creates an empty list that can hold the given number of pairs before it needs to grow. */
+  public SpritePairList(int capacity) {
+    capacity = Math.max(1, capacity);
+    firsts = new Sprite[capacity];
+    seconds = new Sprite[capacity];
+  }
+
+  /** Returns the number of pairs in the list. */
+  public int size() {
+    return size;
+  }
+
+  /** Removes all pairs from the list, keeping its capacity. */
+  public void clear() {
+    Arrays.fill(firsts, 0, size, null);
+    Arrays.fill(seconds, 0, size, null);
+    size = 0;
+  }
+
+  /** Adds a pair of sprites to the end of the list. */
+  public void add(Sprite first, Sprite second) {
+    if(size == firsts.length) {
+      firsts = Arrays.copyOf(firsts, size*2);
+      seconds = Arrays.copyOf(seconds, size*2);
+    }
+    firsts[size] = first;
+    seconds[size] = second;
+    size++;
+  }
+
+  /** Returns the first sprite of the kth pair. */
+  public Sprite getFirst(int k) {
+    return firsts[k];
+  }
+
+  /** Returns the second sprite of the kth pair. */
+  public Sprite getSecond(int k) {
+    return seconds[k];
+  }
+
+  /** Adds a pair found by a broadphase to the end of the list. */
+  public void visit(Sprite a, Sprite b) {
+    add(a, b);
+  }
+
+  /** Clears the list and fills it with the pairs of sprites found by a broadphase's forEachPotentialPair. */
+  public void collect(Broadphase broadphase) {
+    clear();
+    broadphase.forEachPotentialPair(this);
+  }
+}
@@ -0,0 +1,17 @@
+package pwnee.collisions;
+
+import pwnee.sprites.Sprite;
+
+/**
+ * A callback for when the bounding boxes of two sprites in a broadphase start or stop overlapping.
+ * The events are sent after the broadphase has found them, so a listener may insert, update, and
+ * remove sprites, but it must not clear the broadphase.
+ */
+public interface SpritePairListener {
+  
+  /** Called when the bounding boxes of two sprites start overlapping. */
+  public void pairBegin(Sprite a, Sprite b);
+  
+  /** Called when the bounding boxes of two sprites stop overlapping, or when either sprite is removed. */
+  public void pairEnd(Sprite a, Sprite b);
+}
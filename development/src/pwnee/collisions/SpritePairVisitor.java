@@ -0,0 +1,14 @@
+package pwnee.collisions;
+
+import pwnee.sprites.Sprite;
+
+/** 
+ * A callback for the pairs of sprites found by a broadphase, used to avoid allocating pair lists. 
+ * It may query the broadphase, but it must not change it. SpritePairList collects the pairs for 
+ * handling them afterwards.
+ */
+public interface SpritePairVisitor {
+  
+  /** Visits a pair of sprites that might be colliding. */
+  public void visit(Sprite a, Sprite b);
+}
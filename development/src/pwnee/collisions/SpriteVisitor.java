@@ -0,0 +1,16 @@
+package pwnee.collisions;
+
+import pwnee.sprites.Sprite;
+
+/** 
+ * A callback for the sprites found by a spatial query, used to avoid allocating result lists. 
+ * It may query the structure again, but it must not change it.
+ */
+public interface SpriteVisitor {
+  
+  /** 
+   * Visits a sprite found by a query.
+   * @return  true to continue the query, or false to stop it early.
+   */
+  public boolean visit(Sprite s);
+}
@@ -0,0 +1,1012 @@
+package pwnee.collisions;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import pwnee.sprites.Sprite;
+import pwnee.util.LongHashSet;
+import pwnee.util.WorkerPool;
+
+/**
+ * A sort-and-sweep broadphase that keeps the minimum and maximum endpoints
+ * of the sprites' bounding boxes sorted along the x and y axes. It has no
+ * world bounds, and it is fastest for large scenes where few sprites move
+ * between frames.
+ *
+ * Inserting, updating, and removing sprites only records their bounding
+ * boxes. The next time the structure is queried or sweep() is called, the
+ * endpoint arrays are re-sorted with an insertion sort. Since the arrays
+ * are still sorted from the last frame, this takes nearly O(n) time when
+ * little has moved. Every time the sort swaps a minimum endpoint with
+ * another sprite's maximum endpoint, that pair of sprites starts or stops
+ * overlapping along that axis, so the set of overlapping pairs is updated
+ * incrementally from the swaps instead of being searched for again. After
+ * many sprites have been inserted at once, the endpoints are fully sorted
+ * and the pairs are found with a single sweep instead.
+ *
+ * A SpritePairListener can be set to be told when pairs begin and end
+ * overlapping. Its events are collected while the structure sweeps and sent
+ * once the sweep is done, so the listener may insert, update, and remove
+ * sprites, such as removing a bullet when it begins touching a wall. Those
+ * changes are swept again once all the events have been sent, and queries
+ * made by the listener see the structure as it was before them. The
+ * listener must not clear the structure. Pairs of sprites whose filters
+ * don't collide with each other are never added, so they never send events
+ * either.
+ */
+public class SweepAndPrune implements Broadphase {
+
+  /** The sprite for each id. Removed sprites keep their id until the next sweep, so that their pairs can end. */
+  private Sprite[] proxies = new Sprite[16];
+
+  /** The bounding boxes of the sprites, stored as minX, minY, maxX, maxY for each id. */
+  private double[] boxes = new double[64];
+
+  /** Whether the sprite for each id is still in the structure. */
+  private boolean[] alive = new boolean[16];
+
+  /** The category of the sprite for each id. */
+  private int[] categories = new int[16];
+
+  /** The collision mask of the sprite for each id. */
+  private int[] masks = new int[16];
+
+  /** Maps each sprite in the structure to its id. */
+  private IdentityHashMap<Sprite, Integer> ids = new IdentityHashMap<Sprite, Integer>();
+
+  /** The number of ids that have been used. */
+  private int idCount = 0;
+
+  /** The ids that can be reused. */
+  private int[] freeIds = new int[16];
+  private int freeCount = 0;
+
+  /** The ids of the sprites removed since the last sweep. */
+  private int[] removedIds = new int[16];
+  private int removedCount = 0;
+
+  /**
+   * The endpoints sorted along each axis. Each endpoint is encoded as
+   * id*2 for a minimum or id*2+1 for a maximum.
+   */
+  private int[] xEndpoints = new int[32];
+  private int[] yEndpoints = new int[32];
+
+  /** The coordinates of the endpoints along each axis, as of the last sweep. */
+  private double[] xValues = new double[32];
+  private double[] yValues = new double[32];
+
+  /** The number of endpoints along each axis. */
+  private int endpointCount = 0;
+
+  /** The pairs of ids whose bounding boxes overlap, packed with LongHashSet.pairKey. */
+  private LongHashSet pairs = new LongHashSet();
+
+  /** The widest bounding box as of the last sweep, used to bound the search for queries. */
+  private double maxWidth = 0;
+
+  /** Whether any sprites have changed since the last sweep. */
+  private boolean isDirty = false;
+
+  /** The number of sprites inserted since the last sweep. */
+  private int insertedCount = 0;
+
+  /** Whether any sprite's filter has changed since the last sweep, so the pairs need to be rebuilt. */
+  private boolean filtersChanged = false;
+
+  /** The listener for pair events. */
+  private SpritePairListener pairListener = null;
+
+  /** The pairs of sprites of the events found by the current sweep, stored as two entries for each event. */
+  private Sprite[] eventSprites = new Sprite[32];
+
+  /** Whether each event found by the current sweep begins its pair, rather than ending it. */
+  private boolean[] eventBegins = new boolean[16];
+
+  /** The number of events waiting to be sent to the listener. */
+  private int eventCount = 0;
+
+  /** Whether a sweep is in progress, including sending its events. */
+  private boolean sweeping = false;
+
+
+  /** Creates an empty sweep-and-prune structure. */
+  public SweepAndPrune() {}
+
+  /** Sets the listener told when pairs of sprites begin or end overlapping. It may be null. */
+  public void setPairListener(SpritePairListener listener) {
+    this.pairListener = listener;
+  }
+
+  /** Returns the listener told when pairs of sprites begin or end overlapping. */
+  public SpritePairListener getPairListener() {
+    return pairListener;
+  }
+
+  /** Returns the number of sprites in the structure. */
+  public int size() {
+    return ids.size();
+  }
+
+  /** Returns true iff a sprite is currently in the structure. */
+  public boolean containsSprite(Sprite s) {
+    return ids.containsKey(s);
+  }
+
+
+  //////// Insertion/removal
+
+  /**
+   * Inserts a sprite into the structure with the default category and mask.
+   * If the sprite is already in the structure, it is updated instead and
+   * keeps its filter.
+   */
+  public boolean insert(Sprite s) {
+    if(ids.containsKey(s))
+      return update(s);
+    return _insertNew(s, DEFAULT_CATEGORY, DEFAULT_MASK);
+  }
+
+  /**
+   * Inserts a sprite into the structure with a category and the mask of
+   * categories it collides with. If the sprite is already in the structure,
+   * its filter is changed and it is updated instead.
+   */
+  public boolean insert(Sprite s, int category, int mask) {
+    if(ids.containsKey(s)) {
+      setFilter(s, category, mask);
+      return update(s);
+    }
+    return _insertNew(s, category, mask);
+  }
+
+  /** Inserts a sprite that isn't in the structure yet. */
+  private boolean _insertNew(Sprite s, int category, int mask) {
+    checkCategory(category);
+
+    // Do not insert sprites that are marked as destroyed.
+    if(s.isDestroyed())
+      return false;
+
+    int id;
+    if(freeCount > 0)
+      id = freeIds[--freeCount];
+    else {
+      id = idCount++;
+      if(id == proxies.length) {
+        int capacity = id*2;
+        Sprite[] newProxies = new Sprite[capacity];
+        System.arraycopy(proxies, 0, newProxies, 0, id);
+        proxies = newProxies;
+
+        boolean[] newAlive = new boolean[capacity];
+        System.arraycopy(alive, 0, newAlive, 0, id);
+        alive = newAlive;
+
+        categories = copyOf(categories, capacity);
+        masks = copyOf(masks, capacity);
+
+        double[] newBoxes = new double[capacity*4];
+        System.arraycopy(boxes, 0, newBoxes, 0, id*4);
+        boxes = newBoxes;
+      }
+    }
+    proxies[id] = s;
+    alive[id] = true;
+    categories[id] = category;
+    masks[id] = mask;
+    ids.put(s, id);
+    setBox(id, s.getCollisionBox());
+
+    // New endpoints start at the end of the arrays, and the next sweep sorts them into place.
+    if(endpointCount + 2 > xEndpoints.length) {
+      int capacity = xEndpoints.length*2;
+      xEndpoints = copyOf(xEndpoints, capacity);
+      yEndpoints = copyOf(yEndpoints, capacity);
+      xValues = copyOf(xValues, capacity);
+      yValues = copyOf(yValues, capacity);
+    }
+    xEndpoints[endpointCount] = id*2;
+    yEndpoints[endpointCount] = id*2;
+    xEndpoints[endpointCount + 1] = id*2 + 1;
+    yEndpoints[endpointCount + 1] = id*2 + 1;
+    endpointCount += 2;
+    insertedCount++;
+    return true;
+  }
+
+  /**
+   * Updates the bounding box of a sprite after it has moved or resized.
+   * Sprites that aren't in the structure yet are inserted. Sprites that have
+   * been destroyed are removed.
+   * @return  true iff the sprite is in the structure afterwards.
+   */
+  public boolean update(Sprite s) {
+    Integer id = ids.get(s);
+    if(id == null)
+      return insert(s);
+
+    if(s.isDestroyed()) {
+      remove(s);
+      return false;
+    }
+
+    setBox(id, s.getCollisionBox());
+    return true;
+  }
+
+  /**
+   * Removes a sprite from the structure. The pairs it was in end during the
+   * next sweep.
+   * @return  true iff the sprite was in the structure.
+   */
+  public boolean remove(Sprite s) {
+    Integer index = ids.remove(s);
+    if(index == null)
+      return false;
+
+    // Turning the sprite's box inside out makes its maximums sort before every other minimum,
+    // so the next sweep ends all of its pairs, even with other removed sprites.
+    int id = index;
+    alive[id] = false;
+    int b = id*4;
+    boxes[b] = Double.POSITIVE_INFINITY;
+    boxes[b+1] = Double.POSITIVE_INFINITY;
+    boxes[b+2] = Double.NEGATIVE_INFINITY;
+    boxes[b+3] = Double.NEGATIVE_INFINITY;
+
+    if(removedCount == removedIds.length)
+      removedIds = copyOf(removedIds, removedCount*2);
+    removedIds[removedCount++] = id;
+    isDirty = true;
+    return true;
+  }
+
+  /**
+   * Removes all sprites from the structure, ending all of their pairs.
+   * @throws IllegalStateException  if the pair listener calls this during a sweep.
+   */
+  public void clear() {
+    if(sweeping)
+      throw new IllegalStateException("A SweepAndPrune can't be cleared while it is sweeping.");
+    if(pairListener != null) {
+      for(int i = 0; i < pairs.capacity(); i++) {
+        if(pairs.isUsed(i)) {
+          long key = pairs.get(i);
+          pairListener.pairEnd(proxies[LongHashSet.pairFirst(key)], proxies[LongHashSet.pairSecond(key)]);
+        }
+      }
+    }
+    pairs.clear();
+    ids.clear();
+    for(int id = 0; id < idCount; id++) {
+      proxies[id] = null;
+      alive[id] = false;
+    }
+    idCount = 0;
+    freeCount = 0;
+    removedCount = 0;
+    endpointCount = 0;
+    insertedCount = 0;
+    filtersChanged = false;
+    maxWidth = 0;
+    isDirty = false;
+  }
+
+  /** Stores the bounding box of the sprite with an id. */
+  private void setBox(int id, Rectangle2D bbox) {
+    int b = id*4;
+    boxes[b] = bbox.getX();
+    boxes[b+1] = bbox.getY();
+    boxes[b+2] = bbox.getX() + bbox.getWidth();
+    boxes[b+3] = bbox.getY() + bbox.getHeight();
+    isDirty = true;
+  }
+
+  private static int[] copyOf(int[] array, int length) {
+    int[] result = new int[length];
+    System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+    return result;
+  }
+
+  private static double[] copyOf(double[] array, int length) {
+    double[] result = new double[length];
+    System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+    return result;
+  }
+
+
+  //////// Filters
+
+  /**
+   * Changes the category of a sprite and the mask of categories it collides
+   * with. The pairs are rebuilt during the next sweep, so changing filters
+   * shouldn't be done for many sprites every frame.
+   * @return  true iff the sprite is in the structure.
+   */
+  public boolean setFilter(Sprite s, int category, int mask) {
+    checkCategory(category);
+    Integer id = ids.get(s);
+    if(id == null)
+      return false;
+
+    if(categories[id] != category || masks[id] != mask) {
+      categories[id] = category;
+      masks[id] = mask;
+      filtersChanged = true;
+      isDirty = true;
+    }
+    return true;
+  }
+
+  /** Returns the category of a sprite, or 0 if it isn't in the structure. */
+  public int getCategory(Sprite s) {
+    Integer id = ids.get(s);
+    return (id == null) ? 0 : categories[id];
+  }
+
+  /** Returns the mask of categories a sprite collides with, or 0 if it isn't in the structure. */
+  public int getMask(Sprite s) {
+    Integer id = ids.get(s);
+    return (id == null) ? 0 : masks[id];
+  }
+
+  /** Sprites must belong to at least one category, or nothing could ever collide with them. */
+  private static void checkCategory(int category) {
+    if(category == 0)
+      throw new IllegalArgumentException("A sprite's category must have at least one bit set.");
+  }
+
+  /** Returns true iff the filters of the sprites with two ids collide with each other. */
+  private boolean filtersCollide(int a, int b) {
+    return (categories[a] & masks[b]) != 0 && (categories[b] & masks[a]) != 0;
+  }
+
+  /**
+   * Returns true iff sprites with the given categories and masks can't be
+   * found by a query for the categories in mask by a sprite of the given
+   * category. A category of 0 doesn't check the masks.
+   */
+  private static boolean rejectsFilter(int categories, int masks, int mask, int category) {
+    return (categories & mask) == 0 || (category != 0 && (masks & category) == 0);
+  }
+
+
+  //////// Sweeping
+
+  /**
+   * Re-sorts the endpoints if any sprites have changed since the last
+   * sweep, updating the overlapping pairs and sending their events to the
+   * pair listener. This happens automatically before a query. If the
+   * listener changes any sprites, they are swept again after its events.
+   * Calls made by the listener while its events are sent do nothing.
+   */
+  public void sweep() {
+    if(!isDirty || sweeping)
+      return;
+
+    sweeping = true;
+    try {
+      while(isDirty) {
+        sortEndpoints();
+        sendEvents();
+      }
+    }
+    finally {
+      for(int i = 0; i < eventCount*2; i++)
+        eventSprites[i] = null;
+      eventCount = 0;
+      sweeping = false;
+    }
+  }
+
+  /**
+   * Re-sorts the endpoints and updates the overlapping pairs, collecting
+   * their events. Nothing outside the structure is called, so no sprites
+   * can change until the sort is done and the removed sprites' pairs have
+   * all ended.
+   */
+  private void sortEndpoints() {
+    // Refresh the endpoints' coordinates from the bounding boxes.
+    for(int e = 0; e < endpointCount; e++) {
+      int code = xEndpoints[e];
+      xValues[e] = boxes[(code >> 1)*4 + (code & 1)*2];
+      code = yEndpoints[e];
+      yValues[e] = boxes[(code >> 1)*4 + (code & 1)*2 + 1];
+    }
+
+    // Sorting many new endpoints in from the end is quadratic, so after a bulk insertion the pairs are rebuilt instead.
+    // Changed filters can't be found from swaps either, so they need a rebuild too.
+    if(filtersChanged || (insertedCount > REBUILD_MIN_INSERTS && insertedCount*16 > endpointCount))
+      rebuildPairs();
+    else {
+      sortAxis(xEndpoints, xValues);
+      sortAxis(yEndpoints, yValues);
+    }
+    insertedCount = 0;
+    filtersChanged = false;
+
+    // The sprites were all removed before this sort, which ended their pairs,
+    // so their endpoints and ids can be dropped.
+    if(removedCount > 0) {
+      int kept = 0;
+      for(int e = 0; e < endpointCount; e++) {
+        if(alive[xEndpoints[e] >> 1]) {
+          xEndpoints[kept] = xEndpoints[e];
+          xValues[kept] = xValues[e];
+          kept++;
+        }
+      }
+      kept = 0;
+      for(int e = 0; e < endpointCount; e++) {
+        if(alive[yEndpoints[e] >> 1]) {
+          yEndpoints[kept] = yEndpoints[e];
+          yValues[kept] = yValues[e];
+          kept++;
+        }
+      }
+      endpointCount = kept;
+
+      for(int i = 0; i < removedCount; i++) {
+        int id = removedIds[i];
+        proxies[id] = null;
+        if(freeCount == freeIds.length)
+          freeIds = copyOf(freeIds, freeCount*2);
+        freeIds[freeCount++] = id;
+      }
+      removedCount = 0;
+    }
+
+    maxWidth = 0;
+    for(int e = 0; e < endpointCount; e++) {
+      int code = xEndpoints[e];
+      if((code & 1) == 0) {
+        int b = (code >> 1)*4;
+        maxWidth = Math.max(maxWidth, boxes[b+2] - boxes[b]);
+      }
+    }
+
+    isDirty = false;
+  }
+
+  /**
+   * Insertion sorts the endpoints along one axis. Minimum endpoints go
+   * before maximum endpoints with the same coordinate, so that boxes which
+   * only touch count as overlapping.
+   */
+  private void sortAxis(int[] endpoints, double[] values) {
+    for(int i = 1; i < endpointCount; i++) {
+      int code = endpoints[i];
+      double v = values[i];
+      boolean isMax = (code & 1) != 0;
+
+      int j = i - 1;
+      while(j >= 0) {
+        int otherCode = endpoints[j];
+        double otherV = values[j];
+        boolean otherIsMax = (otherCode & 1) != 0;
+        if(otherV < v || (otherV == v && (isMax || !otherIsMax)))
+          break;
+
+        // A minimum moving before a maximum may start a pair. A maximum moving before a minimum ends one.
+        if(!isMax && otherIsMax)
+          beginPair(code >> 1, otherCode >> 1);
+        else if(isMax && !otherIsMax)
+          endPair(code >> 1, otherCode >> 1);
+
+        endpoints[j+1] = otherCode;
+        values[j+1] = otherV;
+        j--;
+      }
+      endpoints[j+1] = code;
+      values[j+1] = v;
+    }
+  }
+
+  /** Below this many new sprites, they are always sorted into place. */
+  private static final int REBUILD_MIN_INSERTS = 64;
+
+  /**
+   * Fully sorts the endpoints and finds the overlapping pairs from scratch
+   * with a sweep along the x axis, then collects events for the differences
+   * from the old pairs. This takes O(n log n) time plus the time to check
+   * the boxes that overlap along the x axis.
+   */
+  private void rebuildPairs() {
+    int[] tmpEndpoints = new int[endpointCount];
+    double[] tmpValues = new double[endpointCount];
+    mergeSort(xEndpoints, xValues, tmpEndpoints, tmpValues, 0, endpointCount);
+    mergeSort(yEndpoints, yValues, tmpEndpoints, tmpValues, 0, endpointCount);
+
+    // Sweep along the x axis, keeping the boxes that the sweep line is inside of.
+    LongHashSet newPairs = new LongHashSet(pairs.size());
+    int[] active = new int[16];
+    int[] activePos = new int[idCount];
+    int activeCount = 0;
+    for(int e = 0; e < endpointCount; e++) {
+      int code = xEndpoints[e];
+      int id = code >> 1;
+      if(!alive[id])
+        continue;
+
+      if((code & 1) == 0) {
+        int b = id*4;
+        for(int k = 0; k < activeCount; k++) {
+          int c = active[k]*4;
+          if(!filtersCollide(id, active[k]))
+            continue;
+          if(boxes[b+1] > boxes[c+3] || boxes[b+3] < boxes[c+1])
+            continue;
+          newPairs.add(LongHashSet.pairKey(id, active[k]));
+        }
+        if(activeCount == active.length)
+          active = copyOf(active, activeCount*2);
+        activePos[id] = activeCount;
+        active[activeCount++] = id;
+      }
+      else {
+        int pos = activePos[id];
+        int last = active[--activeCount];
+        active[pos] = last;
+        activePos[last] = pos;
+      }
+    }
+
+    if(pairListener != null) {
+      for(int i = 0; i < pairs.capacity(); i++) {
+        if(pairs.isUsed(i) && !newPairs.contains(pairs.get(i)))
+          addEvent(pairs.get(i), false);
+      }
+      for(int i = 0; i < newPairs.capacity(); i++) {
+        if(newPairs.isUsed(i) && !pairs.contains(newPairs.get(i)))
+          addEvent(newPairs.get(i), true);
+      }
+    }
+    pairs = newPairs;
+  }
+
+  /** Returns true iff endpoint a goes after endpoint b in sorted order. */
+  private static boolean isAfter(int a, double aValue, int b, double bValue) {
+    return aValue > bValue || (aValue == bValue && (a & 1) != 0 && (b & 1) == 0);
+  }
+
+  /** Stably sorts the endpoints from index lo up to hi by their coordinates. */
+  private static void mergeSort(int[] endpoints, double[] values, int[] tmpEndpoints, double[] tmpValues, int lo, int hi) {
+    if(hi - lo < 2)
+      return;
+    int mid = (lo + hi) >>> 1;
+    mergeSort(endpoints, values, tmpEndpoints, tmpValues, lo, mid);
+    mergeSort(endpoints, values, tmpEndpoints, tmpValues, mid, hi);
+
+    int i = lo;
+    int j = mid;
+    int k = lo;
+    while(i < mid && j < hi) {
+      if(isAfter(endpoints[i], values[i], endpoints[j], values[j])) {
+        tmpEndpoints[k] = endpoints[j];
+        tmpValues[k++] = values[j++];
+      }
+      else {
+        tmpEndpoints[k] = endpoints[i];
+        tmpValues[k++] = values[i++];
+      }
+    }
+    while(i < mid) {
+      tmpEndpoints[k] = endpoints[i];
+      tmpValues[k++] = values[i++];
+    }
+    while(j < hi) {
+      tmpEndpoints[k] = endpoints[j];
+      tmpValues[k++] = values[j++];
+    }
+    System.arraycopy(tmpEndpoints, lo, endpoints, lo, hi - lo);
+    System.arraycopy(tmpValues, lo, values, lo, hi - lo);
+  }
+
+  /** Sends the collected events to the pair listener in the order they were found. */
+  private void sendEvents() {
+    for(int k = 0; k < eventCount; k++) {
+      Sprite a = eventSprites[k*2];
+      Sprite b = eventSprites[k*2 + 1];
+      eventSprites[k*2] = null;
+      eventSprites[k*2 + 1] = null;
+
+      // The listener may be changed by an earlier event.
+      SpritePairListener listener = pairListener;
+      if(listener == null)
+        continue;
+      if(eventBegins[k])
+        listener.pairBegin(a, b);
+      else
+        listener.pairEnd(a, b);
+    }
+    eventCount = 0;
+  }
+
+  /** Collects the event for a pair beginning or ending, if there is a listener for it. */
+  private void addEvent(long key, boolean begin) {
+    if(pairListener == null)
+      return;
+    if(eventCount == eventBegins.length) {
+      Sprite[] newSprites = new Sprite[eventCount*4];
+      System.arraycopy(eventSprites, 0, newSprites, 0, eventCount*2);
+      eventSprites = newSprites;
+
+      boolean[] newBegins = new boolean[eventCount*2];
+      System.arraycopy(eventBegins, 0, newBegins, 0, eventCount);
+      eventBegins = newBegins;
+    }
+    eventSprites[eventCount*2] = proxies[LongHashSet.pairFirst(key)];
+    eventSprites[eventCount*2 + 1] = proxies[LongHashSet.pairSecond(key)];
+    eventBegins[eventCount] = begin;
+    eventCount++;
+  }
+
+  /** Adds a pair if both of its sprites are still in the structure, their filters collide, and their boxes overlap. */
+  private void beginPair(int a, int b) {
+    if(!alive[a] || !alive[b] || !filtersCollide(a, b))
+      return;
+    int i = a*4;
+    int j = b*4;
+    if(boxes[i] > boxes[j+2] || boxes[i+1] > boxes[j+3] || boxes[i+2] < boxes[j] || boxes[i+3] < boxes[j+1])
+      return;
+
+    long key = LongHashSet.pairKey(a, b);
+    if(pairs.add(key))
+      addEvent(key, true);
+  }
+
+  /** Removes a pair if it exists. */
+  private void endPair(int a, int b) {
+    long key = LongHashSet.pairKey(a, b);
+    if(pairs.remove(key))
+      addEvent(key, false);
+  }
+
+
+  //////// Queries
+
+  /**
+   * Queries for a sprite inside the structure and returns a new list of the
+   * sprites whose bounding boxes overlap its bounding box, including itself
+   * if it is in the structure.
+   */
+  public List<Sprite> query(Sprite s) {
+    List<Sprite> result = new ArrayList<Sprite>();
+    query(s, result);
+    return result;
+  }
+
+  /**
+   * Queries for a sprite inside the structure and adds the sprites whose
+   * bounding boxes overlap its bounding box to out.
+   */
+  public void query(Sprite s, Collection<? super Sprite> out) {
+    _querySprite(s, out, null);
+  }
+
+  /**
+   * Queries for a sprite inside the structure and visits the sprites whose
+   * bounding boxes overlap its bounding box.
+   */
+  public void query(Sprite s, SpriteVisitor visitor) {
+    _querySprite(s, null, visitor);
+  }
+
+  /** Adds the sprites whose bounding boxes overlap a rectangular area to out. */
+  public void query(double x, double y, double w, double h, Collection<? super Sprite> out) {
+    _queryRect(x, y, x + w, y + h, 0, 0, -1, ~0, 0, out, null);
+  }
+
+  /** Visits the sprites whose bounding boxes overlap a rectangular area. */
+  public void query(double x, double y, double w, double h, SpriteVisitor visitor) {
+    _queryRect(x, y, x + w, y + h, 0, 0, -1, ~0, 0, null, visitor);
+  }
+
+  /**
+   * Visits the sprites whose bounding boxes overlap a rectangular area and
+   * whose categories are in a mask.
+   */
+  public void query(double x, double y, double w, double h, int mask, SpriteVisitor visitor) {
+    _queryRect(x, y, x + w, y + h, 0, 0, -1, mask, 0, null, visitor);
+  }
+
+  /** Adds the sprites whose bounding boxes contain a point to out. */
+  public void queryPoint(double x, double y, Collection<? super Sprite> out) {
+    _queryRect(x, y, x, y, 0, 0, -1, ~0, 0, out, null);
+  }
+
+  /** Visits the sprites whose bounding boxes contain a point. */
+  public void queryPoint(double x, double y, SpriteVisitor visitor) {
+    _queryRect(x, y, x, y, 0, 0, -1, ~0, 0, null, visitor);
+  }
+
+  /** Adds the sprites whose bounding boxes overlap a circle to out. */
+  public void queryCircle(double cx, double cy, double r, Collection<? super Sprite> out) {
+    _queryRect(cx - r, cy - r, cx + r, cy + r, cx, cy, r, ~0, 0, out, null);
+  }
+
+  /** Visits the sprites whose bounding boxes overlap a circle. */
+  public void queryCircle(double cx, double cy, double r, SpriteVisitor visitor) {
+    _queryRect(cx - r, cy - r, cx + r, cy + r, cx, cy, r, ~0, 0, null, visitor);
+  }
+
+  /**
+   * Queries with a sprite's bounding box, unless the sprite is destroyed.
+   * If the sprite is in the structure, only the sprites its filter collides with are found.
+   */
+  private void _querySprite(Sprite s, Collection<? super Sprite> out, SpriteVisitor visitor) {
+    // Do not query sprites that are marked as destroyed.
+    if(s.isDestroyed())
+      return;
+
+    int mask = ~0;
+    int category = 0;
+    Integer id = ids.get(s);
+    if(id != null) {
+      mask = masks[id];
+      category = categories[id];
+    }
+
+    Rectangle2D bbox = s.getCollisionBox();
+    double x0 = bbox.getX();
+    double y0 = bbox.getY();
+    _queryRect(x0, y0, x0 + bbox.getWidth(), y0 + bbox.getHeight(), 0, 0, -1, mask, category, out, visitor);
+  }
+
+  /**
+   * Finds the sprites overlapping a rectangle, and also a circle if r isn't
+   * negative. Only the minimum x endpoints between x0 - maxWidth and x1
+   * need to be checked. Only the sprites whose categories are in mask are
+   * found, and if category isn't 0, only those whose masks include it.
+   */
+  private void _queryRect(double x0, double y0, double x1, double y1, double cx, double cy, double r, int mask, int category, Collection<? super Sprite> out, SpriteVisitor visitor) {
+    sweep();
+    double rSq = r*r;
+
+    // Binary search for the first endpoint that could belong to an overlapping box.
+    double start = x0 - maxWidth;
+    int lo = 0;
+    int hi = endpointCount;
+    while(lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if(xValues[mid] < start)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    for(int e = lo; e < endpointCount && xValues[e] <= x1; e++) {
+      int code = xEndpoints[e];
+      if((code & 1) != 0)
+        continue;
+      int id = code >> 1;
+      if(rejectsFilter(categories[id], masks[id], mask, category))
+        continue;
+      int b = id*4;
+      if(x0 > boxes[b+2] || y0 > boxes[b+3] || x1 < boxes[b] || y1 < boxes[b+1])
+        continue;
+      if(r >= 0 && boxDistSq(boxes[b], boxes[b+1], boxes[b+2], boxes[b+3], cx, cy) > rSq)
+        continue;
+      if(!emit(proxies[id], out, visitor))
+        return;
+    }
+  }
+
+  /** Passes a found sprite to either the output collection or the visitor. */
+  private static boolean emit(Sprite s, Collection<? super Sprite> out, SpriteVisitor visitor) {
+    if(visitor != null)
+      return visitor.visit(s);
+    out.add(s);
+    return true;
+  }
+
+  /** Returns the squared distance from a point to the nearest point of a box. */
+  private static double boxDistSq(double x0, double y0, double x1, double y1, double px, double py) {
+    double dx = 0;
+    if(px < x0)
+      dx = x0 - px;
+    else if(px > x1)
+      dx = px - x1;
+
+    double dy = 0;
+    if(py < y0)
+      dy = y0 - py;
+    else if(py > y1)
+      dy = py - y1;
+
+    return dx*dx + dy*dy;
+  }
+
+
+  //////// Raycasting
+
+  /**
+   * Casts a ray from (x0, y0) to (x1, y1) and finds the first sprite whose
+   * bounding box it hits. Only the sprites in the range of x coordinates
+   * that the ray covers are tested.
+   * @param hit   Set to the closest hit, or reset if nothing was hit.
+   * @return  true iff a sprite was hit.
+   */
+  public boolean raycast(double x0, double y0, double x1, double y1, RaycastHit hit) {
+    return _raycast(x0, y0, x1 - x0, y1 - y0, ~0, null, null, false, hit);
+  }
+
+  /**
+   * Casts a ray from (ox, oy) in the direction (dirX, dirY), up to a finite
+   * distance of maxDist, and finds the first sprite whose bounding box it
+   * hits. The hit's fraction times maxDist is the distance to the hit.
+   * @param hit   Set to the closest hit, or reset if nothing was hit.
+   * @return  true iff a sprite was hit.
+   */
+  public boolean raycast(double ox, double oy, double dirX, double dirY, double maxDist, RaycastHit hit) {
+    return raycast(ox, oy, dirX, dirY, maxDist, ~0, hit);
+  }
+
+  /**
+   * Casts a ray like raycast(ox, oy, dirX, dirY, maxDist, hit), only hitting
+   * the sprites whose categories are in a mask.
+   */
+  public boolean raycast(double ox, double oy, double dirX, double dirY, double maxDist, int mask, RaycastHit hit) {
+    double len = Math.sqrt(dirX*dirX + dirY*dirY);
+    if(len == 0) {
+      hit.reset();
+      return false;
+    }
+    double scale = maxDist/len;
+    return _raycast(ox, oy, dirX*scale, dirY*scale, mask, null, null, false, hit);
+  }
+
+  /**
+   * Returns true iff no sprite whose category is in a mask has a bounding
+   * box touching the segment from (x0, y0) to (x1, y1). This stops at the
+   * first blocking sprite found instead of looking for the closest one.
+   */
+  public boolean lineOfSight(double x0, double y0, double x1, double y1, int mask) {
+    return !_raycast(x0, y0, x1 - x0, y1 - y0, mask, null, null, true, null);
+  }
+
+  /**
+   * Returns true iff no other sprite blocks the segment between the centers
+   * of two sprites' bounding boxes. The two sprites themselves are ignored.
+   * If a is in the structure, only the sprites it collides with block it.
+   */
+  public boolean lineOfSight(Sprite a, Sprite b) {
+    Rectangle2D boxA = a.getCollisionBox();
+    Rectangle2D boxB = b.getCollisionBox();
+    double x0 = boxA.getCenterX();
+    double y0 = boxA.getCenterY();
+    int mask = containsSprite(a) ? getMask(a) : ~0;
+    return !_raycast(x0, y0, boxB.getCenterX() - x0, boxB.getCenterY() - y0, mask, a, b, true, null);
+  }
+
+  /**
+   * Casts a ray from (x0, y0) along (dx, dy). The structure has no cells to
+   * walk, so the minimum x endpoints from the ray's left end minus maxWidth
+   * to its right end are searched for the sprites it could hit.
+   * @param mask      The categories of the sprites that can be hit.
+   * @param ignore1   A sprite that can't be hit, or null.
+   * @param ignore2   Another sprite that can't be hit, or null.
+   * @param anyHit    If true, this stops at the first hit found instead of the closest one.
+   * @param hit       Set to the hit found, if it isn't null.
+   * @return  true iff a sprite was hit.
+   */
+  private boolean _raycast(double x0, double y0, double dx, double dy, int mask, Sprite ignore1, Sprite ignore2, boolean anyHit, RaycastHit hit) {
+    sweep();
+    if(hit != null)
+      hit.reset();
+    double best = Double.POSITIVE_INFINITY;
+
+    // Binary search for the first endpoint that could belong to a box the ray touches.
+    double start = Math.min(x0, x0 + dx) - maxWidth;
+    double end = Math.max(x0, x0 + dx);
+    int lo = 0;
+    int hi = endpointCount;
+    while(lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if(xValues[mid] < start)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    for(int e = lo; e < endpointCount && xValues[e] <= end; e++) {
+      int code = xEndpoints[e];
+      if((code & 1) != 0)
+        continue;
+      int id = code >> 1;
+      if((categories[id] & mask) == 0)
+        continue;
+      Sprite s = proxies[id];
+      if(s == ignore1 || s == ignore2)
+        continue;
+      double t = RaycastHit.boxFraction(boxes, id*4, x0, y0, dx, dy, Math.min(best, 1));
+      if(t < 0 || t >= best)
+        continue;
+
+      best = t;
+      if(hit != null)
+        hit.setBoxHit(s, boxes, id*4, t, x0, y0, dx, dy);
+      if(anyHit)
+        return true;
+    }
+    return best <= 1;
+  }
+
+
+  //////// Broadphase pairs
+
+  /**
+   * Visits every pair of sprites in the structure whose bounding boxes
+   * overlap and whose filters collide with each other, exactly once each.
+   * The pairs are already known after the sweep, so this doesn't search for
+   * them.
+   */
+  public void forEachPotentialPair(SpritePairVisitor visitor) {
+    forEachPotentialPair(visitor, false);
+  }
+
+  /**
+   * Visits every pair of sprites in the structure whose bounding boxes
+   * overlap, exactly once each.
+   * @param visitor   The callback for the pairs. If parallel is true, this
+   *                  must be safe to call from multiple threads at once.
+   * @param parallel  If true, the pairs are visited in parallel on the
+   *                  shared WorkerPool.
+   */
+  public void forEachPotentialPair(SpritePairVisitor visitor, boolean parallel) {
+    sweep();
+    if(parallel && pairs.size() >= PARALLEL_PAIRS_THRESHOLD)
+      WorkerPool.get().invoke(new PairTask(this, 0, pairs.capacity(), visitor));
+    else
+      _visitPairs(0, pairs.capacity(), visitor);
+  }
+
+  /** Below this many pairs, visiting them in parallel isn't worth its overhead. */
+  private static final int PARALLEL_PAIRS_THRESHOLD = 1024;
+
+  /** Visits the pairs in slots i0 through i1-1 of the pair set. */
+  private void _visitPairs(int i0, int i1, SpritePairVisitor visitor) {
+    for(int i = i0; i < i1; i++) {
+      if(pairs.isUsed(i)) {
+        long key = pairs.get(i);
+        int a = LongHashSet.pairFirst(key);
+        int b = LongHashSet.pairSecond(key);
+
+        // Sprites removed by the pair listener keep their pairs until the next pass of its sweep.
+        if(alive[a] && alive[b])
+          visitor.visit(proxies[a], proxies[b]);
+      }
+    }
+  }
+
+  /** A task for visiting a range of the pair set's slots in parallel. */
+  private static class PairTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private SweepAndPrune sap;
+    private int i0;
+    private int i1;
+    private SpritePairVisitor visitor;
+
+    PairTask(SweepAndPrune sap, int i0, int i1, SpritePairVisitor visitor) {
+      this.sap = sap;
+      this.i0 = i0;
+      this.i1 = i1;
+      this.visitor = visitor;
+    }
+
+    protected void compute() {
+      if(i1 - i0 <= PARALLEL_PAIRS_THRESHOLD) {
+        sap._visitPairs(i0, i1, visitor);
+        return;
+      }
+      int mid = (i0 + i1) >>> 1;
+      invokeAll(new PairTask(sap, i0, mid, visitor), new PairTask(sap, mid, i1, visitor));
+    }
+  }
+}
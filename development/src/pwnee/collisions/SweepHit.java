@@ -0,0 +1,62 @@
+package pwnee.collisions;
+
+import pwnee.sprites.Sprite;
+
+/**
+ * The result of a continuous collision query: when during a movement a
+ * moving shape first touches another shape. A single SweepHit can be reused
+ * for every query, so sweeping doesn't allocate any objects.
+ */
+public class SweepHit {
+
+  /** Whether the moving shape hits anything during the movement. */
+  public boolean isHit = false;
+
+  /** The sprite that was hit, if the query was against sprites. */
+  public Sprite sprite = null;
+
+  /**
+   * The time of impact, as a fraction of the movement from 0 to 1. It is 0
+   * if the shapes were already overlapping at the start.
+   */
+  public double toi = 1;
+
+  /** The x position of the moving shape at the time of impact. */
+  public double x;
+
+  /** The y position of the moving shape at the time of impact. */
+  public double y;
+
+  /**
+   * The x component of the unit normal of the surface that was hit, pointing
+   * back towards the moving shape. The normal is (0, 0) if the shapes were
+   * already overlapping at the start.
+   */
+  public double normalX;
+
+  /** The y component of the unit normal of the surface that was hit. */
+  public double normalY;
+
+
+  /** Sets this to hit nothing. */
+  public void reset() {
+    isHit = false;
+    sprite = null;
+    toi = 1;
+    x = 0;
+    y = 0;
+    normalX = 0;
+    normalY = 0;
+  }
+
+  /** Sets all the properties of a hit. */
+  public void set(Sprite sprite, double toi, double x, double y, double normalX, double normalY) {
+    this.isHit = true;
+    this.sprite = sprite;
+    this.toi = toi;
+    this.x = x;
+    this.y = y;
+    this.normalX = normalX;
+    this.normalY = normalY;
+  }
+}
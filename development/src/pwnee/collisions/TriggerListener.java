@@ -0,0 +1,13 @@
+package pwnee.collisions;
+
+import pwnee.sprites.Sprite;
+
+/** A callback for the events sent when sprites cross the boundaries of trigger volumes. */
+public interface TriggerListener {
+  
+  /** Called in the first frame that a sprite is inside a trigger volume. */
+  public void triggerEnter(TriggerVolume trigger, Sprite s);
+  
+  /** Called in the first frame that a sprite is no longer inside a trigger volume, or when either of them is destroyed. */
+  public void triggerExit(TriggerVolume trigger, Sprite s);
+}
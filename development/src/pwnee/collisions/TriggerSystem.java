@@ -0,0 +1,265 @@
+package pwnee.collisions;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+import pwnee.sprites.Sprite;
+
+/**
+ * Sends events when sprites enter and leave trigger volumes. The triggers
+ * are kept in their own broadphase, and each frame every sprite that can
+ * set off a trigger, such as the player and the enemies, queries it with
+ * its bounding box. A trigger is only tested against the sprites whose
+ * bounding boxes reach it, so hundreds of triggers cost nothing while
+ * nobody is near them.
+ *
+ * Each frame, either call update with the sprites to test, or call
+ * beginFrame, then test each sprite, then call endFrame. A sprite that
+ * touches a trigger's shape is inside it. The enter and exit events are
+ * only sent when a sprite crosses a trigger's boundary, first to the
+ * trigger's own listener and then to the system's listener. The listeners
+ * are called after the broadphase query is done, so they may add and
+ * remove triggers, such as one-shot checkpoints, and test other sprites.
+ *
+ * Each sprite has a category, which is Broadphase.DEFAULT_CATEGORY unless
+ * it is tested with another, and a trigger only detects the sprites whose
+ * categories are in its mask.
+ */
+public class TriggerSystem {
+
+  /**
+   * The triggers, each filed under its mask as its category, so that a
+   * query with a sprite's category as the mask finds the triggers that
+   * detect it.
+   */
+  private Broadphase triggers;
+
+  /** The triggers in the system, each knowing its index here. */
+  private TriggerVolume[] list = new TriggerVolume[16];
+  private int count = 0;
+
+  /** Tracks which sprites are inside which triggers. */
+  private CollisionTracker tracker;
+
+  private TriggerListener listener;
+
+  /**
+   * The triggers found by the queries in progress. The listeners are only
+   * called after a query is done, so they can add and remove triggers and
+   * test other sprites. A test made by a listener adds its triggers after
+   * the ones of the test that called it, and removes them when it is done.
+   */
+  private TriggerVolume[] found = new TriggerVolume[16];
+  private int foundCount = 0;
+
+  /** Collects the triggers whose bounding boxes the tested sprite's box overlaps. */
+  private SpriteVisitor collector = new SpriteVisitor() {
+    public boolean visit(Sprite s) {
+      if(foundCount == found.length)
+        found = Arrays.copyOf(found, foundCount*2);
+      found[foundCount++] = (TriggerVolume) s;
+      return true;
+    }
+  };
+
+
+  /** Creates a system that keeps its triggers in a DynamicAABBTree. */
+  public TriggerSystem() {
+    this(new DynamicAABBTree());
+  }
+
+  /**
+   * Creates a system that keeps its triggers in an empty broadphase. The
+   * broadphase shouldn't be used for anything else.
+   */
+  public TriggerSystem(Broadphase triggers) {
+    this.triggers = triggers;
+    this.tracker = new CollisionTracker(new CollisionListener() {
+      public void collisionBegin(Sprite a, Sprite b) {
+        if(isTrigger(a, b))
+          fireEnter((TriggerVolume) a, b);
+        else
+          fireEnter((TriggerVolume) b, a);
+      }
+
+      public void collisionStay(Sprite a, Sprite b) {}
+
+      public void collisionEnd(Sprite a, Sprite b) {
+        if(isTrigger(a, b))
+          fireExit((TriggerVolume) a, b);
+        else
+          fireExit((TriggerVolume) b, a);
+      }
+    });
+  }
+
+  /** Sets the listener for every trigger's events. It may be null. */
+  public void setListener(TriggerListener listener) {
+    this.listener = listener;
+  }
+
+  /** Returns the listener for every trigger's events. */
+  public TriggerListener getListener() {
+    return listener;
+  }
+
+
+  //////// Triggers
+
+  /** Adds a trigger to the system. A trigger can only be in one system at a time. */
+  public boolean add(TriggerVolume trigger) {
+    if(trigger.system == this)
+      return false;
+    if(trigger.system != null)
+      throw new IllegalArgumentException("The trigger volume is already in another system.");
+    if(count == list.length)
+      list = Arrays.copyOf(list, count*2);
+    trigger.system = this;
+    trigger.systemIndex = count;
+    list[count++] = trigger;
+    return triggers.insert(trigger, trigger.mask, Broadphase.DEFAULT_MASK);
+  }
+
+  /**
+   * Removes a trigger from the system. Exit events are sent for the
+   * sprites inside it at the end of the next frame.
+   */
+  public boolean remove(TriggerVolume trigger) {
+    if(trigger.system != this)
+      return false;
+    count--;
+    TriggerVolume last = list[count];
+    list[count] = null;
+    if(trigger.systemIndex < count) {
+      list[trigger.systemIndex] = last;
+      last.systemIndex = trigger.systemIndex;
+    }
+    trigger.system = null;
+    trigger.systemIndex = -1;
+    return triggers.remove(trigger);
+  }
+
+  /** Updates the system after a trigger has been moved. */
+  public boolean update(TriggerVolume trigger) {
+    if(trigger.system != this)
+      return false;
+    return triggers.update(trigger);
+  }
+
+  /** Updates the filter of a trigger whose mask changed. */
+  void updateFilter(TriggerVolume trigger) {
+    triggers.setFilter(trigger, trigger.mask, Broadphase.DEFAULT_MASK);
+  }
+
+  /** Removes every trigger, sending exit events for the sprites inside them. */
+  public void clear() {
+    tracker.clear();
+    triggers.clear();
+    for(int i = 0; i < count; i++) {
+      list[i].system = null;
+      list[i].systemIndex = -1;
+      list[i] = null;
+    }
+    count = 0;
+  }
+
+  /** Returns the number of triggers in the system. */
+  public int size() {
+    return count;
+  }
+
+  /** Returns a trigger by its index, from 0 to size()-1. Removing a trigger changes the indices. */
+  public TriggerVolume get(int i) {
+    return list[i];
+  }
+
+  /** Returns true iff a trigger is in the system. */
+  public boolean contains(TriggerVolume trigger) {
+    return trigger.system == this;
+  }
+
+  /**
+   * Returns true iff a is the trigger of a tracked pair and b is the sprite
+   * inside it. A trigger that was removed is no longer in this system, so
+   * the sprite is only told apart by its class, unless it is a trigger too.
+   */
+  private boolean isTrigger(Sprite a, Sprite b) {
+    if(!(a instanceof TriggerVolume))
+      return false;
+    return !(b instanceof TriggerVolume) || ((TriggerVolume) a).system == this;
+  }
+
+
+  //////// Frames
+
+  /** Starts a new frame. */
+  public void beginFrame() {
+    tracker.beginFrame();
+  }
+
+  /** Tests a sprite in the default category against the triggers, sending enter events for the triggers it entered. */
+  public void test(Sprite s) {
+    test(s, Broadphase.DEFAULT_CATEGORY);
+  }
+
+  /** Tests a sprite in some categories against the triggers that detect them, sending enter events for the triggers it entered. */
+  public void test(Sprite s, int category) {
+    if(s.isDestroyed())
+      return;
+    Rectangle2D box = s.getCollisionBox();
+    int base = foundCount;
+    try {
+      triggers.query(box.getX(), box.getY(), box.getWidth(), box.getHeight(), category, collector);
+
+      // A listener may remove triggers or test other sprites, so the found triggers are read again each time.
+      int end = foundCount;
+      for(int i = base; i < end; i++) {
+        TriggerVolume trigger = found[i];
+        if(trigger.system == this && trigger.overlaps(box))
+          tracker.report(trigger, s);
+      }
+    }
+    finally {
+      Arrays.fill(found, base, foundCount, null);
+      foundCount = base;
+    }
+  }
+
+  /** Ends the frame, sending exit events for the sprites that left a trigger or weren't tested this frame. */
+  public void endFrame() {
+    tracker.endFrame();
+  }
+
+  /** Runs a frame testing some sprites in the default category. */
+  public void update(Iterable<? extends Sprite> sprites) {
+    beginFrame();
+    for(Sprite s : sprites)
+      test(s);
+    endFrame();
+  }
+
+
+  //////// Queries
+
+  /** Returns true iff a sprite was inside a trigger in the latest frame. */
+  public boolean isInside(Sprite s, TriggerVolume trigger) {
+    return tracker.isColliding(trigger, s);
+  }
+
+
+  //////// Events
+
+  private void fireEnter(TriggerVolume trigger, Sprite s) {
+    if(trigger.getListener() != null)
+      trigger.getListener().triggerEnter(trigger, s);
+    if(listener != null)
+      listener.triggerEnter(trigger, s);
+  }
+
+  private void fireExit(TriggerVolume trigger, Sprite s) {
+    if(trigger.getListener() != null)
+      trigger.getListener().triggerExit(trigger, s);
+    if(listener != null)
+      listener.triggerExit(trigger, s);
+  }
+}
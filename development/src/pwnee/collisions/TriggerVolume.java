@@ -0,0 +1,205 @@
+package pwnee.collisions;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+
+import pwnee.geom.Polygon2D;
+import pwnee.sprites.Sprite;
+
+/**
+ * An invisible region, such as a door, a checkpoint, or a hazard zone, that
+ * sends events when sprites enter or leave it. Its shape is a rectangle, a
+ * circle, or a polygon, which may be concave. Trigger volumes are added to
+ * a TriggerSystem, which sends their events.
+ *
+ * A trigger volume is a sprite so that it can be kept in a broadphase.
+ * Changing its x and y moves its shape, but its shape ignores scale and
+ * rotation. Trigger volumes aren't visible by default, but making one
+ * visible draws its outline, which helps with placing them in a level.
+ */
+public class TriggerVolume extends Sprite {
+
+  /** The circle's radius, or 0 if the shape isn't a circle. */
+  private double radius = 0;
+
+  /** The polygon relative to (x, y), or null if the shape isn't a polygon. */
+  private Polygon2D localPoly = null;
+
+  /** The categories of sprites the trigger detects. */
+  int mask = Broadphase.DEFAULT_MASK;
+
+  /** The system the trigger is in, or null. */
+  TriggerSystem system = null;
+
+  /** The trigger's index in its system's list of triggers. */
+  int systemIndex = -1;
+
+  private TriggerListener listener = null;
+
+
+  /** Creates a rectangular trigger volume with its top-left corner at (x, y). */
+  public TriggerVolume(double x, double y, double w, double h) {
+    super(x, y);
+    this.width = w;
+    this.height = h;
+    this.isVisible = false;
+  }
+
+  /** Creates a circular trigger volume centered at (cx, cy). */
+  public TriggerVolume(double cx, double cy, double radius) {
+    super(cx, cy);
+    this.radius = radius;
+    this.width = radius*2;
+    this.height = radius*2;
+    this.focalX = radius;
+    this.focalY = radius;
+    this.isVisible = false;
+  }
+
+  /**
+   * Creates a trigger volume shaped like a polygon in world coordinates.
+   * Its position is the top-left corner of the polygon's bounding box.
+   */
+  public TriggerVolume(Polygon2D poly) {
+    int n = poly.size();
+    if(n < 3)
+      throw new IllegalArgumentException("A trigger volume's polygon must have at least 3 vertices.");
+
+    double minX = Double.POSITIVE_INFINITY;
+    double minY = Double.POSITIVE_INFINITY;
+    double maxX = Double.NEGATIVE_INFINITY;
+    double maxY = Double.NEGATIVE_INFINITY;
+    for(int i = 0; i < n; i++) {
+      minX = Math.min(minX, poly.getX(i));
+      minY = Math.min(minY, poly.getY(i));
+      maxX = Math.max(maxX, poly.getX(i));
+      maxY = Math.max(maxY, poly.getY(i));
+    }
+    this.x = minX;
+    this.y = minY;
+    this.width = maxX - minX;
+    this.height = maxY - minY;
+    this.localPoly = poly.translate(-minX, -minY);
+    this.isVisible = false;
+  }
+
+
+  //////// Properties
+
+  /** Returns true iff the shape is a circle. */
+  public boolean isCircle() {
+    return radius > 0;
+  }
+
+  /** Returns the circle's radius, or 0 if the shape isn't a circle. */
+  public double getRadius() {
+    return radius;
+  }
+
+  /** Returns the polygon in world coordinates, or null if the shape isn't a polygon. */
+  public Polygon2D getPolygon() {
+    if(localPoly == null)
+      return null;
+    return localPoly.translate(x, y);
+  }
+
+  /**
+   * Sets the categories of sprites the trigger detects. Sprites tested with
+   * none of these categories never enter it.
+   */
+  public void setMask(int mask) {
+    if(mask == 0)
+      throw new IllegalArgumentException("A trigger volume must detect at least one category.");
+    this.mask = mask;
+    if(system != null)
+      system.updateFilter(this);
+  }
+
+  /** Returns the categories of sprites the trigger detects. */
+  public int getMask() {
+    return mask;
+  }
+
+  /** Sets the listener for this trigger's own events. It may be null. */
+  public void setListener(TriggerListener listener) {
+    this.listener = listener;
+  }
+
+  /** Returns the listener for this trigger's own events. */
+  public TriggerListener getListener() {
+    return listener;
+  }
+
+  /** Returns the system the trigger is in, or null. */
+  public TriggerSystem getSystem() {
+    return system;
+  }
+
+
+  //////// Shape
+
+  /** Returns the bounding box of the trigger's shape. */
+  public Rectangle2D getCollisionBox() {
+    return new Rectangle2D.Double(x - focalX, y - focalY, width, height);
+  }
+
+  /** Returns true iff a point is inside the trigger's shape. */
+  public boolean contains(double px, double py) {
+    return overlaps(px, py, px, py);
+  }
+
+  /** Returns true iff a rectangle touches the trigger's shape. */
+  public boolean overlaps(Rectangle2D box) {
+    return overlaps(box.getMinX(), box.getMinY(), box.getMaxX(), box.getMaxY());
+  }
+
+  /** Returns true iff the box from (minX, minY) to (maxX, maxY) touches the trigger's shape. */
+  public boolean overlaps(double minX, double minY, double maxX, double maxY) {
+    double left = x - focalX;
+    double top = y - focalY;
+    if(minX > left + width || maxX < left || minY > top + height || maxY < top)
+      return false;
+
+    if(radius > 0) {
+      double dx = Math.max(minX - x, Math.max(0, x - maxX));
+      double dy = Math.max(minY - y, Math.max(0, y - maxY));
+      return dx*dx + dy*dy <= radius*radius;
+    }
+
+    if(localPoly != null)
+      return polyOverlaps(minX - x, minY - y, maxX - x, maxY - y);
+
+    return true;
+  }
+
+  /** Returns true iff a box relative to (x, y) touches the polygon. */
+  private boolean polyOverlaps(double minX, double minY, double maxX, double maxY) {
+
+    // An edge touching the box also covers a vertex inside the box.
+    int n = localPoly.size();
+    for(int i = 0; i < n; i++) {
+      double sx = localPoly.getX(i);
+      double sy = localPoly.getY(i);
+      int j = (i + 1 == n) ? 0 : i + 1;
+      if(RaycastHit.boxFraction(minX, minY, maxX, maxY, sx, sy, localPoly.getX(j) - sx, localPoly.getY(j) - sy, 1) >= 0)
+        return true;
+    }
+
+    // Otherwise, the box is either entirely inside the polygon or entirely outside it.
+    return localPoly.contains(minX, minY);
+  }
+
+
+  //////// Rendering
+
+  /** Draws the outline of the trigger's shape. */
+  public void draw(Graphics2D g) {
+    if(radius > 0)
+      g.draw(new Ellipse2D.Double(0, 0, width, height));
+    else if(localPoly != null)
+      localPoly.draw(g);
+    else
+      g.draw(new Rectangle2D.Double(0, 0, width, height));
+  }
+}
@@ -0,0 +1,95 @@
+package pwnee.geom;
+
+
+/*======================================================================
+ * 
+ * Pwnee - A lightweight 2D Java game engine
+ * 
+ * Copyright (c) 2012 by Stephen Lindberg (sllindberg21@students.tntech.edu)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+======================================================================*/
+
+/** 
+ * The result of a narrowphase collision test between two shapes A and B. 
+ * A single Contact can be reused for every test, so testing doesn't 
+ * allocate any objects. 
+ *
+ * The normal points from A towards B. Moving B by normal*depth, or A by 
+ * -normal*depth, separates the shapes. The contact points are where the 
+ * shapes' boundaries overlap, along with how deep each of them is. 
+ */
+public class Contact {
+  
+  /** The maximum number of contact points between two convex polygons. */
+  public static final int MAX_POINTS = 2;
+  
+  /** Whether the shapes are colliding. */
+  public boolean isColliding = false;
+  
+  /** The x component of the unit collision normal. */
+  public double normalX;
+  
+  /** The y component of the unit collision normal. */
+  public double normalY;
+  
+  /** How far the shapes overlap along the normal. */
+  public double depth;
+  
+  /** The number of contact points. */
+  public int pointCount = 0;
+  
+  /** The x coordinates of the contact points. */
+  public double[] pointXs = new double[MAX_POINTS];
+  
+  /** The y coordinates of the contact points. */
+  public double[] pointYs = new double[MAX_POINTS];
+  
+  /** How far each contact point is inside the other shape along the normal. */
+  public double[] pointDepths = new double[MAX_POINTS];
+  
+  
+  /** Sets this to no collision. */
+  public void reset() {
+    isColliding = false;
+    normalX = 0;
+    normalY = 0;
+    depth = 0;
+    pointCount = 0;
+  }
+  
+  /** Adds a contact point, if there's room for it. */
+  public void addPoint(double x, double y, double pointDepth) {
+    if(pointCount < MAX_POINTS) {
+      pointXs[pointCount] = x;
+      pointYs[pointCount] = y;
+      pointDepths[pointCount] = pointDepth;
+      pointCount++;
+    }
+  }
+  
+  /** Reverses the roles of A and B by negating the normal. */
+  public void flip() {
+    normalX = -normalX;
+    normalY = -normalY;
+  }
+}
@@ -42,6 +42,7 @@ import java.util.Set;
 
 import pwnee.GameMath;
 import pwnee.geom.algs.BentleyOttmannLineSweepAlgorithm;
+import pwnee.geom.algs.PolygonClipper;
 import pwnee.util.SortedArrayList;
 
 /** A connected polygon whose vertices are stored as doubles. */
@@ -50,6 +51,21 @@ public class Polygon2D { // implements Shape {
   private double[] x;
   private double[] y;
   
+  /** 
+   * The unit outward normals of the polygon's edges, computed the first time 
+   * they are needed. Edge i goes from vertex i to vertex i+1. Since the 
+   * polygon is immutable, they never need to be recomputed. 
+   */
+  private double[] normalX;
+  private double[] normalY;
+  
+  /** 
+   * The polygon's bounding box, stored as minX, minY, maxX, maxY, and 
+   * whether it is convex, computed the first time either is needed. 
+   */
+  private double[] bounds;
+  private boolean convex;
+  
   /** Creates a polygon by copying from two arrays of x and y coordinates. */
   public Polygon2D(double[] xpoints, double[] ypoints) {
     int npoints = Math.min(xpoints.length, ypoints.length);
@@ -90,6 +106,28 @@ public class Polygon2D { // implements Shape {
     return new Point2D.Double(x[index], y[index]);
   }
   
+  /** Returns the x coordinate of the vertex with the specified index, without allocating a Point2D. */
+  public double getX(int index) {
+    return x[index];
+  }
+  
+  /** Returns the y coordinate of the vertex with the specified index, without allocating a Point2D. */
+  public double getY(int index) {
+    return y[index];
+  }
+  
+  /** Returns the x component of the unit outward normal of the edge from vertex i to vertex i+1. */
+  public double getNormalX(int i) {
+    computeNormals();
+    return normalX[i];
+  }
+  
+  /** Returns the y component of the unit outward normal of the edge from vertex i to vertex i+1. */
+  public double getNormalY(int i) {
+    computeNormals();
+    return normalY[i];
+  }
+  
   /** Returns the list of vertices in the polygon. */
   public List<Point2D> getPoints() {
     List<Point2D> points = new ArrayList<>();
@@ -120,45 +158,26 @@ public class Polygon2D { // implements Shape {
   //////// Shape implementation
   
   
-  /** Returns true if this polygon is convex and it contains the specified point. */
+  /** 
+   * Returns true if this polygon contains the specified point. Points 
+   * outside the polygon's bounding box are rejected first. Convex polygons 
+   * are tested by checking that the point is on the same side of every 
+   * edge, and concave polygons by the point's winding number, so a point 
+   * in a region that a self-intersecting polygon winds around is inside it. 
+   * Points on a convex polygon's edges are inside it. 
+   */
   public boolean contains(double x, double y) {
-    int numPoints = size();
-    
-    // The point will be "below" all the segments if the vertices were specified in cw order.
-    boolean underAll = true; 
-    
-    // The point will be "above" all the segments if the vertices were specified in ccw order. 
-    boolean aboveAll = true; 
-    
-    // Iterate over this polygon's segments. 
-    for(int j = 0; j < numPoints; j++) {
-      // segment start and end points.
-      double sx = this.x[j];
-      double sy = this.y[j];
-      double ex = this.x[(j+1) % numPoints];
-      double ey = this.y[(j+1) % numPoints];
-      
-      // Return false early if the point has been found to be neither above 
-      // nor below all this polygon's segments.
-      int relCCW = Line2D.relativeCCW(sx, sy, ex, ey, x, y);
-      if(relCCW > 0) {
-        underAll = false;
-      }
-      if(relCCW < 0) {
-        aboveAll = false;
-      }
-      if(!underAll && !aboveAll) {
-        return false;
-      }
+    computeShapeInfo();
+    double[] b = bounds;
+    if(x < b[0] || y < b[1] || x > b[2] || y > b[3]) {
+      return false;
     }
-    
-    // Either the point is above or above all this polygon's segments, and is therefore inside it.
-    return true;
+    return convex ? convexContains(x, y) : windingNumber(x, y) != 0;
   }
   
   
   
-  /** Returns true iff this polygon is convex and it contains the specified point. */
+  /** Returns true iff this polygon contains the specified point. */
   public boolean contains(Point2D p) {
     if(p == null) {
       return false;
@@ -167,6 +186,94 @@ public class Polygon2D { // implements Shape {
   }
   
   
+  /** 
+   * Tests a batch of points packed into arrays against this polygon, such 
+   * as every particle against a zone. Bit k of hits is set iff the polygon 
+   * contains point from + k, where bit k is bit (k & 63) of hits[k >> 6], 
+   * and the other bits of the words written are cleared. hits must have at 
+   * least (to - from + 63)/64 words. The polygon's bounds and convexity are 
+   * looked up once for the whole batch, and no objects are allocated. 
+   * @return  the number of points the polygon contains.
+   */
+  public int contains(double[] xs, double[] ys, int from, int to, long[] hits) {
+    computeShapeInfo();
+    double minX = bounds[0];
+    double minY = bounds[1];
+    double maxX = bounds[2];
+    double maxY = bounds[3];
+    boolean convex = this.convex;
+    
+    int n = to - from;
+    int count = 0;
+    for(int base = 0; base < n; base += 64) {
+      int end = Math.min(n, base + 64);
+      long word = 0;
+      for(int k = base; k < end; k++) {
+        double px = xs[from + k];
+        double py = ys[from + k];
+        if(px < minX || py < minY || px > maxX || py > maxY) {
+          continue;
+        }
+        if(convex ? convexContains(px, py) : windingNumber(px, py) != 0) {
+          word |= 1L << (k - base);
+        }
+      }
+      hits[base >> 6] = word;
+      count += Long.bitCount(word);
+    }
+    return count;
+  }
+  
+  
+  /** Returns true iff the polygon is convex. Polygons whose vertices are all on one line count as convex. */
+  public boolean isConvex() {
+    computeShapeInfo();
+    return convex;
+  }
+  
+  /** Returns the smallest x coordinate of the polygon's vertices. */
+  public double getMinX() {
+    computeShapeInfo();
+    return bounds[0];
+  }
+  
+  /** Returns the smallest y coordinate of the polygon's vertices. */
+  public double getMinY() {
+    computeShapeInfo();
+    return bounds[1];
+  }
+  
+  /** Returns the largest x coordinate of the polygon's vertices. */
+  public double getMaxX() {
+    computeShapeInfo();
+    return bounds[2];
+  }
+  
+  /** Returns the largest y coordinate of the polygon's vertices. */
+  public double getMaxY() {
+    computeShapeInfo();
+    return bounds[3];
+  }
+  
+  /** Returns the polygon's bounding box. */
+  public Rectangle2D getBounds() {
+    computeShapeInfo();
+    return new Rectangle2D.Double(bounds[0], bounds[1], bounds[2] - bounds[0], bounds[3] - bounds[1]);
+  }
+  
+  /** 
+   * Returns the polygon's signed area, which is positive if its vertices go 
+   * counter-clockwise in standard geometry (clockwise in default Java2D geometry). 
+   */
+  public double getSignedArea() {
+    double area = 0;
+    for(int i = 0, j = x.length - 1; i < x.length; j = i++) {
+      area += x[j]*y[i] - x[i]*y[j];
+    }
+    return area/2;
+  }
+  
+  
   /** Tests if the interior of the polygon intersects the interior of another polygon. */
   public boolean intersects(Polygon2D other) {
     
@@ -219,9 +326,9 @@ public class Polygon2D { // implements Shape {
       
       // Move on to next segment if we determine that the current segment 
       // can't be a separating axis.
-      for(int i = 0; i < other.size(); i++) {
-        Point2D pt = other.getPoint(i);
-        int relCCW = Line2D.relativeCCW(sx, sy, ex, ey, pt.getX(), pt.getY());
+      int otherPoints = other.size();
+      for(int i = 0; i < otherPoints; i++) {
+        int relCCW = Line2D.relativeCCW(sx, sy, ex, ey, other.x[i], other.y[i]);
         if(relCCW < 0) {
           sepAxis = false;
           break;
@@ -242,6 +349,344 @@ public class Polygon2D { // implements Shape {
   
   
   
+  /** 
+   * Computes the unit outward normals of the edges if they haven't been 
+   * computed yet. The outward side is found from the sign of the polygon's 
+   * area, so the vertices may be in either order. Zero-length edges get a 
+   * normal of (0, 0). 
+   */
+  private void computeNormals() {
+    if(normalX != null)
+      return;
+    
+    int numPoints = size();
+    double area = 0;
+    for(int i = 0; i < numPoints; i++) {
+      int j = (i+1) % numPoints;
+      area += x[i]*y[j] - x[j]*y[i];
+    }
+    double sign = (area >= 0) ? 1 : -1;
+    
+    double[] nx = new double[numPoints];
+    double[] ny = new double[numPoints];
+    for(int i = 0; i < numPoints; i++) {
+      int j = (i+1) % numPoints;
+      double dx = x[j] - x[i];
+      double dy = y[j] - y[i];
+      double len = Math.sqrt(dx*dx + dy*dy);
+      if(len > 0) {
+        nx[i] = sign*dy/len;
+        ny[i] = -sign*dx/len;
+      }
+    }
+    
+    // Publish the normals only once they're complete, so a polygon shared between threads never sees partial normals.
+    normalY = ny;
+    normalX = nx;
+  }
+  
+  
+  /** 
+   * Computes the bounding box and whether the polygon is convex if they 
+   * haven't been computed yet. A polygon is convex if its edges all turn 
+   * the same way, and their directions only turn around once, which rules 
+   * out self-intersecting stars. 
+   */
+  private void computeShapeInfo() {
+    if(bounds != null)
+      return;
+    
+    int numPoints = size();
+    double[] b = new double[4];
+    b[0] = Double.POSITIVE_INFINITY;
+    b[1] = Double.POSITIVE_INFINITY;
+    b[2] = Double.NEGATIVE_INFINITY;
+    b[3] = Double.NEGATIVE_INFINITY;
+    for(int i = 0; i < numPoints; i++) {
+      b[0] = Math.min(b[0], x[i]);
+      b[1] = Math.min(b[1], y[i]);
+      b[2] = Math.max(b[2], x[i]);
+      b[3] = Math.max(b[3], y[i]);
+    }
+    
+    // Count the turns of each sign, and how often the edges' x and y directions flip.
+    int leftTurns = 0;
+    int rightTurns = 0;
+    int xFlips = 0;
+    int yFlips = 0;
+    double lastDX = 0;
+    double lastDY = 0;
+    for(int i = 0; i < numPoints; i++) {
+      int j = (i+1) % numPoints;
+      double dx = x[j] - x[i];
+      double dy = y[j] - y[i];
+      
+      // The turn is measured against the next edge that has a length, so repeated vertices can't hide it.
+      int k = (j+1) % numPoints;
+      for(int steps = 0; steps < numPoints && x[k] == x[j] && y[k] == y[j]; steps++)
+        k = (k+1) % numPoints;
+      double cross = dx*(y[k] - y[j]) - dy*(x[k] - x[j]);
+      if(cross > 0)
+        leftTurns++;
+      else if(cross < 0)
+        rightTurns++;
+      
+      if(dx != 0) {
+        if(lastDX != 0 && (dx > 0) != (lastDX > 0))
+          xFlips++;
+        lastDX = dx;
+      }
+      if(dy != 0) {
+        if(lastDY != 0 && (dy > 0) != (lastDY > 0))
+          yFlips++;
+        lastDY = dy;
+      }
+    }
+    
+    // The flips are counted around the whole loop, including from the last edge back to the first.
+    for(int i = 0; i < numPoints; i++) {
+      double dx = x[(i+1) % numPoints] - x[i];
+      if(dx != 0) {
+        if(lastDX != 0 && (dx > 0) != (lastDX > 0))
+          xFlips++;
+        break;
+      }
+    }
+    for(int i = 0; i < numPoints; i++) {
+      double dy = y[(i+1) % numPoints] - y[i];
+      if(dy != 0) {
+        if(lastDY != 0 && (dy > 0) != (lastDY > 0))
+          yFlips++;
+        break;
+      }
+    }
+    
+    // Publish the bounds last, since they mark the shape info as computed.
+    convex = (leftTurns == 0 || rightTurns == 0) && xFlips <= 2 && yFlips <= 2;
+    bounds = b;
+  }
+  
+  /** Returns true iff the point is on the same side of every edge, or on an edge, of this convex polygon. */
+  private boolean convexContains(double px, double py) {
+    int numPoints = size();
+    boolean left = false;
+    boolean right = false;
+    for(int i = 0; i < numPoints; i++) {
+      int j = (i + 1 == numPoints) ? 0 : i + 1;
+      double cross = (x[j] - x[i])*(py - y[i]) - (y[j] - y[i])*(px - x[i]);
+      if(cross > 0)
+        left = true;
+      else if(cross < 0)
+        right = true;
+      if(left && right)
+        return false;
+    }
+    return true;
+  }
+  
+  /** 
+   * Returns how many times the polygon winds around a point counter-clockwise 
+   * (in standard geometry), by adding up the edges crossing the horizontal 
+   * line through it upwards and subtracting the ones crossing it downwards. 
+   */
+  private int windingNumber(double px, double py) {
+    int numPoints = size();
+    int winding = 0;
+    for(int i = 0; i < numPoints; i++) {
+      int j = (i + 1 == numPoints) ? 0 : i + 1;
+      double cross = (x[j] - x[i])*(py - y[i]) - (y[j] - y[i])*(px - x[i]);
+      if(y[i] <= py) {
+        if(y[j] > py && cross > 0)
+          winding++;
+      }
+      else {
+        if(y[j] <= py && cross < 0)
+          winding--;
+      }
+    }
+    return winding;
+  }
+  
+  
+  //////// SAT narrowphase
+  
+  /** How much farther B's best separating axis must be than A's for B's edge to be used as the reference edge. */
+  private static final double SAT_TOLERANCE = 1e-9;
+  
+  /** 
+   * Tests for a collision between this convex polygon (A) and another 
+   * convex polygon (B) using the Separating Axis Theorem, and computes 
+   * their contact. The edge normals are cached in each polygon, and the 
+   * test stops at the first separating axis it finds. No objects are 
+   * allocated. 
+   * 
+   * The contact normal is the edge normal of least penetration, pointing 
+   * from A towards B, and the contact points are found by clipping the 
+   * most anti-parallel edge of the other polygon against that edge. 
+   * Polygons that only touch collide with a depth of 0. 
+   * @param out   Set to the contact, or reset if the polygons aren't colliding.
+   * @return  true iff the polygons are colliding.
+   */
+  public boolean collide(Polygon2D other, Contact out) {
+    out.reset();
+    if(size() < 2 || other.size() < 2)
+      return false;
+    computeNormals();
+    other.computeNormals();
+    
+    // Find the axis of least penetration among each polygon's edge normals.
+    int edgeA = -1;
+    double sepA = Double.NEGATIVE_INFINITY;
+    for(int i = 0; i < size(); i++) {
+      if(normalX[i] == 0 && normalY[i] == 0)
+        continue;
+      double sep = edgeSeparation(this, i, other);
+      if(sep > 0)
+        return false;
+      if(sep > sepA) {
+        sepA = sep;
+        edgeA = i;
+      }
+    }
+    
+    int edgeB = -1;
+    double sepB = Double.NEGATIVE_INFINITY;
+    for(int i = 0; i < other.size(); i++) {
+      if(other.normalX[i] == 0 && other.normalY[i] == 0)
+        continue;
+      double sep = edgeSeparation(other, i, this);
+      if(sep > 0)
+        return false;
+      if(sep > sepB) {
+        sepB = sep;
+        edgeB = i;
+      }
+    }
+    
+    if(edgeA < 0 && edgeB < 0)
+      return false;
+    
+    // The polygon with the best separating axis provides the reference edge.
+    Polygon2D ref = this;
+    Polygon2D inc = other;
+    int refEdge = edgeA;
+    double refSep = sepA;
+    boolean flip = false;
+    if(edgeA < 0 || (edgeB >= 0 && sepB > sepA + SAT_TOLERANCE)) {
+      ref = other;
+      inc = this;
+      refEdge = edgeB;
+      refSep = sepB;
+      flip = true;
+    }
+    double nx = ref.normalX[refEdge];
+    double ny = ref.normalY[refEdge];
+    
+    // The incident edge is the one on the other polygon that faces the reference edge the most.
+    int incPoints = inc.size();
+    int incEdge = 0;
+    double minDot = Double.POSITIVE_INFINITY;
+    for(int i = 0; i < incPoints; i++) {
+      double dot = nx*inc.normalX[i] + ny*inc.normalY[i];
+      if(dot < minDot) {
+        minDot = dot;
+        incEdge = i;
+      }
+    }
+    double ix1 = inc.x[incEdge];
+    double iy1 = inc.y[incEdge];
+    double ix2 = inc.x[(incEdge+1) % incPoints];
+    double iy2 = inc.y[(incEdge+1) % incPoints];
+    
+    // Clip the incident edge to the sides of the reference edge.
+    double rx1 = ref.x[refEdge];
+    double ry1 = ref.y[refEdge];
+    double rx2 = ref.x[(refEdge+1) % ref.size()];
+    double ry2 = ref.y[(refEdge+1) % ref.size()];
+    double tx = rx2 - rx1;
+    double ty = ry2 - ry1;
+    double lo = tx*rx1 + ty*ry1;
+    double hi = tx*rx2 + ty*ry2;
+    double d1 = tx*ix1 + ty*iy1;
+    double d2 = tx*ix2 + ty*iy2;
+    
+    double sMin = 0;
+    double sMax = 1;
+    double dd = d2 - d1;
+    if(dd == 0) {
+      if(d1 < lo || d1 > hi)
+        sMax = -1;
+    }
+    else {
+      double s1 = (lo - d1)/dd;
+      double s2 = (hi - d1)/dd;
+      if(s1 > s2) {
+        double t = s1;
+        s1 = s2;
+        s2 = t;
+      }
+      sMin = Math.max(sMin, s1);
+      sMax = Math.min(sMax, s2);
+    }
+    
+    if(sMin <= sMax) {
+      addClippedPoint(out, ix1 + (ix2 - ix1)*sMin, iy1 + (iy2 - iy1)*sMin, nx, ny, rx1, ry1);
+      if(sMax > sMin)
+        addClippedPoint(out, ix1 + (ix2 - ix1)*sMax, iy1 + (iy2 - iy1)*sMax, nx, ny, rx1, ry1);
+    }
+    
+    // If clipping lost every point to rounding, use the incident polygon's deepest vertex.
+    if(out.pointCount == 0) {
+      int deepest = 0;
+      double minSep = Double.POSITIVE_INFINITY;
+      for(int i = 0; i < incPoints; i++) {
+        double sep = nx*(inc.x[i] - rx1) + ny*(inc.y[i] - ry1);
+        if(sep < minSep) {
+          minSep = sep;
+          deepest = i;
+        }
+      }
+      out.addPoint(inc.x[deepest], inc.y[deepest], Math.max(0, -minSep));
+    }
+    
+    out.isColliding = true;
+    out.normalX = nx;
+    out.normalY = ny;
+    out.depth = -refSep;
+    if(flip)
+      out.flip();
+    return true;
+  }
+  
+  /** 
+   * Returns the signed distance of a polygon's vertices past the edge of 
+   * another polygon, along the edge's outward normal. A positive separation 
+   * means the edge is a separating axis. 
+   */
+  private static double edgeSeparation(Polygon2D p, int edge, Polygon2D q) {
+    double nx = p.normalX[edge];
+    double ny = p.normalY[edge];
+    double ax = p.x[edge];
+    double ay = p.y[edge];
+    
+    double minSep = Double.POSITIVE_INFINITY;
+    int numPoints = q.size();
+    for(int i = 0; i < numPoints; i++) {
+      double sep = nx*(q.x[i] - ax) + ny*(q.y[i] - ay);
+      if(sep < minSep)
+        minSep = sep;
+    }
+    return minSep;
+  }
+  
+  /** Adds a clipped incident point to a contact if it's behind the reference edge. */
+  private static void addClippedPoint(Contact out, double px, double py, double nx, double ny, double rx, double ry) {
+    double sep = nx*(px - rx) + ny*(py - ry);
+    if(sep <= 0)
+      out.addPoint(px, py, -sep);
+  }
+  
+  
   //////// Intersections
   
   
@@ -454,39 +899,45 @@ public class Polygon2D { // implements Shape {
   //////// Polygon set theory
   
   
-  /** 
-   * TODO Returns a polygon representing the union of this polygon with another polygon. 
+  /* 
+   * The boolean operations return lists of polygons, since a result can have 
+   * several pieces and holes. A ring inside an odd number of the others is a 
+   * hole. The outer rings have positive signed areas and the holes have 
+   * negative signed areas. See PolygonClipper for operations on polygons 
+   * that already have holes. 
    */
-  public Polygon2D union(Polygon2D other) {
+  
+  /** Returns the polygons covering the union of this polygon with another polygon. */
+  public List<Polygon2D> union(Polygon2D other) {
     return Polygon2D.union(this, other);
   }
   
-  /** TODO Returns a polygon representing the union of two polygons. */
-  public static Polygon2D union(Polygon2D p1, Polygon2D p2) {
-    return null;
+  /** Returns the polygons covering the union of two polygons. */
+  public static List<Polygon2D> union(Polygon2D p1, Polygon2D p2) {
+    return PolygonClipper.union(p1, p2);
   }
   
   
-  /** TODO Returns a polygon representing the area of intersection between this polygon and another polygon. */
-  public Polygon2D intersection(Polygon2D other) {
+  /** Returns the polygons covering the area of intersection between this polygon and another polygon. */
+  public List<Polygon2D> intersection(Polygon2D other) {
     return Polygon2D.intersection(this, other);
   }
   
-  /** TODO Returns a polygon representing the area of intersection between two polygons. */
-  public static Polygon2D intersection(Polygon2D p1, Polygon2D p2) {
-    return null;
+  /** Returns the polygons covering the area of intersection between two polygons. */
+  public static List<Polygon2D> intersection(Polygon2D p1, Polygon2D p2) {
+    return PolygonClipper.intersection(p1, p2);
   }
   
   
-  /** TODO Returns a polygon representing the difference between this polygon and another polygon.*/
-  public Polygon2D difference(Polygon2D other) {
+  /** Returns the polygons covering the area of this polygon that isn't in another polygon. */
+  public List<Polygon2D> difference(Polygon2D other) {
     return Polygon2D.difference(this, other);
   }
   
   
-  /** TODO Returns a polygon representing the difference between two polygons. */
-  public static Polygon2D difference(Polygon2D p1, Polygon2D p2) {
-    return null;
+  /** Returns the polygons covering the area of the first polygon that isn't in the second polygon. */
+  public static List<Polygon2D> difference(Polygon2D p1, Polygon2D p2) {
+    return PolygonClipper.difference(p1, p2);
   }
   
   
@@ -30,362 +30,811 @@ package pwnee.geom.algs;
 
 import java.awt.geom.Line2D;
 import java.awt.geom.Point2D;
-import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Set;
 
-import pwnee.GameMath;
-import pwnee.util.BalancedBinaryTree;
-import pwnee.util.BinaryTreeNode;
-import pwnee.util.SortedArrayList;
+import pwnee.util.LongHashSet;
 
 /** 
  * A utility class for performing the Bentley-Ottmann line sweep algorithm for 
  * finding the points of intersection between two sets of line segments.
  * See: http://geomalgorithms.com/a09-_intersect-3.html
+ * 
+ * The sweep runs over primitive arrays so that it allocates almost nothing 
+ * per segment, which lets it handle a million segments. An instance keeps 
+ * its arrays between runs, so reusing one doesn't allocate at all once they 
+ * are big enough. It reports each pair of touching segments once, along 
+ * with a point where they touch, in O((n + k)*log(n)) time for n segments 
+ * and k pairs.
+ * 
+ * The sweep goes from left to right, breaking ties from bottom to top, so 
+ * vertical segments need no special treatment. Each event point is handled 
+ * all at once, following de Berg et al.: every segment starting at, ending 
+ * at, or passing through the point is found, all pairs of them are 
+ * reported, and the ones continuing past it are reinserted in their order 
+ * just after it. This handles segments sharing endpoints, several segments 
+ * crossing at one point, and segments starting on other segments. 
+ * Collinear overlapping segments are reported at the start of their 
+ * overlap. Segments with zero length are ignored.
  */
 public class BentleyOttmannLineSweepAlgorithm {
   
-  private Set<Point2D> result;
-  private Set<SweepIntersection> visited;
-  private PriorityQueue<SweepEvent> eventQueue;
-  private BalancedBinaryTree<SweepLeft> sweepLine;
+  /** 
+   * How far from a segment, relative to the size of the coordinates, an 
+   * event point can be and still count as on it, to absorb the rounding 
+   * of computed intersection points. 
+   */
+  private static final double TOLERANCE = 1e-10;
   
-  private BentleyOttmannLineSweepAlgorithm() {
-    result = new HashSet<>();
-    visited = new HashSet<>();
-    eventQueue = new PriorityQueue<>();
-    sweepLine = new BalancedBinaryTree(getSweepComparator());
-  }
+  private double tolerance;
   
+  /** The segments, with each segment's endpoints in ascending XY order. */
+  private double[] x1s = new double[0];
+  private double[] y1s = new double[0];
+  private double[] x2s = new double[0];
+  private double[] y2s = new double[0];
+  private int segCount;
   
-  /** Returns the set of intersection points for a set of line segments in O(N*logN) time. */
-  public static Set<Point2D> getIntersections(Set<Line2D> segments) {
-    BentleyOttmannLineSweepAlgorithm algorithm = new BentleyOttmannLineSweepAlgorithm();
-    return algorithm.run(segments);
-  }
+  /** 
+   * The segment endpoints in ascending XY order, as the segment index times 
+   * 2, plus 1 for right endpoints. Their coordinates are sorted along with 
+   * them, so that the sort and the sweep read them in order. 
+   */
+  private int[] endpoints = new int[0];
+  private double[] endpointXs = new double[0];
+  private double[] endpointYs = new double[0];
+  private int endpointCount;
+  
+  /** The intersection events, in a binary heap ordered by their points in ascending XY order. */
+  private double[] heapXs = new double[16];
+  private double[] heapYs = new double[16];
+  private int[] heapAs = new int[16];
+  private int[] heapBs = new int[16];
+  private int heapSize;
   
+  /** 
+   * The sweep line, as a treap of the segments crossing it in ascending 
+   * order, using the segments' indices as its nodes. 
+   */
+  private int[] lefts = new int[0];
+  private int[] rights = new int[0];
+  private int[] parents = new int[0];
+  private int[] priorities = new int[0];
+  private boolean[] inSweep = new boolean[0];
+  private int root;
+  private int seed = 0x2545F491;
   
-  /** This actually runs the algorithm. */
-  private Set<Point2D> run(Set<Line2D> segments) {
-    
-    // Populate our event queue with the segment endpoints.
+  /** The current event point. */
+  private double eventX;
+  private double eventY;
+  
+  /** The segments starting at the current event point. */
+  private int[] starting = new int[16];
+  private int startingCount;
+  
+  /** The segments in the sweep line touching the current event point. */
+  private int[] touching = new int[16];
+  private int touchingCount;
+  
+  /** Marks the segments found at the current event point with the current stamp. */
+  private int[] marks = new int[0];
+  private int stamp;
+  
+  /** The segments next to the touching segments, below and above them. */
+  private int below;
+  private int above;
+  
+  /** The segments reinserted at the current event point are also marked here. */
+  private int[] reinserted = new int[0];
+  
+  /** The point computed by intersect. */
+  private double hitX;
+  private double hitY;
+  
+  /** The pairs of touching segments found, and where they touch. */
+  private int[] resultAs = new int[16];
+  private int[] resultBs = new int[16];
+  private double[] resultXs = new double[16];
+  private double[] resultYs = new double[16];
+  private int resultCount;
+  private LongHashSet reported = new LongHashSet();
+  
+  
+  /** Creates a sweep whose arrays are reused each time it runs. */
+  public BentleyOttmannLineSweepAlgorithm() {}
+  
+  
+  /** Returns the set of intersection points for a set of line segments in O((N + K)*logN) time. */
+  public static Set<Point2D> getIntersections(Set<Line2D> segments) {
+    int n = segments.size();
+    double[] x1s = new double[n];
+    double[] y1s = new double[n];
+    double[] x2s = new double[n];
+    double[] y2s = new double[n];
+    int i = 0;
     for(Line2D seg : segments) {
-      SweepEvent[] segEvents = SweepEvent.createEvents(seg);
-      eventQueue.add(segEvents[0]);
-      eventQueue.add(segEvents[1]);
+      x1s[i] = seg.getX1();
+      y1s[i] = seg.getY1();
+      x2s[i] = seg.getX2();
+      y2s[i] = seg.getY2();
+      i++;
     }
     
+    BentleyOttmannLineSweepAlgorithm algorithm = new BentleyOttmannLineSweepAlgorithm();
+    int count = algorithm.run(x1s, y1s, x2s, y2s, n);
     
-    while(!eventQueue.isEmpty()) {
-      SweepEvent e = eventQueue.remove();
-      
-      if(e instanceof SweepLeft) {
-        SweepLeft left = (SweepLeft) e;
-        sweepLine.add(left);
-        
-        // Test for intersections between this segment and the ones above and below it.
-        BinaryTreeNode<SweepLeft> curNode = sweepLine.getNode(left);
-        BinaryTreeNode<SweepLeft> prevNode = curNode.getPrev();
-        BinaryTreeNode<SweepLeft> nextNode = curNode.getNext();
-        
-        tryIntersection(curNode, prevNode);
-        tryIntersection(curNode, nextNode);
-      }
-      else if(e instanceof SweepRight) {
-        SweepRight right = (SweepRight) e;
-        
-        // Test for intersection between the segments above and below this one.
-        BinaryTreeNode<SweepLeft> curNode = sweepLine.getNode(right.left);
-        BinaryTreeNode<SweepLeft> prevNode = curNode.getPrev();
-        BinaryTreeNode<SweepLeft> nextNode = curNode.getNext();
-        
-        tryIntersection(prevNode, nextNode);
-        
-        // Remove the segment from the sweep line.
-        sweepLine.remove(right.left);
-      }
-      else if(e instanceof SweepIntersection) {
-        SweepIntersection intersection = (SweepIntersection) e;
-        
-        // Process an intersection between any two segments only once.
-        if(!visited.contains(intersection)) {
-          visited.add(intersection);
-          
-          // The intersecting segments swap places after adjustment.
-          sweepLine.remove(intersection.upperLeft);
-          sweepLine.remove(intersection.lowerLeft);
-          SweepLeft newUpper = new SweepLeft(intersection.point, new Line2D.Double(intersection.point, intersection.lowerLeft.right));
-          newUpper.setRight(intersection.lowerLeft.right);
-          SweepLeft newLower = new SweepLeft(intersection.point, new Line2D.Double(intersection.point, intersection.upperLeft.right));
-          newLower.setRight(intersection.upperLeft.right);
-          
-          // Add the adjusted segments back into the event queue.
-          eventQueue.add(newUpper);
-          eventQueue.add(newLower);
-        }
-      }
+    Set<Point2D> result = new HashSet<>();
+    for(int k = 0; k < count; k++) {
+      result.add(new Point2D.Double(algorithm.getX(k), algorithm.getY(k)));
     }
-    
-    
     return result;
   }
   
   
-  /** A comparator that compares line sweep events in ascending Y order of their endpoints. */
-  private static Comparator<SweepLeft> sweepComp = null;
+  //////// Results
   
-  private static Comparator<SweepLeft> getSweepComparator() {
-    if(sweepComp == null) {
-      final Comparator<Point2D> yComp = GameMath.getYComparator();
-      
-      sweepComp = new Comparator<SweepLeft>() {
-        public int compare(SweepLeft line1, SweepLeft line2) {
-          Point2D[] points1 = sortEndPoints(line1.segment);
-          Point2D[] points2 = sortEndPoints(line2.segment);
-          
-          int compare1 = yComp.compare(points1[0], points2[0]);
-          if(compare1 == 0) {
-            return yComp.compare(points1[1], points2[1]);
-          }
-          else {
-            return compare1;
-          }
-        }
-      };
-    }
-    return sweepComp;
+  /** Returns the number of pairs of touching segments found by the latest run. */
+  public int size() {
+    return resultCount;
   }
   
+  /** Returns the smaller index of the segments in a touching pair. */
+  public int getFirst(int i) {
+    return resultAs[i];
+  }
   
-  /** Sorts the two endpoints of a line in XY order. */
-  private static Point2D[] sortEndPoints(Line2D line) {
-    Point2D p1 = line.getP1();
-    Point2D p2 = line.getP2();
-    
-    Comparator<Point2D> comp = GameMath.getXYComparator();
-    if(comp.compare(p1, p2) > 0) {
-      Point2D temp = p1;
-      p1 = p2;
-      p2 = temp;
-    }
-    
-    return new Point2D[] {p1, p2};
+  /** Returns the larger index of the segments in a touching pair. */
+  public int getSecond(int i) {
+    return resultBs[i];
   }
   
+  /** Returns the x coordinate of a point where a pair of segments touches. */
+  public double getX(int i) {
+    return resultXs[i];
+  }
   
-  /** Tries to add the intersection between two events to the event queue. */
-  private void tryIntersection(BinaryTreeNode<SweepLeft> upperNode, BinaryTreeNode<SweepLeft> lowerNode) {
-    if(upperNode == null || lowerNode == null) {
-      return;
-    }
-    SweepLeft upper = upperNode.getValue();
-    SweepLeft lower = lowerNode.getValue();
+  /** Returns the y coordinate of a point where a pair of segments touches. */
+  public double getY(int i) {
+    return resultYs[i];
+  }
+  
+  
+  //////// Sweep
+  
+  /** 
+   * Finds the pairs of touching segments among the first n segments, 
+   * where segment i goes from (x1s[i], y1s[i]) to (x2s[i], y2s[i]). 
+   * Returns the number of pairs found. 
+   */
+  public int run(double[] x1s, double[] y1s, double[] x2s, double[] y2s, int n) {
+    load(x1s, y1s, x2s, y2s, n);
+    heapSize = 0;
+    root = -1;
+    resultCount = 0;
+    reported.clear();
     
-    Point2D i = upper.getIntersection(lower);
-    if(i != null) {
-      result.add(i);
-      SweepIntersection intersection = new SweepIntersection(i, upper, lower);
-      eventQueue.add(intersection);
+    int next = 0;
+    while(next < endpointCount || heapSize > 0) {
+      
+      // The next event point is either the next endpoint or the next intersection.
+      if(next < endpointCount && (heapSize == 0 || compare(endpointXs[next], endpointYs[next], heapXs[0], heapYs[0]) <= 0)) {
+        eventX = endpointXs[next];
+        eventY = endpointYs[next];
+      }
+      else {
+        eventX = heapXs[0];
+        eventY = heapYs[0];
+      }
+      
+      stamp++;
+      startingCount = 0;
+      touchingCount = 0;
+      while(next < endpointCount && endpointXs[next] == eventX && endpointYs[next] == eventY) {
+        int seg = endpoints[next] >> 1;
+        if((endpoints[next] & 1) == 0) {
+          starting = push(starting, startingCount++, seg);
+          marks[seg] = stamp;
+        }
+        else {
+          addTouching(seg);
+        }
+        next++;
+      }
+      while(heapSize > 0 && heapXs[0] == eventX && heapYs[0] == eventY) {
+        addIfTouching(heapAs[0]);
+        addIfTouching(heapBs[0]);
+        pop();
+      }
+      handleEvent();
     }
+    return resultCount;
   }
-}
-
-
-
-/** A SweepEvent is used to represent parts of a line segment during the linesweep algorithm. */
-abstract class SweepEvent extends Point2D implements Comparable<SweepEvent> {
   
-  /** The endpoint this event represents. */
-  public Point2D point;
   
-  /** The line segment the point of this event belongs to. */
-  public Line2D segment;
-  
-  public SweepEvent(Point2D point, Line2D segment) {
-    this.point = point;
-    this.segment = segment;
+  /** Copies the segments with their endpoints in XY order, and sorts the endpoints. */
+  private void load(double[] xs1, double[] ys1, double[] xs2, double[] ys2, int n) {
+    if(x1s.length < n) {
+      x1s = new double[n];
+      y1s = new double[n];
+      x2s = new double[n];
+      y2s = new double[n];
+      endpoints = new int[n*2];
+      endpointXs = new double[n*2];
+      endpointYs = new double[n*2];
+      lefts = new int[n];
+      rights = new int[n];
+      parents = new int[n];
+      priorities = new int[n];
+      inSweep = new boolean[n];
+      marks = new int[n];
+      reinserted = new int[n];
+      stamp = 0;
+    }
+    segCount = n;
+    endpointCount = 0;
+    double scale = 1;
+    for(int i = 0; i < n; i++) {
+      double ax = xs1[i];
+      double ay = ys1[i];
+      double bx = xs2[i];
+      double by = ys2[i];
+      if(compare(ax, ay, bx, by) > 0) {
+        double t = ax;
+        ax = bx;
+        bx = t;
+        t = ay;
+        ay = by;
+        by = t;
+      }
+      x1s[i] = ax;
+      y1s[i] = ay;
+      x2s[i] = bx;
+      y2s[i] = by;
+      inSweep[i] = false;
+      scale = Math.max(scale, Math.max(Math.max(Math.abs(ax), Math.abs(ay)), Math.max(Math.abs(bx), Math.abs(by))));
+      if(ax != bx || ay != by) {
+        endpoints[endpointCount] = i*2;
+        endpointXs[endpointCount] = ax;
+        endpointYs[endpointCount] = ay;
+        endpointCount++;
+        endpoints[endpointCount] = i*2 + 1;
+        endpointXs[endpointCount] = bx;
+        endpointYs[endpointCount] = by;
+        endpointCount++;
+      }
+    }
+    tolerance = scale*TOLERANCE;
+    sortEndpoints(0, endpointCount - 1);
   }
   
-  /** Constructs the SweepEvents for the "left" and "right" endpoints of a line segment. */
-  public static SweepEvent[] createEvents(Line2D segment) {
-    Point2D p1 = segment.getP1();
-    Point2D p2 = segment.getP2();
+  
+  /** 
+   * Handles the current event point: reports the pairs of segments touching 
+   * it, then replaces the segments passing through it with the segments 
+   * continuing past it, and looks for intersections with their new neighbors. 
+   */
+  private void handleEvent() {
+    
+    // Usually nothing else touches a point where segments start, so insert them right away, 
+    // and only take them out again if a segment in the sweep line passes through the point.
+    boolean startsInserted = false;
+    if(touchingCount == 0) {
+      for(int i = 0; i < startingCount; i++) {
+        reinserted[starting[i]] = stamp;
+        insert(starting[i]);
+      }
+      for(int i = 0; i < startingCount; i++) {
+        addIfTouching(prev(starting[i]));
+        addIfTouching(next(starting[i]));
+      }
+      startsInserted = (touchingCount == 0);
+      if(!startsInserted) {
+        for(int i = 0; i < startingCount; i++) {
+          remove(starting[i]);
+        }
+      }
+    }
+    
+    // Find the rest of the segments touching the point, which are next to it in the sweep line.
+    below = -1;
+    above = -1;
+    for(int i = 0; i < touchingCount; i++) {
+      int p = prev(touching[i]);
+      int n = next(touching[i]);
+      addIfTouching(p);
+      addIfTouching(n);
+      if(p >= 0 && marks[p] != stamp) {
+        below = p;
+      }
+      if(n >= 0 && marks[n] != stamp) {
+        above = n;
+      }
+    }
     
-    Comparator<Point2D> comp = GameMath.getXYComparator();
-    if(comp.compare(p1, p2) > 0) {
-      Point2D temp = p1;
-      p1 = p2;
-      p2 = temp;
+    // Report every pair touching the point.
+    int total = startingCount + touchingCount;
+    for(int i = 0; i < total; i++) {
+      int a = (i < startingCount) ? starting[i] : touching[i - startingCount];
+      for(int j = i + 1; j < total; j++) {
+        int b = (j < startingCount) ? starting[j] : touching[j - startingCount];
+        report(a, b, eventX, eventY);
+      }
     }
     
-    SweepLeft left = new SweepLeft(p1, segment);
-    SweepRight right = new SweepRight(p2, segment);
+    // Remove the touching segments, then insert the ones continuing past the point in their new order.
+    for(int i = 0; i < touchingCount; i++) {
+      remove(touching[i]);
+    }
+    int inserted = 0;
+    for(int i = 0; i < touchingCount; i++) {
+      int seg = touching[i];
+      if(x2s[seg] != eventX || y2s[seg] != eventY) {
+        reinserted[seg] = stamp;
+        insert(seg);
+        inserted++;
+      }
+    }
+    for(int i = 0; i < startingCount; i++) {
+      if(!startsInserted) {
+        reinserted[starting[i]] = stamp;
+        insert(starting[i]);
+      }
+      inserted++;
+    }
     
-    left.setRight(right);
+    // The segments that were around the removed ones are now neighbors.
+    if(inserted == 0) {
+      findEvent(below, above);
+      return;
+    }
     
-    return new SweepEvent[] {left, right};
+    // The inserted segments are contiguous, so test the lowest and highest against their outside neighbors.
+    for(int i = 0; i < touchingCount + startingCount; i++) {
+      int seg = (i < touchingCount) ? touching[i] : starting[i - touchingCount];
+      if(!inSweep[seg]) {
+        continue;
+      }
+      int p = prev(seg);
+      if(p < 0 || reinserted[p] != stamp) {
+        findEvent(p, seg);
+      }
+      int n = next(seg);
+      if(n < 0 || reinserted[n] != stamp) {
+        findEvent(seg, n);
+      }
+    }
   }
   
-  //////// Point2D implementation
-  public double getX() {
-    return point.getX();
-  }
   
-  public double getY() {
-    return point.getY();
+  /** Adds a segment in the sweep line to the touching segments, if it touches the event point and isn't there yet. */
+  private void addIfTouching(int seg) {
+    if(seg >= 0 && inSweep[seg] && marks[seg] != stamp && touches(seg)) {
+      addTouching(seg);
+    }
   }
   
-  public void setLocation(double x, double y) {
-    // do nothing.
+  private void addTouching(int seg) {
+    touching = push(touching, touchingCount++, seg);
+    marks[seg] = stamp;
   }
   
-  
-  public boolean intersects(SweepEvent other) {
-    return this.segment.intersectsLine(other.segment);
+  /** Returns true iff the event point is on a segment, within the tolerance. */
+  private boolean touches(int seg) {
+    double ax = x1s[seg];
+    double ay = y1s[seg];
+    double bx = x2s[seg];
+    double by = y2s[seg];
+    if((eventX == ax && eventY == ay) || (eventX == bx && eventY == by)) {
+      return true;
+    }
+    if(eventX < ax - tolerance || eventX > bx + tolerance || eventY < Math.min(ay, by) - tolerance || eventY > Math.max(ay, by) + tolerance) {
+      return false;
+    }
+    double c = cross(ax, ay, bx, by, eventX, eventY);
+    return c*c <= tolerance*tolerance*((bx - ax)*(bx - ax) + (by - ay)*(by - ay));
   }
   
   
-  public Point2D getIntersection(SweepEvent other) {
-    return GameMath.segIntersection(this.segment, other.segment);
+  /** Adds an intersection event for two neighboring segments if they touch after the event point. */
+  private void findEvent(int a, int b) {
+    if(a < 0 || b < 0) {
+      return;
+    }
+    if(intersect(a, b) && compare(hitX, hitY, eventX, eventY) > 0) {
+      if(heapSize == heapXs.length) {
+        heapXs = Arrays.copyOf(heapXs, heapSize*2);
+        heapYs = Arrays.copyOf(heapYs, heapSize*2);
+        heapAs = Arrays.copyOf(heapAs, heapSize*2);
+        heapBs = Arrays.copyOf(heapBs, heapSize*2);
+      }
+      int i = heapSize++;
+      while(i > 0) {
+        int parent = (i - 1) >> 1;
+        if(compare(heapXs[parent], heapYs[parent], hitX, hitY) <= 0) {
+          break;
+        }
+        moveHeap(parent, i);
+        i = parent;
+      }
+      heapXs[i] = hitX;
+      heapYs[i] = hitY;
+      heapAs[i] = a;
+      heapBs[i] = b;
+    }
   }
   
-  
-  //////// Comparable implementation
-  
   /** 
-   * SweepEvents are naturally compared by their points in ascending XY order. 
-   * For ties, SweepLefts take priority, followed by SweepIntersections, then SweepRights.
+   * Returns true iff two segments touch, and sets (hitX, hitY) to where. 
+   * Collinear overlapping segments touch at the start of their overlap. 
    */
-  public int compareTo(SweepEvent other) {
-    int compare = GameMath.getXYComparator().compare(this, other);
-    if(compare == 0) {
-      int thisPriority = this.getPriority();
-      int otherPriority = other.getPriority();
+  private boolean intersect(int a, int b) {
+    double ax = x1s[a];
+    double ay = y1s[a];
+    double bx = x2s[a];
+    double by = y2s[a];
+    double cx = x1s[b];
+    double cy = y1s[b];
+    double dx = x2s[b];
+    double dy = y2s[b];
+    if(bx < cx || dx < ax || Math.max(ay, by) < Math.min(cy, dy) || Math.max(cy, dy) < Math.min(ay, by)) {
+      return false;
+    }
+    
+    double o1 = cross(ax, ay, bx, by, cx, cy);
+    double o2 = cross(ax, ay, bx, by, dx, dy);
+    if(o1 == 0 && o2 == 0) {
       
-      if(thisPriority < otherPriority) {
-        return -1;
-      }
-      else if(thisPriority > otherPriority) {
-        return 1;
-      }
-      else {
-        return 0;
+      // The later of the left endpoints starts the overlap, if the segments overlap.
+      if(compare(ax, ay, cx, cy) < 0) {
+        hitX = cx;
+        hitY = cy;
+        return compare(cx, cy, bx, by) <= 0;
       }
+      hitX = ax;
+      hitY = ay;
+      return compare(ax, ay, dx, dy) <= 0;
+    }
+    double o3 = cross(cx, cy, dx, dy, ax, ay);
+    double o4 = cross(cx, cy, dx, dy, bx, by);
+    if((o1 > 0 && o2 > 0) || (o1 < 0 && o2 < 0) || (o3 > 0 && o4 > 0) || (o3 < 0 && o4 < 0)) {
+      return false;
+    }
+    
+    // Endpoints on the other segment are exact.
+    if(o1 == 0) {
+      hitX = cx;
+      hitY = cy;
+    }
+    else if(o2 == 0) {
+      hitX = dx;
+      hitY = dy;
+    }
+    else if(o3 == 0) {
+      hitX = ax;
+      hitY = ay;
+    }
+    else if(o4 == 0) {
+      hitX = bx;
+      hitY = by;
     }
     else {
-      return compare;
+      double t = o3/(o3 - o4);
+      hitX = ax + (bx - ax)*t;
+      hitY = ay + (by - ay)*t;
+      
+      // Keep the rounded point inside both segments' bounding boxes.
+      hitX = Math.max(Math.max(ax, cx), Math.min(Math.min(bx, dx), hitX));
+      hitY = Math.max(Math.max(Math.min(ay, by), Math.min(cy, dy)), Math.min(Math.min(Math.max(ay, by), Math.max(cy, dy)), hitY));
     }
+    return true;
   }
   
+  private void report(int a, int b, double x, double y) {
+    if(!reported.add(LongHashSet.pairKey(a, b))) {
+      return;
+    }
+    if(resultCount == resultAs.length) {
+      resultAs = Arrays.copyOf(resultAs, resultCount*2);
+      resultBs = Arrays.copyOf(resultBs, resultCount*2);
+      resultXs = Arrays.copyOf(resultXs, resultCount*2);
+      resultYs = Arrays.copyOf(resultYs, resultCount*2);
+    }
+    resultAs[resultCount] = Math.min(a, b);
+    resultBs[resultCount] = Math.max(a, b);
+    resultXs[resultCount] = x;
+    resultYs[resultCount] = y;
+    resultCount++;
+  }
   
-  //////// Abstract methods
-  
-  /** Returns the priority for this event type in case of a tie during a compareTo. */
-  public abstract int getPriority();
-} 
-
-/** An event representing the "left" endpoint of a segment. */
-class SweepLeft extends SweepEvent {
   
-  /** The corresponding right endpoint for the event's segment. */
-  public SweepRight right;
+  //////// Sweep line
   
-  public SweepLeft(Point2D point, Line2D segment) {
-    super(point, segment);
+  /** Returns the y coordinate of a segment in the sweep line at the event point's x. Vertical segments are at the event point's y, clamped to their range. */
+  private double yAt(int seg) {
+    double ax = x1s[seg];
+    double bx = x2s[seg];
+    if(ax == bx) {
+      return Math.max(y1s[seg], Math.min(y2s[seg], eventY));
+    }
+    if(eventX <= ax) {
+      return y1s[seg];
+    }
+    if(eventX >= bx) {
+      return y2s[seg];
+    }
+    return y1s[seg] + (eventX - ax)*(y2s[seg] - y1s[seg])/(bx - ax);
   }
   
-  public void setRight(SweepRight right) {
-    this.right = right;
-    right.left = this;
+  /** 
+   * Compares a segment being inserted at the event point with a segment in 
+   * the sweep line, by their order just after the event point. The 
+   * segments inserted together all pass through the event point, so they 
+   * are ordered by their slopes, with vertical segments last. 
+   */
+  private int compareInSweep(int seg, int other) {
+    if(reinserted[other] != stamp) {
+      double y = yAt(other);
+      if(eventY != y) {
+        return (eventY < y) ? -1 : 1;
+      }
+    }
+    double sdx = x2s[seg] - x1s[seg];
+    double sdy = y2s[seg] - y1s[seg];
+    double odx = x2s[other] - x1s[other];
+    double ody = y2s[other] - y1s[other];
+    double slope = sdy*odx - ody*sdx;
+    if(sdx == 0 && odx == 0) {
+      slope = 0;
+    }
+    else if(sdx == 0) {
+      slope = 1;
+    }
+    else if(odx == 0) {
+      slope = -1;
+    }
+    if(slope != 0) {
+      return (slope < 0) ? -1 : 1;
+    }
+    return (seg < other) ? -1 : 1;
   }
   
-  /** SweepLefts have best priority. */
-  public int getPriority() {
-    return 1;
+  /** Inserts a segment into the sweep line at the event point. */
+  private void insert(int seg) {
+    lefts[seg] = -1;
+    rights[seg] = -1;
+    seed ^= seed << 13;
+    seed ^= seed >>> 17;
+    seed ^= seed << 5;
+    priorities[seg] = seed;
+    inSweep[seg] = true;
+    
+    if(root < 0) {
+      root = seg;
+      parents[seg] = -1;
+      return;
+    }
+    int node = root;
+    while(true) {
+      if(compareInSweep(seg, node) < 0) {
+        if(lefts[node] < 0) {
+          lefts[node] = seg;
+          break;
+        }
+        node = lefts[node];
+      }
+      else {
+        if(rights[node] < 0) {
+          rights[node] = seg;
+          break;
+        }
+        node = rights[node];
+      }
+    }
+    parents[seg] = node;
+    while(parents[seg] >= 0 && priorities[parents[seg]] < priorities[seg]) {
+      rotateUp(seg);
+    }
   }
-}
-
-/** An event representing the "right" endpoint of a segment. */
-class SweepRight extends SweepEvent {
   
-  /** The corresponding left endpoint for the event's segment. */
-  public SweepLeft left;
-  
-  public SweepRight(Point2D point, Line2D segment) {
-    super(point, segment);
+  /** Removes a segment from the sweep line without comparing it to anything. */
+  private void remove(int seg) {
+    while(lefts[seg] >= 0 || rights[seg] >= 0) {
+      int child;
+      if(lefts[seg] < 0) {
+        child = rights[seg];
+      }
+      else if(rights[seg] < 0) {
+        child = lefts[seg];
+      }
+      else {
+        child = (priorities[lefts[seg]] > priorities[rights[seg]]) ? lefts[seg] : rights[seg];
+      }
+      rotateUp(child);
+    }
+    int parent = parents[seg];
+    if(parent < 0) {
+      root = -1;
+    }
+    else if(lefts[parent] == seg) {
+      lefts[parent] = -1;
+    }
+    else {
+      rights[parent] = -1;
+    }
+    inSweep[seg] = false;
   }
   
-  public void setLeft(SweepLeft left) {
-    this.left = left;
-    left.right = this;
+  /** Rotates a node above its parent. */
+  private void rotateUp(int node) {
+    int parent = parents[node];
+    int grand = parents[parent];
+    if(lefts[parent] == node) {
+      lefts[parent] = rights[node];
+      if(rights[node] >= 0) {
+        parents[rights[node]] = parent;
+      }
+      rights[node] = parent;
+    }
+    else {
+      rights[parent] = lefts[node];
+      if(lefts[node] >= 0) {
+        parents[lefts[node]] = parent;
+      }
+      lefts[node] = parent;
+    }
+    parents[parent] = node;
+    parents[node] = grand;
+    if(grand < 0) {
+      root = node;
+    }
+    else if(lefts[grand] == parent) {
+      lefts[grand] = node;
+    }
+    else {
+      rights[grand] = node;
+    }
   }
   
-  /** SweepRights have least priority. */
-  public int getPriority() {
-    return 3;
+  /** Returns the segment below a segment in the sweep line, or -1. */
+  private int prev(int node) {
+    if(lefts[node] >= 0) {
+      node = lefts[node];
+      while(rights[node] >= 0) {
+        node = rights[node];
+      }
+      return node;
+    }
+    while(parents[node] >= 0 && lefts[parents[node]] == node) {
+      node = parents[node];
+    }
+    return parents[node];
   }
-}
-
-
-/** An event representing an intersection between two segments. */
-class SweepIntersection extends SweepEvent {
   
-  /** The other segment the point at this event belongs to. */
-  public Line2D segment2;
+  /** Returns the segment above a segment in the sweep line, or -1. */
+  private int next(int node) {
+    if(rights[node] >= 0) {
+      node = rights[node];
+      while(lefts[node] >= 0) {
+        node = lefts[node];
+      }
+      return node;
+    }
+    while(parents[node] >= 0 && rights[parents[node]] == node) {
+      node = parents[node];
+    }
+    return parents[node];
+  }
   
-  /** The left endpoint for the upper segment to the left of the intersection.*/
-  public SweepLeft upperLeft;
   
-  /** The left endpoint for the lower segment to the left of the intersection. */
-  public SweepLeft lowerLeft;
+  //////// Events
   
+  /** Removes the first intersection event from the heap. */
+  private void pop() {
+    heapSize--;
+    double x = heapXs[heapSize];
+    double y = heapYs[heapSize];
+    int i = 0;
+    while(true) {
+      int child = i*2 + 1;
+      if(child >= heapSize) {
+        break;
+      }
+      if(child + 1 < heapSize && compare(heapXs[child + 1], heapYs[child + 1], heapXs[child], heapYs[child]) < 0) {
+        child++;
+      }
+      if(compare(heapXs[child], heapYs[child], x, y) >= 0) {
+        break;
+      }
+      moveHeap(child, i);
+      i = child;
+    }
+    moveHeap(heapSize, i);
+  }
   
-  /** 
-   * Constructs the intersection event given the point of intersection and 
-   * the events for the left endpoints of the segments forming the 
-   * intersection.
-   */
-  public SweepIntersection(Point2D point, SweepLeft upperLeft, SweepLeft lowerLeft) {
-    super(point, upperLeft.segment);
-    this.upperLeft = upperLeft;
-    this.lowerLeft = lowerLeft;
-    this.segment2 = lowerLeft.segment;
+  private void moveHeap(int from, int to) {
+    heapXs[to] = heapXs[from];
+    heapYs[to] = heapYs[from];
+    heapAs[to] = heapAs[from];
+    heapBs[to] = heapBs[from];
   }
   
-  /** Two intersections are equal if they have the same intersecting segments. */
-  public boolean equals(Object o) {
-    if(o instanceof SweepIntersection) {
-      SweepIntersection other = (SweepIntersection) o;
-      if(linesEqual(this.segment, other.segment) && linesEqual(this.segment2, other.segment2)) {
-        return true;
+  /** Sorts endpoints[lo..hi] along with their coordinates in ascending XY order. */
+  private void sortEndpoints(int lo, int hi) {
+    while(hi - lo > 16) {
+      int mid = (lo + hi) >>> 1;
+      double px = endpointXs[mid];
+      double py = endpointYs[mid];
+      int i = lo;
+      int j = hi;
+      while(i <= j) {
+        while(compare(endpointXs[i], endpointYs[i], px, py) < 0) {
+          i++;
+        }
+        while(compare(endpointXs[j], endpointYs[j], px, py) > 0) {
+          j--;
+        }
+        if(i <= j) {
+          swapEndpoints(i, j);
+          i++;
+          j--;
+        }
       }
-      else if(linesEqual(this.segment, other.segment2) && linesEqual(this.segment2, other.segment)) {
-        return true;
+      
+      // Recurse into the smaller side, so the stack stays shallow.
+      if(j - lo < hi - i) {
+        sortEndpoints(lo, j);
+        lo = i;
       }
       else {
-        return false;
+        sortEndpoints(i, hi);
+        hi = j;
       }
     }
-    else {
-      return false;
+    for(int i = lo + 1; i <= hi; i++) {
+      for(int j = i; j > lo && compare(endpointXs[j - 1], endpointYs[j - 1], endpointXs[j], endpointYs[j]) > 0; j--) {
+        swapEndpoints(j - 1, j);
+      }
     }
   }
   
+  private void swapEndpoints(int i, int j) {
+    int e = endpoints[i];
+    endpoints[i] = endpoints[j];
+    endpoints[j] = e;
+    double t = endpointXs[i];
+    endpointXs[i] = endpointXs[j];
+    endpointXs[j] = t;
+    t = endpointYs[i];
+    endpointYs[i] = endpointYs[j];
+    endpointYs[j] = t;
+  }
+  
+  
+  //////// Helpers
+  
+  /** Compares two points in ascending XY order. */
+  private static int compare(double ax, double ay, double bx, double by) {
+    if(ax != bx) {
+      return (ax < bx) ? -1 : 1;
+    }
+    if(ay != by) {
+      return (ay < by) ? -1 : 1;
+    }
+    return 0;
+  }
   
-  /** Two lines are equal if they share the same endpoints. Here, we don't care about the order. */
-  private boolean linesEqual(Line2D line1, Line2D line2) {
-    return ((line1.getP1().equals(line2.getP1()) && line1.getP2().equals(line2.getP2())) || 
-            (line1.getP1().equals(line2.getP2()) && line1.getP2().equals(line2.getP1())));
+  /** Returns the cross product of (b - a) and (c - a). */
+  private static double cross(double ax, double ay, double bx, double by, double cx, double cy) {
+    return (bx - ax)*(cy - ay) - (by - ay)*(cx - ax);
   }
   
-  /** SweepIntersections have middle priority. */
-  public int getPriority() {
-    return 2;
+  /** Stores a value in an array, growing it if needed. */
+  private static int[] push(int[] array, int i, int value) {
+    if(i == array.length) {
+      array = Arrays.copyOf(array, i*2);
+    }
+    array[i] = value;
+    return array;
   }
 }
-
-
@@ -0,0 +1,1133 @@
+package pwnee.geom.algs;
+
+/*======================================================================
+ * 
+ * Pwnee - A lightweight 2D Java game engine
+ * 
+ * Copyright (c) 2012 by Stephen Lindberg (sllindberg21@students.tntech.edu)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+======================================================================*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import pwnee.geom.Polygon2D;
+
+/**
+ * A utility class for boolean operations on polygons: intersection, union,
+ * and difference. Each operand is a list of rings, and a point is inside
+ * an operand if it is inside an odd number of its rings, so a ring inside
+ * another ring is a hole. The rings may be in either order.
+ *
+ * The results are lists of rings in the same form, so they can be clipped
+ * again, such as terrain being carved out a bit more every frame. The
+ * outer boundaries in a result have a positive signed area and its holes
+ * have a negative signed area, so the interior is always to the left of
+ * each edge (in standard geometry). A result can have any number of
+ * separate pieces.
+ *
+ * The clipping works on the overlay of the two operands' edges:
+ * 1. Vertices closer together than a tiny tolerance are merged, so that
+ *    nearly touching operands don't leave slivers.
+ * 2. The edges are swept from left to right to find where edges of one
+ *    operand cross or touch edges of the other, and both edges are split
+ *    there. The split points are shared exactly by both edges.
+ * 3. Each run of split edges between crossings is inside or outside the
+ *    other operand as a whole, so only one point per run is tested.
+ *    Edges shared by both operands are kept or dropped depending on
+ *    whether the operands are on the same side of them.
+ * 4. The kept edges are linked into rings, taking the sharpest turn at
+ *    vertices where several rings touch, so that the rings stay simple.
+ *
+ * Intersecting two convex polygons that cross properly uses the O(n+m)
+ * algorithm of O'Rourke et al. instead, which walks around both polygons
+ * at once. Degenerate cases, where vertices or edges of the two polygons
+ * coincide, fall back to the general clipping.
+ * See: http://www.cs.smith.edu/~jorourke/books/ftp.html
+ */
+public class PolygonClipper {
+
+  /** The operation keeping the area inside both operands. */
+  public static final int INTERSECTION = 0;
+
+  /** The operation keeping the area inside either operand. */
+  public static final int UNION = 1;
+
+  /** The operation keeping the area inside the first operand but not the second. */
+  public static final int DIFFERENCE = 2;
+
+  /** How close vertices must be, relative to the size of their coordinates, to be merged. */
+  private static final double SNAP_TOLERANCE = 1e-9;
+
+  /** The statuses of the split edges. */
+  private static final int OUTSIDE = 0;
+  private static final int INSIDE = 1;
+  private static final int SHARED_SAME = 2;
+  private static final int SHARED_OPPOSITE = 3;
+
+  private int operation;
+
+  /** The absolute tolerance for merging vertices and for points being on lines. */
+  private double eps;
+
+  /** The rings of each operand, as arrays of x and y coordinates. */
+  private double[][][] ringXs = new double[2][][];
+  private double[][][] ringYs = new double[2][][];
+
+  /** The edges of both operands, ring by ring, stored as x0, y0, x1, y1. */
+  private double[] edges = new double[64];
+  private int[] edgeOwners = new int[16];
+  private int[] edgeRings = new int[16];
+  private int edgeCount = 0;
+
+  /** The points where edges are split, with their fractions along the edges. */
+  private int[] splitEdges = new int[16];
+  private double[] splitTs = new double[16];
+  private double[] splitXs = new double[16];
+  private double[] splitYs = new double[16];
+  private int splitCount = 0;
+
+  /** The distinct vertices of the overlay. */
+  private double[] nodeXs = new double[64];
+  private double[] nodeYs = new double[64];
+  private int nodeCount = 0;
+
+  /** An open-addressed hash table from vertex coordinates to nodes. */
+  private int[] nodeTable = new int[128];
+
+  /** The split edges, in the order of their operands' rings. */
+  private int[] subFroms = new int[64];
+  private int[] subTos = new int[64];
+  private int[] subOwners = new int[64];
+  private int[] subRings = new int[64];
+  private int subCount = 0;
+
+
+  private PolygonClipper(int operation) {
+    this.operation = operation;
+    Arrays.fill(nodeTable, -1);
+  }
+
+
+  //////// Operations
+
+  /** Returns the area inside both polygons. */
+  public static List<Polygon2D> intersection(Polygon2D p1, Polygon2D p2) {
+    if(p1.isConvex() && p2.isConvex()) {
+      List<Polygon2D> result = convexIntersection(p1, p2);
+      if(result != null) {
+        return result;
+      }
+    }
+    return clip(asList(p1), asList(p2), INTERSECTION);
+  }
+
+  /** Returns the area inside either polygon. */
+  public static List<Polygon2D> union(Polygon2D p1, Polygon2D p2) {
+    return clip(asList(p1), asList(p2), UNION);
+  }
+
+  /** Returns the area inside the first polygon but not the second. */
+  public static List<Polygon2D> difference(Polygon2D p1, Polygon2D p2) {
+    return clip(asList(p1), asList(p2), DIFFERENCE);
+  }
+
+  /**
+   * Performs a boolean operation on two operands made of rings.
+   * @param operation   INTERSECTION, UNION, or DIFFERENCE.
+   */
+  public static List<Polygon2D> clip(List<Polygon2D> subject, List<Polygon2D> clip, int operation) {
+    if(operation < INTERSECTION || operation > DIFFERENCE) {
+      throw new IllegalArgumentException("Unknown operation: " + operation);
+    }
+    PolygonClipper clipper = new PolygonClipper(operation);
+    return clipper.run(subject, clip);
+  }
+
+  private static List<Polygon2D> asList(Polygon2D p) {
+    List<Polygon2D> result = new ArrayList<>();
+    result.add(p);
+    return result;
+  }
+
+
+  /** This actually runs the clipping. */
+  private List<Polygon2D> run(List<Polygon2D> subject, List<Polygon2D> clip) {
+    load(0, subject);
+    load(1, clip);
+
+    // Operands whose bounding boxes don't overlap don't interact.
+    double[] boundsA = bounds(0);
+    double[] boundsB = bounds(1);
+    boolean apart = boundsA[0] > boundsB[2] || boundsB[0] > boundsA[2] || boundsA[1] > boundsB[3] || boundsB[1] > boundsA[3];
+    if(apart || ringXs[0].length == 0 || ringXs[1].length == 0) {
+      orient(0);
+      orient(1);
+      List<Polygon2D> result = new ArrayList<>();
+      if(operation != INTERSECTION || !apart) {
+        if(operation != INTERSECTION) {
+          addRings(0, result);
+        }
+        if(operation == UNION) {
+          addRings(1, result);
+        }
+      }
+      return result;
+    }
+
+    double scale = 1;
+    for(int i = 0; i < 4; i++) {
+      scale = Math.max(scale, Math.max(Math.abs(boundsA[i]), Math.abs(boundsB[i])));
+    }
+    eps = scale*SNAP_TOLERANCE;
+
+    snap();
+    orient(0);
+    orient(1);
+    buildEdges();
+    findSplits();
+    splitEdges();
+    return link(select());
+  }
+
+
+  //////// Operands
+
+  /** Copies the rings of an operand, leaving out repeated vertices and rings with fewer than 3 vertices. */
+  private void load(int owner, List<Polygon2D> rings) {
+    List<double[]> xs = new ArrayList<>();
+    List<double[]> ys = new ArrayList<>();
+    for(Polygon2D ring : rings) {
+      int n = ring.size();
+      double[] rx = new double[n];
+      double[] ry = new double[n];
+      for(int i = 0; i < n; i++) {
+        rx[i] = ring.getX(i);
+        ry[i] = ring.getY(i);
+      }
+      n = removeRepeats(rx, ry, n);
+      if(n >= 3) {
+        xs.add(Arrays.copyOf(rx, n));
+        ys.add(Arrays.copyOf(ry, n));
+      }
+    }
+    ringXs[owner] = xs.toArray(new double[xs.size()][]);
+    ringYs[owner] = ys.toArray(new double[ys.size()][]);
+  }
+
+  /** Removes vertices equal to the vertex before them, and returns the new number of vertices. */
+  private static int removeRepeats(double[] xs, double[] ys, int n) {
+    int count = 0;
+    for(int i = 0; i < n; i++) {
+      if(count > 0 && xs[i] == xs[count-1] && ys[i] == ys[count-1]) {
+        continue;
+      }
+      xs[count] = xs[i];
+      ys[count] = ys[i];
+      count++;
+    }
+    while(count > 1 && xs[count-1] == xs[0] && ys[count-1] == ys[0]) {
+      count--;
+    }
+    return count;
+  }
+
+  /** Returns the bounding box of an operand as minX, minY, maxX, maxY. */
+  private double[] bounds(int owner) {
+    double[] b = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+    for(int r = 0; r < ringXs[owner].length; r++) {
+      double[] xs = ringXs[owner][r];
+      double[] ys = ringYs[owner][r];
+      for(int i = 0; i < xs.length; i++) {
+        b[0] = Math.min(b[0], xs[i]);
+        b[1] = Math.min(b[1], ys[i]);
+        b[2] = Math.max(b[2], xs[i]);
+        b[3] = Math.max(b[3], ys[i]);
+      }
+    }
+    return b;
+  }
+
+  /**
+   * Merges vertices of both operands that are within eps of each other,
+   * moving each onto the first one found in a sweep from left to right.
+   */
+  private void snap() {
+    int total = 0;
+    for(int owner = 0; owner < 2; owner++) {
+      for(double[] xs : ringXs[owner]) {
+        total += xs.length;
+      }
+    }
+
+    // Each vertex is referred to by its operand, ring, and index, packed into a long.
+    long[] refs = new long[total];
+    double[] keys = new double[total];
+    int k = 0;
+    for(int owner = 0; owner < 2; owner++) {
+      for(int r = 0; r < ringXs[owner].length; r++) {
+        for(int i = 0; i < ringXs[owner][r].length; i++) {
+          refs[k] = ((long) owner << 62) | ((long) r << 31) | i;
+          keys[k] = ringXs[owner][r][i];
+          k++;
+        }
+      }
+    }
+    sort(refs, keys, 0, total - 1);
+
+    boolean[] moved = new boolean[total];
+    for(int i = 0; i < total; i++) {
+      if(moved[i]) {
+        continue;
+      }
+      double x = vertexX(refs[i]);
+      double y = vertexY(refs[i]);
+      for(int j = i + 1; j < total && keys[j] - keys[i] <= eps; j++) {
+        if(!moved[j] && Math.abs(vertexY(refs[j]) - y) <= eps) {
+          setVertex(refs[j], x, y);
+          moved[j] = true;
+        }
+      }
+    }
+
+    // Merged vertices may leave repeats or collapsed rings behind.
+    for(int owner = 0; owner < 2; owner++) {
+      List<double[]> xs = new ArrayList<>();
+      List<double[]> ys = new ArrayList<>();
+      for(int r = 0; r < ringXs[owner].length; r++) {
+        double[] rx = ringXs[owner][r];
+        double[] ry = ringYs[owner][r];
+        int n = removeRepeats(rx, ry, rx.length);
+        if(n >= 3) {
+          xs.add(Arrays.copyOf(rx, n));
+          ys.add(Arrays.copyOf(ry, n));
+        }
+      }
+      ringXs[owner] = xs.toArray(new double[xs.size()][]);
+      ringYs[owner] = ys.toArray(new double[ys.size()][]);
+    }
+  }
+
+  private double vertexX(long ref) {
+    return ringXs[(int) (ref >>> 62)][(int) ((ref >>> 31) & 0x7fffffff)][(int) (ref & 0x7fffffff)];
+  }
+
+  private double vertexY(long ref) {
+    return ringYs[(int) (ref >>> 62)][(int) ((ref >>> 31) & 0x7fffffff)][(int) (ref & 0x7fffffff)];
+  }
+
+  private void setVertex(long ref, double x, double y) {
+    int owner = (int) (ref >>> 62);
+    int r = (int) ((ref >>> 31) & 0x7fffffff);
+    int i = (int) (ref & 0x7fffffff);
+    ringXs[owner][r][i] = x;
+    ringYs[owner][r][i] = y;
+  }
+
+  /**
+   * Reverses the rings of an operand as needed so that its interior is to
+   * the left of every edge. A ring inside an odd number of the operand's
+   * other rings is a hole, and its interior is outside it.
+   */
+  private void orient(int owner) {
+    double[][] xss = ringXs[owner];
+    double[][] yss = ringYs[owner];
+    for(int r = 0; r < xss.length; r++) {
+      double mx = (xss[r][0] + xss[r][1])/2;
+      double my = (yss[r][0] + yss[r][1])/2;
+      int depth = 0;
+      for(int other = 0; other < xss.length; other++) {
+        if(other != r && ringContains(xss[other], yss[other], mx, my)) {
+          depth++;
+        }
+      }
+      boolean positive = signedArea(xss[r], yss[r]) > 0;
+      if(positive != (depth % 2 == 0)) {
+        reverse(xss[r]);
+        reverse(yss[r]);
+      }
+    }
+  }
+
+  /** Adds the rings of an operand to a result. */
+  private void addRings(int owner, List<Polygon2D> result) {
+    for(int r = 0; r < ringXs[owner].length; r++) {
+      result.add(new Polygon2D(ringXs[owner][r], ringYs[owner][r]));
+    }
+  }
+
+
+  //////// Overlay
+
+  /** Creates the edges of both operands, ring by ring. */
+  private void buildEdges() {
+    int ringId = 0;
+    for(int owner = 0; owner < 2; owner++) {
+      for(int r = 0; r < ringXs[owner].length; r++) {
+        double[] xs = ringXs[owner][r];
+        double[] ys = ringYs[owner][r];
+        int n = xs.length;
+        for(int i = 0; i < n; i++) {
+          int j = (i + 1 == n) ? 0 : i + 1;
+          if(edgeCount == edgeOwners.length) {
+            edges = Arrays.copyOf(edges, edgeCount*8);
+            edgeOwners = Arrays.copyOf(edgeOwners, edgeCount*2);
+            edgeRings = Arrays.copyOf(edgeRings, edgeCount*2);
+          }
+          edges[edgeCount*4] = xs[i];
+          edges[edgeCount*4+1] = ys[i];
+          edges[edgeCount*4+2] = xs[j];
+          edges[edgeCount*4+3] = ys[j];
+          edgeOwners[edgeCount] = owner;
+          edgeRings[edgeCount] = ringId;
+          edgeCount++;
+        }
+        ringId++;
+      }
+    }
+  }
+
+  /**
+   * Sweeps the edges from left to right, testing each edge against the
+   * edges of the other operand whose x ranges overlap it.
+   */
+  private void findSplits() {
+    long[] order = new long[edgeCount];
+    double[] keys = new double[edgeCount];
+    for(int e = 0; e < edgeCount; e++) {
+      order[e] = e;
+      keys[e] = Math.min(edges[e*4], edges[e*4+2]);
+    }
+    sort(order, keys, 0, edgeCount - 1);
+
+    int[] active = new int[16];
+    int activeCount = 0;
+    for(int k = 0; k < edgeCount; k++) {
+      int e = (int) order[k];
+      double minX = keys[k];
+      double minY = Math.min(edges[e*4+1], edges[e*4+3]);
+      double maxY = Math.max(edges[e*4+1], edges[e*4+3]);
+
+      // Drop the active edges that end before this one starts, and test the rest.
+      int kept = 0;
+      for(int i = 0; i < activeCount; i++) {
+        int f = active[i];
+        if(Math.max(edges[f*4], edges[f*4+2]) < minX - eps) {
+          continue;
+        }
+        active[kept++] = f;
+        if(edgeOwners[f] != edgeOwners[e] && Math.min(edges[f*4+1], edges[f*4+3]) <= maxY + eps && Math.max(edges[f*4+1], edges[f*4+3]) >= minY - eps) {
+          intersect(e, f);
+        }
+      }
+      activeCount = kept;
+      if(activeCount == active.length) {
+        active = Arrays.copyOf(active, activeCount*2);
+      }
+      active[activeCount++] = e;
+    }
+  }
+
+  /** Splits two edges of different operands where they cross or touch. */
+  private void intersect(int e, int f) {
+    double px = edges[e*4];
+    double py = edges[e*4+1];
+    double qx = edges[e*4+2];
+    double qy = edges[e*4+3];
+    double rx = edges[f*4];
+    double ry = edges[f*4+1];
+    double sx = edges[f*4+2];
+    double sy = edges[f*4+3];
+
+    // The signed distances of each edge's endpoints from the other edge's line.
+    double lenE = Math.hypot(qx - px, qy - py);
+    double lenF = Math.hypot(sx - rx, sy - ry);
+    double dp = zero(cross(rx, ry, sx, sy, px, py)/lenF);
+    double dq = zero(cross(rx, ry, sx, sy, qx, qy)/lenF);
+    double dr = zero(cross(px, py, qx, qy, rx, ry)/lenE);
+    double ds = zero(cross(px, py, qx, qy, sx, sy)/lenE);
+
+    // Endpoints on the other edge split it, including where the edges overlap.
+    if(dp == 0) {
+      splitAt(f, px, py);
+    }
+    if(dq == 0) {
+      splitAt(f, qx, qy);
+    }
+    if(dr == 0) {
+      splitAt(e, rx, ry);
+    }
+    if(ds == 0) {
+      splitAt(e, sx, sy);
+    }
+
+    // Edges crossing properly are both split at the same point.
+    if(dp*dq < 0 && dr*ds < 0) {
+      double t = dp/(dp - dq);
+      double u = dr/(dr - ds);
+      double x = px + (qx - px)*t;
+      double y = py + (qy - py)*t;
+      addSplit(e, t, x, y);
+      addSplit(f, u, x, y);
+    }
+  }
+
+  private double zero(double d) {
+    return (Math.abs(d) <= eps) ? 0 : d;
+  }
+
+  /** Splits an edge at a point on its line, if the point is between its endpoints. */
+  private void splitAt(int e, double x, double y) {
+    double x0 = edges[e*4];
+    double y0 = edges[e*4+1];
+    double dx = edges[e*4+2] - x0;
+    double dy = edges[e*4+3] - y0;
+    double lenSq = dx*dx + dy*dy;
+    double t = ((x - x0)*dx + (y - y0)*dy)/lenSq;
+    double len = Math.sqrt(lenSq);
+    if(t*len > eps && (1 - t)*len > eps) {
+      addSplit(e, t, x, y);
+    }
+  }
+
+  private void addSplit(int e, double t, double x, double y) {
+    if(splitCount == splitEdges.length) {
+      splitEdges = Arrays.copyOf(splitEdges, splitCount*2);
+      splitTs = Arrays.copyOf(splitTs, splitCount*2);
+      splitXs = Arrays.copyOf(splitXs, splitCount*2);
+      splitYs = Arrays.copyOf(splitYs, splitCount*2);
+    }
+    splitEdges[splitCount] = e;
+    splitTs[splitCount] = t;
+    splitXs[splitCount] = x;
+    splitYs[splitCount] = y;
+    splitCount++;
+  }
+
+  /** Cuts each edge at its split points, in order along it, into the split edges between nodes. */
+  private void splitEdges() {
+
+    // Bucket the split points by edge.
+    int[] starts = new int[edgeCount + 1];
+    for(int s = 0; s < splitCount; s++) {
+      starts[splitEdges[s] + 1]++;
+    }
+    for(int e = 0; e < edgeCount; e++) {
+      starts[e + 1] += starts[e];
+    }
+    int[] fill = Arrays.copyOf(starts, edgeCount);
+    int[] sorted = new int[splitCount];
+    for(int s = 0; s < splitCount; s++) {
+      sorted[fill[splitEdges[s]]++] = s;
+    }
+
+    for(int e = 0; e < edgeCount; e++) {
+
+      // An edge has only a few split points, so insertion sort puts them in order.
+      for(int i = starts[e] + 1; i < starts[e + 1]; i++) {
+        int s = sorted[i];
+        int j = i - 1;
+        while(j >= starts[e] && splitTs[sorted[j]] > splitTs[s]) {
+          sorted[j + 1] = sorted[j];
+          j--;
+        }
+        sorted[j + 1] = s;
+      }
+
+      int from = nodeAt(edges[e*4], edges[e*4+1]);
+      for(int i = starts[e]; i < starts[e + 1]; i++) {
+        int s = sorted[i];
+        int to = nodeAt(splitXs[s], splitYs[s]);
+        addSub(e, from, to);
+        from = to;
+      }
+      addSub(e, from, nodeAt(edges[e*4+2], edges[e*4+3]));
+    }
+  }
+
+  private void addSub(int e, int from, int to) {
+    if(from == to) {
+      return;
+    }
+    if(subCount == subFroms.length) {
+      subFroms = Arrays.copyOf(subFroms, subCount*2);
+      subTos = Arrays.copyOf(subTos, subCount*2);
+      subOwners = Arrays.copyOf(subOwners, subCount*2);
+      subRings = Arrays.copyOf(subRings, subCount*2);
+    }
+    subFroms[subCount] = from;
+    subTos[subCount] = to;
+    subOwners[subCount] = edgeOwners[e];
+    subRings[subCount] = edgeRings[e];
+    subCount++;
+  }
+
+  /** Returns the node at a point, creating it if there isn't one. */
+  private int nodeAt(double x, double y) {
+
+    // Adding 0 turns -0.0 into 0.0, so that they are the same point.
+    x += 0.0;
+    y += 0.0;
+    int mask = nodeTable.length - 1;
+    int slot = hash(x, y) & mask;
+    while(nodeTable[slot] >= 0) {
+      int node = nodeTable[slot];
+      if(nodeXs[node] == x && nodeYs[node] == y) {
+        return node;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    if(nodeCount == nodeXs.length) {
+      nodeXs = Arrays.copyOf(nodeXs, nodeCount*2);
+      nodeYs = Arrays.copyOf(nodeYs, nodeCount*2);
+    }
+    int node = nodeCount++;
+    nodeXs[node] = x;
+    nodeYs[node] = y;
+    nodeTable[slot] = node;
+
+    // Keep the table at most half full.
+    if(nodeCount*2 > nodeTable.length) {
+      nodeTable = new int[nodeTable.length*2];
+      Arrays.fill(nodeTable, -1);
+      mask = nodeTable.length - 1;
+      for(int n = 0; n < nodeCount; n++) {
+        int s = hash(nodeXs[n], nodeYs[n]) & mask;
+        while(nodeTable[s] >= 0) {
+          s = (s + 1) & mask;
+        }
+        nodeTable[s] = n;
+      }
+    }
+    return node;
+  }
+
+  private static int hash(double x, double y) {
+    long h = Double.doubleToLongBits(x)*0x9E3779B97F4A7C15L + Double.doubleToLongBits(y);
+    h ^= h >>> 29;
+    h *= 0xBF58476D1CE4E5B9L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+
+  //////// Selection
+
+  /**
+   * Classifies the split edges against the other operand and returns the
+   * edges kept by the operation, as pairs of from and to nodes.
+   */
+  private int[] select() {
+
+    // Find the edges shared by both operands, in either direction.
+    int[] shared = new int[subCount];
+    Arrays.fill(shared, -1);
+    HashMap<Long, Integer> clipEdges = new HashMap<>();
+    for(int s = 0; s < subCount; s++) {
+      if(subOwners[s] == 1) {
+        clipEdges.put(undirectedKey(s), s);
+      }
+    }
+    for(int s = 0; s < subCount; s++) {
+      if(subOwners[s] == 0) {
+        Integer other = clipEdges.get(undirectedKey(s));
+        if(other != null && shared[other] < 0) {
+          shared[s] = other;
+          shared[other] = s;
+        }
+      }
+    }
+
+    // Mark the nodes on each operand's boundary.
+    boolean[][] onBoundary = new boolean[2][nodeCount];
+    for(int s = 0; s < subCount; s++) {
+      onBoundary[subOwners[s]][subFroms[s]] = true;
+      onBoundary[subOwners[s]][subTos[s]] = true;
+    }
+
+    int[] kept = new int[subCount*2];
+    int keptCount = 0;
+    int status = OUTSIDE;
+    boolean retest = true;
+    for(int s = 0; s < subCount; s++) {
+      int owner = subOwners[s];
+      int other = 1 - owner;
+      if(s == 0 || subRings[s] != subRings[s-1]) {
+        retest = true;
+      }
+
+      if(shared[s] >= 0) {
+        status = (subFroms[s] == subFroms[shared[s]]) ? SHARED_SAME : SHARED_OPPOSITE;
+        retest = true;
+      }
+      else if(retest || onBoundary[other][subFroms[s]]) {
+
+        // A run of split edges only changes sides where it meets the other operand.
+        double mx = (nodeXs[subFroms[s]] + nodeXs[subTos[s]])/2;
+        double my = (nodeYs[subFroms[s]] + nodeYs[subTos[s]])/2;
+        status = regionContains(other, mx, my) ? INSIDE : OUTSIDE;
+        retest = false;
+      }
+
+      int keep = keep(owner, status);
+      if(keep > 0) {
+        kept[keptCount++] = subFroms[s];
+        kept[keptCount++] = subTos[s];
+      }
+      else if(keep < 0) {
+        kept[keptCount++] = subTos[s];
+        kept[keptCount++] = subFroms[s];
+      }
+    }
+    return Arrays.copyOf(kept, keptCount);
+  }
+
+  private long undirectedKey(int s) {
+    int a = Math.min(subFroms[s], subTos[s]);
+    int b = Math.max(subFroms[s], subTos[s]);
+    return ((long) a << 32) | b;
+  }
+
+  /**
+   * Returns 1 if the operation keeps a split edge of an operand with a
+   * status, -1 if it keeps it reversed, or 0 if it drops it. Edges shared by
+   * both operands are only kept from the subject.
+   */
+  private int keep(int owner, int status) {
+    if(owner == 0) {
+      switch(operation) {
+        case INTERSECTION:  return (status == INSIDE || status == SHARED_SAME) ? 1 : 0;
+        case UNION:         return (status == OUTSIDE || status == SHARED_SAME) ? 1 : 0;
+        default:            return (status == OUTSIDE || status == SHARED_OPPOSITE) ? 1 : 0;
+      }
+    }
+    else {
+      switch(operation) {
+        case INTERSECTION:  return (status == INSIDE) ? 1 : 0;
+        case UNION:         return (status == OUTSIDE) ? 1 : 0;
+        default:            return (status == INSIDE) ? -1 : 0;
+      }
+    }
+  }
+
+  /** Returns true iff a point is inside an odd number of an operand's rings. */
+  private boolean regionContains(int owner, double x, double y) {
+    boolean inside = false;
+    for(int r = 0; r < ringXs[owner].length; r++) {
+      if(ringContains(ringXs[owner][r], ringYs[owner][r], x, y)) {
+        inside = !inside;
+      }
+    }
+    return inside;
+  }
+
+
+  //////// Linking
+
+  /** Links the kept edges into rings. */
+  private List<Polygon2D> link(int[] kept) {
+    int count = kept.length/2;
+
+    // Group the kept edges by their from nodes.
+    int[] starts = new int[nodeCount + 1];
+    for(int k = 0; k < count; k++) {
+      starts[kept[k*2] + 1]++;
+    }
+    for(int n = 0; n < nodeCount; n++) {
+      starts[n + 1] += starts[n];
+    }
+    int[] fill = Arrays.copyOf(starts, nodeCount);
+    int[] outgoing = new int[count];
+    for(int k = 0; k < count; k++) {
+      outgoing[fill[kept[k*2]]++] = k;
+    }
+
+    List<Polygon2D> result = new ArrayList<>();
+    boolean[] used = new boolean[count];
+    double[] xs = new double[16];
+    double[] ys = new double[16];
+    for(int first = 0; first < count; first++) {
+      if(used[first]) {
+        continue;
+      }
+      used[first] = true;
+      int n = 0;
+      int edge = first;
+      boolean closed = false;
+      for(int steps = 0; steps < count; steps++) {
+        int from = kept[edge*2];
+        int node = kept[edge*2+1];
+        if(n == xs.length) {
+          xs = Arrays.copyOf(xs, n*2);
+          ys = Arrays.copyOf(ys, n*2);
+        }
+        xs[n] = nodeXs[from];
+        ys[n] = nodeYs[from];
+        n++;
+
+        // Take the edge making the sharpest turn, clockwise from the way back (in standard geometry).
+        double back = Math.atan2(nodeYs[from] - nodeYs[node], nodeXs[from] - nodeXs[node]);
+        int next = -1;
+        double bestTurn = Double.POSITIVE_INFINITY;
+        for(int i = starts[node]; i < starts[node + 1]; i++) {
+          int k = outgoing[i];
+          if(used[k] && k != first) {
+            continue;
+          }
+          int to = kept[k*2+1];
+          double turn = back - Math.atan2(nodeYs[to] - nodeYs[node], nodeXs[to] - nodeXs[node]);
+          while(turn <= 0) {
+            turn += 2*Math.PI;
+          }
+          if(turn < bestTurn) {
+            bestTurn = turn;
+            next = k;
+          }
+        }
+
+        if(next == first) {
+          closed = true;
+          break;
+        }
+        if(next < 0) {
+          break;
+        }
+        used[next] = true;
+        edge = next;
+      }
+
+      if(closed) {
+        n = removeCollinear(xs, ys, n);
+        if(n >= 3 && Math.abs(signedArea(xs, ys, n)) > eps*eps) {
+          result.add(new Polygon2D(Arrays.copyOf(xs, n), Arrays.copyOf(ys, n)));
+        }
+      }
+    }
+    return result;
+  }
+
+  /** Removes the vertices of a ring that are on the line between their neighbors, and returns the new number of vertices. */
+  private int removeCollinear(double[] xs, double[] ys, int n) {
+    boolean removed = true;
+    while(removed && n >= 3) {
+      removed = false;
+      int count = 0;
+      for(int i = 0; i < n; i++) {
+        int prev = (count > 0) ? count - 1 : n - 1;
+        int next = (i + 1 == n) ? 0 : i + 1;
+        double len = Math.hypot(xs[next] - xs[prev], ys[next] - ys[prev]);
+        if(len > 0 && Math.abs(cross(xs[prev], ys[prev], xs[next], ys[next], xs[i], ys[i]))/len <= eps) {
+          removed = true;
+          continue;
+        }
+        xs[count] = xs[i];
+        ys[count] = ys[i];
+        count++;
+      }
+      n = count;
+    }
+    return n;
+  }
+
+
+  //////// Convex intersection
+
+  /**
+   * Intersects two convex polygons in O(n+m) time by advancing along the
+   * edges of both polygons at once, keeping the edge that is behind the
+   * other, and switching polygons where the edges cross. Returns null if
+   * the polygons touch in a degenerate way.
+   */
+  private static List<Polygon2D> convexIntersection(Polygon2D p1, Polygon2D p2) {
+    double[] px = orientedXs(p1);
+    double[] py = orientedYs(p1);
+    double[] qx = orientedXs(p2);
+    double[] qy = orientedYs(p2);
+
+    // The walk needs every edge to have a direction, so repeated vertices are left out.
+    int n = removeRepeats(px, py, px.length);
+    int m = removeRepeats(qx, qy, qx.length);
+    px = Arrays.copyOf(px, n);
+    py = Arrays.copyOf(py, n);
+    qx = Arrays.copyOf(qx, m);
+    qy = Arrays.copyOf(qy, m);
+    List<Polygon2D> result = new ArrayList<>();
+    if(n < 3 || m < 3) {
+      return result;
+    }
+    if(p1.getSignedArea() == 0 || p2.getSignedArea() == 0) {
+      return null;
+    }
+
+    final int unknown = 0;
+    final int pInside = 1;
+    final int qInside = 2;
+    int inside = unknown;
+
+    double[] xs = new double[2*(n + m) + 2];
+    double[] ys = new double[2*(n + m) + 2];
+    int count = 0;
+
+    int a = 0;
+    int b = 0;
+    int aSteps = 0;
+    int bSteps = 0;
+    boolean found = false;
+    do {
+      int a1 = (a + n - 1) % n;
+      int b1 = (b + m - 1) % m;
+      double ax = px[a] - px[a1];
+      double ay = py[a] - py[a1];
+      double bx = qx[b] - qx[b1];
+      double by = qy[b] - qy[b1];
+      double turn = ax*by - ay*bx;
+      double aHB = cross(qx[b1], qy[b1], qx[b], qy[b], px[a], py[a]);
+      double bHA = cross(px[a1], py[a1], px[a], py[a], qx[b], qy[b]);
+
+      // Find where the current edges cross, giving up on touching or parallel edges.
+      double denom = ax*by - ay*bx;
+      if(denom == 0) {
+        if(cross(px[a1], py[a1], px[a], py[a], qx[b1], qy[b1]) == 0) {
+          return null;
+        }
+      }
+      else {
+        double s = ((qx[b1] - px[a1])*by - (qy[b1] - py[a1])*bx)/denom;
+        double t = ((qx[b1] - px[a1])*ay - (qy[b1] - py[a1])*ax)/denom;
+        if((s == 0 || s == 1) && t >= 0 && t <= 1 || (t == 0 || t == 1) && s >= 0 && s <= 1) {
+          return null;
+        }
+        if(s > 0 && s < 1 && t > 0 && t < 1) {
+          if(!found) {
+            found = true;
+            aSteps = 0;
+            bSteps = 0;
+          }
+          xs[count] = px[a1] + s*ax;
+          ys[count] = py[a1] + s*ay;
+          count++;
+          if(aHB > 0) {
+            inside = pInside;
+          }
+          else if(bHA > 0) {
+            inside = qInside;
+          }
+        }
+      }
+
+      if(turn == 0 && aHB < 0 && bHA < 0) {
+        return result;
+      }
+      if(turn == 0 && aHB == 0 && bHA == 0) {
+        return null;
+      }
+
+      boolean advanceA = (turn >= 0) ? (bHA > 0) : !(aHB > 0);
+      if(advanceA) {
+        if(inside == pInside) {
+          xs[count] = px[a];
+          ys[count] = py[a];
+          count++;
+        }
+        a = (a + 1) % n;
+        aSteps++;
+      }
+      else {
+        if(inside == qInside) {
+          xs[count] = qx[b];
+          ys[count] = qy[b];
+          count++;
+        }
+        b = (b + 1) % m;
+        bSteps++;
+      }
+    } while((aSteps < n || bSteps < m) && aSteps < 2*n && bSteps < 2*m && count < xs.length - 2);
+
+    if(!found) {
+
+      // Without crossings, one polygon is inside the other or they are apart.
+      if(strictlyInside(qx, qy, px[0], py[0])) {
+        result.add(new Polygon2D(px, py));
+        return result;
+      }
+      if(strictlyInside(px, py, qx[0], qy[0])) {
+        result.add(new Polygon2D(qx, qy));
+        return result;
+      }
+      if(strictlyOutside(qx, qy, px[0], py[0]) && strictlyOutside(px, py, qx[0], qy[0])) {
+        return result;
+      }
+      return null;
+    }
+
+    count = removeRepeats(xs, ys, count);
+    if(count >= 3) {
+      result.add(new Polygon2D(Arrays.copyOf(xs, count), Arrays.copyOf(ys, count)));
+    }
+    return result;
+  }
+
+  /** Returns the x coordinates of a polygon's vertices, in the order giving it a positive signed area. */
+  private static double[] orientedXs(Polygon2D p) {
+    double[] xs = new double[p.size()];
+    for(int i = 0; i < xs.length; i++) {
+      xs[i] = p.getX(i);
+    }
+    if(signedArea(p) < 0) {
+      reverse(xs);
+    }
+    return xs;
+  }
+
+  /** Returns the y coordinates of a polygon's vertices, in the order giving it a positive signed area. */
+  private static double[] orientedYs(Polygon2D p) {
+    double[] ys = new double[p.size()];
+    for(int i = 0; i < ys.length; i++) {
+      ys[i] = p.getY(i);
+    }
+    if(signedArea(p) < 0) {
+      reverse(ys);
+    }
+    return ys;
+  }
+
+  /** Returns true iff a point is strictly to the left of every edge of a convex polygon with a positive signed area. */
+  private static boolean strictlyInside(double[] xs, double[] ys, double x, double y) {
+    int n = xs.length;
+    for(int i = 0; i < n; i++) {
+      int j = (i + 1 == n) ? 0 : i + 1;
+      if(cross(xs[i], ys[i], xs[j], ys[j], x, y) <= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns true iff a point is strictly to the right of some edge of a convex polygon with a positive signed area. */
+  private static boolean strictlyOutside(double[] xs, double[] ys, double x, double y) {
+    int n = xs.length;
+    for(int i = 0; i < n; i++) {
+      int j = (i + 1 == n) ? 0 : i + 1;
+      if(cross(xs[i], ys[i], xs[j], ys[j], x, y) < 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  //////// Geometry helpers
+
+  /** Returns the cross product of (b - a) and (c - a), which is positive if c is to the left of the line from a to b. */
+  private static double cross(double ax, double ay, double bx, double by, double cx, double cy) {
+    return (bx - ax)*(cy - ay) - (by - ay)*(cx - ax);
+  }
+
+  private static double signedArea(double[] xs, double[] ys) {
+    return signedArea(xs, ys, xs.length);
+  }
+
+  private static double signedArea(double[] xs, double[] ys, int n) {
+    double area = 0;
+    for(int i = 0; i < n; i++) {
+      int j = (i + 1 == n) ? 0 : i + 1;
+      area += xs[i]*ys[j] - xs[j]*ys[i];
+    }
+    return area/2;
+  }
+
+  private static double signedArea(Polygon2D p) {
+    return p.getSignedArea();
+  }
+
+  /** Returns true iff a point is inside a ring by counting the ring's edges crossed by a ray towards +x. */
+  private static boolean ringContains(double[] xs, double[] ys, double x, double y) {
+    boolean inside = false;
+    int n = xs.length;
+    for(int i = 0, j = n - 1; i < n; j = i++) {
+      if((ys[i] > y) != (ys[j] > y) && x < xs[i] + (y - ys[i])*(xs[j] - xs[i])/(ys[j] - ys[i])) {
+        inside = !inside;
+      }
+    }
+    return inside;
+  }
+
+  private static void reverse(double[] values) {
+    for(int i = 0, j = values.length - 1; i < j; i++, j--) {
+      double t = values[i];
+      values[i] = values[j];
+      values[j] = t;
+    }
+  }
+
+  /** Sorts refs[lo..hi] along with their keys, by the keys. */
+  private static void sort(long[] refs, double[] keys, int lo, int hi) {
+    while(hi - lo > 16) {
+      double pivot = keys[(lo + hi) >>> 1];
+      int i = lo;
+      int j = hi;
+      while(i <= j) {
+        while(keys[i] < pivot) {
+          i++;
+        }
+        while(keys[j] > pivot) {
+          j--;
+        }
+        if(i <= j) {
+          double tk = keys[i];
+          keys[i] = keys[j];
+          keys[j] = tk;
+          long tr = refs[i];
+          refs[i] = refs[j];
+          refs[j] = tr;
+          i++;
+          j--;
+        }
+      }
+
+      // Recurse into the smaller side, so the stack stays shallow.
+      if(j - lo < hi - i) {
+        sort(refs, keys, lo, j);
+        lo = i;
+      }
+      else {
+        sort(refs, keys, i, hi);
+        hi = j;
+      }
+    }
+    for(int i = lo + 1; i <= hi; i++) {
+      double k = keys[i];
+      long r = refs[i];
+      int j = i - 1;
+      while(j >= lo && keys[j] > k) {
+        keys[j + 1] = keys[j];
+        refs[j + 1] = refs[j];
+        j--;
+      }
+      keys[j + 1] = k;
+      refs[j + 1] = r;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package pwnee.image;
+
+
+/*======================================================================
+ * 
+ * Pwnee - A lightweight 2D Java game engine
+ * 
+ * Copyright (c) 2012 by Stephen Lindberg (sllindberg21@students.tntech.edu)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+======================================================================*/
+
+import java.awt.Image;
+
+/** 
+ * A pixel-perfect collision mask of an image. Each pixel whose alpha is above a threshold is solid, and the solid 
+ * pixels are packed 64 to a long, row by row. Two masks are tested for overlap by ANDing their rows together at an 
+ * integer offset, which costs a few word operations per row instead of a test per pixel. 
+ * 
+ * Masks should be built once per image or animation frame, such as through ImageLibrary.getMask, rather than every 
+ * time they are tested. Since they are exact, they are best used only after a cheaper bounding box test has passed.
+ * The pixels of a row are stored from least to most significant bit, so pixel x of row y is bit (x & 63) of 
+ * bits[y*wordsPerRow + (x >> 6)].
+ */
+public class CollisionMask {
+  
+  /** The default alpha above which a pixel is solid. */
+  public static final int DEFAULT_ALPHA_THRESHOLD = 0;
+  
+  /** The width of the mask in pixels. */
+  public final int width;
+  
+  /** The height of the mask in pixels. */
+  public final int height;
+  
+  /** The number of longs used to store each row. */
+  public final int wordsPerRow;
+  
+  /** The solid bits of the mask, row by row. */
+  private final long[] bits;
+  
+  
+  /** Creates an empty mask with the given dimensions. */
+  public CollisionMask(int width, int height) {
+    this.width = Math.max(0, width);
+    this.height = Math.max(0, height);
+    this.wordsPerRow = (this.width + 63) >> 6;
+    this.bits = new long[wordsPerRow*this.height];
+  }
+  
+  /** 
+   * Creates a mask from ARGB pixels stored row by row. 
+   * Pixels whose alpha is greater than alphaThreshold are solid. 
+   */
+  public CollisionMask(int[] pixels, int width, int height, int alphaThreshold) {
+    this(width, height);
+    
+    for(int y = 0; y < this.height; y++) {
+      int rowStart = y*wordsPerRow;
+      int pixStart = y*width;
+      for(int x = 0; x < this.width; x++) {
+        if((pixels[pixStart + x] >>> 24) > alphaThreshold)
+          bits[rowStart + (x >> 6)] |= 1L << x;
+      }
+    }
+  }
+  
+  
+  /** 
+   * Creates a mask from an image's pixels, using the PixelCache to obtain them. 
+   * Pixels whose alpha is greater than alphaThreshold are solid.
+   * Returns null if the image's pixels couldn't be obtained.
+   */
+  public static CollisionMask create(Image img, int alphaThreshold) {
+    PixelCache.Entry entry = PixelCache.acquire(img);
+    if(entry == null)
+      return null;
+    
+    try {
+      return new CollisionMask(entry.pixels, entry.width, entry.height, alphaThreshold);
+    }
+    finally {
+      PixelCache.release(img);
+    }
+  }
+  
+  /** Creates a mask from an image's pixels, treating any pixel that isn't fully transparent as solid. */
+  public static CollisionMask create(Image img) {
+    return create(img, DEFAULT_ALPHA_THRESHOLD);
+  }
+  
+  
+  
+  //////// Pixels
+  
+  /** Returns true iff the pixel at (x, y) is solid. Pixels outside the mask are not solid. */
+  public boolean isSolid(int x, int y) {
+    if(x < 0 || y < 0 || x >= width || y >= height)
+      return false;
+    return (bits[y*wordsPerRow + (x >> 6)] & (1L << x)) != 0;
+  }
+  
+  /** Sets whether the pixel at (x, y) is solid. */
+  public void setSolid(int x, int y, boolean solid) {
+    if(x < 0 || y < 0 || x >= width || y >= height)
+      throw new IndexOutOfBoundsException("(" + x + ", " + y + ") is outside the " + width + "x" + height + " mask.");
+    
+    int index = y*wordsPerRow + (x >> 6);
+    if(solid)
+      bits[index] |= 1L << x;
+    else
+      bits[index] &= ~(1L << x);
+  }
+  
+  /** Returns the number of solid pixels in the mask. */
+  public int countSolid() {
+    int count = 0;
+    for(int i = 0; i < bits.length; i++)
+      count += Long.bitCount(bits[i]);
+    return count;
+  }
+  
+  
+  
+  //////// Overlap tests
+  
+  /** 
+   * Returns true iff any solid pixel of this mask overlaps a solid pixel of 
+   * another mask whose top-left corner is at (dx, dy) relative to this one's.
+   */
+  public boolean overlaps(CollisionMask other, int dx, int dy) {
+    
+    // Find the overlapping area in this mask's coordinates.
+    int x0 = Math.max(0, dx);
+    int y0 = Math.max(0, dy);
+    int x1 = Math.min(width, dx + other.width);
+    int y1 = Math.min(height, dy + other.height);
+    if(x0 >= x1 || y0 >= y1)
+      return false;
+    
+    int word0 = x0 >> 6;
+    int word1 = (x1 - 1) >> 6;
+    long firstMask = -1L << x0;
+    long lastMask = -1L >>> (63 - ((x1 - 1) & 63));
+    
+    for(int y = y0; y < y1; y++) {
+      int row = y*wordsPerRow;
+      int otherRow = (y - dy)*other.wordsPerRow;
+      
+      for(int w = word0; w <= word1; w++) {
+        long mine = bits[row + w];
+        if(w == word0)
+          mine &= firstMask;
+        if(w == word1)
+          mine &= lastMask;
+        if(mine == 0)
+          continue;
+        
+        if((mine & other.getBits(otherRow, (w << 6) - dx)) != 0)
+          return true;
+      }
+    }
+    return false;
+  }
+  
+  /** 
+   * Returns the 64 bits of a row of this mask starting at pixel x, which may be negative or past 
+   * the end of the row. Pixels outside the row are 0.
+   */
+  private long getBits(int row, int x) {
+    int w = x >> 6;
+    int shift = x & 63;
+    
+    long lo = (w >= 0 && w < wordsPerRow) ? bits[row + w] : 0;
+    if(shift == 0)
+      return lo;
+    
+    long hi = (w + 1 >= 0 && w + 1 < wordsPerRow) ? bits[row + w + 1] : 0;
+    return (lo >>> shift) | (hi << (64 - shift));
+  }
+}
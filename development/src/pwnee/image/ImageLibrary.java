@@ -46,10 +46,19 @@ public class ImageLibrary {
   /** Whether the image library is busy loading (if it is asynchronous).*/
   public boolean isLoading = false;
   
+  /** The collision masks built for the images, keyed by the same names. These are built lazily and aren't saved. */
+  private HashMap<String, CollisionMask> masks = new HashMap<>();
+  
+  /** The image each cached mask was built from, so that a mask is built again if images is changed directly. */
+  private HashMap<String, Image> maskSources = new HashMap<>();
+  
   public ImageLibrary() {
   }
   
-  /** Create this image library as a shallow copy of another image library. */
+  /** 
+   * Create this image library as a shallow copy of another image library. 
+   * The other library's collision masks aren't copied, and are built again when they are requested. 
+   */
   public ImageLibrary(ImageLibrary other) {
     images = new HashMap<>(other.images);
   }
@@ -78,6 +87,8 @@ public class ImageLibrary {
   public void put(String key, Image img) {
     try {
       images.put(key, img);
+      masks.remove(key);
+      maskSources.remove(key);
     }
     catch (Exception e) {
       System.err.println("ImageLibrary could not put image for " + key);
@@ -90,6 +101,8 @@ public class ImageLibrary {
   public Image remove(String key) {
     try {
       Image result = images.remove(key);
+      masks.remove(key);
+      maskSources.remove(key);
       return result;
     }
     catch (Exception e) {
@@ -99,6 +112,35 @@ public class ImageLibrary {
   }
     
     
+  /** 
+   * Returns the collision mask of the image associated with key, treating any pixel that isn't fully transparent 
+   * as solid. The mask is built the first time it is requested and cached until the key's image is replaced or 
+   * removed, including by changing images directly. Returns null if there is no image for key.
+   */
+  public CollisionMask getMask(String key) {
+    Image img = get(key);
+    if(img == null) {
+      masks.remove(key);
+      maskSources.remove(key);
+      return null;
+    }
+    
+    CollisionMask mask = masks.get(key);
+    if(mask == null || maskSources.get(key) != img) {
+      mask = CollisionMask.create(img);
+      if(mask != null) {
+        masks.put(key, mask);
+        maskSources.put(key, img);
+      }
+      else {
+        masks.remove(key);
+        maskSources.remove(key);
+      }
+    }
+    return mask;
+  }
+  
+  
   /** 
    * Inserts an image from a file/resource into this library with the given key. 
    * It will try to load the image from a file first, then as a resource.
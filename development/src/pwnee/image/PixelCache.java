@@ -0,0 +1,175 @@
+package pwnee.image;
+
+/*======================================================================
+ * 
+ * Pwnee - A lightweight 2D Java game engine
+ * 
+ * Copyright (c) 2012 by Stephen Lindberg (sllindberg21@students.tntech.edu)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+======================================================================*/
+
+import java.awt.Image;
+import java.awt.image.*;
+import java.util.IdentityHashMap;
+
+/** 
+ * A global, reference-counted cache of the ARGB pixels of source images. Sprites that read the pixels of an image 
+ * (such as BlitterSprites) acquire them here instead of each keeping their own copy, so ten sprites blittering the 
+ * same image share one pixel array. 
+ * 
+ * If an image is already a TYPE_INT_ARGB BufferedImage, its raster's data is used directly without any copying. 
+ * Otherwise the pixels are grabbed once with a PixelGrabber. 
+ * 
+ * Every call to acquire must be balanced by a call to release. When an image's reference count drops to 0, its 
+ * pixels are dropped from the cache.
+ */
+public class PixelCache {
+  
+  /** The pixels of a cached image. */
+  public static class Entry {
+    
+    /** The image's pixels in ARGB format, row by row. This is shared, so don't modify it. */
+    public final int[] pixels;
+    
+    /** The width of the image. */
+    public final int width;
+    
+    /** The height of the image. */
+    public final int height;
+    
+    /** The number of current users of this entry. */
+    private int refCount = 0;
+    
+    private Entry(int[] pixels, int width, int height) {
+      this.pixels = pixels;
+      this.width = width;
+      this.height = height;
+    }
+  }
+  
+  
+  /** The cached entries, keyed by the identity of their source images. */
+  private static IdentityHashMap<Image, Entry> entries = new IdentityHashMap<>();
+  
+  private PixelCache() {}
+  
+  
+  /** 
+   * Returns the cached pixels of an image and increments its reference count. 
+   * The pixels are obtained if the image isn't already cached. 
+   * Returns null if the image's pixels couldn't be obtained.
+   */
+  public static synchronized Entry acquire(Image img) {
+    if(img == null)
+      return null;
+    
+    Entry entry = entries.get(img);
+    if(entry == null) {
+      entry = readPixels(img);
+      if(entry == null)
+        return null;
+      entries.put(img, entry);
+    }
+    
+    entry.refCount++;
+    return entry;
+  }
+  
+  
+  /** 
+   * Decrements the reference count of an image's cached pixels. 
+   * They are removed from the cache when nothing is using them anymore.
+   */
+  public static synchronized void release(Image img) {
+    if(img == null)
+      return;
+    
+    Entry entry = entries.get(img);
+    if(entry == null)
+      return;
+    
+    entry.refCount--;
+    if(entry.refCount <= 0)
+      entries.remove(img);
+  }
+  
+  
+  /** Returns true iff an image's pixels are currently cached. */
+  public static synchronized boolean isCached(Image img) {
+    return entries.containsKey(img);
+  }
+  
+  /** Returns the number of images whose pixels are currently cached. */
+  public static synchronized int size() {
+    return entries.size();
+  }
+  
+  
+  /** Obtains the pixels of an image, using its raster directly if it's an INT_ARGB BufferedImage. */
+  private static Entry readPixels(Image img) {
+    if(img instanceof BufferedImage) {
+      int[] data = getPackedData((BufferedImage) img);
+      if(data != null) {
+        BufferedImage bimg = (BufferedImage) img;
+        return new Entry(data, bimg.getWidth(), bimg.getHeight());
+      }
+    }
+    
+    PixelGrabber pg = new PixelGrabber(img, 0, 0, -1, -1, true);
+    try {
+      if(!pg.grabPixels())
+        return null;
+    }
+    catch(InterruptedException ex) {
+      System.err.println("PixelCache - interrupted while grabbing pixels.");
+      ex.printStackTrace();
+      return null;
+    }
+    
+    return new Entry((int[]) pg.getPixels(), pg.getWidth(), pg.getHeight());
+  }
+  
+  
+  /** 
+   * Returns the backing pixel array of a TYPE_INT_ARGB BufferedImage if its raster is laid out as one tightly 
+   * packed pixel per int. Returns null if the image isn't laid out like this, such as if it is a subimage. 
+   */
+  private static int[] getPackedData(BufferedImage img) {
+    if(img.getType() != BufferedImage.TYPE_INT_ARGB)
+      return null;
+    
+    WritableRaster raster = img.getRaster();
+    if(raster.getParent() != null || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0)
+      return null;
+    
+    SampleModel sm = raster.getSampleModel();
+    if(!(sm instanceof SinglePixelPackedSampleModel) || ((SinglePixelPackedSampleModel) sm).getScanlineStride() != img.getWidth())
+      return null;
+    
+    DataBuffer buffer = raster.getDataBuffer();
+    if(!(buffer instanceof DataBufferInt) || buffer.getNumBanks() != 1 || buffer.getOffset() != 0)
+      return null;
+    
+    return ((DataBufferInt) buffer).getData();
+  }
+}
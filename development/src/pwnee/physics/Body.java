@@ -0,0 +1,412 @@
+package pwnee.physics;
+
+import java.util.Arrays;
+
+import pwnee.geom.Polygon2D;
+
+/**
+ * A rigid body simulated by a PhysicsWorld. A body's shape is either a
+ * circle or a convex polygon, and its position is the position of its
+ * center of mass. Polygons are given relative to the body's position and
+ * are shifted so that their centroid is at the body's position.
+ *
+ * A body with a density of 0 is static. Static bodies never move, but
+ * dynamic bodies collide with them. Setting a static body's position moves
+ * it like a teleport, without pushing anything along.
+ *
+ * Resting bodies fall asleep and stop being simulated until something
+ * touches them, a force or impulse is applied to them, or their velocity
+ * is set. The userData can link the body to the sprite that draws it.
+ */
+public class Body {
+
+  /** The x position of the center of mass. */
+  public double x;
+
+  /** The y position of the center of mass. */
+  public double y;
+
+  /** The rotation in radians. */
+  public double angle = 0;
+
+  /** The x velocity, in units per second. */
+  public double vx = 0;
+
+  /** The y velocity, in units per second. */
+  public double vy = 0;
+
+  /** The angular velocity, in radians per second. */
+  public double angularVelocity = 0;
+
+  /** How bouncy the body is, from 0 for no bounce to 1 for a perfect bounce. */
+  public double restitution = 0;
+
+  /** The Coulomb friction coefficient. */
+  public double friction = 0.4;
+
+  /** The fraction of the linear velocity lost per second, to let things come to rest. */
+  public double linearDamping = 0;
+
+  /** The fraction of the angular velocity lost per second. */
+  public double angularDamping = 0.05;
+
+  /** How strongly gravity pulls the body. 0 makes it float. */
+  public double gravityScale = 1;
+
+  /** If false, the body never falls asleep. */
+  public boolean allowSleep = true;
+
+  /** Arbitrary data for the game, such as the sprite that draws the body. */
+  public Object userData = null;
+
+  /** The circle's radius, or 0 if the shape is a polygon. */
+  private double radius;
+
+  /** The polygon relative to the center of mass, or null if the shape is a circle. */
+  private Polygon2D localPoly;
+
+  /** The polygon at the body's current position and rotation, rebuilt only after the body moves. */
+  Polygon2D worldPoly;
+
+  /** Scratch coordinates for building worldPoly. */
+  private double[] worldXs;
+  private double[] worldYs;
+
+  double mass;
+  double invMass;
+  double inertia;
+  double invInertia;
+
+  /** The forces accumulated for the next step. */
+  double forceX = 0;
+  double forceY = 0;
+  double torque = 0;
+
+  /** The bounding box of the shape at the body's current position. */
+  double minX, minY, maxX, maxY;
+
+  /** Whether worldPoly and the bounding box need to be recomputed. */
+  boolean dirty = true;
+
+  /** The position and angle that worldPoly and the bounding box were computed at. */
+  private double syncedX, syncedY, syncedAngle;
+
+  /** The categories the body is in. */
+  int category = 1;
+
+  /** The categories of bodies the body collides with. */
+  int mask = ~0;
+
+  boolean awake = true;
+
+  /** How long the body has been moving slowly enough to sleep. */
+  double sleepTime = 0;
+
+  /** The world the body is in, or null. */
+  PhysicsWorld world = null;
+
+  /** The body's index in its world's list of bodies. */
+  int worldIndex = -1;
+
+  /** The manifolds of the contacts the body is in. */
+  Manifold[] contacts = new Manifold[4];
+  int contactCount = 0;
+
+  /** The last island search the body was reached by, to mark it visited. */
+  int islandStamp = 0;
+
+  /** The body's index in the island it is being solved in. */
+  int islandIndex = -1;
+
+
+  /**
+   * Creates a circular body.
+   * @param density   The mass per unit of area, or 0 for a static body.
+   */
+  public Body(double x, double y, double radius, double density) {
+    this.x = x;
+    this.y = y;
+    this.radius = radius;
+    setMass(density*Math.PI*radius*radius, density*Math.PI*radius*radius*radius*radius/2);
+  }
+
+  /**
+   * Creates a body shaped like a convex polygon. The polygon's vertices are
+   * relative to (x, y), and the body's position is moved to the polygon's
+   * centroid.
+   * @param density   The mass per unit of area, or 0 for a static body.
+   */
+  public Body(double x, double y, Polygon2D poly, double density) {
+    int n = poly.size();
+    if(n < 3)
+      throw new IllegalArgumentException("A body's polygon must have at least 3 vertices.");
+
+    // Find the centroid and the moment of inertia about the origin from the triangles fanning out of vertex 0.
+    double ox = poly.getX(0);
+    double oy = poly.getY(0);
+    double area = 0;
+    double cx = 0;
+    double cy = 0;
+    double inertiaO = 0;
+    for(int i = 1; i < n - 1; i++) {
+      double e1x = poly.getX(i) - ox;
+      double e1y = poly.getY(i) - oy;
+      double e2x = poly.getX(i+1) - ox;
+      double e2y = poly.getY(i+1) - oy;
+      double cross = e1x*e2y - e1y*e2x;
+      double triArea = cross/2;
+      area += triArea;
+      cx += triArea*(e1x + e2x)/3;
+      cy += triArea*(e1y + e2y)/3;
+      inertiaO += cross/12*(e1x*e1x + e1x*e2x + e2x*e2x + e1y*e1y + e1y*e2y + e2y*e2y);
+    }
+    if(area == 0)
+      throw new IllegalArgumentException("A body's polygon must have a non-zero area.");
+    cx /= area;
+    cy /= area;
+
+    // The vertices may be in either order, which only flips the signs of the sums.
+    double mass = density*Math.abs(area);
+    double inertia = density*Math.abs(inertiaO) - mass*(cx*cx + cy*cy);
+
+    double[] xs = new double[n];
+    double[] ys = new double[n];
+    for(int i = 0; i < n; i++) {
+      xs[i] = poly.getX(i) - ox - cx;
+      ys[i] = poly.getY(i) - oy - cy;
+    }
+    this.localPoly = new Polygon2D(xs, ys);
+    this.worldXs = new double[n];
+    this.worldYs = new double[n];
+    this.x = x + ox + cx;
+    this.y = y + oy + cy;
+    setMass(mass, inertia);
+  }
+
+  /** Sets the mass and moment of inertia, making the body static if the mass is 0. */
+  private void setMass(double mass, double inertia) {
+    this.mass = mass;
+    this.inertia = inertia;
+    this.invMass = (mass > 0) ? 1/mass : 0;
+    this.invInertia = (mass > 0 && inertia > 0) ? 1/inertia : 0;
+  }
+
+
+  //////// Properties
+
+  /** Returns true iff the body never moves. */
+  public boolean isStatic() {
+    return invMass == 0;
+  }
+
+  /** Returns the body's mass, or 0 if it is static. */
+  public double getMass() {
+    return mass;
+  }
+
+  /** Returns the body's moment of inertia about its center of mass. */
+  public double getInertia() {
+    return inertia;
+  }
+
+  /** Returns true iff the shape is a circle. */
+  public boolean isCircle() {
+    return localPoly == null;
+  }
+
+  /** Returns the circle's radius, or 0 if the shape is a polygon. */
+  public double getRadius() {
+    return radius;
+  }
+
+  /** Returns the polygon relative to the center of mass, or null if the shape is a circle. */
+  public Polygon2D getLocalPolygon() {
+    return localPoly;
+  }
+
+  /** Returns the polygon at the body's current position and rotation, or null if the shape is a circle. */
+  public Polygon2D getPolygon() {
+    sync();
+    return worldPoly;
+  }
+
+  /** Sets the categories the body is in and the categories it collides with. */
+  public void setFilter(int category, int mask) {
+    if(category == 0)
+      throw new IllegalArgumentException("A body's category must have at least one bit set.");
+    this.category = category;
+    this.mask = mask;
+    setAwake(true);
+  }
+
+  /** Returns the categories the body is in. */
+  public int getCategory() {
+    return category;
+  }
+
+  /** Returns the categories of bodies the body collides with. */
+  public int getMask() {
+    return mask;
+  }
+
+  /** Returns true iff two bodies can collide, based on their types and filters. */
+  boolean canCollide(Body other) {
+    return (invMass > 0 || other.invMass > 0) && (category & other.mask) != 0 && (other.category & mask) != 0;
+  }
+
+
+  //////// Motion
+
+  /** Moves the body, waking it up. */
+  public void setPosition(double x, double y) {
+    this.x = x;
+    this.y = y;
+    dirty = true;
+    setAwake(true);
+  }
+
+  /** Rotates the body to an angle in radians, waking it up. */
+  public void setAngle(double angle) {
+    this.angle = angle;
+    dirty = true;
+    setAwake(true);
+  }
+
+  /** Sets the linear velocity, waking the body up. */
+  public void setVelocity(double vx, double vy) {
+    if(isStatic())
+      return;
+    this.vx = vx;
+    this.vy = vy;
+    setAwake(true);
+  }
+
+  /** Applies a force at the center of mass for the next step, waking the body up. */
+  public void applyForce(double fx, double fy) {
+    if(isStatic())
+      return;
+    forceX += fx;
+    forceY += fy;
+    setAwake(true);
+  }
+
+  /** Applies a torque for the next step, waking the body up. */
+  public void applyTorque(double t) {
+    if(isStatic())
+      return;
+    torque += t;
+    setAwake(true);
+  }
+
+  /** Applies an impulse at a point in world coordinates, immediately changing the velocity. */
+  public void applyImpulse(double ix, double iy, double px, double py) {
+    if(isStatic())
+      return;
+    vx += ix*invMass;
+    vy += iy*invMass;
+    angularVelocity += invInertia*((px - x)*iy - (py - y)*ix);
+    setAwake(true);
+  }
+
+
+  //////// Sleeping
+
+  /** Returns true iff the body is being simulated. Static bodies are never awake. */
+  public boolean isAwake() {
+    return awake && !isStatic();
+  }
+
+  /** Wakes the body up or puts it to sleep. A sleeping body doesn't move. */
+  public void setAwake(boolean awake) {
+    if(awake) {
+      this.awake = true;
+      sleepTime = 0;
+    }
+    else {
+      this.awake = false;
+      sleepTime = 0;
+      vx = 0;
+      vy = 0;
+      angularVelocity = 0;
+      forceX = 0;
+      forceY = 0;
+      torque = 0;
+    }
+  }
+
+
+  //////// Shape
+
+  /** Recomputes the world polygon and the bounding box if the body moved since they were computed. */
+  void sync() {
+    if(!dirty && x == syncedX && y == syncedY && angle == syncedAngle)
+      return;
+    dirty = false;
+    syncedX = x;
+    syncedY = y;
+    syncedAngle = angle;
+
+    if(localPoly == null) {
+      minX = x - radius;
+      minY = y - radius;
+      maxX = x + radius;
+      maxY = y + radius;
+      return;
+    }
+
+    double cos = Math.cos(angle);
+    double sin = Math.sin(angle);
+    minX = Double.POSITIVE_INFINITY;
+    minY = Double.POSITIVE_INFINITY;
+    maxX = Double.NEGATIVE_INFINITY;
+    maxY = Double.NEGATIVE_INFINITY;
+    int n = worldXs.length;
+    for(int i = 0; i < n; i++) {
+      double lx = localPoly.getX(i);
+      double ly = localPoly.getY(i);
+      double wx = x + lx*cos - ly*sin;
+      double wy = y + lx*sin + ly*cos;
+      worldXs[i] = wx;
+      worldYs[i] = wy;
+      minX = Math.min(minX, wx);
+      minY = Math.min(minY, wy);
+      maxX = Math.max(maxX, wx);
+      maxY = Math.max(maxY, wy);
+    }
+
+    // Polygons are immutable, so a moved body needs a new one. Its edge normals are cached on first use.
+    worldPoly = new Polygon2D(worldXs, worldYs);
+  }
+
+
+  //////// Contacts
+
+  /** Adds a manifold to the body's contacts and returns its index there. */
+  int addContact(Manifold m) {
+    if(contactCount == contacts.length)
+      contacts = Arrays.copyOf(contacts, contactCount*2);
+    contacts[contactCount] = m;
+    return contactCount++;
+  }
+
+  /** Removes the contact at an index by moving the last contact into its place. */
+  void removeContact(int i) {
+    contactCount--;
+    Manifold last = contacts[contactCount];
+    contacts[contactCount] = null;
+    if(i < contactCount) {
+      contacts[i] = last;
+      last.setIndexIn(this, i);
+    }
+  }
+
+  /** Returns the manifold between this body and another, or null if there isn't one. */
+  Manifold findContact(Body other) {
+    for(int i = 0; i < contactCount; i++) {
+      Manifold m = contacts[i];
+      if(m.a == other || m.b == other)
+        return m;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,118 @@
+package pwnee.physics;
+
+import java.util.Arrays;
+
+/**
+ * A group of awake bodies connected by contacts, solved apart from the rest
+ * of the world. Static bodies can touch several islands, but they aren't
+ * part of any, since nothing moves them. The island copies its bodies'
+ * velocities into its own arrays while it solves them, so different
+ * islands never write to the same memory and can be solved in parallel.
+ */
+class Island {
+
+  Body[] bodies = new Body[16];
+  int bodyCount = 0;
+
+  Manifold[] manifolds = new Manifold[16];
+  int manifoldCount = 0;
+
+  private double[] vxs = new double[16];
+  private double[] vys = new double[16];
+  private double[] ws = new double[16];
+
+
+  /** Empties the island, keeping its capacity. */
+  void clear() {
+    Arrays.fill(bodies, 0, bodyCount, null);
+    Arrays.fill(manifolds, 0, manifoldCount, null);
+    bodyCount = 0;
+    manifoldCount = 0;
+  }
+
+  void addBody(Body body) {
+    if(bodyCount == bodies.length)
+      bodies = Arrays.copyOf(bodies, bodyCount*2);
+    body.islandIndex = bodyCount;
+    bodies[bodyCount++] = body;
+  }
+
+  void addManifold(Manifold m) {
+    if(manifoldCount == manifolds.length)
+      manifolds = Arrays.copyOf(manifolds, manifoldCount*2);
+    manifolds[manifoldCount++] = m;
+  }
+
+
+  /** Advances the island's bodies by a step of dt seconds and puts them to sleep if they have come to rest. */
+  void solve(PhysicsWorld world, double dt) {
+    if(vxs.length < bodyCount) {
+      vxs = new double[bodies.length];
+      vys = new double[bodies.length];
+      ws = new double[bodies.length];
+    }
+
+    // Integrate the forces into the velocities.
+    for(int i = 0; i < bodyCount; i++) {
+      Body body = bodies[i];
+      double vx = body.vx + dt*(world.gravityX*body.gravityScale + body.invMass*body.forceX);
+      double vy = body.vy + dt*(world.gravityY*body.gravityScale + body.invMass*body.forceY);
+      double w = body.angularVelocity + dt*body.invInertia*body.torque;
+
+      // Damping is applied as 1/(1 + c*dt), which is stable for large steps.
+      vx /= 1 + dt*body.linearDamping;
+      vy /= 1 + dt*body.linearDamping;
+      w /= 1 + dt*body.angularDamping;
+      vxs[i] = vx;
+      vys[i] = vy;
+      ws[i] = w;
+      body.forceX = 0;
+      body.forceY = 0;
+      body.torque = 0;
+    }
+
+    // Solve the contacts, starting from last step's impulses.
+    double invDt = (dt > 0) ? 1/dt : 0;
+    for(int j = 0; j < manifoldCount; j++)
+      manifolds[j].prepare(vxs, vys, ws, invDt, world.baumgarte, world.slop, world.restitutionThreshold);
+    for(int j = 0; j < manifoldCount; j++)
+      manifolds[j].warmStart(vxs, vys, ws);
+    for(int it = 0; it < world.velocityIterations; it++) {
+      for(int j = 0; j < manifoldCount; j++)
+        manifolds[j].solveVelocity(vxs, vys, ws);
+    }
+
+    // Integrate the velocities into the positions, and find out how long the island has been resting.
+    double linearTolSq = world.sleepLinearVelocity*world.sleepLinearVelocity;
+    double angularTolSq = world.sleepAngularVelocity*world.sleepAngularVelocity;
+    double minSleepTime = Double.POSITIVE_INFINITY;
+    for(int i = 0; i < bodyCount; i++) {
+      Body body = bodies[i];
+      double vx = vxs[i];
+      double vy = vys[i];
+      double w = ws[i];
+      body.vx = vx;
+      body.vy = vy;
+      body.angularVelocity = w;
+      body.x += dt*vx;
+      body.y += dt*vy;
+      body.angle += dt*w;
+      body.islandIndex = -1;
+
+      if(!body.allowSleep || vx*vx + vy*vy > linearTolSq || w*w > angularTolSq) {
+        body.sleepTime = 0;
+        minSleepTime = 0;
+      }
+      else {
+        body.sleepTime += dt;
+        minSleepTime = Math.min(minSleepTime, body.sleepTime);
+      }
+    }
+
+    // A body can only sleep along with everything it is touching.
+    if(world.allowSleep && minSleepTime >= world.timeToSleep) {
+      for(int i = 0; i < bodyCount; i++)
+        bodies[i].setAwake(false);
+    }
+  }
+}
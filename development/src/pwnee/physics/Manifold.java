@@ -0,0 +1,465 @@
+package pwnee.physics;
+
+import pwnee.geom.Contact;
+import pwnee.geom.Polygon2D;
+
+/**
+ * The contact between two bodies whose bounding boxes overlap. Manifolds
+ * are kept from step to step while the bounding boxes keep overlapping, so
+ * the impulses that the solver found for each contact point last step can
+ * be applied again at the start of the next step. This warm starting lets
+ * stacks of bodies come to rest in a few solver iterations.
+ *
+ * The normal points from A towards B.
+ */
+class Manifold {
+
+  /** New contact points within this distance of an old point reuse its impulses. */
+  private static final double MATCH_DIST_SQ = 2*2;
+
+  /** The old impulses are only reused if the normal turned less than about 18 degrees. */
+  private static final double MATCH_NORMAL_DOT = 0.95;
+
+  /** Above this condition number, the two points of a manifold are too dependent to solve at once. */
+  private static final double MAX_CONDITION = 1000;
+
+  Body a;
+  Body b;
+
+  /** The manifold's indices in its bodies' contact lists. */
+  int indexInA;
+  int indexInB;
+
+  /** The manifold's index in its world's list of manifolds. */
+  int worldIndex;
+
+  /** The last step whose broadphase found the bodies' bounding boxes overlapping. */
+  int stepStamp;
+
+  /** The last island search the manifold was reached by, to mark it visited. */
+  int islandStamp;
+
+  double normalX;
+  double normalY;
+
+  /** The combined friction and restitution of the bodies. */
+  double friction;
+  double restitution;
+
+  /** The number of contact points. 0 means the bodies' bounding boxes overlap, but not their shapes. */
+  int pointCount = 0;
+
+  double[] pointXs = new double[Contact.MAX_POINTS];
+  double[] pointYs = new double[Contact.MAX_POINTS];
+  double[] depths = new double[Contact.MAX_POINTS];
+
+  /** The impulses accumulated for each point along the normal and the tangent. */
+  double[] normalImpulses = new double[Contact.MAX_POINTS];
+  double[] tangentImpulses = new double[Contact.MAX_POINTS];
+
+  /** The solver's per-point data, computed when each step's solve begins. */
+  private double[] rAxs = new double[Contact.MAX_POINTS];
+  private double[] rAys = new double[Contact.MAX_POINTS];
+  private double[] rBxs = new double[Contact.MAX_POINTS];
+  private double[] rBys = new double[Contact.MAX_POINTS];
+  private double[] normalMasses = new double[Contact.MAX_POINTS];
+  private double[] tangentMasses = new double[Contact.MAX_POINTS];
+  private double[] velocityBiases = new double[Contact.MAX_POINTS];
+
+  /**
+   * The inverse of the 2x2 matrix that relates the two points' normal
+   * impulses to their velocities, for solving both points at once, and
+   * the matrix itself. Only used if blockSolve is true.
+   */
+  private double k11, k12, k22;
+  private double invK11, invK12, invK22;
+  private boolean blockSolve;
+
+  /** The bodies' indices in the island being solved, or -1 for a static body. */
+  private int ia;
+  private int ib;
+
+
+  /** Sets up a recycled manifold for a new pair of bodies. */
+  void init(Body a, Body b) {
+    this.a = a;
+    this.b = b;
+    this.pointCount = 0;
+    this.friction = Math.sqrt(a.friction*b.friction);
+    this.restitution = Math.max(a.restitution, b.restitution);
+  }
+
+  /** Sets the manifold's index in one of its bodies' contact lists. */
+  void setIndexIn(Body body, int i) {
+    if(body == a)
+      indexInA = i;
+    else
+      indexInB = i;
+  }
+
+  /** Returns the manifold's other body. */
+  Body other(Body body) {
+    return (body == a) ? b : a;
+  }
+
+
+  //////// Narrowphase
+
+  /**
+   * Tests the bodies' shapes against each other and updates the contact
+   * points. New points near old points keep the old points' impulses.
+   * @param scratch   A contact to use for the polygon tests.
+   */
+  void collide(Contact scratch) {
+    a.sync();
+    b.sync();
+    scratch.reset();
+    if(a.isCircle() && b.isCircle())
+      circleCircle(a.x, a.y, a.getRadius(), b.x, b.y, b.getRadius(), scratch);
+    else if(a.isCircle()) {
+      polyCircle(b.worldPoly, a.x, a.y, a.getRadius(), scratch);
+      scratch.flip();
+    }
+    else if(b.isCircle())
+      polyCircle(a.worldPoly, b.x, b.y, b.getRadius(), scratch);
+    else
+      a.worldPoly.collide(b.worldPoly, scratch);
+
+    if(!scratch.isColliding) {
+      pointCount = 0;
+      return;
+    }
+
+    // Match the new points to the old ones to carry over their impulses.
+    double oldN0 = normalImpulses[0];
+    double oldN1 = normalImpulses[1];
+    double oldT0 = tangentImpulses[0];
+    double oldT1 = tangentImpulses[1];
+    double oldX0 = pointXs[0];
+    double oldY0 = pointYs[0];
+    double oldX1 = pointXs[1];
+    double oldY1 = pointYs[1];
+    int oldCount = (normalX*scratch.normalX + normalY*scratch.normalY >= MATCH_NORMAL_DOT) ? pointCount : 0;
+
+    normalX = scratch.normalX;
+    normalY = scratch.normalY;
+    pointCount = scratch.pointCount;
+    for(int i = 0; i < pointCount; i++) {
+      double px = scratch.pointXs[i];
+      double py = scratch.pointYs[i];
+      pointXs[i] = px;
+      pointYs[i] = py;
+      depths[i] = scratch.pointDepths[i];
+      normalImpulses[i] = 0;
+      tangentImpulses[i] = 0;
+
+      double best = MATCH_DIST_SQ;
+      if(oldCount > 0 && distSq(px, py, oldX0, oldY0) <= best) {
+        best = distSq(px, py, oldX0, oldY0);
+        normalImpulses[i] = oldN0;
+        tangentImpulses[i] = oldT0;
+      }
+      if(oldCount > 1 && distSq(px, py, oldX1, oldY1) <= best) {
+        normalImpulses[i] = oldN1;
+        tangentImpulses[i] = oldT1;
+      }
+    }
+  }
+
+  private static double distSq(double x1, double y1, double x2, double y2) {
+    double dx = x2 - x1;
+    double dy = y2 - y1;
+    return dx*dx + dy*dy;
+  }
+
+  /** Tests circle A against circle B. The contact point is halfway between their surfaces. */
+  private static void circleCircle(double ax, double ay, double ar, double bx, double by, double br, Contact out) {
+    double dx = bx - ax;
+    double dy = by - ay;
+    double distSq = dx*dx + dy*dy;
+    double r = ar + br;
+    if(distSq > r*r)
+      return;
+
+    double dist = Math.sqrt(distSq);
+    double nx = 1;
+    double ny = 0;
+    if(dist > 0) {
+      nx = dx/dist;
+      ny = dy/dist;
+    }
+    double depth = r - dist;
+    out.isColliding = true;
+    out.normalX = nx;
+    out.normalY = ny;
+    out.depth = depth;
+    out.addPoint(ax + nx*(ar - depth/2), ay + ny*(ar - depth/2), depth);
+  }
+
+  /**
+   * Tests convex polygon A against circle B. The edge that the circle's
+   * center is farthest past is the only one the circle can touch, either
+   * along the edge or at one of its ends. The contact point is on the polygon.
+   */
+  private static void polyCircle(Polygon2D poly, double cx, double cy, double r, Contact out) {
+    int n = poly.size();
+    int edge = 0;
+    double maxSep = Double.NEGATIVE_INFINITY;
+    for(int i = 0; i < n; i++) {
+      double sep = poly.getNormalX(i)*(cx - poly.getX(i)) + poly.getNormalY(i)*(cy - poly.getY(i));
+      if(sep > r)
+        return;
+      if(sep > maxSep) {
+        maxSep = sep;
+        edge = i;
+      }
+    }
+
+    double nx = poly.getNormalX(edge);
+    double ny = poly.getNormalY(edge);
+    double x1 = poly.getX(edge);
+    double y1 = poly.getY(edge);
+    double x2 = poly.getX((edge + 1) % n);
+    double y2 = poly.getY((edge + 1) % n);
+
+    if(maxSep <= 0) {
+      // The center is inside the polygon, so push it out through the nearest edge.
+      out.isColliding = true;
+      out.normalX = nx;
+      out.normalY = ny;
+      out.depth = r - maxSep;
+      out.addPoint(cx - nx*maxSep, cy - ny*maxSep, out.depth);
+      return;
+    }
+
+    // Find the nearest point on the edge.
+    double ex = x2 - x1;
+    double ey = y2 - y1;
+    double lenSq = ex*ex + ey*ey;
+    double t = (lenSq > 0) ? ((cx - x1)*ex + (cy - y1)*ey)/lenSq : 0;
+    t = Math.max(0, Math.min(1, t));
+    double px = x1 + ex*t;
+    double py = y1 + ey*t;
+
+    double dx = cx - px;
+    double dy = cy - py;
+    double distSq = dx*dx + dy*dy;
+    if(distSq > r*r)
+      return;
+    double dist = Math.sqrt(distSq);
+    if(dist > 0) {
+      nx = dx/dist;
+      ny = dy/dist;
+    }
+    out.isColliding = true;
+    out.normalX = nx;
+    out.normalY = ny;
+    out.depth = r - dist;
+    out.addPoint(px, py, out.depth);
+  }
+
+
+  //////// Solver
+
+  /**
+   * Computes the solver's per-point data from the bodies' current state.
+   * @param baumgarte   The fraction of the penetration to correct per step.
+   * @param slop        How far bodies may overlap without being pushed apart, which keeps resting contacts from jittering.
+   * @param restitutionThreshold  Approaching speeds below this don't bounce.
+   */
+  void prepare(double[] vxs, double[] vys, double[] ws, double invDt, double baumgarte, double slop, double restitutionThreshold) {
+    ia = a.isStatic() ? -1 : a.islandIndex;
+    ib = b.isStatic() ? -1 : b.islandIndex;
+    double mA = a.invMass;
+    double mB = b.invMass;
+    double iA = a.invInertia;
+    double iB = b.invInertia;
+    double tx = -normalY;
+    double ty = normalX;
+
+    for(int i = 0; i < pointCount; i++) {
+      double rAx = pointXs[i] - a.x;
+      double rAy = pointYs[i] - a.y;
+      double rBx = pointXs[i] - b.x;
+      double rBy = pointYs[i] - b.y;
+      rAxs[i] = rAx;
+      rAys[i] = rAy;
+      rBxs[i] = rBx;
+      rBys[i] = rBy;
+
+      double rnA = rAx*normalY - rAy*normalX;
+      double rnB = rBx*normalY - rBy*normalX;
+      double kN = mA + mB + iA*rnA*rnA + iB*rnB*rnB;
+      normalMasses[i] = (kN > 0) ? 1/kN : 0;
+
+      double rtA = rAx*ty - rAy*tx;
+      double rtB = rBx*ty - rBy*tx;
+      double kT = mA + mB + iA*rtA*rtA + iB*rtB*rtB;
+      tangentMasses[i] = (kT > 0) ? 1/kT : 0;
+
+      // Bounce off fast approaches, and push overlapping bodies apart a little each step.
+      double vn = relativeVelocityX(vxs, vys, ws, i)*normalX + relativeVelocityY(vxs, vys, ws, i)*normalY;
+      double bias = baumgarte*invDt*Math.max(0, depths[i] - slop);
+      if(vn < -restitutionThreshold)
+        bias = Math.max(bias, -restitution*vn);
+      velocityBiases[i] = bias;
+    }
+
+    // Solving the points of a two-point contact one at a time makes a resting body tip towards the point solved
+    // last. Solving them together as a 2x2 linear complementarity problem keeps stacks level.
+    blockSolve = false;
+    if(pointCount == 2) {
+      double rn1A = rAxs[0]*normalY - rAys[0]*normalX;
+      double rn1B = rBxs[0]*normalY - rBys[0]*normalX;
+      double rn2A = rAxs[1]*normalY - rAys[1]*normalX;
+      double rn2B = rBxs[1]*normalY - rBys[1]*normalX;
+      k11 = mA + mB + iA*rn1A*rn1A + iB*rn1B*rn1B;
+      k22 = mA + mB + iA*rn2A*rn2A + iB*rn2B*rn2B;
+      k12 = mA + mB + iA*rn1A*rn2A + iB*rn1B*rn2B;
+      double det = k11*k22 - k12*k12;
+      if(k11*k11 < MAX_CONDITION*det) {
+        blockSolve = true;
+        invK11 = k22/det;
+        invK12 = -k12/det;
+        invK22 = k11/det;
+      }
+      else {
+        // The points are nearly redundant, so keep only the deeper one.
+        if(depths[1] > depths[0]) {
+          pointXs[0] = pointXs[1];
+          pointYs[0] = pointYs[1];
+          depths[0] = depths[1];
+          normalImpulses[0] = normalImpulses[1];
+          tangentImpulses[0] = tangentImpulses[1];
+          rAxs[0] = rAxs[1];
+          rAys[0] = rAys[1];
+          rBxs[0] = rBxs[1];
+          rBys[0] = rBys[1];
+          normalMasses[0] = normalMasses[1];
+          tangentMasses[0] = tangentMasses[1];
+          velocityBiases[0] = velocityBiases[1];
+        }
+        pointCount = 1;
+      }
+    }
+  }
+
+  /** Applies the impulses carried over from the last step. */
+  void warmStart(double[] vxs, double[] vys, double[] ws) {
+    double tx = -normalY;
+    double ty = normalX;
+    for(int i = 0; i < pointCount; i++) {
+      double px = normalImpulses[i]*normalX + tangentImpulses[i]*tx;
+      double py = normalImpulses[i]*normalY + tangentImpulses[i]*ty;
+      applyImpulse(vxs, vys, ws, i, px, py);
+    }
+  }
+
+  /** Does one iteration of solving the friction and non-penetration constraints. */
+  void solveVelocity(double[] vxs, double[] vys, double[] ws) {
+    double tx = -normalY;
+    double ty = normalX;
+
+    // Friction is solved first, since non-penetration matters more and the last constraint solved wins.
+    for(int i = 0; i < pointCount; i++) {
+      double vt = relativeVelocityX(vxs, vys, ws, i)*tx + relativeVelocityY(vxs, vys, ws, i)*ty;
+      double lambda = -tangentMasses[i]*vt;
+      double maxFriction = friction*normalImpulses[i];
+      double old = tangentImpulses[i];
+      double acc = Math.max(-maxFriction, Math.min(maxFriction, old + lambda));
+      tangentImpulses[i] = acc;
+      lambda = acc - old;
+      applyImpulse(vxs, vys, ws, i, lambda*tx, lambda*ty);
+    }
+
+    if(blockSolve) {
+      solveBlock(vxs, vys, ws);
+      return;
+    }
+
+    for(int i = 0; i < pointCount; i++) {
+      double vn = relativeVelocityX(vxs, vys, ws, i)*normalX + relativeVelocityY(vxs, vys, ws, i)*normalY;
+      double lambda = normalMasses[i]*(velocityBiases[i] - vn);
+      double old = normalImpulses[i];
+      double acc = Math.max(0, old + lambda);
+      normalImpulses[i] = acc;
+      lambda = acc - old;
+      applyImpulse(vxs, vys, ws, i, lambda*normalX, lambda*normalY);
+    }
+  }
+
+  /**
+   * Solves the normal impulses of both points at once. The new total
+   * impulses x must be non-negative, and the points' velocities
+   * vn = K*x + b must be non-negative where they are pushing apart, so each
+   * combination of points being active is tried until one works.
+   */
+  private void solveBlock(double[] vxs, double[] vys, double[] ws) {
+    double a1 = normalImpulses[0];
+    double a2 = normalImpulses[1];
+    double vn1 = relativeVelocityX(vxs, vys, ws, 0)*normalX + relativeVelocityY(vxs, vys, ws, 0)*normalY;
+    double vn2 = relativeVelocityX(vxs, vys, ws, 1)*normalX + relativeVelocityY(vxs, vys, ws, 1)*normalY;
+
+    // The velocities the points would have with no impulses at all.
+    double b1 = vn1 - velocityBiases[0] - (k11*a1 + k12*a2);
+    double b2 = vn2 - velocityBiases[1] - (k12*a1 + k22*a2);
+
+    double x1;
+    double x2;
+
+    // Both points pushing.
+    x1 = -(invK11*b1 + invK12*b2);
+    x2 = -(invK12*b1 + invK22*b2);
+    if(x1 < 0 || x2 < 0) {
+      // Only the first point pushing.
+      x1 = -b1/k11;
+      x2 = 0;
+      if(x1 < 0 || k12*x1 + b2 < 0) {
+        // Only the second point pushing.
+        x1 = 0;
+        x2 = -b2/k22;
+        if(x2 < 0 || k12*x2 + b1 < 0) {
+          // Neither point pushing.
+          x2 = 0;
+          if(b1 < 0 || b2 < 0)
+            return;
+        }
+      }
+    }
+
+    double d1 = x1 - a1;
+    double d2 = x2 - a2;
+    normalImpulses[0] = x1;
+    normalImpulses[1] = x2;
+    applyImpulse(vxs, vys, ws, 0, d1*normalX, d1*normalY);
+    applyImpulse(vxs, vys, ws, 1, d2*normalX, d2*normalY);
+  }
+
+  /** Returns the x velocity of B's contact point relative to A's. */
+  private double relativeVelocityX(double[] vxs, double[] vys, double[] ws, int i) {
+    double vA = (ia < 0) ? 0 : vxs[ia] - ws[ia]*rAys[i];
+    double vB = (ib < 0) ? 0 : vxs[ib] - ws[ib]*rBys[i];
+    return vB - vA;
+  }
+
+  /** Returns the y velocity of B's contact point relative to A's. */
+  private double relativeVelocityY(double[] vxs, double[] vys, double[] ws, int i) {
+    double vA = (ia < 0) ? 0 : vys[ia] + ws[ia]*rAxs[i];
+    double vB = (ib < 0) ? 0 : vys[ib] + ws[ib]*rBxs[i];
+    return vB - vA;
+  }
+
+  /** Applies an impulse to B at a contact point, and the opposite impulse to A. */
+  private void applyImpulse(double[] vxs, double[] vys, double[] ws, int i, double px, double py) {
+    if(ia >= 0) {
+      vxs[ia] -= a.invMass*px;
+      vys[ia] -= a.invMass*py;
+      ws[ia] -= a.invInertia*(rAxs[i]*py - rAys[i]*px);
+    }
+    if(ib >= 0) {
+      vxs[ib] += b.invMass*px;
+      vys[ib] += b.invMass*py;
+      ws[ib] += b.invInertia*(rBxs[i]*py - rBys[i]*px);
+    }
+  }
+}
@@ -0,0 +1,364 @@
+package pwnee.physics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import pwnee.geom.Contact;
+import pwnee.util.WorkerPool;
+
+/**
+ * A 2D rigid body physics simulation. Each call to step advances the world
+ * by a fixed amount of time:
+ *
+ * 1. The bodies' bounding boxes are kept sorted along the x axis, which
+ *    barely changes between steps, and swept to find the pairs of bodies
+ *    whose bounding boxes overlap.
+ * 2. Each overlapping pair's manifold is kept from step to step and its
+ *    shapes are tested against each other, using the SAT narrowphase of
+ *    Polygon2D for polygons.
+ * 3. The awake bodies are split into islands of bodies connected by
+ *    contacts. A sleeping body touched by an awake one wakes up and joins
+ *    its island.
+ * 4. Each island is solved with sequential impulses: the contact impulses
+ *    from the last step are applied again, then the friction and
+ *    non-penetration constraints are solved a few times over. Islands don't
+ *    share anything but static bodies, which they only read, so they can be
+ *    solved in parallel on the shared WorkerPool.
+ * 5. An island whose bodies have all been moving slowly for a while falls
+ *    asleep, so a settled pile of bodies costs nearly nothing.
+ *
+ * The default settings are meant for distances in pixels and times in
+ * seconds. Stepping with a fixed dt, such as 1/60 of a second each frame,
+ * keeps the simulation stable.
+ */
+public class PhysicsWorld {
+
+  /** The gravity's acceleration along the x axis. */
+  public double gravityX = 0;
+
+  /** The gravity's acceleration along the y axis. Positive y is down. */
+  public double gravityY = 0;
+
+  /** How many times per step the contact constraints are solved. More iterations make stacks stiffer. */
+  public int velocityIterations = 8;
+
+  /** The fraction of the bodies' overlap that is corrected per step. */
+  public double baumgarte = 0.2;
+
+  /** How far bodies may overlap without being pushed apart, which keeps resting contacts from jittering. */
+  public double slop = 0.5;
+
+  /** Bodies approaching each other slower than this don't bounce. */
+  public double restitutionThreshold = 30;
+
+  /** Bodies moving slower than this can fall asleep. */
+  public double sleepLinearVelocity = 5;
+
+  /** Bodies rotating slower than this, in radians per second, can fall asleep. */
+  public double sleepAngularVelocity = 0.05;
+
+  /** How long an island must rest before it falls asleep. */
+  public double timeToSleep = 0.5;
+
+  /** If false, no body falls asleep. */
+  public boolean allowSleep = true;
+
+  /** If true, islands are solved in parallel on the shared WorkerPool. */
+  public boolean parallel = false;
+
+  /** Below this many awake bodies, solving islands in parallel isn't worth its overhead. */
+  private static final int PARALLEL_THRESHOLD = 128;
+
+  /** Runs of islands with fewer bodies than this are solved in a single task. */
+  private static final int PARALLEL_TASK_BODIES = 32;
+
+  private Body[] bodies = new Body[16];
+  private int bodyCount = 0;
+
+  /** The bodies sorted by the left side of their bounding boxes. */
+  private Body[] sorted = new Body[16];
+
+  private Manifold[] manifolds = new Manifold[16];
+  private int manifoldCount = 0;
+
+  /** Recycled manifolds. */
+  private ArrayDeque<Manifold> manifoldPool = new ArrayDeque<Manifold>();
+
+  /** The islands found this step, and recycled ones past islandCount. */
+  private ArrayList<Island> islands = new ArrayList<Island>();
+  private int islandCount = 0;
+
+  /** The stack for searching for islands. */
+  private Body[] stack = new Body[16];
+
+  /** The scratch contact for the narrowphase. */
+  private Contact contact = new Contact();
+
+  private int stepCount = 0;
+  private int islandStamp = 0;
+
+
+  //////// Bodies
+
+  /** Adds a body to the world. A body can only be in one world at a time. */
+  public void add(Body body) {
+    if(body.world == this)
+      return;
+    if(body.world != null)
+      throw new IllegalArgumentException("The body is already in another world.");
+
+    if(bodyCount == bodies.length) {
+      bodies = Arrays.copyOf(bodies, bodyCount*2);
+      sorted = Arrays.copyOf(sorted, bodyCount*2);
+    }
+    body.world = this;
+    body.worldIndex = bodyCount;
+    body.dirty = true;
+    body.setAwake(true);
+    bodies[bodyCount] = body;
+    sorted[bodyCount] = body;
+    bodyCount++;
+  }
+
+  /** Removes a body from the world, waking up the bodies it was touching. */
+  public void remove(Body body) {
+    if(body.world != this)
+      return;
+
+    while(body.contactCount > 0)
+      destroyManifold(body.contacts[body.contactCount - 1]);
+
+    bodyCount--;
+    Body last = bodies[bodyCount];
+    bodies[bodyCount] = null;
+    if(body.worldIndex < bodyCount) {
+      bodies[body.worldIndex] = last;
+      last.worldIndex = body.worldIndex;
+    }
+
+    // Removing from the middle of the sorted bodies keeps the rest sorted.
+    int i = 0;
+    while(sorted[i] != body)
+      i++;
+    System.arraycopy(sorted, i + 1, sorted, i, bodyCount - i);
+    sorted[bodyCount] = null;
+
+    body.world = null;
+    body.worldIndex = -1;
+  }
+
+  /** Removes every body from the world. */
+  public void clear() {
+    while(bodyCount > 0)
+      remove(bodies[bodyCount - 1]);
+  }
+
+  /** Returns the number of bodies in the world. */
+  public int getBodyCount() {
+    return bodyCount;
+  }
+
+  /** Returns a body by its index, from 0 to getBodyCount()-1. Removing a body changes the indices. */
+  public Body getBody(int i) {
+    return bodies[i];
+  }
+
+  /** Returns the number of islands solved in the last step. */
+  public int getIslandCount() {
+    return islandCount;
+  }
+
+
+  //////// Stepping
+
+  /** Advances the world by dt seconds. */
+  public void step(double dt) {
+    stepCount++;
+    findContacts();
+    buildIslands();
+
+    int awakeCount = 0;
+    for(int i = 0; i < islandCount; i++)
+      awakeCount += islands.get(i).bodyCount;
+
+    if(parallel && islandCount > 1 && awakeCount >= PARALLEL_THRESHOLD)
+      WorkerPool.get().invoke(new IslandTask(this, 0, islandCount, dt));
+    else {
+      for(int i = 0; i < islandCount; i++)
+        islands.get(i).solve(this, dt);
+    }
+
+    for(int i = 0; i < islandCount; i++)
+      islands.get(i).clear();
+  }
+
+  /**
+   * Sweeps the sorted bounding boxes for overlapping pairs, updates their
+   * manifolds, and destroys the manifolds of pairs that stopped overlapping.
+   */
+  private void findContacts() {
+    for(int i = 0; i < bodyCount; i++)
+      bodies[i].sync();
+
+    // Insertion sort is nearly linear, since the order barely changes between steps.
+    for(int i = 1; i < bodyCount; i++) {
+      Body body = sorted[i];
+      int j = i - 1;
+      while(j >= 0 && sorted[j].minX > body.minX) {
+        sorted[j + 1] = sorted[j];
+        j--;
+      }
+      sorted[j + 1] = body;
+    }
+
+    for(int i = 0; i < bodyCount; i++) {
+      Body a = sorted[i];
+      for(int j = i + 1; j < bodyCount && sorted[j].minX <= a.maxX; j++) {
+        Body b = sorted[j];
+        if(a.minY > b.maxY || a.maxY < b.minY)
+          continue;
+
+        // Pairs of sleeping and static bodies are left as they were.
+        if(!a.isAwake() && !b.isAwake())
+          continue;
+        if(!a.canCollide(b))
+          continue;
+
+        Manifold m = (a.contactCount <= b.contactCount) ? a.findContact(b) : b.findContact(a);
+        if(m == null)
+          m = createManifold(a, b);
+        m.stepStamp = stepCount;
+        m.collide(contact);
+      }
+    }
+
+    for(int i = manifoldCount - 1; i >= 0; i--) {
+      Manifold m = manifolds[i];
+      if(m.stepStamp != stepCount && (m.a.isAwake() || m.b.isAwake()))
+        destroyManifold(m);
+    }
+  }
+
+  /** Splits the awake bodies into islands connected by touching contacts. */
+  private void buildIslands() {
+    islandStamp++;
+    islandCount = 0;
+
+    for(int i = 0; i < bodyCount; i++) {
+      Body seed = bodies[i];
+      if(!seed.isAwake() || seed.islandStamp == islandStamp)
+        continue;
+
+      if(islandCount == islands.size())
+        islands.add(new Island());
+      Island island = islands.get(islandCount++);
+
+      int top = 0;
+      seed.islandStamp = islandStamp;
+      stack[top++] = seed;
+      while(top > 0) {
+        Body body = stack[--top];
+        stack[top] = null;
+        island.addBody(body);
+
+        for(int j = 0; j < body.contactCount; j++) {
+          Manifold m = body.contacts[j];
+          if(m.pointCount == 0 || m.islandStamp == islandStamp)
+            continue;
+          m.islandStamp = islandStamp;
+          island.addManifold(m);
+
+          // Static bodies don't connect islands, since nothing they touch can move them.
+          Body other = m.other(body);
+          if(other.isStatic() || other.islandStamp == islandStamp)
+            continue;
+          other.islandStamp = islandStamp;
+          if(!other.awake)
+            other.setAwake(true);
+          if(top == stack.length)
+            stack = Arrays.copyOf(stack, top*2);
+          stack[top++] = other;
+        }
+      }
+    }
+  }
+
+  /** A task for solving a run of islands in parallel. */
+  private static class IslandTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private PhysicsWorld world;
+    private int from;
+    private int to;
+    private double dt;
+
+    IslandTask(PhysicsWorld world, int from, int to, double dt) {
+      this.world = world;
+      this.from = from;
+      this.to = to;
+      this.dt = dt;
+    }
+
+    protected void compute() {
+      int bodies = 0;
+      for(int i = from; i < to; i++)
+        bodies += world.islands.get(i).bodyCount;
+
+      if(to - from == 1 || bodies < PARALLEL_TASK_BODIES) {
+        for(int i = from; i < to; i++)
+          world.islands.get(i).solve(world, dt);
+        return;
+      }
+
+      int mid = (from + to) >>> 1;
+      ForkJoinTask.invokeAll(new IslandTask(world, from, mid, dt), new IslandTask(world, mid, to, dt));
+    }
+  }
+
+
+  //////// Manifolds
+
+  /** Creates a manifold between two bodies, recycling an old one if possible. */
+  private Manifold createManifold(Body a, Body b) {
+    Manifold m = manifoldPool.poll();
+    if(m == null)
+      m = new Manifold();
+    m.init(a, b);
+    m.indexInA = a.addContact(m);
+    m.indexInB = b.addContact(m);
+
+    if(manifoldCount == manifolds.length)
+      manifolds = Arrays.copyOf(manifolds, manifoldCount*2);
+    m.worldIndex = manifoldCount;
+    manifolds[manifoldCount++] = m;
+    return m;
+  }
+
+  /** Unlinks a manifold from its bodies and recycles it, waking the bodies if they were touching. */
+  private void destroyManifold(Manifold m) {
+    if(m.pointCount > 0) {
+      if(!m.a.isStatic())
+        m.a.setAwake(true);
+      if(!m.b.isStatic())
+        m.b.setAwake(true);
+    }
+    m.a.removeContact(m.indexInA);
+    m.b.removeContact(m.indexInB);
+
+    manifoldCount--;
+    Manifold last = manifolds[manifoldCount];
+    manifolds[manifoldCount] = null;
+    if(m.worldIndex < manifoldCount) {
+      manifolds[m.worldIndex] = last;
+      last.worldIndex = m.worldIndex;
+    }
+
+    m.a = null;
+    m.b = null;
+    m.pointCount = 0;
+    manifoldPool.push(m);
+  }
+}
@@ -32,12 +32,35 @@ import java.awt.*;
 import java.awt.geom.*;
 import java.awt.image.*;
 
+import pwnee.image.PixelCache;
+
 /** A rectangular sprite that displays a transformed image. The pixels of the Sprite's rendered image are each mapped to a pixel of a source image by using a transformation method on its coordinates. (or possibly multiple source images.) This can be used to achieve many special effects such as an infinitely wrapping background image, or the Mode 7 fake 3D effect used in many Super Nintendo games. */
 public abstract class BlitterSprite extends Sprite {
 
-	/** A pixel array used to create the resulting image for this Sprite. */
+	/** The source image's pixels. These are shared with other sprites using the same source image, so don't modify them. */
    public int[] pixels = null;
    
+   /** The image that pixels was loaded from. */
+   private Image pixelsImg = null;
+   
+   /** The last source image whose pixels couldn't be obtained, so that the failure is only reported once. */
+   private Image failedImg = null;
+   
+   /** The result image from the last time the Sprite was drawn. */
+   protected BufferedImage resultImg = null;
+   
+   /** The pixel array backing resultImg. */
+   protected int[] resultPixels = null;
+   
+   /** Flag for blittering the whole result image on the next draw, regardless of whether the view changed. */
+   protected boolean needsRedraw = true;
+   
+   /** If this is set, the Sprite is blittered at the controller's resolution scale and then upscaled to its full size. */
+   public ResolutionController resolution = null;
+   
+   /** The resolution scale resultImg was blittered at. */
+   protected double resultScale = 1.0;
+   
    /** This will get set to the source image's width. */
 	public int pixWidth = -1;
    
@@ -79,61 +102,197 @@ public abstract class BlitterSprite extends Sprite {
     * Creates and draws the blittered image of the Sprite using a method for mapping rendering coordinates to source image pixel coordinates. 
     * The resulting image will always be bound in a rectangular area defined by the Sprite's width and height. You may want to override this methode to do more achieve 
     * more complicated effects, like make a blittered image from multiple source images.
+    * 
+    * The result image is kept between frames. If isViewChanged() reports that nothing affecting the transform has changed, 
+    * the last result image is drawn again without blittering any pixels. If scrollView() can shift the last result image 
+    * instead, only the newly exposed pixels are blittered.
+    * 
+    * If the Sprite has a ResolutionController, the result image is blittered at the controller's current scale and 
+    * upscaled when it's drawn. The time spent drawing is reported back to the controller.
     * @param g    The transformed graphics context.
     */
 	public void draw(Graphics2D g) {
-		
-		// obtain the image raster that we will write the pixels of our resulting image to
-		BufferedImage img = new BufferedImage((int) width,(int) height,BufferedImage.TYPE_INT_ARGB);
-		int[] writePixels = ((DataBufferInt)(img.getRaster().getDataBuffer())).getData(); 
+		long startNanos = System.nanoTime();
 		
 		// obtain the source image's pixels and its width/height
 		grabPixels();
+		if(pixels == null)
+			return;
 		
-		// compute any values that will be reused for each pixel.
-		computeReusedValues();
-
-		// process each pixel in the sprite's viewport.
-		for(int j = 0; j < height; j++) {
-			for(int i = 0; i < width; i++) {
-            
-            // Transform this pixel's coordinates to source pixel coordinates using our custom transform method.
-				int[] pix = transformPixel(i,j);
-            int pixX = pix[0];
-            int pixY = pix[1];
-				
-            // default color is transparent black if we map to an invalid pixel.
-            int pixelColor = 0x00000000;
-            
-            // apply image wrapping if our flags are true.
-            if(srcWrapX) {
-               pixX = pixX % pixWidth;
-               if(pixX < 0)
-                  pixX = pixWidth+pixX;
-            }
-            if(srcWrapY) {
-               pixY = pixY % pixHeight;
-               if(pixY < 0)
-                  pixY = pixHeight+pixY;
-            }
-            
-            // get our pixel if it is within our source image's bounds.
-				if(pixX >= 0 && pixX < pixWidth && pixY >= 0 && pixY < pixHeight) 
-               pixelColor = (0xFF000000 | pixels[pixY*pixWidth + pixX]);
-				
-            // write the pixel to our result image's pixel array.
-				try {
-					writePixels[(int)width*j+i] = pixelColor;
-				}
-				catch(Exception ex) {
-               System.err.println("BlitterSprite - error writing pixels to result image");
-					ex.printStackTrace();
-				}
+		int w = getResultWidth();
+		int h = getResultHeight();
+		if(w <= 0 || h <= 0)
+			return;
+		
+		// determine the size of the internal buffer for our resolution scale.
+		double scale = (resolution == null ? 1.0 : resolution.getScale());
+		int bufW = w;
+		int bufH = h;
+		if(scale < 1.0) {
+			bufW = Math.max(1, (int) Math.ceil(w*scale));
+			bufH = Math.max(1, (int) Math.ceil(h*scale));
+		}
+		if(scale != resultScale) {
+			resultScale = scale;
+			needsRedraw = true;
+		}
+		
+		// obtain the image raster that we will write the pixels of our resulting image to
+		if(resultImg == null || resultImg.getWidth() != bufW || resultImg.getHeight() != bufH) {
+			resultImg = new BufferedImage(bufW, bufH, BufferedImage.TYPE_INT_ARGB);
+			resultPixels = ((DataBufferInt)(resultImg.getRaster().getDataBuffer())).getData(); 
+			needsRedraw = true;
+		}
+		
+		// only blitter pixels if something affecting the transform has changed.
+		if(needsRedraw || isViewChanged()) {
+			
+			// compute any values that will be reused for each pixel.
+			computeReusedValues();
+			
+			if(needsRedraw || !scrollView())
+				blitRegion(0, 0, bufW, bufH);
+			
+			saveViewState();
+			needsRedraw = false;
+		}
+		
+		// draw the resulting image onto the scene, upscaling it if it was blittered at a lower resolution.
+		if(bufW == w && bufH == h)
+			g.drawImage(resultImg, null, null);
+		else
+			g.drawImage(resultImg, 0, 0, w, h, null);
+		
+		if(resolution != null)
+			resolution.addBlitTime(System.nanoTime() - startNanos);
+	}
+	
+	/** Forces the sprite to blitter all its pixels again the next time it is drawn. */
+	public void invalidate() {
+		needsRedraw = true;
+	}
+	
+	/** Returns the width of the result image in pixels. */
+	protected int getResultWidth() {
+		return (int) width;
+	}
+	
+	/** Returns the height of the result image in pixels. */
+	protected int getResultHeight() {
+		return (int) height;
+	}
+	
+	/** 
+    * Returns true if the result image needs to be blittered again because something affecting the transform has changed 
+    * since saveViewState() was last called. The default implementation always returns true, since it can't know what 
+    * a subclass's transform depends on. Subclasses should override this together with saveViewState().
+    */
+	protected boolean isViewChanged() {
+		return true;
+	}
+	
+	/** Records the current values of everything affecting the transform so that isViewChanged() can compare against them. */
+	protected void saveViewState() {
+	}
+	
+	/** 
+    * Called when the view has changed to try to update the last result image by scrolling it instead of blittering it 
+    * all again. The default implementation can't scroll and returns false.
+    * @return  true if the result image was updated. Otherwise the whole result image will be blittered.
+    */
+	protected boolean scrollView() {
+		return false;
+	}
+	
+	/** 
+    * Shifts the pixels of the last result image so that the pixel at (i,j) becomes the pixel that was at (i+dx, j+dy), 
+    * and then blitters only the strips of pixels that were exposed by the shift. 
+    * @return  false if the shift is at least as large as the result image or the result image isn't at full resolution, 
+    *          in which case nothing was done.
+    */
+	protected boolean scrollResult(int dx, int dy) {
+		int w = resultImg.getWidth();
+		int h = resultImg.getHeight();
+		if(resultScale != 1.0 || Math.abs(dx) >= w || Math.abs(dy) >= h)
+			return false;
+		
+		// shift the rows that are still visible, going in the direction that won't overwrite rows we haven't copied yet.
+		int rowLength = w - Math.abs(dx);
+		int srcX = Math.max(dx, 0);
+		int destX = Math.max(-dx, 0);
+		if(dy >= 0) {
+			for(int j = 0; j < h - dy; j++)
+				System.arraycopy(resultPixels, (j+dy)*w + srcX, resultPixels, j*w + destX, rowLength);
+		}
+		else {
+			for(int j = h - 1; j >= -dy; j--)
+				System.arraycopy(resultPixels, (j+dy)*w + srcX, resultPixels, j*w + destX, rowLength);
+		}
+		
+		// blitter the exposed rows, then the exposed columns in the remaining rows.
+		int top = 0;
+		int bottom = h;
+		if(dy > 0) {
+			blitRegion(0, h - dy, w, h);
+			bottom = h - dy;
+		}
+		else if(dy < 0) {
+			blitRegion(0, 0, w, -dy);
+			top = -dy;
+		}
+		
+		if(dx > 0)
+			blitRegion(w - dx, top, w, bottom);
+		else if(dx < 0)
+			blitRegion(0, top, -dx, bottom);
+		
+		return true;
+	}
+	
+	/** 
+    * Blitters the pixels of the result image in the rectangle from (x0,y0) inclusive to (x1,y1) exclusive. 
+    * These are buffer coordinates, which are scaled back up to rendering coordinates for blitPixel.
+    */
+	protected void blitRegion(int x0, int y0, int x1, int y1) {
+		int w = resultImg.getWidth();
+		double invScale = 1.0/resultScale;
+		for(int j = y0; j < y1; j++) {
+			int row = w*j;
+			double rj = j*invScale;
+			for(int i = x0; i < x1; i++) {
+				resultPixels[row + i] = blitPixel(i*invScale, rj);
 			}
 		}
+	}
+	
+	/** Computes the color of the pixel at rendering coordinates (i,j). */
+	protected int blitPixel(double i, double j) {
 		
-		// draw the resulting image onto the scene.
-		g.drawImage(img, null, null);
+		// Transform this pixel's coordinates to source pixel coordinates using our custom transform method.
+		int[] pix = transformPixel(i,j);
+		return getSourcePixel(pix[0], pix[1]);
+	}
+	
+	/** Returns the color of a source image pixel, applying image wrapping if our flags are true. */
+	protected int getSourcePixel(int pixX, int pixY) {
+		
+		// apply image wrapping if our flags are true.
+		if(srcWrapX) {
+			pixX = pixX % pixWidth;
+			if(pixX < 0)
+				pixX = pixWidth+pixX;
+		}
+		if(srcWrapY) {
+			pixY = pixY % pixHeight;
+			if(pixY < 0)
+				pixY = pixHeight+pixY;
+		}
+		
+		// get our pixel if it is within our source image's bounds. Default color is transparent black if we map to an invalid pixel.
+		if(pixX >= 0 && pixX < pixWidth && pixY >= 0 && pixY < pixHeight) 
+			return (0xFF000000 | pixels[pixY*pixWidth + pixX]);
+		else
+			return 0x00000000;
 	}
 	
    /** Used to compute any values that will be the same for all the pixels during the blittering. These values should be stored as member variables of this Sprite. */
@@ -142,24 +301,48 @@ public abstract class BlitterSprite extends Sprite {
 	/** Converts from rendering coordinates to source image pixel coordinates*/
 	public abstract int[] transformPixel(double i,double j);
    
-   /** Loads the pixels from the source image into our pixels array. Also loads the width and height of the image into pixWidth and pixHeight. */
+   /** 
+    * Loads the pixels from the source image into our pixels array. Also loads the width and height of the image into pixWidth and pixHeight. 
+    * The pixels are shared with any other sprites using the same source image through the PixelCache. If srcImg has been 
+    * changed since the pixels were last loaded, the old image's pixels are released and the new image's are loaded. 
+    */
    protected void grabPixels() {
-      // obtain the source image's pixels and its width/height
-		if(pixels == null) {
-			PixelGrabber pg = new PixelGrabber(this.srcImg, 0,0, -1, -1, false);
-			try {
-				pg.grabPixels();
-			}
-			catch(Exception ex) {
-				System.out.println(ex.getMessage());
-				ex.printStackTrace();
-			}
-			
-			pixWidth = pg.getWidth();
-			pixHeight = pg.getHeight();
-			
-			pixels = (int[]) pg.getPixels();
-		}
+      if(pixels != null && pixelsImg == srcImg)
+         return;
+      
+      releasePixels();
+      
+      PixelCache.Entry entry = PixelCache.acquire(srcImg);
+      if(entry == null) {
+         if(failedImg != srcImg) {
+            System.err.println("BlitterSprite - could not obtain the source image's pixels.");
+            failedImg = srcImg;
+         }
+         return;
+      }
+      failedImg = null;
+      
+      pixelsImg = srcImg;
+      needsRedraw = true;
+      pixWidth = entry.width;
+      pixHeight = entry.height;
+      pixels = entry.pixels;
+   }
+   
+   /** Releases this sprite's hold on its source image's cached pixels. They will be loaded again the next time the sprite is drawn. */
+   public void releasePixels() {
+      if(pixelsImg != null)
+         PixelCache.release(pixelsImg);
+      
+      pixelsImg = null;
+      pixels = null;
+      pixWidth = -1;
+      pixHeight = -1;
+   }
+   
+   /** Destroys the sprite and releases its source image's cached pixels. */
+   public void destroy() {
+      super.destroy();
+      releasePixels();
    }
 }
-
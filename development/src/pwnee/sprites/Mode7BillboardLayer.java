@@ -0,0 +1,370 @@
+package pwnee.sprites;
+
+/*======================================================================
+ * 
+ * Pwnee - A lightweight 2D Java game engine
+ * 
+ * Copyright (c) 2012 by Stephen Lindberg (sllindberg21@students.tntech.edu)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+======================================================================*/
+
+import java.awt.*;
+import java.awt.geom.*;
+
+/** 
+ * A layer of billboard sprites standing on the tilted plane of a Mode7Sprite, such as the karts in a racing game or 
+ * the trees in an RPG overworld. Each billboard is given a position on the Mode7Sprite's source image. Once per frame, 
+ * project() batch-projects all the positions through the Mode7 camera, scales each sprite by its depth, culls 
+ * everything behind the camera or off screen, and depth-sorts what remains so that render() can draw it back to front. 
+ * 
+ * The depth order from the previous frame is kept and repaired with an insertion sort, so sorting costs about O(n) 
+ * while the camera and billboards move smoothly.
+ */
+public class Mode7BillboardLayer {
+   
+   /** The Mode7Sprite whose plane the billboards stand on. */
+   public Mode7Sprite plane;
+   
+   /** A uniform scale applied to every billboard on top of its depth scale. */
+   public double billboardScale = 1.0;
+   
+   /** 
+    * The approximate radius of a billboard in source image units. Billboards are only culled once they are further 
+    * than this (scaled by depth) outside of the plane's result image, so that partially visible sprites aren't popped. 
+    */
+   public double cullRadius = 32;
+   
+   /** Billboards nearer to the camera than this depth are culled so that they don't blow up to enormous scales. */
+   public double nearClip = 1.0;
+   
+   /** The number of billboards in the layer. */
+   private int size = 0;
+   
+   /** The billboard sprites. */
+   private Sprite[] sprites = new Sprite[16];
+   
+   /** The source image x coordinates of the billboards. */
+   private double[] worldX = new double[16];
+   
+   /** The source image y coordinates of the billboards. */
+   private double[] worldY = new double[16];
+   
+   /** The projected result image x coordinates of the billboards. */
+   private double[] screenX = new double[16];
+   
+   /** The projected result image y coordinates of the billboards. */
+   private double[] screenY = new double[16];
+   
+   /** The projected depths of the billboards. */
+   private double[] depth = new double[16];
+   
+   /** The projected depth scales of the billboards. */
+   private double[] depthScale = new double[16];
+   
+   /** Whether each billboard survived culling on the last projection. */
+   private boolean[] visible = new boolean[16];
+   
+   /** Scratch flags used while rebuilding the draw order. */
+   private boolean[] listed = new boolean[16];
+   
+   /** The indices of the visible billboards, sorted from farthest to nearest. */
+   private int[] order = new int[16];
+   
+   /** Scratch space used while rebuilding the draw order. */
+   private int[] nextOrder = new int[16];
+   
+   /** The number of visible billboards in order. */
+   private int visibleCount = 0;
+   
+   /** Reused output for Mode7Sprite.project. */
+   private double[] projected = new double[3];
+   
+   
+   /** Creates an empty billboard layer for a Mode7Sprite. */
+   public Mode7BillboardLayer(Mode7Sprite plane) {
+      this.plane = plane;
+   }
+   
+   
+   //////// Model
+   
+   /** 
+    * Adds a billboard sprite standing at a point on the plane's source image. 
+    * The sprite's focal point should be set to its "feet", since that is the point that stands on the plane. 
+    * @return  The index of the new billboard.
+    */
+   public int add(Sprite sprite, double x, double y) {
+      if(size == sprites.length)
+         grow(size*2);
+      
+      sprites[size] = sprite;
+      worldX[size] = x;
+      worldY[size] = y;
+      visible[size] = false;
+      size++;
+      return size-1;
+   }
+   
+   /** 
+    * Removes a billboard from the layer. To keep the layer packed, the last billboard is moved into the removed 
+    * billboard's index, along with its last projection, so the layer can still be rendered before it is projected again. 
+    * @return  true if the sprite was in the layer.
+    */
+   public boolean remove(Sprite sprite) {
+      int index = indexOf(sprite);
+      if(index < 0)
+         return false;
+      
+      size--;
+      sprites[index] = sprites[size];
+      worldX[index] = worldX[size];
+      worldY[index] = worldY[size];
+      screenX[index] = screenX[size];
+      screenY[index] = screenY[size];
+      depth[index] = depth[size];
+      depthScale[index] = depthScale[size];
+      visible[index] = visible[size];
+      sprites[size] = null;
+      visible[size] = false;
+      
+      // drop the removed billboard from the draw order and renumber the moved one.
+      int count = 0;
+      for(int k = 0; k < visibleCount; k++) {
+         int i = order[k];
+         if(i == index)
+            continue;
+         order[count] = (i == size ? index : i);
+         count++;
+      }
+      visibleCount = count;
+      return true;
+   }
+   
+   /** Removes all the billboards from the layer. */
+   public void clear() {
+      for(int i = 0; i < size; i++) {
+         sprites[i] = null;
+         visible[i] = false;
+      }
+      size = 0;
+      visibleCount = 0;
+   }
+   
+   /** Returns the index of a billboard sprite in the layer, or -1 if it isn't in the layer. */
+   public int indexOf(Sprite sprite) {
+      for(int i = 0; i < size; i++) {
+         if(sprites[i] == sprite)
+            return i;
+      }
+      return -1;
+   }
+   
+   /** Returns the number of billboards in the layer. */
+   public int size() {
+      return size;
+   }
+   
+   /** Returns the billboard sprite at some index. */
+   public Sprite getSprite(int index) {
+      return sprites[index];
+   }
+   
+   /** Moves the billboard at some index to a new point on the plane's source image. */
+   public void setPosition(int index, double x, double y) {
+      worldX[index] = x;
+      worldY[index] = y;
+   }
+   
+   /** Returns the source image x coordinate of the billboard at some index. */
+   public double getX(int index) {
+      return worldX[index];
+   }
+   
+   /** Returns the source image y coordinate of the billboard at some index. */
+   public double getY(int index) {
+      return worldY[index];
+   }
+   
+   /** Returns the depth of the billboard at some index the last time the layer was projected. */
+   public double getDepth(int index) {
+      return depth[index];
+   }
+   
+   /** Returns true iff the billboard at some index survived culling the last time the layer was projected. */
+   public boolean isVisible(int index) {
+      return visible[index];
+   }
+   
+   /** Returns the number of billboards that survived culling the last time the layer was projected. */
+   public int getVisibleCount() {
+      return visibleCount;
+   }
+   
+   /** Returns the k'th visible billboard sprite in back-to-front order. */
+   public Sprite getVisibleSprite(int k) {
+      return sprites[order[k]];
+   }
+   
+   
+   /** Resizes all the layer's arrays. */
+   private void grow(int capacity) {
+      Sprite[] newSprites = new Sprite[capacity];
+      System.arraycopy(sprites, 0, newSprites, 0, size);
+      sprites = newSprites;
+      
+      worldX = copyOf(worldX, capacity);
+      worldY = copyOf(worldY, capacity);
+      screenX = copyOf(screenX, capacity);
+      screenY = copyOf(screenY, capacity);
+      depth = copyOf(depth, capacity);
+      depthScale = copyOf(depthScale, capacity);
+      
+      boolean[] newVisible = new boolean[capacity];
+      System.arraycopy(visible, 0, newVisible, 0, size);
+      visible = newVisible;
+      listed = new boolean[capacity];
+      
+      int[] newOrder = new int[capacity];
+      System.arraycopy(order, 0, newOrder, 0, visibleCount);
+      order = newOrder;
+      nextOrder = new int[capacity];
+   }
+   
+   private static double[] copyOf(double[] arr, int capacity) {
+      double[] result = new double[capacity];
+      System.arraycopy(arr, 0, result, 0, Math.min(arr.length, capacity));
+      return result;
+   }
+   
+   
+   //////// Projection
+   
+   /** 
+    * Projects every billboard through the plane's current Mode7 camera, culls the ones that can't be seen, 
+    * and depth-sorts the rest. Call this once per frame after the camera has been moved. 
+    */
+   public void project() {
+      plane.computeTransformValues();
+      
+      double viewW = plane.width;
+      double viewH = plane.height - 1;
+      
+      for(int i = 0; i < size; i++) {
+         visible[i] = false;
+         
+         // cull billboards behind the camera or past the horizon.
+         if(!plane.project(worldX[i], worldY[i], projected) || projected[2] < nearClip)
+            continue;
+         
+         double sx = projected[0];
+         double sy = projected[1];
+         if(sy < 0)
+            continue;
+         
+         // cull billboards that are completely off screen.
+         double scale = plane.elevation*plane.aspectRatio/projected[2];
+         double margin = cullRadius*scale*billboardScale;
+         if(sx < -margin || sx > viewW + margin || sy > viewH + margin)
+            continue;
+         
+         screenX[i] = sx;
+         screenY[i] = sy;
+         depth[i] = projected[2];
+         depthScale[i] = scale;
+         visible[i] = true;
+      }
+      
+      sortVisible();
+   }
+   
+   /** 
+    * Rebuilds the back-to-front order of the visible billboards. Billboards keep their order from the last frame, 
+    * so the insertion sort only has to fix up the few that changed places.
+    */
+   private void sortVisible() {
+      int count = 0;
+      
+      // keep the previous order for billboards that are still visible.
+      for(int k = 0; k < visibleCount; k++) {
+         int i = order[k];
+         if(i < size && visible[i] && !listed[i]) {
+            nextOrder[count] = i;
+            listed[i] = true;
+            count++;
+         }
+      }
+      
+      // append the newly visible billboards.
+      for(int i = 0; i < size; i++) {
+         if(visible[i] && !listed[i]) {
+            nextOrder[count] = i;
+            count++;
+         }
+      }
+      
+      // insertion sort from farthest to nearest.
+      for(int k = 1; k < count; k++) {
+         int i = nextOrder[k];
+         double d = depth[i];
+         int m = k - 1;
+         while(m >= 0 && depth[nextOrder[m]] < d) {
+            nextOrder[m+1] = nextOrder[m];
+            m--;
+         }
+         nextOrder[m+1] = i;
+      }
+      
+      for(int k = 0; k < count; k++)
+         listed[nextOrder[k]] = false;
+      
+      int[] temp = order;
+      order = nextOrder;
+      nextOrder = temp;
+      visibleCount = count;
+   }
+   
+   
+   //////// Rendering
+   
+   /** 
+    * Renders the visible billboards from back to front in the plane's coordinate system. 
+    * This should be called after both project() and the plane itself have been rendered in the current frame. 
+    * Each visible sprite's position and uniform scale are overwritten with its projected values.
+    * @param g    The graphics context the plane was rendered with.
+    */
+   public void render(Graphics2D g) {
+      AffineTransform oldTrans = g.getTransform();
+      g.setTransform(plane.getTransform());
+      
+      for(int k = 0; k < visibleCount; k++) {
+         int i = order[k];
+         Sprite sprite = sprites[i];
+         sprite.x = screenX[i];
+         sprite.y = screenY[i];
+         sprite.setScale(depthScale[i]*billboardScale);
+         sprite.render(g);
+      }
+      
+      g.setTransform(oldTrans);
+   }
+}
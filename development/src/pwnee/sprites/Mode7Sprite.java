@@ -70,6 +70,10 @@ public class Mode7Sprite extends BlitterSprite {
    public double aspectRatio = 1;
    public double horizonCenter = 0;
    
+   // The camera parameters used for the last result image.
+   private double lastCameraX, lastCameraY, lastCameraAngle, lastElevation, lastCamDist, lastHorizonY, lastWidth, lastHeight;
+   private boolean lastSrcWrapX, lastSrcWrapY, lastShowCamPoint;
+   
 	// CONSTRUCTOR
 	
 	public Mode7Sprite(Image srcImg, double x, double y, double w, double h) {
@@ -78,85 +82,75 @@ public class Mode7Sprite extends BlitterSprite {
 	
 	// RENDERING METHODS
 	
-   
-	public void draw(Graphics2D g) {
-		BufferedImage mode7Img = new BufferedImage((int) width,(int) height - 1,BufferedImage.TYPE_INT_ARGB);
-		int[] writePixels = ((DataBufferInt)(mode7Img.getRaster().getDataBuffer())).getData(); 
+	/** The Mode7 image skips the first row of the transform, which lies on the horizon. */
+	protected int getResultHeight() {
+		return (int) height - 1;
+	}
+	
+	/** Returns true if any of the camera parameters changed since the last time the Sprite was blittered. */
+	protected boolean isViewChanged() {
+		// The flashing camera point changes every frame.
+		if(showCamPoint || lastShowCamPoint)
+			return true;
 		
-		// obtain the source image's pixels and its width/height
-		grabPixels();
+		return (cameraX != lastCameraX || cameraY != lastCameraY || cameraAngle != lastCameraAngle || 
+				elevation != lastElevation || camDist != lastCamDist || horizonY != lastHorizonY || 
+				width != lastWidth || height != lastHeight || srcWrapX != lastSrcWrapX || srcWrapY != lastSrcWrapY);
+	}
+	
+	/** Records the camera parameters used for the current result image. */
+	protected void saveViewState() {
+		lastCameraX = cameraX;
+		lastCameraY = cameraY;
+		lastCameraAngle = cameraAngle;
+		lastElevation = elevation;
+		lastCamDist = camDist;
+		lastHorizonY = horizonY;
+		lastWidth = width;
+		lastHeight = height;
+		lastSrcWrapX = srcWrapX;
+		lastSrcWrapY = srcWrapY;
+		lastShowCamPoint = showCamPoint;
+	}
+	
+	/** Computes the color of the pixel at rendering coordinates (i,j), which is row j+1 of the transform. */
+	protected int blitPixel(double i, double j) {
+		// transform our pixel coordinates. 
+		int[] pix = transformPixel(i,j+1);
+		int pixX = pix[0];
+		int pixY = pix[1];
 		
-		// compute any values that will be reused for each pixel.
-		computeReusedValues();
+		// check if this pixel is near the camera focal point.
+		if(showCamPoint && Math.abs(pixX - cameraX) < 10 && Math.abs(pixY - cameraY) < 10)
+			return camColors[curCamColor];
 		
-      // process each pixel in the sprite's viewport.
-		for(int j = 1; j < height; j++) {	
-			for(int i = 0; i < width; i++) {	
-				// transform our pixel coordinates. 
-            int[] pix = transformPixel(i,j);
-				int pixX = pix[0];
-				int pixY = pix[1];
-				
-            // check if this pixel is near the camera focal point.
-				boolean isCamPoint = false;
-				if(Math.abs(pixX - cameraX) < 10 && Math.abs(pixY - cameraY) < 10)
-					isCamPoint = true;
-            
-            // default color is transparent black if we map to an invalid pixel.
-            int pixelColor = 0x00000000;
-            
-            // apply image wrapping if our flags are true.
-            if(srcWrapX) {
-               pixX = pixX % pixWidth;
-               if(pixX < 0)
-                  pixX = pixWidth+pixX;
-            }
-            if(srcWrapY) {
-               pixY = pixY % pixHeight;
-               if(pixY < 0)
-                  pixY = pixHeight+pixY;
-            }
-				
-            // get our pixel if it is within our source image's bounds.
-				if(pixX >= 0 && pixX < pixWidth && pixY >= 0 && pixY < pixHeight) 
-               pixelColor = (0xFF000000 | pixels[pixY*pixWidth + pixX]);
-            
-            // write this pixel to our result image.
-				try {
-					if(!showCamPoint || !isCamPoint)
-						writePixels[(int)width*(j-1)+i] = pixelColor;
-					else
-						writePixels[(int)width*(j-1)+i] = camColors[curCamColor];
-				}
-				catch(Exception ex) {
-					System.out.println("Mode7Sprite - error writing pixels to result image");
-					ex.printStackTrace();
-				}
-            
-           // System.err.println("drew pixel color " + pixelColor + " at (" + i + ", " + j + ")");
-			}
-		}
-
-		// draw the resulting mode7 image onto the scene.
-		g.drawImage(mode7Img, null, null);
+		return getSourcePixel(pixX, pixY);
 	}
 	
    /** Computes the translation and rotation values for the mode7 transform. Also iterates through the camera point colors. */
    public void computeReusedValues() {
+      computeTransformValues();
+		
+		curCamColor++;
+		if(curCamColor > 2)
+			curCamColor = 0;
+   }
+   
+   /** 
+    * Computes only the translation and rotation values for the mode7 transform from the current camera parameters. 
+    * Objects projecting world points onto this sprite (such as a Mode7BillboardLayer) call this so that they don't 
+    * need to wait for the sprite to be drawn first. 
+    */
+   public void computeTransformValues() {
       camDx = cameraX - camDist*GameMath.cos(cameraAngle);
 		camDy = cameraY + camDist*GameMath.sin(cameraAngle);
 		
 		camCos = GameMath.cos(180-cameraAngle+90);
 		camSin = GameMath.sin(180-cameraAngle+90);
 		
-		curCamColor++;
-		
 		//AffineTransform rotation = AffineTransform.getRotateInstance(GameMath.d2r(180-cameraAngle+90));
 		aspectRatio = width/height;
 		horizonCenter = width/2.0;
-		
-		if(curCamColor > 2)
-			curCamColor = 0;
    }
    
    /** Performs a transformation to produce a tilted image plane effect. */
@@ -184,6 +178,34 @@ public class Mode7Sprite extends BlitterSprite {
       double[] result = {i,j};
       return result;
    }
+   
+   /** 
+    * Projects a point on the source image's plane to the coordinates of the Sprite's result image without allocating 
+    * any objects. This is the exact inverse of transformPixel and it uses the values last computed by 
+    * computeTransformValues. 
+    * @param x    The x coordinate of the point in the source image.
+    * @param y    The y coordinate of the point in the source image.
+    * @param out  An array of length 3 that receives the result image x coordinate, the result image y coordinate, 
+    *             and the depth of the point (its distance in front of the camera).
+    * @return     false if the point is behind the camera, in which case out is not modified. Otherwise true.
+    */
+   public boolean project(double x, double y, double[] out) {
+      double u = x - camDx;
+      double v = y - camDy;
+      
+      // undo the camera rotation to get the point's raster coordinates.
+      double rasterX = u*camCos + v*camSin;
+      double depth = v*camCos - u*camSin;
+      if(depth <= 0 || elevation <= 0)
+         return false;
+      
+      // undo the perspective division. Row j of the transform is drawn at row j-1 of the result image.
+      double z = depth/(elevation*aspectRatio);
+      out[0] = horizonCenter - rasterX/z;
+      out[1] = elevation/z - horizonY - 1;
+      out[2] = depth;
+      return true;
+   }
 }
 
 
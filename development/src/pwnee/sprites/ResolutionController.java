@@ -0,0 +1,155 @@
+package pwnee.sprites;
+
+/*======================================================================
+ * 
+ * Pwnee - A lightweight 2D Java game engine
+ * 
+ * Copyright (c) 2012 by Stephen Lindberg (sllindberg21@students.tntech.edu)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+======================================================================*/
+
+import pwnee.GameTimer;
+
+/** 
+ * Dynamically lowers the internal resolution of BlitterSprites when rendering them blows the frame budget, and raises 
+ * it again once there is headroom. The cost of blittering grows with the number of pixels, so rendering into a 
+ * smaller buffer and upscaling it is a cheap way to keep weak machines at full frame rate. 
+ * 
+ * Assign the controller to the resolution field of any BlitterSprites it should control, and call update once per 
+ * frame with the game's timer. The sprites report how long they spend drawing, and the controller compares that and 
+ * the timer's measured frame time against the timer's preferred delay.
+ */
+public class ResolutionController {
+  
+  /** The current resolution scale, in the range [minScale, 1.0]. */
+  private double scale = 1.0;
+  
+  /** The lowest resolution scale the controller will drop to. */
+  public double minScale = 0.25;
+  
+  /** How much the resolution scale changes in each adjustment. */
+  public double scaleStep = 0.125;
+  
+  /** The fraction of the frame budget that blittering is allowed to take. */
+  public double budgetFraction = 0.5;
+  
+  /** The frame is considered over budget if the timer's frame time exceeds its preferred delay by this ratio. */
+  public double overloadRatio = 1.15;
+  
+  /** The number of consecutive overloaded frames required before lowering the resolution. */
+  public int overloadFrames = 5;
+  
+  /** The number of consecutive frames with headroom required before raising the resolution. */
+  public int recoverFrames = 60;
+  
+  /** If false, the controller stops adjusting and keeps its current scale. */
+  public boolean isEnabled = true;
+  
+  /** A smoothed measure of the milliseconds spent blittering per frame. */
+  private double blitMillis = 0;
+  
+  /** The nanoseconds spent blittering since the last update. */
+  private long frameBlitNanos = 0;
+  
+  /** The number of consecutive overloaded frames. */
+  private int overloadCount = 0;
+  
+  /** The number of consecutive frames with headroom. */
+  private int headroomCount = 0;
+  
+  
+  public ResolutionController() {
+  }
+  
+  /** Creates the controller with a minimum resolution scale. */
+  public ResolutionController(double minScale) {
+    this.minScale = minScale;
+  }
+  
+  
+  /** Returns the current resolution scale, in the range [minScale, 1.0]. */
+  public double getScale() {
+    return scale;
+  }
+  
+  /** Forces the resolution scale to some value, clamped to the range [minScale, 1.0]. */
+  public void setScale(double scale) {
+    this.scale = Math.max(minScale, Math.min(1.0, scale));
+    overloadCount = 0;
+    headroomCount = 0;
+  }
+  
+  /** Returns the smoothed milliseconds spent blittering per frame. */
+  public double getBlitMillis() {
+    return blitMillis;
+  }
+  
+  /** Called by BlitterSprites to report the time they spent drawing. */
+  public void addBlitTime(long nanos) {
+    frameBlitNanos += nanos;
+  }
+  
+  
+  /** 
+   * Adjusts the resolution scale based on the last frame's timing. This should be called once per frame. 
+   * @param timer   The game's timer, used for its preferred delay and its measured frame time.
+   */
+  public void update(GameTimer timer) {
+    double millis = frameBlitNanos/1000000.0;
+    frameBlitNanos = 0;
+    blitMillis += (millis - blitMillis)*0.2;
+    
+    if(!isEnabled)
+      return;
+    
+    double budget = (timer.preferredDelay > 0 ? timer.preferredDelay : 1000.0/60);
+    double blitBudget = budget*budgetFraction;
+    
+    boolean overloaded = (timer.frameMillis > budget*overloadRatio || blitMillis > blitBudget);
+    if(overloaded && scale > minScale) {
+      headroomCount = 0;
+      overloadCount++;
+      if(overloadCount >= overloadFrames) {
+        scale = Math.max(minScale, scale - scaleStep);
+        overloadCount = 0;
+      }
+      return;
+    }
+    overloadCount = 0;
+    
+    // Blittering cost grows with the number of pixels, so predict the cost at the next scale up before raising it.
+    double nextScale = Math.min(1.0, scale + scaleStep);
+    double ratio = nextScale/scale;
+    boolean hasHeadroom = (!overloaded && blitMillis*ratio*ratio < blitBudget*0.9);
+    if(hasHeadroom && scale < 1.0) {
+      headroomCount++;
+      if(headroomCount >= recoverFrames) {
+        scale = nextScale;
+        headroomCount = 0;
+      }
+    }
+    else {
+      headroomCount = 0;
+    }
+  }
+}
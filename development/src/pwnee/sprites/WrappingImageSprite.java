@@ -52,6 +52,10 @@ public class WrappingImageSprite extends BlitterSprite {
    private double camCos = 1;
    private double camSin = 0;
    
+   // The camera parameters used for the last result image.
+   private double lastCameraX, lastCameraY, lastCameraAngle, lastCameraZoom, lastWidth, lastHeight;
+   private boolean lastSrcWrapX, lastSrcWrapY;
+   
 	// CONSTRUCTOR
 	
 	public WrappingImageSprite(Image srcImg, double x, double y, double w, double h) {
@@ -60,6 +64,43 @@ public class WrappingImageSprite extends BlitterSprite {
 	
 	// RENDERING METHODS
 	
+	/** Returns true if any of the camera parameters changed since the last time the Sprite was blittered. */
+	protected boolean isViewChanged() {
+		return (cameraX != lastCameraX || cameraY != lastCameraY || cameraAngle != lastCameraAngle || cameraZoom != lastCameraZoom || 
+				width != lastWidth || height != lastHeight || srcWrapX != lastSrcWrapX || srcWrapY != lastSrcWrapY);
+	}
+	
+	/** Records the camera parameters used for the current result image. */
+	protected void saveViewState() {
+		lastCameraX = cameraX;
+		lastCameraY = cameraY;
+		lastCameraAngle = cameraAngle;
+		lastCameraZoom = cameraZoom;
+		lastWidth = width;
+		lastHeight = height;
+		lastSrcWrapX = srcWrapX;
+		lastSrcWrapY = srcWrapY;
+	}
+	
+	/** 
+    * Scrolls the last result image if the camera only moved by whole pixels while unrotated and unzoomed, and the Sprite has an even size. 
+    * In that case every pixel maps exactly to the source pixel its neighbor mapped to before. 
+    */
+	protected boolean scrollView() {
+		if(camCos != 1 || camSin != 0 || cameraZoom != 1 || cameraAngle != lastCameraAngle || cameraZoom != lastCameraZoom || 
+				width != lastWidth || height != lastHeight || srcWrapX != lastSrcWrapX || srcWrapY != lastSrcWrapY)
+			return false;
+		
+		if(cameraX != Math.floor(cameraX) || cameraY != Math.floor(cameraY) || lastCameraX != Math.floor(lastCameraX) || lastCameraY != Math.floor(lastCameraY))
+			return false;
+		
+		// With an odd size, the pixels around the center are truncated toward 0 unevenly and the mapping isn't a pure shift.
+		if(width/2 != Math.floor(width/2) || height/2 != Math.floor(height/2))
+			return false;
+		
+		return scrollResult((int) (cameraX - lastCameraX), (int) (cameraY - lastCameraY));
+	}
+	
 	/** Computes and stores cameraAngle's sine and cosine. */
    public void computeReusedValues() {
 		camCos = GameMath.cos(cameraAngle);
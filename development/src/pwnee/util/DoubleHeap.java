@@ -0,0 +1,212 @@
+package pwnee.util;
+
+
+/*======================================================================
+ * 
+ * Pwnee - A lightweight 2D Java game engine
+ * 
+ * Copyright (c) 2012 by Stephen Lindberg (sllindberg21@students.tntech.edu)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+======================================================================*/
+
+import java.util.Arrays;
+
+/** 
+ * A binary heap of values keyed by primitive doubles, with either the 
+ * smallest or the largest key on top. The keys are kept in a double array 
+ * instead of being boxed, so pushing and popping values doesn't allocate 
+ * any objects once the heap has grown to its working size. 
+ *
+ * A heap with the largest key on top can be bounded with offerBounded to 
+ * keep the k values with the smallest keys seen so far, such as the k 
+ * nearest sprites to a point, while its top key is the kth smallest key.
+ */
+public class DoubleHeap<T> {
+  
+  private static final int INIT_CAPACITY = 16;
+  
+  /** The keys of the values, in heap order. */
+  private double[] keys;
+  
+  /** The values, in heap order. */
+  private Object[] values;
+  
+  /** The number of values in the heap. */
+  private int size = 0;
+  
+  /** Whether the largest key is on top instead of the smallest. */
+  private boolean largestFirst;
+  
+  
+  /** Creates an empty heap with the smallest key on top. */
+  public DoubleHeap() {
+    this(false);
+  }
+  
+  /** Creates an empty heap with either the largest or the smallest key on top. */
+  public DoubleHeap(boolean largestFirst) {
+    this(largestFirst, INIT_CAPACITY);
+  }
+  
+  /** Creates an empty heap that can hold the given number of values before it needs to grow. */
+  public DoubleHeap(boolean largestFirst, int capacity) {
+    this.largestFirst = largestFirst;
+    capacity = Math.max(1, capacity);
+    keys = new double[capacity];
+    values = new Object[capacity];
+  }
+  
+  /** Returns true iff the largest key is on top of the heap. */
+  public boolean isLargestFirst() {
+    return largestFirst;
+  }
+  
+  /** Returns the number of values in the heap. */
+  public int size() {
+    return size;
+  }
+  
+  /** Returns true iff the heap has no values. */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+  
+  /** Removes all values from the heap, keeping its capacity. */
+  public void clear() {
+    Arrays.fill(values, 0, size, null);
+    size = 0;
+  }
+  
+  /** Returns the key on top of the heap. The heap must not be empty. */
+  public double peekKey() {
+    return keys[0];
+  }
+  
+  /** Returns the value on top of the heap, or null if it is empty. */
+  @SuppressWarnings("unchecked")
+  public T peek() {
+    return (T) values[0];
+  }
+  
+  /** Adds a value to the heap. */
+  public void push(double key, T value) {
+    if(size == keys.length) {
+      keys = Arrays.copyOf(keys, size*2);
+      values = Arrays.copyOf(values, size*2);
+    }
+    siftUp(size, key, value);
+    size++;
+  }
+  
+  /** 
+   * Removes the value on top of the heap and returns it. 
+   * @return  the removed value, or null if the heap is empty.
+   */
+  @SuppressWarnings("unchecked")
+  public T pop() {
+    if(size == 0)
+      return null;
+    T top = (T) values[0];
+    size--;
+    double key = keys[size];
+    Object value = values[size];
+    values[size] = null;
+    if(size > 0)
+      siftDown(0, key, value);
+    return top;
+  }
+  
+  /** 
+   * Replaces the value on top of the heap with a new value. This is cheaper 
+   * than popping and then pushing. The heap must not be empty.
+   */
+  public void replaceTop(double key, T value) {
+    siftDown(0, key, value);
+  }
+  
+  /** 
+   * Adds a value if the heap holds fewer than maxSize values. Otherwise, 
+   * the value replaces the top value if its key would be below the top. 
+   * For a heap with the largest key on top, this keeps the maxSize values 
+   * with the smallest keys.
+   * @return  true iff the value was added.
+   */
+  public boolean offerBounded(double key, T value, int maxSize) {
+    if(size < maxSize) {
+      push(key, value);
+      return true;
+    }
+    if(size == 0 || !above(keys[0], key))
+      return false;
+    replaceTop(key, value);
+    return true;
+  }
+  
+  /** Returns the key at an index in heap order. */
+  public double getKey(int i) {
+    return keys[i];
+  }
+  
+  /** Returns the value at an index in heap order. */
+  @SuppressWarnings("unchecked")
+  public T get(int i) {
+    return (T) values[i];
+  }
+  
+  /** Returns true iff key a belongs above key b in the heap. */
+  private boolean above(double a, double b) {
+    return largestFirst ? a > b : a < b;
+  }
+  
+  /** Moves a value up from an empty slot to its place in the heap. */
+  private void siftUp(int i, double key, Object value) {
+    while(i > 0) {
+      int parent = (i - 1) >>> 1;
+      if(!above(key, keys[parent]))
+        break;
+      keys[i] = keys[parent];
+      values[i] = values[parent];
+      i = parent;
+    }
+    keys[i] = key;
+    values[i] = value;
+  }
+  
+  /** Moves a value down from an empty slot to its place in the heap. */
+  private void siftDown(int i, double key, Object value) {
+    int half = size >>> 1;
+    while(i < half) {
+      int child = 2*i + 1;
+      int right = child + 1;
+      if(right < size && above(keys[right], keys[child]))
+        child = right;
+      if(!above(keys[child], key))
+        break;
+      keys[i] = keys[child];
+      values[i] = values[child];
+      i = child;
+    }
+    keys[i] = key;
+    values[i] = value;
+  }
+}
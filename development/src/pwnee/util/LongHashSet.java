@@ -0,0 +1,216 @@
+package pwnee.util;
+
+
+/*======================================================================
+ * 
+ * Pwnee - A lightweight 2D Java game engine
+ * 
+ * Copyright (c) 2012 by Stephen Lindberg (sllindberg21@students.tntech.edu)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+======================================================================*/
+
+import java.util.Arrays;
+
+/** 
+ * An open-addressing hash set of primitive longs. Unlike a HashSet<Long>, 
+ * adding and removing values doesn't allocate any objects, which makes it 
+ * suitable for sets that change every frame, such as sets of sprite pairs 
+ * packed into longs with pairKey.
+ *
+ * The values can be iterated without allocating an Iterator by looping over 
+ * the slots from 0 to capacity()-1 and reading the ones that are isUsed.
+ */
+public class LongHashSet {
+  
+  private static final int INIT_CAPACITY = 16;
+  
+  /** The values in the set's slots. */
+  private long[] values;
+  
+  /** Whether each slot holds a value. */
+  private boolean[] used;
+  
+  /** The number of values in the set. */
+  private int size;
+  
+  /** The set is grown once it holds this many values. */
+  private int threshold;
+  
+  
+  /** Creates an empty set. */
+  public LongHashSet() {
+    this(INIT_CAPACITY);
+  }
+  
+  /** Creates an empty set that can hold the given number of values before it needs to grow. */
+  public LongHashSet(int expectedSize) {
+    int capacity = INIT_CAPACITY;
+    while(capacity*3/4 < expectedSize)
+      capacity <<= 1;
+    allocate(capacity);
+  }
+  
+  /** Allocates empty slots. */
+  private void allocate(int capacity) {
+    values = new long[capacity];
+    used = new boolean[capacity];
+    threshold = capacity*3/4;
+  }
+  
+  /** 
+   * Packs two non-negative ints into a long, in an order-independent way. 
+   * This is useful for storing unordered pairs of ids in the set.
+   */
+  public static long pairKey(int a, int b) {
+    if(a > b) {
+      int t = a;
+      a = b;
+      b = t;
+    }
+    return ((long) a << 32) | (b & 0xFFFFFFFFL);
+  }
+  
+  /** Returns the smaller id packed into a pair key. */
+  public static int pairFirst(long key) {
+    return (int) (key >>> 32);
+  }
+  
+  /** Returns the larger id packed into a pair key. */
+  public static int pairSecond(long key) {
+    return (int) key;
+  }
+  
+  /** Returns the slot where the search for a value begins. */
+  private int slotOf(long value) {
+    long h = value*0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & (values.length - 1);
+  }
+  
+  /** Returns the number of values in the set. */
+  public int size() {
+    return size;
+  }
+  
+  /** Returns true iff the set has no values. */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+  
+  /** Returns true iff a value is in the set. */
+  public boolean contains(long value) {
+    int mask = values.length - 1;
+    for(int i = slotOf(value); used[i]; i = (i + 1) & mask) {
+      if(values[i] == value)
+        return true;
+    }
+    return false;
+  }
+  
+  /** 
+   * Adds a value to the set. 
+   * @return  true iff the value wasn't already in the set.
+   */
+  public boolean add(long value) {
+    int mask = values.length - 1;
+    int i = slotOf(value);
+    for(; used[i]; i = (i + 1) & mask) {
+      if(values[i] == value)
+        return false;
+    }
+    values[i] = value;
+    used[i] = true;
+    size++;
+    if(size > threshold)
+      rehash(values.length*2);
+    return true;
+  }
+  
+  /** 
+   * Removes a value from the set. 
+   * @return  true iff the value was in the set.
+   */
+  public boolean remove(long value) {
+    int mask = values.length - 1;
+    int i = slotOf(value);
+    for(; used[i]; i = (i + 1) & mask) {
+      if(values[i] == value)
+        break;
+    }
+    if(!used[i])
+      return false;
+    
+    // Shift back any later values in the probe sequence that would no longer be found past the emptied slot.
+    int hole = i;
+    for(int j = (i + 1) & mask; used[j]; j = (j + 1) & mask) {
+      int home = slotOf(values[j]);
+      if(((j - home) & mask) >= ((j - hole) & mask)) {
+        values[hole] = values[j];
+        hole = j;
+      }
+    }
+    used[hole] = false;
+    size--;
+    return true;
+  }
+  
+  /** Removes all values from the set, keeping its capacity. */
+  public void clear() {
+    if(size > 0) {
+      Arrays.fill(used, false);
+      size = 0;
+    }
+  }
+  
+  /** Returns the number of slots in the set. */
+  public int capacity() {
+    return values.length;
+  }
+  
+  /** Returns true iff a slot holds a value. */
+  public boolean isUsed(int slot) {
+    return used[slot];
+  }
+  
+  /** Returns the value in a slot. This is only meaningful if the slot isUsed. */
+  public long get(int slot) {
+    return values[slot];
+  }
+  
+  /** Moves the values into a new array of slots. */
+  private void rehash(int capacity) {
+    long[] oldValues = values;
+    boolean[] oldUsed = used;
+    allocate(capacity);
+    
+    int mask = capacity - 1;
+    for(int j = 0; j < oldValues.length; j++) {
+      if(!oldUsed[j])
+        continue;
+      int i = slotOf(oldValues[j]);
+      while(used[i])
+        i = (i + 1) & mask;
+      values[i] = oldValues[j];
+      used[i] = true;
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package pwnee.util;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** 
+ * Provides a shared pool of worker threads for the engine's parallel 
+ * algorithms, so that they don't each start their own threads. 
+ * The pool's threads are daemon threads, so they won't keep the application 
+ * running after its main window closes.
+ */
+public class WorkerPool {
+  
+  private static ForkJoinPool pool = null;
+  
+  private WorkerPool() {}
+  
+  /** Returns the shared pool, creating it with one thread per processor the first time it is used. */
+  public static synchronized ForkJoinPool get() {
+    if(pool == null) {
+      pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+    return pool;
+  }
+  
+  /** Returns the number of threads the shared pool runs tasks on. */
+  public static int getParallelism() {
+    return get().getParallelism();
+  }
+}